@@ -48,6 +48,11 @@ public class PolicyIndexRebuilder
 
 
 
+    }
+
+    @Override
+    public void abort() {
+
     }
 
     @Override
@@ -0,0 +1,256 @@
+/*
+ * This file is part of opensearch.
+ * Copyright (c) 2012, Dansk Bibliotekscenter a/s,
+ * Tempovej 7-11, DK-2750 Ballerup, Denmark. CVR: 15149043
+ *
+ * opensearch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * opensearch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with opensearch. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package dk.dbc.opensearch.fedora.search;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocTermOrds;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Collector counting the values of a set of fields over the matching
+ * documents, in the same pass as the search.
+ * <p>
+ * Values are read from the uninverted terms of the exact match fields
+ * ({@link FedoraFieldName#equalsFieldName()}), which Lucene caches per
+ * segment in the {@link FieldCache}, so multi-valued fields are counted
+ * once for each of their values. Counts are kept by term ordinal within a
+ * segment, and merged by value when the search moves to the next segment.
+ */
+final class FacetCollector extends Collector
+{
+    private final FedoraFieldName[] fields;
+    private final List<Map<String, Integer>> counts;
+
+    private DocTermOrds[] segmentOrds;
+    private int[][] segmentCounts;
+    private DocTermOrds.TermOrdsIterator ordsIterator;
+    private AtomicReaderContext segment;
+    private final int[] ordsBuffer = new int[ 16 ];
+
+    /**
+     * @param fields the fields to count values for. Date fields are not supported
+     */
+    FacetCollector( final List<FedoraFieldName> fields )
+    {
+        this.fields = fields.toArray( new FedoraFieldName[ fields.size() ] );
+        this.counts = new ArrayList<Map<String, Integer>>( fields.size() );
+        for( FedoraFieldName field : fields )
+        {
+            if( field.isDateField() )
+            {
+                throw new IllegalArgumentException( String.format( "Date field %s can not be used as facet", field ) );
+            }
+            counts.add( new HashMap<String, Integer>() );
+        }
+    }
+
+    @Override
+    public void setScorer( final Scorer scorer ) throws IOException
+    {
+        // Scores are not used
+    }
+
+    @Override
+    public void collect( final int docId ) throws IOException
+    {
+        for( int i = 0; i < fields.length; i++ )
+        {
+            if( segmentOrds[ i ] == null )
+            {
+                continue;
+            }
+            int[] fieldCounts = segmentCounts[ i ];
+            ordsIterator = segmentOrds[ i ].lookup( docId, ordsIterator );
+            int read;
+            do
+            {
+                read = ordsIterator.read( ordsBuffer );
+                for( int j = 0; j < read; j++ )
+                {
+                    fieldCounts[ ordsBuffer[ j ] ]++;
+                }
+            }
+            while( read == ordsBuffer.length );
+        }
+    }
+
+    @Override
+    public void setNextReader( final AtomicReaderContext context ) throws IOException
+    {
+        mergeSegmentCounts();
+        segment = context;
+        segmentOrds = new DocTermOrds[ fields.length ];
+        segmentCounts = new int[ fields.length ][];
+        for( int i = 0; i < fields.length; i++ )
+        {
+            DocTermOrds ords = FieldCache.DEFAULT.getDocTermOrds( context.reader(), fields[ i ].equalsFieldName() );
+            if( ords.numTerms() > 0 )
+            {
+                segmentOrds[ i ] = ords;
+                segmentCounts[ i ] = new int[ ords.numTerms() ];
+            }
+        }
+    }
+
+    @Override
+    public boolean acceptsDocsOutOfOrder()
+    {
+        return true;
+    }
+
+    /**
+     * Adds the counts of the current segment to the counts by value.
+     */
+    private void mergeSegmentCounts() throws IOException
+    {
+        if( segment == null )
+        {
+            return;
+        }
+        for( int i = 0; i < fields.length; i++ )
+        {
+            if( segmentOrds[ i ] == null )
+            {
+                continue;
+            }
+            TermsEnum termsEnum = segmentOrds[ i ].getOrdTermsEnum( segment.reader() );
+            Map<String, Integer> fieldCounts = counts.get( i );
+            int[] ordCounts = segmentCounts[ i ];
+            for( int ord = 0; ord < ordCounts.length; ord++ )
+            {
+                if( ordCounts[ ord ] == 0 )
+                {
+                    continue;
+                }
+                String value = stripFieldMarkers( segmentOrds[ i ].lookupTerm( termsEnum, ord ) );
+                Integer count = fieldCounts.get( value );
+                fieldCounts.put( value, count == null ? ordCounts[ ord ] : count + ordCounts[ ord ] );
+            }
+        }
+        segment = null;
+        segmentOrds = null;
+        segmentCounts = null;
+    }
+
+    /**
+     * Removes the markers wrapping values in the exact match fields.
+     */
+    private static String stripFieldMarkers( final BytesRef term )
+    {
+        String value = term.utf8ToString();
+        if( value.length() >= 2 && value.charAt( 0 ) == LuceneFieldIndex.FIELDSTART && value.charAt( value.length() - 1 ) == LuceneFieldIndex.FIELDEND )
+        {
+            return value.substring( 1, value.length() - 1 );
+        }
+        return value;
+    }
+
+    /**
+     * Returns the most frequent values of each field. Must be called after
+     * the search.
+     *
+     * @param maxValues the maximum number of values to return for each field
+     * @return map from field to values and their counts, ordered by descending count and then by value
+     */
+    Map<FedoraFieldName, List<Pair<String, Integer>>> getTopValues( final int maxValues ) throws IOException
+    {
+        mergeSegmentCounts();
+        Map<FedoraFieldName, List<Pair<String, Integer>>> result = new LinkedHashMap<FedoraFieldName, List<Pair<String, Integer>>>();
+        for( int i = 0; i < fields.length; i++ )
+        {
+            List<Pair<String, Integer>> values = new ArrayList<Pair<String, Integer>>( counts.get( i ).size() );
+            for( Map.Entry<String, Integer> entry : counts.get( i ).entrySet() )
+            {
+                values.add( new Pair<String, Integer>( entry.getKey(), entry.getValue() ) );
+            }
+            Collections.sort( values, BY_DESCENDING_COUNT );
+            result.put( fields[ i ], values.size() > maxValues ? new ArrayList<Pair<String, Integer>>( values.subList( 0, maxValues ) ) : values );
+        }
+        return result;
+    }
+
+    /**
+     * Merges the value counts of several indexes, such as the shards of a
+     * sharded index. Each index must have returned all of its values, so
+     * the merged counts are exact.
+     *
+     * @param indexValues values and counts of each index, as returned by {@link #getTopValues(int)}
+     * @param maxValues the maximum number of values to return for each field
+     * @return map from field to values and their summed counts, ordered by descending count and then by value
+     */
+    static Map<FedoraFieldName, List<Pair<String, Integer>>> mergeTopValues( final List<Map<FedoraFieldName, List<Pair<String, Integer>>>> indexValues,
+            final int maxValues )
+    {
+        Map<FedoraFieldName, Map<String, Integer>> merged = new LinkedHashMap<FedoraFieldName, Map<String, Integer>>();
+        for( Map<FedoraFieldName, List<Pair<String, Integer>>> values : indexValues )
+        {
+            for( Map.Entry<FedoraFieldName, List<Pair<String, Integer>>> field : values.entrySet() )
+            {
+                Map<String, Integer> fieldCounts = merged.get( field.getKey() );
+                if( fieldCounts == null )
+                {
+                    fieldCounts = new HashMap<String, Integer>();
+                    merged.put( field.getKey(), fieldCounts );
+                }
+                for( Pair<String, Integer> value : field.getValue() )
+                {
+                    Integer count = fieldCounts.get( value.getFirst() );
+                    fieldCounts.put( value.getFirst(), count == null ? value.getSecond() : count + value.getSecond() );
+                }
+            }
+        }
+
+        Map<FedoraFieldName, List<Pair<String, Integer>>> result = new LinkedHashMap<FedoraFieldName, List<Pair<String, Integer>>>();
+        for( Map.Entry<FedoraFieldName, Map<String, Integer>> field : merged.entrySet() )
+        {
+            List<Pair<String, Integer>> values = new ArrayList<Pair<String, Integer>>( field.getValue().size() );
+            for( Map.Entry<String, Integer> entry : field.getValue().entrySet() )
+            {
+                values.add( new Pair<String, Integer>( entry.getKey(), entry.getValue() ) );
+            }
+            Collections.sort( values, BY_DESCENDING_COUNT );
+            result.put( field.getKey(), values.size() > maxValues ? new ArrayList<Pair<String, Integer>>( values.subList( 0, maxValues ) ) : values );
+        }
+        return result;
+    }
+
+    private static final Comparator<Pair<String, Integer>> BY_DESCENDING_COUNT = new Comparator<Pair<String, Integer>>()
+    {
+        @Override
+        public int compare( Pair<String, Integer> a, Pair<String, Integer> b )
+        {
+            int order = b.getSecond().compareTo( a.getSecond() );
+            return order != 0 ? order : a.getFirst().compareTo( b.getFirst() );
+        }
+    };
+}
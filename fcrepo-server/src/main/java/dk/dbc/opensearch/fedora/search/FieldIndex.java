@@ -0,0 +1,67 @@
+/*
+ * This file is part of opensearch.
+ * Copyright (c) 2012, Dansk Bibliotekscenter a/s,
+ * Tempovej 7-11, DK-2750 Ballerup, Denmark. CVR: 15149043
+ *
+ * opensearch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * opensearch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with opensearch. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package dk.dbc.opensearch.fedora.search;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.fcrepo.server.search.FieldSearchQuery;
+
+/**
+ * The operations of the field search index used by {@link FieldSearchLucene},
+ * implemented by a single {@link LuceneFieldIndex}, or by a
+ * {@link ShardedFieldIndex} spreading the objects over several of them.
+ */
+abstract class FieldIndex
+{
+    abstract void indexFields( List<Pair<FedoraFieldName, String>> fieldList, long extractTimeNs ) throws IOException;
+
+    abstract void removeDocument( String uid ) throws IOException;
+
+    abstract IPidList search( FieldSearchQuery fsq ) throws IOException, ParseException;
+
+    abstract List<String> searchAfter( FieldSearchQuery fsq, String afterPid, int count ) throws IOException, ParseException;
+
+    abstract int count( FieldSearchQuery fsq ) throws IOException, ParseException;
+
+    abstract Map<FedoraFieldName, List<Pair<String, Integer>>> facets( FieldSearchQuery fsq, List<FedoraFieldName> fields, int maxValues ) throws IOException, ParseException;
+
+    abstract Map<String, Document> getStoredDocuments( Collection<String> pids ) throws IOException;
+
+    abstract boolean pidExists( String pid ) throws IOException;
+
+    abstract PidIterator pidIterator() throws IOException;
+
+    abstract int findHighestId( String namespace ) throws IOException;
+
+    abstract void beginBulkLoad( int batchSize, double ramBufferSizeMB ) throws IOException;
+
+    abstract void endBulkLoad() throws IOException;
+
+    abstract void abortBulkLoad() throws IOException;
+
+    abstract void flush() throws IOException;
+
+    abstract void closeIndex() throws IOException;
+}
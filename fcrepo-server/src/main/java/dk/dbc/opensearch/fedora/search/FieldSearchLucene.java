@@ -24,6 +24,7 @@ package dk.dbc.opensearch.fedora.search;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
 import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.NIOFSDirectory;
 import org.apache.lucene.store.RAMDirectory;
@@ -49,12 +50,24 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.KeepOnlyLastCommitDeletionPolicy;
+import org.apache.lucene.index.SnapshotDeletionPolicy;
 import org.apache.lucene.index.TieredMergePolicy;
 
 
@@ -93,17 +106,54 @@ public final class FieldSearchLucene extends Module implements FieldSearch
     private DOManager doManager;
     private static final Logger log = LoggerFactory.getLogger( FieldSearchLucene.class );
 
+    /** File in indexLocation with the shard settings the index was built with */
+    private static final String SHARD_SETTINGS_FILE = "index-shards.properties";
+
     public int resultLifeTimeInSeconds;
-    private LuceneFieldIndex luceneindexer;
+    private FieldIndex luceneindexer;
     private FieldSearchLuceneImpl fsl;
     private FieldSearchResultCache cache;
 
     private int pidCollectorMaxInMemory;
     private File pidCollectorTmpDir = null;
+    private boolean pidCollectorCompactFiles = false;
+
+    private boolean indexedResultFields = false;
+
+    private double searcherRefreshMaxStaleSec = 0;
+    private double searcherRefreshMinStaleSec = 0;
+
+    private long queryResultCacheMaxPids = 0;
+
+    private int queryPlanCacheSize = 0;
+
+    private int searchThreads = 0;
+    private long searchTimeoutMs = 0;
+
+    private List<FedoraFieldName> facetFields = Arrays.asList( FedoraFieldName.STATE, FedoraFieldName.OWNERID,
+            FedoraFieldName.TYPE, FedoraFieldName.RELSYSPREDOBJ );
+
+    private int bulkLoadBatchSize = 10000;
+    private double bulkLoadRAMBufferSizeMB = 256;
+
+    private double backupMaxMBPerSec = 20;
+
+    private int indexShards = 1;
+    private boolean indexShardByNamespace = false;
+
+    private long luceneWriteLockTimeout;
+    private int luceneMaxThreadStates;
+
+    private PidBloomFilter pidBloomFilter = null;
+    private final static double PID_BLOOM_FILTER_FALSE_POSITIVE_RATE = 0.01;
 
     private File writeAheadLogDir = null;
     private int writeAheadLogCommitSize;
     private boolean writeAheadLogKeepFileOpen = true;
+    private boolean writeAheadLogGroupCommit = false;
+    private long writeAheadLogGroupCommitMaxDelayMs = 5;
+    private long writeAheadLogGroupCommitMaxBatchBytes = 1024 * 1024;
+    private int writeAheadLogMaxPendingCommits = WriteAheadLog.DEFAULT_MAX_PENDING_COMMITS;
 
     /**
      * Constructor for initializing the FieldSearch module. The server will
@@ -163,7 +213,7 @@ public final class FieldSearchLucene extends Module implements FieldSearch
             log.error( error );
             throw new ModuleInitializationException( error, getRole() );
         }
-        long luceneWriteLockTimeout = Long.parseLong( writeLockTimeout );
+        luceneWriteLockTimeout = Long.parseLong( writeLockTimeout );
         log.debug( "luceneWritelockTimeout = {}", writeLockTimeout );
 
         // maxThreadStates
@@ -174,7 +224,7 @@ public final class FieldSearchLucene extends Module implements FieldSearch
             log.error( error );
             throw new ModuleInitializationException( error, getRole() );
         }
-        int luceneMaxThreadStates = Integer.parseInt( maxThreadStates );
+        luceneMaxThreadStates = Integer.parseInt( maxThreadStates );
         log.debug( "luceneMaxThreadStates = {}", luceneMaxThreadStates );
 
         // directory
@@ -185,45 +235,78 @@ public final class FieldSearchLucene extends Module implements FieldSearch
             log.error( error );
             throw new ModuleInitializationException( error, getRole() );
         }
-        Directory directory;
-        try
-        {
-            directory = initializeDirectoryString( sDirectory );
-        }
-        catch( IOException ex )
-        {
-            String error = String.format( "FATAL: Could not initialize lucene directory '%s': %s", sDirectory, ex.getMessage() );
-            log.error( error );
-            throw new ModuleInitializationException( error, getRole(), ex );
-        }
         log.debug( "LuceneDirectory: {}", sDirectory );
 
         // PidCollector
         initializePidCollectorSettings();
 
+        // indexedResultFields
+        String indexedResultFieldsParam = getParameter( "indexedResultFields" );
+        if( indexedResultFieldsParam != null && !indexedResultFieldsParam.equals( "" ) )
+        {
+            indexedResultFields = Boolean.parseBoolean( indexedResultFieldsParam );
+        }
+        log.info( "Using indexedResultFields: {}", indexedResultFields );
+
         // Write Ahead Log
         initializeWriteAheadLogSettings();
 
-        // luceneindexer
-        Analyzer analyzer = new WhitespaceAnalyzer( Version.LUCENE_41 );
+        initializeSearcherRefreshSettings();
 
-        TieredMergePolicy mergePolicy = new TieredMergePolicy();
-        try
-        {
-            IndexWriter writer = createIndexWriter( luceneWriteLockTimeout, luceneMaxThreadStates, analyzer, directory, new TieredMergePolicy() );
+        queryResultCacheMaxPids = getNonNegativeLongParameter( "queryResultCacheMaxPids", 0 );
+        log.info( "Using queryResultCacheMaxPids: {}", queryResultCacheMaxPids );
 
-            WriteAheadLog wal = ( writeAheadLogDir == null) ? null : new WriteAheadLog( writer, writeAheadLogDir, writeAheadLogCommitSize, writeAheadLogKeepFileOpen);
+        queryPlanCacheSize = (int) Math.min( Integer.MAX_VALUE, getNonNegativeLongParameter( "queryPlanCacheSize", queryPlanCacheSize ) );
+        log.info( "Using queryPlanCacheSize: {}", queryPlanCacheSize );
 
-            this.luceneindexer = new LuceneFieldIndex( writer, mergePolicy,
-                    pidCollectorMaxInMemory, pidCollectorTmpDir, wal);
-            log.trace( "Constructed LuceneIndex instance" );
+        searchThreads = (int) Math.min( Integer.MAX_VALUE, getNonNegativeLongParameter( "searchThreads", 0 ) );
+        log.info( "Using searchThreads: {}", searchThreads );
+        searchTimeoutMs = getNonNegativeLongParameter( "searchTimeoutMs", 0 );
+        log.info( "Using searchTimeoutMs: {}", searchTimeoutMs );
+
+        initializeFacetFields();
+
+        bulkLoadBatchSize = (int) Math.min( Integer.MAX_VALUE, getNonNegativeLongParameter( "bulkLoadBatchSize", bulkLoadBatchSize ) );
+        if( bulkLoadBatchSize == 0 )
+        {
+            throw new ModuleInitializationException( "bulkLoadBatchSize must be positive", getRole() );
         }
-        catch( IOException ex )
+        log.info( "Using bulkLoadBatchSize: {}", bulkLoadBatchSize );
+        bulkLoadRAMBufferSizeMB = getNonNegativeDoubleParameter( "bulkLoadRAMBufferSizeMB", bulkLoadRAMBufferSizeMB );
+        log.info( "Using bulkLoadRAMBufferSizeMB: {}", bulkLoadRAMBufferSizeMB );
+        backupMaxMBPerSec = getNonNegativeDoubleParameter( "backupMaxMBPerSec", backupMaxMBPerSec );
+        log.info( "Using backupMaxMBPerSec: {}", backupMaxMBPerSec );
+
+        initializeShardSettings();
+        if( !sDirectory.equals( "RAMDirectory" ) )
         {
-            String error = "FATAL: Could not initialize lucene indexer";
-            log.error( error );
-            throw new ModuleInitializationException( error, getRole(), ex );
+            checkShardLayout();
+        }
+
+        // luceneindexer
+        if( indexShards == 1 )
+        {
+            this.luceneindexer = createIndexShard( sDirectory, null );
         }
+        else
+        {
+            List<LuceneFieldIndex> shards = new ArrayList<LuceneFieldIndex>( indexShards );
+            try
+            {
+                for( int i = 0; i < indexShards; i++ )
+                {
+                    shards.add( createIndexShard( sDirectory, String.valueOf( i ) ) );
+                }
+            }
+            catch( ModuleInitializationException ex )
+            {
+                closeIndexShards( shards );
+                throw ex;
+            }
+            this.luceneindexer = new ShardedFieldIndex( shards, indexShardByNamespace );
+        }
+
+        initializePidBloomFilter();
 
         fsl = new FieldSearchLuceneImpl( luceneindexer );
         cache = new FieldSearchResultCache( resultLifeTimeInSeconds );
@@ -265,6 +348,11 @@ public final class FieldSearchLucene extends Module implements FieldSearch
             throw( e );
         }
 
+        if( pidBloomFilter != null )
+        {
+            pidBloomFilter.add( objectPID );
+        }
+
         try
         {
             this.fsl.update( fedoraCreateDate,
@@ -349,7 +437,7 @@ public final class FieldSearchLucene extends Module implements FieldSearch
         FieldSearchResultLucene fsr;
         try
         {
-            fsr = new FieldSearchResultLucene( this.luceneindexer, this.doManager, validReturnFields, fsq, maxResults, resultLifeTimeInSeconds );
+            fsr = new FieldSearchResultLucene( this.luceneindexer, this.doManager, validReturnFields, fsq, maxResults, resultLifeTimeInSeconds, indexedResultFields );
         }
         catch( IOException e )
         {
@@ -371,6 +459,135 @@ public final class FieldSearchLucene extends Module implements FieldSearch
     }
 
 
+    /**
+     * Returns one page of results in PID order, computed with a sorted search
+     * on the index, so nothing is cached between pages.
+     */
+    @Override
+    public FieldSearchResult findObjectsAfter( final String[] returnFields, final int maxResults, final FieldSearchQuery fsq, final String afterPid ) throws ServerException
+    {
+        log.trace( "Entering findObjectsAfter" );
+
+        String[] validReturnFields = FieldSearchLuceneImpl.getValidatedReturnFields( returnFields );
+
+        if( 0 == validReturnFields.length )
+        {
+            String error = "No valid return fields provided";
+            log.error( error );
+            throw new InvalidStateException( error );
+        }
+        if( maxResults <= 0 )
+        {
+            String error = String.format( "maxResults must be positive, was %d", maxResults );
+            log.error( error );
+            throw new InvalidStateException( error );
+        }
+
+        try
+        {
+            List<String> pids = luceneindexer.searchAfter( fsq, afterPid, maxResults );
+            return new FieldSearchResultLucene( this.luceneindexer, this.doManager, validReturnFields,
+                    new PidListShared( pids ), maxResults, resultLifeTimeInSeconds, indexedResultFields );
+        }
+        catch( IOException e )
+        {
+            throw new GeneralException( "Unable to create FieldSearchResult", e );
+        }
+        catch( ParseException e )
+        {
+            throw new GeneralException( "Unable to parse query", e );
+        }
+    }
+
+
+    /**
+     * Counts the matching documents in the index without collecting their
+     * PIDs.
+     */
+    @Override
+    public long countObjects( final FieldSearchQuery fsq ) throws ServerException
+    {
+        log.trace( "Entering countObjects" );
+        try
+        {
+            return luceneindexer.count( fsq );
+        }
+        catch( IOException e )
+        {
+            throw new GeneralException( "Unable to count search results", e );
+        }
+        catch( ParseException e )
+        {
+            throw new GeneralException( "Unable to parse query", e );
+        }
+    }
+
+
+    /**
+     * Counts the values of the requested fields over the matching documents.
+     * Only fields listed in the facetFields parameter can be counted.
+     */
+    @Override
+    public Map<String, Map<String, Integer>> findFacets( final String[] fields, final int maxValues, final FieldSearchQuery fsq ) throws ServerException
+    {
+        log.trace( "Entering findFacets" );
+
+        if( maxValues <= 0 )
+        {
+            String error = String.format( "maxValues must be positive, was %d", maxValues );
+            log.error( error );
+            throw new InvalidStateException( error );
+        }
+
+        Map<FedoraFieldName, String> requested = new LinkedHashMap<FedoraFieldName, String>();
+        for( String name : fields )
+        {
+            FedoraFieldName field = null;
+            try
+            {
+                field = FedoraFieldName.valueOf( name.toUpperCase() );
+            }
+            catch( IllegalArgumentException ex )
+            {
+                log.debug( "Unknown facet field {}", name );
+            }
+            if( field == null || !facetFields.contains( field ) )
+            {
+                String error = String.format( "Field '%s' is not available as facet, available fields are %s", name, facetFields );
+                log.error( error );
+                throw new InvalidStateException( error );
+            }
+            requested.put( field, name );
+        }
+
+        Map<FedoraFieldName, List<Pair<String, Integer>>> facets;
+        try
+        {
+            facets = luceneindexer.facets( fsq, new ArrayList<FedoraFieldName>( requested.keySet() ), maxValues );
+        }
+        catch( IOException e )
+        {
+            throw new GeneralException( "Unable to count facets", e );
+        }
+        catch( ParseException e )
+        {
+            throw new GeneralException( "Unable to parse query", e );
+        }
+
+        Map<String, Map<String, Integer>> result = new LinkedHashMap<String, Map<String, Integer>>();
+        for( Map.Entry<FedoraFieldName, List<Pair<String, Integer>>> facet : facets.entrySet() )
+        {
+            Map<String, Integer> values = new LinkedHashMap<String, Integer>();
+            for( Pair<String, Integer> value : facet.getValue() )
+            {
+                values.put( value.getFirst(), value.getSecond() );
+            }
+            result.put( requested.get( facet.getKey() ), values );
+        }
+        return result;
+    }
+
+
     @Override
     public FieldSearchResult resumeFindObjects( final String token ) throws ServerException
     {
@@ -418,6 +635,42 @@ public final class FieldSearchLucene extends Module implements FieldSearch
         }
     }
 
+    /**
+     * Checks the index for the pid with a direct term lookup. If the pid Bloom
+     * filter is enabled, pids that have never been indexed are answered
+     * without searching.
+     */
+    @Override
+    public boolean objectExists( final String pid ) throws ServerException
+    {
+        if( pidBloomFilter != null && !pidBloomFilter.mightContain( pid ) )
+        {
+            log.trace( "Bloom filter rules out existence of {}", pid );
+            return false;
+        }
+        try
+        {
+            return luceneindexer.pidExists( pid );
+        }
+        catch( IOException ex )
+        {
+            throw new GeneralException( "Unable to determine if object exists: " + pid, ex );
+        }
+    }
+
+    @Override
+    public Iterator<String> listObjectPIDs() throws ServerException
+    {
+        try
+        {
+            return luceneindexer.pidIterator();
+        }
+        catch( IOException ex )
+        {
+            throw new GeneralException( "Unable to list object pids", ex );
+        }
+    }
+
     /**
      * Closes the underlying lucene indexer.
      *
@@ -446,6 +699,225 @@ public final class FieldSearchLucene extends Module implements FieldSearch
     }
 
 
+    /**
+     * Creates the index, or one shard of a sharded index, with its own
+     * directory, index writer and write ahead log. The directory and the
+     * write ahead log of a shard are in a shard-N subdirectory of the
+     * configured locations.
+     *
+     * @param directoryName the luceneDirectory parameter
+     * @param shardName the number of the shard, or null if the index is not sharded
+     */
+    private LuceneFieldIndex createIndexShard( final String directoryName, final String shardName ) throws ModuleInitializationException
+    {
+        String shardDirectory = ( shardName == null ) ? null : "shard-" + shardName;
+        Directory directory;
+        try
+        {
+            directory = initializeDirectoryString( directoryName, shardDirectory );
+        }
+        catch( IOException ex )
+        {
+            String error = String.format( "FATAL: Could not initialize lucene directory '%s': %s", directoryName, ex.getMessage() );
+            log.error( error );
+            throw new ModuleInitializationException( error, getRole(), ex );
+        }
+
+        Analyzer analyzer = new WhitespaceAnalyzer( Version.LUCENE_41 );
+
+        TieredMergePolicy mergePolicy = new TieredMergePolicy();
+        try
+        {
+            IndexWriter writer = createIndexWriter( luceneWriteLockTimeout, luceneMaxThreadStates, analyzer, directory, mergePolicy );
+
+            WriteAheadLog wal = null;
+            if( writeAheadLogDir != null )
+            {
+                File walDir = ( shardDirectory == null ) ? writeAheadLogDir : new File( writeAheadLogDir, shardDirectory );
+                if( !walDir.isDirectory() && !walDir.mkdirs() )
+                {
+                    throw new IOException( String.format( "Unable to create Write Ahead Log dir '%s'", walDir.getAbsolutePath() ) );
+                }
+                wal = new WriteAheadLog( writer, walDir, writeAheadLogCommitSize, writeAheadLogKeepFileOpen,
+                        writeAheadLogGroupCommit, writeAheadLogGroupCommitMaxDelayMs, writeAheadLogGroupCommitMaxBatchBytes,
+                        writeAheadLogMaxPendingCommits, shardName );
+            }
+
+            LuceneFieldIndex index = new LuceneFieldIndex( writer, mergePolicy,
+                    pidCollectorMaxInMemory, pidCollectorTmpDir, pidCollectorCompactFiles, wal,
+                    searcherRefreshMaxStaleSec, searcherRefreshMinStaleSec, queryResultCacheMaxPids,
+                    searchThreads, searchTimeoutMs, queryPlanCacheSize, backupMaxMBPerSec, indexedResultFields,
+                    shardName );
+            log.trace( "Constructed LuceneIndex instance" );
+            return index;
+        }
+        catch( IOException ex )
+        {
+            String error = ( shardName == null ) ? "FATAL: Could not initialize lucene indexer" :
+                    String.format( "FATAL: Could not initialize lucene indexer for shard %s", shardName );
+            log.error( error );
+            throw new ModuleInitializationException( error, getRole(), ex );
+        }
+    }
+
+
+    private static void closeIndexShards( final List<LuceneFieldIndex> shards )
+    {
+        for( LuceneFieldIndex shard : shards )
+        {
+            try
+            {
+                shard.closeIndex();
+            }
+            catch( IOException ex )
+            {
+                log.warn( "Failed to close index shard", ex );
+            }
+        }
+    }
+
+
+    private void initializeShardSettings() throws ModuleInitializationException
+    {
+        indexShards = (int) Math.min( Integer.MAX_VALUE, getNonNegativeLongParameter( "indexShards", indexShards ) );
+        if( indexShards == 0 )
+        {
+            throw new ModuleInitializationException( "indexShards must be positive", getRole() );
+        }
+        log.info( "Using indexShards: {}", indexShards );
+
+        String shardBy = getParameter( "indexShardBy" );
+        if( shardBy != null && !shardBy.equals( "" ) )
+        {
+            if( shardBy.equals( "namespace" ) )
+            {
+                indexShardByNamespace = true;
+            }
+            else if( !shardBy.equals( "pid" ) )
+            {
+                String errMsg = String.format( "FATAL: indexShardBy must be pid or namespace, was '%s'", shardBy );
+                log.error( errMsg );
+                throw new ModuleInitializationException( errMsg, getRole() );
+            }
+        }
+        log.info( "Using indexShardBy: {}", indexShardByNamespace ? "namespace" : "pid" );
+    }
+
+
+    /**
+     * Checks the shard settings against those the index was built with,
+     * which are kept in a properties file in indexLocation. Objects are
+     * placed in the shards by the number of shards and the shard key, so an
+     * index built with other settings would have its objects looked for in
+     * the wrong shards. A new index, or one built before the settings were
+     * kept, gets the current settings written.
+     *
+     * @throws ModuleInitializationException if the settings do not match those of the index
+     */
+    private void checkShardLayout() throws ModuleInitializationException
+    {
+        String idxLoc = getParameter( "indexLocation" );
+        if( null == idxLoc || idxLoc.equals( "" ) )
+        {
+            throw new ModuleInitializationException( "parameter indexLocation must be specified.", getRole() );
+        }
+        File location = new File( idxLoc );
+        File settingsFile = new File( location, SHARD_SETTINGS_FILE );
+        String shardBy = indexShardByNamespace ? "namespace" : "pid";
+        try
+        {
+            if( settingsFile.isFile() )
+            {
+                Properties settings = new Properties();
+                InputStream in = new FileInputStream( settingsFile );
+                try
+                {
+                    settings.load( in );
+                }
+                finally
+                {
+                    in.close();
+                }
+                String indexedShards = settings.getProperty( "indexShards" );
+                String indexedShardBy = settings.getProperty( "indexShardBy" );
+                if( !String.valueOf( indexShards ).equals( indexedShards )
+                        || ( indexShards > 1 && !shardBy.equals( indexedShardBy ) ) )
+                {
+                    String errMsg = String.format( "FATAL: The index at %s was built with indexShards=%s and indexShardBy=%s,"
+                            + " but is configured with indexShards=%s and indexShardBy=%s. Restore the settings, or remove"
+                            + " the index and its write ahead log and rebuild it",
+                            location.getAbsolutePath(), indexedShards, indexedShardBy, indexShards, shardBy );
+                    log.error( errMsg );
+                    throw new ModuleInitializationException( errMsg, getRole() );
+                }
+                return;
+            }
+
+            int existingShards = countExistingShards( location );
+            if( existingShards > 0 && existingShards != indexShards )
+            {
+                String errMsg = String.format( "FATAL: The index at %s has %s shards, but is configured with indexShards=%s."
+                        + " Restore the setting, or remove the index and its write ahead log and rebuild it",
+                        location.getAbsolutePath(), existingShards, indexShards );
+                log.error( errMsg );
+                throw new ModuleInitializationException( errMsg, getRole() );
+            }
+
+            if( !location.isDirectory() && !location.mkdirs() )
+            {
+                throw new IOException( String.format( "Unable to create index dir '%s'", location.getAbsolutePath() ) );
+            }
+            Properties settings = new Properties();
+            settings.setProperty( "indexShards", String.valueOf( indexShards ) );
+            settings.setProperty( "indexShardBy", shardBy );
+            OutputStream out = new FileOutputStream( settingsFile );
+            try
+            {
+                settings.store( out, "Shard settings the index was built with. The index must be rebuilt to change them" );
+            }
+            finally
+            {
+                out.close();
+            }
+            log.info( "Recorded shard settings of the index in {}", settingsFile.getAbsolutePath() );
+        }
+        catch( IOException ex )
+        {
+            String error = String.format( "FATAL: Could not check the shard settings in '%s': %s", settingsFile.getAbsolutePath(), ex.getMessage() );
+            log.error( error );
+            throw new ModuleInitializationException( error, getRole(), ex );
+        }
+    }
+
+
+    /**
+     * Counts the shards of an index built before its shard settings were
+     * kept: 1 if indexLocation itself holds an index, else the number of
+     * shard-N subdirectories, or 0 if there is no index yet.
+     */
+    private static int countExistingShards( final File location )
+    {
+        String[] names = location.list();
+        if( names == null )
+        {
+            return 0;
+        }
+        int shards = 0;
+        for( String name : names )
+        {
+            if( name.startsWith( "segments" ) )
+            {
+                return 1;
+            }
+            if( name.startsWith( "shard-" ) )
+            {
+                shards++;
+            }
+        }
+        return shards;
+    }
+
+
     /**
      * Helper method for the initialization phase of this class. Given a String
      * describing the requested lucene Directory type, this method will contruct
@@ -453,10 +925,11 @@ public final class FieldSearchLucene extends Module implements FieldSearch
      * no Directories match the requested type.
      *
      * @param directoryName the name of the Directory to be instantiated
+     * @param shardDirectory subdirectory of indexLocation holding the index, or null to use indexLocation itself
      * @return an instance of the {@code Directory} identified by {@code directoryName}, if any
      * @throws ModuleInitializationException if the {@code directoryName} does not match any {@code Directory} class
      */
-    private Directory initializeDirectoryString( final String directoryName ) throws ModuleInitializationException, IOException
+    private Directory initializeDirectoryString( final String directoryName, final String shardDirectory ) throws ModuleInitializationException, IOException
     {
         Directory directory = null;
         if( directoryName.equals( "RAMDirectory" ) )
@@ -471,7 +944,7 @@ public final class FieldSearchLucene extends Module implements FieldSearch
             {
                 throw new ModuleInitializationException( "parameter indexLocation must be specified.", getRole() );
             }
-            File location = new File( idxLoc );
+            File location = ( shardDirectory == null ) ? new File( idxLoc ) : new File( idxLoc, shardDirectory );
 
             try
             {
@@ -559,7 +1032,80 @@ public final class FieldSearchLucene extends Module implements FieldSearch
             }
 
             log.info( "Using pidCollectorTmpDir: {}", pidCollectorTmpDir );
+
+            String pidCollectorCompactFilesParam = getParameter( "pidCollectorCompactFiles" );
+            if( pidCollectorCompactFilesParam != null && !pidCollectorCompactFilesParam.equals( "" ) )
+            {
+                pidCollectorCompactFiles = Boolean.parseBoolean( pidCollectorCompactFilesParam );
+            }
+            log.info( "Using pidCollectorCompactFiles: {}", pidCollectorCompactFiles );
+        }
+    }
+
+    /**
+     * Creates the optional in-memory pid Bloom filter, sized by the
+     * pidBloomFilterExpectedPids parameter, and fills it with all pids
+     * currently in the index.
+     */
+    private void initializePidBloomFilter() throws ModuleInitializationException
+    {
+        String expectedPidsParam = getParameter( "pidBloomFilterExpectedPids" );
+        if( expectedPidsParam == null || expectedPidsParam.equals( "" ) )
+        {
+            log.info( "pidBloomFilterExpectedPids parameter not set, pid Bloom filter disabled" );
+            return;
+        }
+
+        long expectedPids;
+        try
+        {
+            expectedPids = Long.parseLong( expectedPidsParam );
+        }
+        catch( NumberFormatException e )
+        {
+            String errMsg = String.format( "FATAL: pidBloomFilterExpectedPids parameter '%s' is not a valid integer",
+                    expectedPidsParam );
+            log.error( errMsg );
+            throw new ModuleInitializationException( errMsg, getRole(), e );
+        }
+        if( expectedPids <= 0 )
+        {
+            log.info( "pidBloomFilterExpectedPids is {}, pid Bloom filter disabled", expectedPids );
+            return;
+        }
+
+        PidBloomFilter filter = new PidBloomFilter( expectedPids, PID_BLOOM_FILTER_FALSE_POSITIVE_RATE );
+        long count = 0;
+        try
+        {
+            PidIterator pids = luceneindexer.pidIterator();
+            try
+            {
+                while( pids.hasNext() )
+                {
+                    filter.add( pids.next() );
+                    count++;
+                }
+            }
+            finally
+            {
+                pids.close();
+            }
+        }
+        catch( IOException ex )
+        {
+            String error = "FATAL: Could not read pids for the pid Bloom filter";
+            log.error( error );
+            throw new ModuleInitializationException( error, getRole(), ex );
         }
+        if( count > expectedPids )
+        {
+            log.warn( "Index contains {} pids, more than pidBloomFilterExpectedPids {}. False positive rate will be higher than expected",
+                    count, expectedPids );
+        }
+        log.info( "Using pid Bloom filter with {} bits and {} hashes, initialized with {} pids",
+                new Object[] { filter.getNumBits(), filter.getNumHashes(), count } );
+        pidBloomFilter = filter;
     }
 
     private void initializeWriteAheadLogSettings() throws ModuleInitializationException
@@ -626,8 +1172,148 @@ public final class FieldSearchLucene extends Module implements FieldSearch
             }
 
             log.info( "Using writeAheadLogKeepFileOpen: {}", writeAheadLogKeepFileOpen );
+
+            String writeAheadLogGroupCommitParam = getParameter( "writeAheadLogGroupCommit" );
+            if( writeAheadLogGroupCommitParam != null && !writeAheadLogGroupCommitParam.equals( "" ) )
+            {
+                writeAheadLogGroupCommit = Boolean.parseBoolean( writeAheadLogGroupCommitParam );
+            }
+            log.info( "Using writeAheadLogGroupCommit: {}", writeAheadLogGroupCommit );
+
+            if( writeAheadLogGroupCommit )
+            {
+                writeAheadLogGroupCommitMaxDelayMs = getNonNegativeLongParameter(
+                        "writeAheadLogGroupCommitMaxDelayMs", writeAheadLogGroupCommitMaxDelayMs );
+                log.info( "Using writeAheadLogGroupCommitMaxDelayMs: {}", writeAheadLogGroupCommitMaxDelayMs );
+
+                writeAheadLogGroupCommitMaxBatchBytes = getNonNegativeLongParameter(
+                        "writeAheadLogGroupCommitMaxBatchBytes", writeAheadLogGroupCommitMaxBatchBytes );
+                log.info( "Using writeAheadLogGroupCommitMaxBatchBytes: {}", writeAheadLogGroupCommitMaxBatchBytes );
+            }
+
+            long maxPendingCommits = getNonNegativeLongParameter( "writeAheadLogMaxPendingCommits", writeAheadLogMaxPendingCommits );
+            if( maxPendingCommits > Integer.MAX_VALUE )
+            {
+                String errMsg = String.format( "FATAL: writeAheadLogMaxPendingCommits parameter '%s' is too large", maxPendingCommits );
+                log.error( errMsg );
+                throw new ModuleInitializationException( errMsg, getRole() );
+            }
+            writeAheadLogMaxPendingCommits = (int) maxPendingCommits;
+            log.info( "Using writeAheadLogMaxPendingCommits: {}", writeAheadLogMaxPendingCommits );
+        }
+
+    }
+
+
+    private void initializeFacetFields() throws ModuleInitializationException
+    {
+        String facetFieldsParam = getParameter( "facetFields" );
+        if( facetFieldsParam != null )
+        {
+            List<FedoraFieldName> fields = new ArrayList<FedoraFieldName>();
+            for( String name : facetFieldsParam.split( "," ) )
+            {
+                if( name.trim().isEmpty() )
+                {
+                    continue;
+                }
+                FedoraFieldName field;
+                try
+                {
+                    field = FedoraFieldName.valueOf( name.trim().toUpperCase() );
+                }
+                catch( IllegalArgumentException ex )
+                {
+                    throw new ModuleInitializationException( String.format( "Unknown field '%s' in facetFields", name.trim() ), getRole(), ex );
+                }
+                if( field.isDateField() )
+                {
+                    throw new ModuleInitializationException( String.format( "Date field '%s' can not be used in facetFields", name.trim() ), getRole() );
+                }
+                fields.add( field );
+            }
+            facetFields = fields;
         }
+        log.info( "Using facetFields: {}", facetFields );
+    }
 
+
+    private void initializeSearcherRefreshSettings() throws ModuleInitializationException
+    {
+        searcherRefreshMaxStaleSec = getNonNegativeDoubleParameter( "searcherRefreshMaxStaleSec", 0 );
+        if( searcherRefreshMaxStaleSec == 0 )
+        {
+            log.info( "searcherRefreshMaxStaleSec not set, searcher is refreshed before every search" );
+            return;
+        }
+        searcherRefreshMinStaleSec = getNonNegativeDoubleParameter( "searcherRefreshMinStaleSec", 0 );
+        if( searcherRefreshMinStaleSec > searcherRefreshMaxStaleSec )
+        {
+            String errMsg = String.format( "FATAL: searcherRefreshMinStaleSec '%s' must not be larger than searcherRefreshMaxStaleSec '%s'",
+                    searcherRefreshMinStaleSec, searcherRefreshMaxStaleSec );
+            log.error( errMsg );
+            throw new ModuleInitializationException( errMsg, getRole() );
+        }
+        log.info( "Using searcherRefreshMaxStaleSec: {} and searcherRefreshMinStaleSec: {}",
+                searcherRefreshMaxStaleSec, searcherRefreshMinStaleSec );
+    }
+
+
+    private double getNonNegativeDoubleParameter( String name, double defaultValue ) throws ModuleInitializationException
+    {
+        String param = getParameter( name );
+        if( param == null || param.equals( "" ) )
+        {
+            return defaultValue;
+        }
+
+        double value;
+        try
+        {
+            value = Double.parseDouble( param );
+        }
+        catch( NumberFormatException e )
+        {
+            String errMsg = String.format( "FATAL: %s parameter '%s' is not a valid number", name, param );
+            log.error( errMsg );
+            throw new ModuleInitializationException( errMsg, getRole(), e );
+        }
+        if( value < 0 || Double.isNaN( value ) || Double.isInfinite( value ) )
+        {
+            String errMsg = String.format( "FATAL: %s parameter '%s' must be a non-negative number", name, param );
+            log.error( errMsg );
+            throw new ModuleInitializationException( errMsg, getRole() );
+        }
+        return value;
+    }
+
+
+    private long getNonNegativeLongParameter( String name, long defaultValue ) throws ModuleInitializationException
+    {
+        String param = getParameter( name );
+        if( param == null || param.equals( "" ) )
+        {
+            return defaultValue;
+        }
+
+        long value;
+        try
+        {
+            value = Long.parseLong( param );
+        }
+        catch( NumberFormatException e )
+        {
+            String errMsg = String.format( "FATAL: %s parameter '%s' is not a valid integer", name, param );
+            log.error( errMsg );
+            throw new ModuleInitializationException( errMsg, getRole(), e );
+        }
+        if( value < 0 )
+        {
+            String errMsg = String.format( "FATAL: %s parameter '%s' must not be negative", name, param );
+            log.error( errMsg );
+            throw new ModuleInitializationException( errMsg, getRole() );
+        }
+        return value;
     }
 
 
@@ -642,7 +1328,8 @@ public final class FieldSearchLucene extends Module implements FieldSearch
         }
 
         IndexWriterConfig conf = new IndexWriterConfig( Version.LUCENE_41, analyzer ).setWriteLockTimeout( luceneWriteLockTimeout ).
-                setMergePolicy( mergePolicy ).setMaxThreadStates( maxThreadStates );
+                setMergePolicy( mergePolicy ).setMaxThreadStates( maxThreadStates ).
+                setIndexDeletionPolicy( new SnapshotDeletionPolicy( new KeepOnlyLastCommitDeletionPolicy() ) );
         IndexWriter writer = new IndexWriter( directory, conf );
 
         return writer;
@@ -652,4 +1339,57 @@ public final class FieldSearchLucene extends Module implements FieldSearch
         luceneindexer.flush();
     }
 
+    /**
+     * Starts bulk loading, for rebuilding the index from scratch. The index
+     * is emptied, and updates are added to the index in large batches,
+     * bypassing the write ahead log, until {@link #endBulkLoad()} commits
+     * them all at once.
+     */
+    @Override
+    public boolean beginBulkLoad() throws ServerException
+    {
+        try
+        {
+            luceneindexer.beginBulkLoad( bulkLoadBatchSize, bulkLoadRAMBufferSizeMB );
+            return true;
+        }
+        catch( IOException ex )
+        {
+            throw new GeneralException( "Unable to start bulk loading the index", ex );
+        }
+    }
+
+    /**
+     * Ends bulk loading and commits the index.
+     */
+    @Override
+    public void endBulkLoad() throws ServerException
+    {
+        try
+        {
+            luceneindexer.endBulkLoad();
+        }
+        catch( IOException ex )
+        {
+            throw new GeneralException( "Unable to commit the bulk loaded index", ex );
+        }
+    }
+
+    /**
+     * Aborts bulk loading, rolling the index back to how it was before the
+     * bulk load. The index cannot be updated until the server is restarted.
+     */
+    @Override
+    public void abortBulkLoad() throws ServerException
+    {
+        try
+        {
+            luceneindexer.abortBulkLoad();
+        }
+        catch( IOException ex )
+        {
+            throw new GeneralException( "Unable to roll back the bulk loaded index", ex );
+        }
+    }
+
 }
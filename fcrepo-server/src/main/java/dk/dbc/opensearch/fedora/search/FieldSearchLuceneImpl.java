@@ -66,9 +66,9 @@ public final class FieldSearchLuceneImpl
 {
     private static final Logger log = LoggerFactory.getLogger( FieldSearchLuceneImpl.class );
 
-    private final LuceneFieldIndex luceneindexer;
+    private final FieldIndex luceneindexer;
 
-    public FieldSearchLuceneImpl( LuceneFieldIndex luceneindexer ) {
+    public FieldSearchLuceneImpl( FieldIndex luceneindexer ) {
 
         this.luceneindexer = luceneindexer;
 
@@ -38,10 +38,14 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexableField;
 import org.fcrepo.server.storage.RDFRelationshipReader;
 
 
@@ -53,7 +57,7 @@ import org.fcrepo.server.storage.RDFRelationshipReader;
 class FieldSearchResultLucene implements FieldSearchResult
 {
 
-    private final LuceneFieldIndex indexSearcher;
+    private final FieldIndex indexSearcher;
     private final RepositoryReader repoReader;
     /** resultFields is kept a String[] to ensure that values can be sent to this class as they can to FieldSearchResultSQLImpl. */
     private final String[] resultFields;
@@ -70,6 +74,8 @@ class FieldSearchResultLucene implements FieldSearchResult
 
     private final int maxResults;
     private final int timeout;
+    /** If true, result fields are read from the index and only read from the objects when not stored there. */
+    private final boolean indexedResultFields;
 
     private long completeResultSize;
 
@@ -77,21 +83,49 @@ class FieldSearchResultLucene implements FieldSearchResult
 
     private static final Logger log = LoggerFactory.getLogger( FieldSearchResultLucene.class );
 
-    protected FieldSearchResultLucene( final LuceneFieldIndex indexController,
+    protected FieldSearchResultLucene( final FieldIndex indexController,
                                        final RepositoryReader repositoryReader,
                                        final String[] resultFieldsList,
                                        final FieldSearchQuery query,
                                        final int maximumResults,
                                        final int resultTimeout ) throws InvalidStateException, IOException
+    {
+        this( indexController, repositoryReader, resultFieldsList, query, maximumResults, resultTimeout, false );
+    }
+
+    protected FieldSearchResultLucene( final FieldIndex indexController,
+                                       final RepositoryReader repositoryReader,
+                                       final String[] resultFieldsList,
+                                       final FieldSearchQuery query,
+                                       final int maximumResults,
+                                       final int resultTimeout,
+                                       final boolean indexedResultFields ) throws InvalidStateException, IOException
+    {
+        this( indexController, repositoryReader, resultFieldsList, searchIndex( indexController, query ),
+                maximumResults, resultTimeout, indexedResultFields );
+    }
+
+    /**
+     * Creates a result over an already computed list of PIDs.
+     */
+    protected FieldSearchResultLucene( final FieldIndex indexController,
+                                       final RepositoryReader repositoryReader,
+                                       final String[] resultFieldsList,
+                                       final IPidList pids,
+                                       final int maximumResults,
+                                       final int resultTimeout,
+                                       final boolean indexedResultFields ) throws IOException
     {
         this.indexSearcher = indexController;
+        this.indexedResultFields = indexedResultFields && isStoredInIndex( resultFieldsList );
         this.repoReader = repositoryReader;
         this.resultFields = resultFieldsList;
         this.cursor = 0;
         this.nextCursor = 0;
         this.maxResults = maximumResults;
         this.timeout = resultTimeout;
-        this.searchResultList = searchIndex( query );
+        this.searchResultList = pids;
+        this.completeResultSize = pids.size();
         log.trace( "Opening and caching search result" );
         stepAndCacheResult();
     }
@@ -135,14 +169,30 @@ class FieldSearchResultLucene implements FieldSearchResult
 
         log.debug( "Got {} elements", pids.size() );
 
+        Map<String, Document> storedDocuments = Collections.emptyMap();
+        if( indexedResultFields )
+        {
+            storedDocuments = indexSearcher.getStoredDocuments( pids );
+            log.debug( "Got stored index documents for {} of {} elements", storedDocuments.size(), pids.size() );
+        }
+
         for( String pid : pids )
         {
             log.debug( "Retrieving element {}", localResultCounter );
 
             try
             {
-                log.trace( "Retrieving object fields from object with pid: {}", pid );
-                currentResultList.add( getObjectFields( pid ) );
+                Document storedDocument = storedDocuments.get( pid );
+                if( storedDocument != null )
+                {
+                    log.trace( "Retrieving object fields from index for pid: {}", pid );
+                    currentResultList.add( getObjectFields( pid, storedDocument ) );
+                }
+                else
+                {
+                    log.trace( "Retrieving object fields from object with pid: {}", pid );
+                    currentResultList.add( getObjectFields( pid ) );
+                }
             }
             catch( ServerException ex )
             {
@@ -406,16 +456,149 @@ class FieldSearchResultLucene implements FieldSearchResult
         return fields;
     }
 
+    /**
+     * Checks whether all requested result fields are stored in the index. The
+     * relPredObj and relSysPredObj fields are not indexed, so results asking
+     * for those must be read from the objects.
+     */
+    private static boolean isStoredInIndex( final String[] resultFields )
+    {
+        for( String resultFieldName : resultFields )
+        {
+            if( "relPredObj".equals( resultFieldName ) || "relSysPredObj".equals( resultFieldName ) )
+            {
+                log.debug( "Result field {} is not stored in the index", resultFieldName );
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Builds the {@link ObjectFields} for a pid from the stored index document,
+     * without reading the object itself.
+     *
+     * @param pid the pid of the object
+     * @param document the stored index document for the object
+     * @return the ObjectFields object representing information on the object identified by {@code pid}
+     */
+    private ObjectFields getObjectFields( final String pid, final Document document )
+    {
+        ObjectFields fields = new ObjectFields();
+        for( String resultFieldName : this.resultFields )
+        {
+            if( resultFieldName == null )
+            {
+                continue;
+            }
+            FedoraFieldName fieldName = FedoraFieldName.valueOf( resultFieldName.toUpperCase() );
+            String storedName = fieldName.toString() + LuceneFieldIndex.STORED_SUFFIX;
+            switch( fieldName )
+            {
+            case PID:
+                fields.setPid( pid );
+                break;
+            case LABEL:
+                fields.setLabel( document.get( storedName ) );
+                break;
+            case STATE:
+                fields.setState( document.get( storedName ) );
+                break;
+            case OWNERID:
+                fields.setOwnerId( document.get( storedName ) );
+                break;
+            case CDATE:
+                fields.setCDate( getStoredDate( document, fieldName ) );
+                break;
+            case MDATE:
+                fields.setMDate( getStoredDate( document, fieldName ) );
+                break;
+            case DCMDATE:
+                fields.setDCMDate( getStoredDate( document, fieldName ) );
+                break;
+            case TITLE:
+                addStoredValues( document, storedName, fields.titles() );
+                break;
+            case CREATOR:
+                addStoredValues( document, storedName, fields.creators() );
+                break;
+            case SUBJECT:
+                addStoredValues( document, storedName, fields.subjects() );
+                break;
+            case DESCRIPTION:
+                addStoredValues( document, storedName, fields.descriptions() );
+                break;
+            case PUBLISHER:
+                addStoredValues( document, storedName, fields.publishers() );
+                break;
+            case CONTRIBUTOR:
+                addStoredValues( document, storedName, fields.contributors() );
+                break;
+            case DATE:
+                addStoredValues( document, storedName, fields.dates() );
+                break;
+            case TYPE:
+                addStoredValues( document, storedName, fields.types() );
+                break;
+            case FORMAT:
+                addStoredValues( document, storedName, fields.formats() );
+                break;
+            case IDENTIFIER:
+                addStoredValues( document, storedName, fields.identifiers() );
+                break;
+            case SOURCE:
+                addStoredValues( document, storedName, fields.sources() );
+                break;
+            case LANGUAGE:
+                addStoredValues( document, storedName, fields.languages() );
+                break;
+            case RELATION:
+                addStoredValues( document, storedName, fields.relations() );
+                break;
+            case COVERAGE:
+                addStoredValues( document, storedName, fields.coverages() );
+                break;
+            case RIGHTS:
+                addStoredValues( document, storedName, fields.rights() );
+                break;
+            case RELOBJ:
+                addStoredValues( document, storedName, fields.relObjs() );
+                break;
+            default:
+                log.warn( "Result field {} cannot be read from the index", resultFieldName );
+            }
+        }
+        return fields;
+    }
+
+    private static Date getStoredDate( final Document document, final FedoraFieldName fieldName )
+    {
+        IndexableField field = document.getField( fieldName.toString() );
+        if( field == null || field.numericValue() == null )
+        {
+            return null;
+        }
+        return new Date( field.numericValue().longValue() );
+    }
+
+    private static void addStoredValues( final Document document, final String storedName, final List<DCField> values )
+    {
+        for( String value : document.getValues( storedName ) )
+        {
+            values.add( new DCField( value ) );
+        }
+    }
+
     /**
      * Conducts the search.
      */
-    private IPidList searchIndex( final FieldSearchQuery query ) throws InvalidStateException
+    private static IPidList searchIndex( final FieldIndex indexSearcher, final FieldSearchQuery query ) throws InvalidStateException
     {
         log.trace( "Entering searchIndex" );
         IPidList searchResult;
         try
         {
-            searchResult = this.indexSearcher.search( query );
+            searchResult = indexSearcher.search( query );
         }
         catch( IOException ex )
         {
@@ -425,8 +608,6 @@ class FieldSearchResultLucene implements FieldSearchResult
         {
             throw new InvalidStateException( "", "", new String[]{""}, new String[]{""}, ex );
         }
-        this.completeResultSize = searchResult.size();
-
         log.trace( "Returning search result" );
         return searchResult;
     }
@@ -0,0 +1,502 @@
+/*
+ * This file is part of opensearch.
+ * Copyright (c) 2012, Dansk Bibliotekscenter a/s,
+ * Tempovej 7-11, DK-2750 Ballerup, Denmark. CVR: 15149043
+ *
+ * opensearch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * opensearch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with opensearch. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package dk.dbc.opensearch.fedora.search;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexDeletionPolicy;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.SnapshotDeletionPolicy;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.util.Version;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Online backup of the field search index, taken while the index is being
+ * updated.
+ * <p>
+ * The latest commit of the index is snapshotted with the
+ * {@link SnapshotDeletionPolicy} of the index writer, so its files are not
+ * deleted by merges while they are copied. While the snapshot is taken, the
+ * files of the {@link WriteAheadLog} are held back from rotation and
+ * deletion and copied as well, so the backup also holds the updates made
+ * after the commit. The index files are then copied in the background,
+ * rate-limited to protect the I/O of the running server.
+ * <p>
+ * A backup directory holds the index files in {@value #INDEX_DIRECTORY}
+ * and the log files in {@value #LOG_DIRECTORY}. {@link #restore(File, File)}
+ * copies the index into an empty directory and replays the log files on
+ * top of it. It can be run from the command line while the server is
+ * stopped:
+ * <pre>
+ * java dk.dbc.opensearch.fedora.search.IndexBackup &lt;backup directory&gt; &lt;index directory&gt;
+ * </pre>
+ */
+public final class IndexBackup
+{
+    private static final Logger log = LoggerFactory.getLogger( IndexBackup.class );
+
+    static final String INDEX_DIRECTORY = "index";
+    static final String LOG_DIRECTORY = "writeaheadlog";
+
+    private static final String SNAPSHOT_ID = "IndexBackup";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final IndexWriter writer;
+    private final SnapshotDeletionPolicy snapshotPolicy;
+    /** If null, the backup holds the committed index only */
+    private final WriteAheadLog wal;
+
+    /** Maximum copy rate of the index files in MB per second, or 0 for no limit */
+    private volatile double maxMBPerSec;
+
+    private final AtomicLong backupsCompleted = new AtomicLong();
+    private final AtomicLong backupsFailed = new AtomicLong();
+    private final AtomicLong bytesCopied = new AtomicLong();
+    private volatile String lastBackupStatus = "No backup has been taken";
+
+    /** Guarded by this */
+    private Thread thread = null;
+    private volatile boolean cancelled = false;
+
+    /**
+     * @param writer the index writer, which must use a {@link SnapshotDeletionPolicy}
+     * @param wal the write ahead log of the index, or null if updates are committed directly
+     * @param maxMBPerSec maximum copy rate of the index files in MB per second, or 0 for no limit
+     */
+    IndexBackup( IndexWriter writer, WriteAheadLog wal, double maxMBPerSec )
+    {
+        IndexDeletionPolicy policy = writer.getConfig().getIndexDeletionPolicy();
+        if ( !( policy instanceof SnapshotDeletionPolicy ) )
+        {
+            throw new IllegalArgumentException( String.format( "Online backup requires an index writer using a SnapshotDeletionPolicy, was %s",
+                    policy.getClass().getName() ) );
+        }
+        this.writer = writer;
+        this.snapshotPolicy = (SnapshotDeletionPolicy) policy;
+        this.wal = wal;
+        setMaxMBPerSec( maxMBPerSec );
+    }
+
+
+    /**
+     * @return true if online backups can be taken of the index written by the writer
+     */
+    static boolean isSupported( IndexWriter writer )
+    {
+        return writer.getConfig().getIndexDeletionPolicy() instanceof SnapshotDeletionPolicy;
+    }
+
+
+    void setMaxMBPerSec( double maxMBPerSec )
+    {
+        if ( maxMBPerSec < 0 )
+        {
+            throw new IllegalArgumentException( String.format( "maxMBPerSec must not be negative, was %s", maxMBPerSec ) );
+        }
+        this.maxMBPerSec = maxMBPerSec;
+    }
+
+
+    double getMaxMBPerSec()
+    {
+        return maxMBPerSec;
+    }
+
+
+    long getBackupsCompleted()
+    {
+        return backupsCompleted.get();
+    }
+
+
+    long getBackupsFailed()
+    {
+        return backupsFailed.get();
+    }
+
+
+    /**
+     * @return the number of bytes copied by all backups, including the one running
+     */
+    long getBytesCopied()
+    {
+        return bytesCopied.get();
+    }
+
+
+    String getLastBackupStatus()
+    {
+        return lastBackupStatus;
+    }
+
+
+    synchronized boolean isRunning()
+    {
+        return thread != null && thread.isAlive();
+    }
+
+
+    /**
+     * Starts a backup to the given directory in the background.
+     *
+     * @param targetDirectory directory to write the backup to. Must be empty or not exist
+     * @throws IllegalStateException if a backup is already running
+     * @throws IOException if the backup directory can not be created
+     */
+    synchronized void start( final File targetDirectory ) throws IOException
+    {
+        if ( isRunning() )
+        {
+            throw new IllegalStateException( "A backup is already running" );
+        }
+        checkEmptyDirectory( targetDirectory );
+        cancelled = false;
+        lastBackupStatus = String.format( "Running backup to %s", targetDirectory );
+        thread = new Thread( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    backup( targetDirectory );
+                }
+                catch ( IOException ex )
+                {
+                    backupsFailed.incrementAndGet();
+                    lastBackupStatus = String.format( "Backup to %s failed: %s", targetDirectory, ex.getMessage() );
+                    log.error( String.format( "Backup to %s failed", targetDirectory ), ex );
+                }
+            }
+        }, "IndexBackup" );
+        thread.setDaemon( true );
+        thread.start();
+    }
+
+
+    /**
+     * Waits for the running backup, if any, to finish.
+     */
+    void awaitCompletion() throws InterruptedIOException
+    {
+        Thread running;
+        synchronized ( this )
+        {
+            running = thread;
+        }
+        if ( running == null )
+        {
+            return;
+        }
+        try
+        {
+            running.join();
+        }
+        catch ( InterruptedException ex )
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted while waiting for backup to finish" );
+        }
+    }
+
+
+    /**
+     * Cancels the running backup, if any, and waits for it to stop. The
+     * snapshot is released, so the index writer may be closed afterwards.
+     */
+    void close() throws InterruptedIOException
+    {
+        cancelled = true;
+        awaitCompletion();
+    }
+
+
+    /**
+     * Takes a backup to the given directory in the calling thread.
+     */
+    void backup( File targetDirectory ) throws IOException
+    {
+        long startNs = System.nanoTime();
+        File indexDirectory = new File( targetDirectory, INDEX_DIRECTORY );
+        File logDirectory = new File( targetDirectory, LOG_DIRECTORY );
+        checkEmptyDirectory( indexDirectory );
+        checkEmptyDirectory( logDirectory );
+
+        IndexCommit commit;
+        long logBytes = 0;
+        if ( wal != null )
+        {
+            wal.holdLogFiles();
+        }
+        try
+        {
+            commit = snapshot();
+            if ( wal != null )
+            {
+                // Log files are copied without rate limit, as rotation of the log file waits for the copy
+                logBytes = wal.copyLogFiles( logDirectory );
+                bytesCopied.addAndGet( logBytes );
+            }
+        }
+        finally
+        {
+            if ( wal != null )
+            {
+                wal.releaseLogFiles();
+            }
+        }
+
+        long indexBytes;
+        try
+        {
+            log.info( "Starting backup of commit {} to {}", commit.getSegmentsFileName(), targetDirectory );
+            indexBytes = copyCommit( commit, indexDirectory );
+        }
+        finally
+        {
+            snapshotPolicy.release( SNAPSHOT_ID );
+            // Let the writer delete the files of the released commit, if it is no longer the latest
+            writer.deleteUnusedFiles();
+        }
+
+        backupsCompleted.incrementAndGet();
+        lastBackupStatus = String.format( "Backup of commit %s to %s completed in %d ms. Copied %d index bytes and %d log bytes",
+                commit.getSegmentsFileName(), targetDirectory, ( System.nanoTime() - startNs ) / 1000000, indexBytes, logBytes );
+        log.info( lastBackupStatus );
+    }
+
+
+    private IndexCommit snapshot() throws IOException
+    {
+        try
+        {
+            return snapshotPolicy.snapshot( SNAPSHOT_ID );
+        }
+        catch ( IllegalStateException ex )
+        {
+            // No commit yet, or a snapshot taken outside this class
+            throw new IOException( String.format( "Unable to snapshot the index: %s", ex.getMessage() ), ex );
+        }
+    }
+
+
+    /**
+     * Copies the files of the commit, with the segments file last, so an
+     * incomplete copy is not mistaken for an index.
+     */
+    private long copyCommit( IndexCommit commit, File indexDirectory ) throws IOException
+    {
+        List<String> fileNames = new ArrayList<String>( commit.getFileNames() );
+        fileNames.remove( commit.getSegmentsFileName() );
+        fileNames.add( commit.getSegmentsFileName() );
+
+        Directory directory = commit.getDirectory();
+        byte[] buffer = new byte[ BUFFER_SIZE ];
+        long startNs = System.nanoTime();
+        long bytes = 0;
+        for ( String fileName : fileNames )
+        {
+            IndexInput in = directory.openInput( fileName, IOContext.READONCE );
+            try
+            {
+                FileOutputStream out = new FileOutputStream( new File( indexDirectory, fileName ) );
+                try
+                {
+                    long remaining = in.length();
+                    while ( remaining > 0 )
+                    {
+                        int length = (int) Math.min( remaining, buffer.length );
+                        in.readBytes( buffer, 0, length );
+                        out.write( buffer, 0, length );
+                        remaining -= length;
+                        bytes += length;
+                        bytesCopied.addAndGet( length );
+                        throttle( startNs, bytes );
+                    }
+                    out.getFD().sync();
+                }
+                finally
+                {
+                    out.close();
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+            log.debug( "Copied index file {}", fileName );
+        }
+        return bytes;
+    }
+
+
+    /**
+     * Sleeps until copying the given number of bytes since the start has
+     * taken as long as the maximum rate allows.
+     */
+    private void throttle( long startNs, long bytes ) throws InterruptedIOException
+    {
+        if ( cancelled )
+        {
+            throw new InterruptedIOException( "Backup was cancelled" );
+        }
+        double mbPerSec = maxMBPerSec;
+        if ( mbPerSec <= 0 )
+        {
+            return;
+        }
+        long targetNs = (long) ( bytes / ( mbPerSec * 1024 * 1024 ) * 1000000000 );
+        long sleepNs = targetNs - ( System.nanoTime() - startNs );
+        if ( sleepNs > 0 )
+        {
+            try
+            {
+                Thread.sleep( sleepNs / 1000000, (int) ( sleepNs % 1000000 ) );
+            }
+            catch ( InterruptedException ex )
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException( "Interrupted while copying index files" );
+            }
+        }
+    }
+
+
+    private static void checkEmptyDirectory( File directory ) throws IOException
+    {
+        if ( !directory.exists() )
+        {
+            if ( !directory.mkdirs() )
+            {
+                throw new IOException( String.format( "Unable to create directory %s", directory ) );
+            }
+            return;
+        }
+        String[] contents = directory.list();
+        if ( contents == null )
+        {
+            throw new IOException( String.format( "%s is not a directory", directory ) );
+        }
+        if ( contents.length > 0 )
+        {
+            throw new IOException( String.format( "Directory %s is not empty", directory ) );
+        }
+    }
+
+
+    /**
+     * Restores a backup into an empty index directory. The index files are
+     * copied, and the updates in the backed up log files are replayed on
+     * top of them. Must not be run against the directory of a running index.
+     *
+     * @param backupDirectory directory written by a backup
+     * @param indexDirectory directory to restore the index in. Must be empty or not exist
+     * @return the number of updates replayed from the log files
+     */
+    static int restore( File backupDirectory, File indexDirectory ) throws IOException
+    {
+        File backupIndexDirectory = new File( backupDirectory, INDEX_DIRECTORY );
+        File[] indexFiles = backupIndexDirectory.listFiles();
+        if ( indexFiles == null )
+        {
+            throw new IOException( String.format( "%s does not hold a backup", backupDirectory ) );
+        }
+        checkEmptyDirectory( indexDirectory );
+
+        log.info( "Restoring index from {} to {}", backupDirectory, indexDirectory );
+        FSDirectory directory = FSDirectory.open( indexDirectory );
+        try
+        {
+            FSDirectory backup = FSDirectory.open( backupIndexDirectory );
+            try
+            {
+                List<String> fileNames = new ArrayList<String>();
+                for ( File file : indexFiles )
+                {
+                    backup.copy( directory, file.getName(), file.getName(), IOContext.READONCE );
+                    fileNames.add( file.getName() );
+                }
+                directory.sync( fileNames );
+            }
+            finally
+            {
+                backup.close();
+            }
+
+            IndexWriterConfig conf = new IndexWriterConfig( Version.LUCENE_41, new WhitespaceAnalyzer( Version.LUCENE_41 ) ).
+                    setOpenMode( IndexWriterConfig.OpenMode.APPEND );
+            IndexWriter restoreWriter = new IndexWriter( directory, conf );
+            int count = 0;
+            try
+            {
+                for ( File logFile : WriteAheadLog.getLogFiles( new File( backupDirectory, LOG_DIRECTORY ) ) )
+                {
+                    count += WriteAheadLog.recoverUncomittedFile( logFile, restoreWriter );
+                }
+            }
+            finally
+            {
+                restoreWriter.close();
+            }
+            log.info( "Restored index to {}, replaying {} updates from the write ahead log", indexDirectory, count );
+            return count;
+        }
+        finally
+        {
+            directory.close();
+        }
+    }
+
+
+    public static void main( String[] args )
+    {
+        if ( args.length != 2 )
+        {
+            System.err.println( "Usage: java dk.dbc.opensearch.fedora.search.IndexBackup <backup directory> <index directory>" );
+            System.err.println( "Restores a backup of the field search index into an empty index directory." );
+            System.err.println( "The server must be stopped, and its write ahead log directory emptied, before it is started on the restored index." );
+            System.exit( 1 );
+        }
+        try
+        {
+            int count = restore( new File( args[0] ), new File( args[1] ) );
+            System.out.println( String.format( "Restored %s to %s, replaying %d updates", args[0], args[1], count ) );
+        }
+        catch ( IOException ex )
+        {
+            System.err.println( String.format( "Restore failed: %s", ex.getMessage() ) );
+            System.exit( 1 );
+        }
+    }
+}
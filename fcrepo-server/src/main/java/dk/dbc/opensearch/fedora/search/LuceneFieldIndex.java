@@ -22,6 +22,7 @@ package dk.dbc.opensearch.fedora.search;
 
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.Term;
@@ -44,27 +45,58 @@ import org.slf4j.LoggerFactory;
 
 import javax.management.JMException;
 import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
 import javax.management.ObjectName;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.lang.management.ManagementFactory;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import org.apache.lucene.document.IntField;
+import org.apache.lucene.document.SortedBytesDocValuesField;
+import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.LongField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.AtomicReader;
 import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
 import org.apache.lucene.search.SearcherManager;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.search.TopFieldDocs;
+import org.apache.lucene.search.TotalHitCountCollector;
+import org.apache.lucene.search.Weight;
 import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
 
 /**
  * This class ensures that the underlying lucene index can be manipulated in
@@ -72,7 +104,7 @@ import org.apache.lucene.util.Bits;
  * operations from index reading operations. Additionally, the class will manage
  * optimizations of the underlying indices.
  */
-public final class LuceneFieldIndex
+public final class LuceneFieldIndex extends FieldIndex
 {
     /**
      * Possible targets for performance improvements/better behaviour in a
@@ -88,6 +120,9 @@ public final class LuceneFieldIndex
 
     private final int pidCollectorMaxInMemory;
     private final File pidCollectorTmpDir;
+    private final boolean pidCollectorCompactFiles;
+    /** Whether the original values of the result fields are stored with each document */
+    private final boolean storeResultFields;
 
     /** Searches on dates cannot precede Sat Jan 01 2000 00:00:00 GMT+0100 (CET). */
     private static final long earliest_date_searchable = 946681200L;
@@ -98,6 +133,13 @@ public final class LuceneFieldIndex
     private final static String PID_NAMESPACE = FedoraFieldName.PID.toString() + "_namespace";
     private final static String PID_IDENTIFIER = FedoraFieldName.PID.toString() + "_identifier";
     private final static String PID_INT = FedoraFieldName.PID.toString() + "_int";
+    /** Column-wise copy of the PID, read by {@link PidCollector} instead of the stored field. */
+    final static String PID_DOCVALUES = FedoraFieldName.PID.toString() + "_docvalues";
+
+    /** Suffix for stored-only copies of field values, in their original case, used for index-backed results. */
+    final static String STORED_SUFFIX = "_stored";
+    /** Marks documents carrying stored copies of all indexed return fields. */
+    final static String RETURN_FIELDS_STORED = "returnfields_stored";
 
     private final static String DATE_RAW = "dateraw";
     private final static String DATE_RAW_EQ = "dateraw_eq";
@@ -115,13 +157,68 @@ public final class LuceneFieldIndex
      * and Andrzej Bialecki (here:
      * http://www.lucidimagination.com/search/document/3aa1e64d1a70e40b/phrase_search)
      */
-    private final static char FIELDSTART = '^';
-    private final static char FIELDEND = '$';
+    final static char FIELDSTART = '^';
+    final static char FIELDEND = '$';
     private final WriteAheadLog wal;
 
+    /** Refreshes the searcher in the background. If null, every search refreshes the searcher first */
+    private final SearcherRefresher refresher;
+
+    /** Search results shared between sessions. If null, every search is run against the index */
+    private final QueryResultCache resultCache;
+
+    /** Lucene queries built from FieldSearchQueries. If null, queries are built for every search */
+    private final QueryPlanCache planCache;
+
+    /** Format of the dates given to {@link #indexFields(List, long)}. SimpleDateFormat is not thread safe */
+    private static final ThreadLocal<SimpleDateFormat> indexDateFormat = new ThreadLocal<SimpleDateFormat>()
+    {
+        @Override
+        protected SimpleDateFormat initialValue()
+        {
+            return new SimpleDateFormat( "yyyy-MM-dd'T'HH:mm:ss.SSS Z" );
+        }
+    };
+
+    /** UTC date formats for query values, by pattern, see {@link #parseStringAsTimestamp(String)} */
+    private static final ThreadLocal<Map<String, SimpleDateFormat>> queryDateFormats = new ThreadLocal<Map<String, SimpleDateFormat>>()
+    {
+        @Override
+        protected Map<String, SimpleDateFormat> initialValue()
+        {
+            return new HashMap<String, SimpleDateFormat>();
+        }
+    };
+
+    private static final TimeZone UTC = TimeZone.getTimeZone( "UTC" );
+
+    /** Takes online backups of the index. Null if the index writer does not support snapshots */
+    private final IndexBackup backup;
+
+    /** Searches the segments of the index in parallel. If null, segments are searched sequentially */
+    private final ExecutorService searchExecutor;
+    /** Time in milliseconds before a search is cancelled, or 0 for no timeout */
+    private final long searchTimeoutMs;
+
+    /**
+     * Documents waiting to be added to the index in one batch while bulk
+     * loading, or null when not bulk loading. Guarded by bulkBatchLock.
+     */
+    private List<Document> bulkBatch = null;
+    private int bulkBatchSize = 0;
+    private double savedRAMBufferSizeMB = 0;
+    /** First failure to add a bulk batch, which makes the bulk load roll back. Guarded by bulkBatchLock */
+    private IOException bulkLoadFailure = null;
+    /** Set when a bulk load was rolled back, which closes the index writer */
+    private volatile boolean rolledBack = false;
+    private final Object bulkBatchLock = new Object();
+    /** Held for reading while adding a batch, and for writing when bulk loading starts or ends */
+    private final ReadWriteLock bulkLoadLock = new ReentrantReadWriteLock();
+
     private ObjectName indexMonitorObjectName;
     private ObjectName fieldIndexObjectName;
     private ObjectName mergePolicyObjectName;
+    private ObjectName backupObjectName;
 
     public static interface IndexMonitorMBean
     {
@@ -152,6 +249,76 @@ public final class LuceneFieldIndex
         }
     }
 
+    public static interface IndexBackupMonitorMBean
+    {
+        boolean isBackupRunning();
+        String getLastBackupStatus();
+        long getBackupsCompleted();
+        long getBackupsFailed();
+        long getBytesCopied();
+
+        double getMaxMBPerSec();
+        void setMaxMBPerSec( double maxMBPerSec );
+
+        void startBackup( String directory ) throws IOException;
+    }
+
+    public class IndexBackupMonitor implements IndexBackupMonitorMBean
+    {
+        @Override
+        public boolean isBackupRunning()
+        {
+            return backup.isRunning();
+        }
+
+        @Override
+        public String getLastBackupStatus()
+        {
+            return backup.getLastBackupStatus();
+        }
+
+        @Override
+        public long getBackupsCompleted()
+        {
+            return backup.getBackupsCompleted();
+        }
+
+        @Override
+        public long getBackupsFailed()
+        {
+            return backup.getBackupsFailed();
+        }
+
+        @Override
+        public long getBytesCopied()
+        {
+            return backup.getBytesCopied();
+        }
+
+        @Override
+        public double getMaxMBPerSec()
+        {
+            return backup.getMaxMBPerSec();
+        }
+
+        @Override
+        public void setMaxMBPerSec( double maxMBPerSec )
+        {
+            backup.setMaxMBPerSec( maxMBPerSec );
+        }
+
+        /**
+         * Starts a backup of the index and the write ahead log to the
+         * given directory, which must be empty or not exist. The backup
+         * runs in the background, see {@link #getLastBackupStatus()}.
+         */
+        @Override
+        public void startBackup( String directory ) throws IOException
+        {
+            LuceneFieldIndex.this.startBackup( new File( directory ) );
+        }
+    }
+
     public static interface LuceneFieldIndexMonitorMBean
     {
         long getDocumentsIndexed();
@@ -162,6 +329,22 @@ public final class LuceneFieldIndex
         long getAverageSearchTimeMS();
         long getLastIndexTimeMS();
         long getAverageIndexTimeMS();
+        long getStoredFieldPidLookups();
+        long getSearcherRefreshes();
+        long getQueryResultCacheHits();
+        long getQueryResultCacheMisses();
+        long getQueryResultCacheEvictions();
+        int getQueryResultCacheSize();
+        long getQueryResultCachePids();
+        long getParallelSearches();
+        long getCancelledSearches();
+        long getQueryPlanCacheHits();
+        long getQueryPlanCacheMisses();
+        long getQueryPlanCacheEvictions();
+        int getQueryPlanCacheSize();
+        long getQueryFilterCacheHits();
+        long getQueryFilterCacheMisses();
+        int getQueryFilterCacheSize();
 
         void resetCounters();
     }
@@ -214,12 +397,150 @@ public final class LuceneFieldIndex
             return (count == 0 ) ? 0 : totalIndexTimeMS.get() / count;
         }
 
+        /**
+         * Number of PIDs read from stored documents because they were indexed
+         * without PID doc values. A non-zero value indicates that the index
+         * should be rebuilt.
+         */
+        @Override
+        public long getStoredFieldPidLookups()
+        {
+            return storedFieldPidLookups.get();
+        }
+
+        /**
+         * Number of searcher refreshes performed by the background refresher,
+         * or 0 if searches refresh the searcher themselves.
+         */
+        @Override
+        public long getSearcherRefreshes()
+        {
+            return ( refresher == null ) ? 0 : refresher.getRefreshes();
+        }
+
+        @Override
+        public long getQueryResultCacheHits()
+        {
+            return ( resultCache == null ) ? 0 : resultCache.getHits();
+        }
+
+        @Override
+        public long getQueryResultCacheMisses()
+        {
+            return ( resultCache == null ) ? 0 : resultCache.getMisses();
+        }
+
+        @Override
+        public long getQueryResultCacheEvictions()
+        {
+            return ( resultCache == null ) ? 0 : resultCache.getEvictions();
+        }
+
+        /**
+         * Number of query results currently held by the shared result cache
+         */
+        @Override
+        public int getQueryResultCacheSize()
+        {
+            return ( resultCache == null ) ? 0 : resultCache.getCachedResults();
+        }
+
+        /**
+         * Total number of PIDs currently held by the shared result cache
+         */
+        @Override
+        public long getQueryResultCachePids()
+        {
+            return ( resultCache == null ) ? 0 : resultCache.getCachedPids();
+        }
+
+        /**
+         * Number of searches run on the segments of the index in parallel
+         */
+        @Override
+        public long getParallelSearches()
+        {
+            return parallelSearches.get();
+        }
+
+        /**
+         * Number of searches cancelled because they exceeded the search
+         * timeout or failed on another segment
+         */
+        @Override
+        public long getCancelledSearches()
+        {
+            return cancelledSearches.get();
+        }
+
+        @Override
+        public long getQueryPlanCacheHits()
+        {
+            return ( planCache == null ) ? 0 : planCache.getHits();
+        }
+
+        @Override
+        public long getQueryPlanCacheMisses()
+        {
+            return ( planCache == null ) ? 0 : planCache.getMisses();
+        }
+
+        @Override
+        public long getQueryPlanCacheEvictions()
+        {
+            return ( planCache == null ) ? 0 : planCache.getEvictions();
+        }
+
+        /**
+         * Number of queries currently held by the query plan cache
+         */
+        @Override
+        public int getQueryPlanCacheSize()
+        {
+            return ( planCache == null ) ? 0 : planCache.getCachedQueries();
+        }
+
+        /**
+         * Number of query clauses served by an existing cached filter
+         */
+        @Override
+        public long getQueryFilterCacheHits()
+        {
+            return ( planCache == null ) ? 0 : planCache.getFilterHits();
+        }
+
+        @Override
+        public long getQueryFilterCacheMisses()
+        {
+            return ( planCache == null ) ? 0 : planCache.getFilterMisses();
+        }
+
+        /**
+         * Number of clause filters currently cached
+         */
+        @Override
+        public int getQueryFilterCacheSize()
+        {
+            return ( planCache == null ) ? 0 : planCache.getCachedFilters();
+        }
+
         @Override
         public void resetCounters()
         {
+            if ( resultCache != null )
+            {
+                resultCache.resetCounters();
+            }
+            if ( planCache != null )
+            {
+                planCache.resetCounters();
+            }
             documentsIndexed.set( 0 );
             documentsDeleted.set( 0 );
             searchesPerformed.set( 0 );
+            storedFieldPidLookups.set( 0 );
+            parallelSearches.set( 0 );
+            cancelledSearches.set( 0 );
             lastSearchTimeMS = 0;
         }
     }
@@ -356,28 +677,85 @@ public final class LuceneFieldIndex
     private final AtomicLong totalSearchTimeMS = new AtomicLong();
     private volatile long lastSearchTimeMS = 0;
     private final AtomicLong totalIndexTimeMS = new AtomicLong();
+    private final AtomicLong storedFieldPidLookups = new AtomicLong();
+    private final AtomicLong parallelSearches = new AtomicLong();
+    private final AtomicLong cancelledSearches = new AtomicLong();
     private volatile long lastIndexTimeMS = 0;
 
     LuceneFieldIndex( IndexWriter writer, TieredMergePolicy mergePolicy,
             int pidCollectorMaxInMemory, File pidCollectorTmpDir,
             WriteAheadLog wal) throws IOException
+    {
+        this( writer, mergePolicy, pidCollectorMaxInMemory, pidCollectorTmpDir, false, wal, 0, 0, 0, 0, 0, 0, 0 );
+    }
+
+    /**
+     * @param pidCollectorCompactFiles if true, large results are spooled to compact memory-mapped PID files
+     * @param refreshMaxStaleSec if positive, the searcher is refreshed in the background at least this often,
+     *        instead of before every search
+     * @param refreshMinStaleSec minimum time between background refreshes when threads wait for their writes
+     *        to become searchable
+     * @param queryResultCacheMaxPids if positive, search results are shared between identical queries in a cache
+     *        holding at most this many PIDs in total
+     * @param searchThreads if positive, the segments of the index are searched in parallel by this many threads
+     * @param searchTimeoutMs if positive, searches taking longer than this many milliseconds are cancelled
+     * @param queryPlanCacheSize if positive, the Lucene queries built for searches, and filters for state
+     *        clauses, are cached for up to this many queries
+     * @param backupMaxMBPerSec maximum rate in MB per second at which online backups copy index files,
+     *        or 0 for no limit. Online backups are available if the writer uses a SnapshotDeletionPolicy
+     */
+    LuceneFieldIndex( IndexWriter writer, TieredMergePolicy mergePolicy,
+            int pidCollectorMaxInMemory, File pidCollectorTmpDir, boolean pidCollectorCompactFiles,
+            WriteAheadLog wal, double refreshMaxStaleSec, double refreshMinStaleSec,
+            long queryResultCacheMaxPids, int searchThreads, long searchTimeoutMs,
+            int queryPlanCacheSize, double backupMaxMBPerSec ) throws IOException
+    {
+        this( writer, mergePolicy, pidCollectorMaxInMemory, pidCollectorTmpDir, pidCollectorCompactFiles, wal,
+                refreshMaxStaleSec, refreshMinStaleSec, queryResultCacheMaxPids, searchThreads, searchTimeoutMs,
+                queryPlanCacheSize, backupMaxMBPerSec, false, null );
+    }
+
+    /**
+     * @param storeResultFields if true, the original values of the result fields are stored with each
+     *        document, so findObjects can read them from the index, see {@link #getStoredDocuments(Collection)}
+     * @param shardName name of the shard held by this index, added to the names of its JMX beans,
+     *        or null if the index is not sharded
+     */
+    LuceneFieldIndex( IndexWriter writer, TieredMergePolicy mergePolicy,
+            int pidCollectorMaxInMemory, File pidCollectorTmpDir, boolean pidCollectorCompactFiles,
+            WriteAheadLog wal, double refreshMaxStaleSec, double refreshMinStaleSec,
+            long queryResultCacheMaxPids, int searchThreads, long searchTimeoutMs,
+            int queryPlanCacheSize, double backupMaxMBPerSec, boolean storeResultFields,
+            String shardName ) throws IOException
     {
         this.writer = writer;
         this.wal = wal;
         this.pidCollectorMaxInMemory = pidCollectorMaxInMemory;
         this.pidCollectorTmpDir = pidCollectorTmpDir;
+        this.pidCollectorCompactFiles = pidCollectorCompactFiles;
+        this.storeResultFields = storeResultFields;
+        this.resultCache = ( queryResultCacheMaxPids > 0 ) ? new QueryResultCache( queryResultCacheMaxPids ) : null;
+        this.planCache = ( queryPlanCacheSize > 0 ) ? new QueryPlanCache( queryPlanCacheSize ) : null;
+        this.searchExecutor = ( searchThreads > 0 ) ? Executors.newFixedThreadPool( searchThreads, new SearchThreadFactory() ) : null;
+        this.searchTimeoutMs = searchTimeoutMs;
+        this.backup = IndexBackup.isSupported( writer ) ? new IndexBackup( writer, wal, backupMaxMBPerSec ) : null;
 
         // Register the JMX monitoring bean
         try
         {
             MBeanServer server = ManagementFactory.getPlatformMBeanServer();
-            indexMonitorObjectName = new ObjectName( "FieldSearchLucene:name=Index" );
-            fieldIndexObjectName = new ObjectName( "FieldSearchLucene:name=LuceneFieldIndex" );
-            mergePolicyObjectName = new ObjectName( "FieldSearchLucene:name=TieredMergePolicy" );
+            indexMonitorObjectName = getJmxObjectName( "Index", shardName );
+            fieldIndexObjectName = getJmxObjectName( "LuceneFieldIndex", shardName );
+            mergePolicyObjectName = getJmxObjectName( "TieredMergePolicy", shardName );
 
             server.registerMBean( new IndexMonitor(), indexMonitorObjectName);
             server.registerMBean( new LuceneFieldIndexMonitor(), fieldIndexObjectName);
             server.registerMBean( new TieredMergePolicyMonitor( mergePolicy ), mergePolicyObjectName);
+            if ( backup != null )
+            {
+                backupObjectName = getJmxObjectName( "Backup", shardName );
+                server.registerMBean( new IndexBackupMonitor(), backupObjectName );
+            }
         }
         catch( JMException ex )
         {
@@ -389,8 +767,29 @@ public final class LuceneFieldIndex
         {
             wal.initialize();
         }
+
+        if ( refreshMaxStaleSec > 0 )
+        {
+            refresher = new SearcherRefresher( searchManager, refreshMaxStaleSec, refreshMinStaleSec );
+            refresher.start();
+        }
+        else
+        {
+            refresher = null;
+        }
+    }
+
+    /**
+     * @param name the name of the bean
+     * @param shardName the shard the bean belongs to, or null if the index is not sharded
+     * @return the name to register a JMX bean of the field search index under
+     */
+    static ObjectName getJmxObjectName( String name, String shardName ) throws MalformedObjectNameException
+    {
+        return new ObjectName( "FieldSearchLucene:name=" + name + ( shardName == null ? "" : ",shard=" + shardName ) );
     }
 
+    @Override
     void indexFields( final List<Pair<FedoraFieldName, String>> fieldList, long extractTimeNs ) throws IOException
     {
         log.debug( "Indexing {} fields", fieldList.size() );
@@ -412,17 +811,24 @@ public final class LuceneFieldIndex
             }
             else
             {
+                if( storeResultFields && storeReturnValue( fieldName ) )
+                {
+                    doc.add( new StoredField( fieldName.toString() + STORED_SUFFIX, fieldValue ) );
+                }
+
                 switch( fieldName )
                 {
                 case PID:
                     doc.add( new StringField( fieldName.toString(), fieldValue, Store.YES ) );
+                    doc.add( new SortedBytesDocValuesField( PID_DOCVALUES, new BytesRef( fieldValue ) ) );
                     log.trace( "Added { {}: {} } to index document", fieldName.toString(), fieldValue );
                     pid = fieldValue;
 
-                    String identifier = fieldValue.split( ":" )[1];
+                    int colon = fieldValue.indexOf( ':' );
+                    String identifier = fieldValue.substring( colon + 1 );
 
                     doc.add( new StringField( PID_IDENTIFIER, identifier, Store.NO ) );
-                    doc.add( new StringField( PID_NAMESPACE, fieldValue.split( ":" )[0], Store.NO ) );
+                    doc.add( new StringField( PID_NAMESPACE, fieldValue.substring( 0, Math.max( colon, 0 ) ), Store.NO ) );
 
                     try {
                         int id = Integer.parseInt(identifier);
@@ -450,9 +856,7 @@ public final class LuceneFieldIndex
                     long timestamp = 0L;
                     try
                     {
-                        // since DateFormat is not threadsafe, and its only ise is here, we create an instance every time:
-                        SimpleDateFormat zTimeFormatter = new SimpleDateFormat( "yyyy-MM-dd'T'HH:mm:ss.SSS Z" );
-                        Date parsedDate = zTimeFormatter.parse( fieldValue );
+                        Date parsedDate = indexDateFormat.get().parse( fieldValue );
                         timestamp = parsedDate.getTime();
                     } catch( java.text.ParseException ex )
                     {
@@ -490,9 +894,17 @@ public final class LuceneFieldIndex
             {
                 throw new IllegalStateException( "IndexWriter could not be retrieved." );
             }
+            if( storeResultFields )
+            {
+                doc.add( new StoredField( RETURN_FIELDS_STORED, Boolean.TRUE.toString() ) );
+            }
             log.trace( "Adding document {}", doc );
 
-            if ( this.wal == null )
+            if ( addToBulkBatch( doc ) )
+            {
+                log.trace( "Added document for {} to bulk batch", pid );
+            }
+            else if ( this.wal == null )
             {
                 Term term = new Term( "pid", pid );
                 this.writer.updateDocument( term, doc );
@@ -509,6 +921,7 @@ public final class LuceneFieldIndex
             {
                 wal.updateDocument( pid, doc );
             }
+            markWrite();
 
             long indexTimeNs = System.nanoTime() - startTimeNs ;
             long indexTimeMs = (indexTimeNs + extractTimeNs ) / 1000000;
@@ -525,6 +938,27 @@ public final class LuceneFieldIndex
     }
 
 
+    /**
+     * The PID and the object dates are already stored by the searchable fields
+     * themselves. All other values are stored separately, since the searchable
+     * fields hold lowercased values.
+     */
+    private static boolean storeReturnValue( FedoraFieldName fieldName )
+    {
+        switch( fieldName )
+        {
+        case PID:
+        case CDATE:
+        case MDATE:
+        case DCMDATE:
+            return false;
+        default:
+            return true;
+        }
+    }
+
+
+    @Override
     void removeDocument( final String uid ) throws IOException
     {
         documentsDeleted.incrementAndGet();
@@ -543,7 +977,11 @@ public final class LuceneFieldIndex
         {
             log.trace( "Documents in index before delete: {}", this.writer.numDocs() );
         }
-        if ( this.wal == null )
+        if ( removeFromBulkBatch( uid ) )
+        {
+            log.trace( "Removed document for {} from bulk load", uid );
+        }
+        else if ( this.wal == null )
         {
             Term term = new Term( "pid", uid );
             log.trace( "Deleting doc with term {}", term );
@@ -555,6 +993,7 @@ public final class LuceneFieldIndex
         {
             wal.deleteDocument( uid );
         }
+        markWrite();
         // numDocs is synchronized, so avoid calling it if possible
         if ( log.isTraceEnabled() )
         {
@@ -565,88 +1004,934 @@ public final class LuceneFieldIndex
 
 
     /**
-     * This method takes a {@link FieldSearchQuery} consisting of {@link Pair}s
-     * of {@link FedoraFieldName}s and {@link String}s and executes the
-     * corresponding search against the lucene index
-     *
-     * For a Query consisting of
-     * <pre>
-     * List< Pair< "CREATOR", "Friedrich Nietzche" > >
-     * </pre>
-     *
-     * the search will retrieve all pids matching that query
+     * Starts bulk loading. All documents are deleted from the index, and
+     * documents indexed from now on bypass the write ahead log and are added
+     * to the IndexWriter in batches of batchSize documents, without checking
+     * for existing documents with the same PID. Nothing is committed until
+     * {@link #endBulkLoad()}, and a failed or aborted bulk load is rolled back
+     * to the index as it was before, so it must be started over.
      *
-     * @param fsq a FieldSearchQuery object containing the query
-     * @return all PIDs in result set as IPidList object
+     * @param batchSize number of documents to add to the IndexWriter at a time
+     * @param ramBufferSizeMB RAM buffer size of the IndexWriter while bulk loading
      */
-    IPidList search( final FieldSearchQuery fsq ) throws IOException, ParseException
+    @Override
+    void beginBulkLoad( int batchSize, double ramBufferSizeMB ) throws IOException
     {
-        long time = System.currentTimeMillis();
-
-        Query luceneQuery = constructQuery( fsq );
-
-        IPidList results = null;
-
-        if( luceneQuery instanceof AllFieldsQuery )
+        if ( batchSize <= 0 )
         {
-            log.info( "AllFieldsQuery detected, returning all documents from index" );
-            results = getAll();
+            throw new IllegalArgumentException( String.format( "batchSize must be positive, was %d", batchSize ) );
         }
-        else
+        bulkLoadLock.writeLock().lock();
+        try
         {
-            searchManager.maybeRefreshBlocking();
-            IndexSearcher localSearcher = searchManager.acquire();
-            try
+            synchronized ( bulkBatchLock )
             {
-                final PidCollector pidCollector = new PidCollector( pidCollectorMaxInMemory, pidCollectorTmpDir );
-                log.debug( "Query: {}", luceneQuery.toString() );
-                localSearcher.search( luceneQuery, pidCollector );
-                results = pidCollector.getResults();
+                if ( bulkBatch != null )
+                {
+                    throw new IllegalStateException( "Bulk load already started" );
+                }
             }
-            finally
+            if ( wal != null )
+            {
+                // Apply pending updates, so they are not replayed on top of the bulk loaded index
+                wal.flush();
+            }
+            log.info( "Starting bulk load with batch size {} and RAM buffer {} MB. Deleting all documents", batchSize, ramBufferSizeMB );
+            writer.deleteAll();
+            savedRAMBufferSizeMB = writer.getConfig().getRAMBufferSizeMB();
+            writer.getConfig().setRAMBufferSizeMB( ramBufferSizeMB );
+            synchronized ( bulkBatchLock )
             {
-                searchManager.release( localSearcher );
+                bulkBatchSize = batchSize;
+                bulkBatch = new ArrayList<Document>( batchSize );
+                bulkLoadFailure = null;
             }
         }
+        finally
+        {
+            bulkLoadLock.writeLock().unlock();
+        }
+    }
 
-        time = System.currentTimeMillis() - time;
-        lastSearchTimeMS = time;
-        totalSearchTimeMS.addAndGet( time );
-        searchesPerformed.incrementAndGet();
 
-        log.trace( "Size of result set: {}, time {} ms", results.size(), time );
+    /**
+     * Ends bulk loading, adding the last batch and committing the index. If
+     * a batch could not be added, the bulk load is rolled back instead, see
+     * {@link #abortBulkLoad()}.
+     *
+     * @throws IOException if the bulk load failed and was rolled back
+     */
+    @Override
+    void endBulkLoad() throws IOException
+    {
+        prepareBulkLoadCommit();
+        commitBulkLoad();
+    }
 
-        /*
-        For this to be enabled, we need a method to (re)set cursor position on a
-        pid list!!!
 
-        if( log.isTraceEnabled() )
+    /**
+     * First phase of ending bulk loading: adds the last batch and prepares
+     * the commit of the index, see {@link IndexWriter#prepareCommit()}. The
+     * bulk load is then either committed by {@link #commitBulkLoad()} or
+     * rolled back by {@link #abortBulkLoad()}. If a batch could not be added
+     * or the commit can not be prepared, the bulk load is rolled back.
+     *
+     * @throws IOException if the bulk load failed and was rolled back
+     */
+    void prepareBulkLoadCommit() throws IOException
+    {
+        bulkLoadLock.writeLock().lock();
+        try
         {
-            log.trace( "Size of result set: {}, time {} ms", results.size(), time );
-            int i = 1;
-            String pid = results.getNextPid();
-            while( pid != null )
+            List<Document> lastBatch;
+            IOException failure;
+            synchronized ( bulkBatchLock )
             {
-                log.trace( "result no {} has PID {}", i++, pid );
-                pid = results.getNextPid();
+                if ( bulkBatch == null )
+                {
+                    throw new IllegalStateException( "Bulk load not started" );
+                }
+                lastBatch = bulkBatch;
+                bulkBatch = new ArrayList<Document>( bulkBatchSize );
+                failure = bulkLoadFailure;
+            }
+            if ( failure != null )
+            {
+                rollbackBulkLoad();
+                throw new IOException( "Bulk load rolled back, since a batch of documents could not be added", failure );
+            }
+            boolean prepared = false;
+            try
+            {
+                writer.addDocuments( lastBatch );
+                writer.getConfig().setRAMBufferSizeMB( savedRAMBufferSizeMB );
+                writer.prepareCommit();
+                prepared = true;
+            }
+            finally
+            {
+                if ( !prepared )
+                {
+                    rollbackBulkLoad();
+                }
             }
         }
-        */
-
-        return results;
+        finally
+        {
+            bulkLoadLock.writeLock().unlock();
+        }
     }
 
-    public int findHighestId(String namespace) throws IOException {
-        TermQuery luceneQuery = new TermQuery(new Term(PID_NAMESPACE, namespace));
-        searchManager.maybeRefreshBlocking();
-        IndexSearcher localSearcher = searchManager.acquire();
-        try {
-            log.debug("Query: {}", luceneQuery.toString());
-            TopFieldDocs search = localSearcher.search(luceneQuery, 1, new Sort(new SortField(PID_INT, SortField.Type.INT, true)));
 
-            if (search.scoreDocs.length > 0) {
-                IndexReader localReader = localSearcher.getIndexReader();
-                Document document = localReader.document( search.scoreDocs[0].doc );
+    /**
+     * Second phase of ending bulk loading: commits the index prepared by
+     * {@link #prepareBulkLoadCommit()}. If the commit fails, the bulk load is
+     * rolled back.
+     *
+     * @throws IOException if the commit failed and the bulk load was rolled back
+     */
+    void commitBulkLoad() throws IOException
+    {
+        bulkLoadLock.writeLock().lock();
+        try
+        {
+            synchronized ( bulkBatchLock )
+            {
+                if ( bulkBatch == null )
+                {
+                    throw new IllegalStateException( "Bulk load not started" );
+                }
+            }
+            boolean committed = false;
+            try
+            {
+                writer.commit();
+                committed = true;
+                log.info( "Bulk load committed, index contains {} documents", writer.numDocs() );
+            }
+            finally
+            {
+                if ( committed )
+                {
+                    synchronized ( bulkBatchLock )
+                    {
+                        bulkBatch = null;
+                    }
+                }
+                else
+                {
+                    rollbackBulkLoad();
+                }
+            }
+        }
+        finally
+        {
+            bulkLoadLock.writeLock().unlock();
+        }
+        searchManager.maybeRefreshBlocking();
+        markWrite();
+    }
+
+
+    /**
+     * Aborts bulk loading, rolling the index back to the commit before the
+     * bulk load, so neither the deletion of all documents nor the documents
+     * loaded so far are committed. Rolling back closes the index writer, so
+     * the index cannot be updated until it is opened again.
+     */
+    @Override
+    void abortBulkLoad() throws IOException
+    {
+        bulkLoadLock.writeLock().lock();
+        try
+        {
+            synchronized ( bulkBatchLock )
+            {
+                if ( bulkBatch == null )
+                {
+                    throw new IllegalStateException( "Bulk load not started" );
+                }
+            }
+            rollbackBulkLoad();
+        }
+        finally
+        {
+            bulkLoadLock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Rolls back the index writer and ends bulk loading. Must be called with
+     * the bulkLoadLock write lock held.
+     */
+    private void rollbackBulkLoad() throws IOException
+    {
+        synchronized ( bulkBatchLock )
+        {
+            bulkBatch = null;
+        }
+        rolledBack = true;
+        log.warn( "Rolling back bulk load, the index is left as it was before the bulk load" );
+        writer.rollback();
+    }
+
+
+    boolean isBulkLoading()
+    {
+        synchronized ( bulkBatchLock )
+        {
+            return bulkBatch != null;
+        }
+    }
+
+
+    /**
+     * Adds the document to the current bulk batch, and adds the batch to the
+     * IndexWriter when it is full.
+     *
+     * @return false if not bulk loading
+     */
+    private boolean addToBulkBatch( final Document doc ) throws IOException
+    {
+        bulkLoadLock.readLock().lock();
+        try
+        {
+            List<Document> fullBatch = null;
+            synchronized ( bulkBatchLock )
+            {
+                if ( bulkBatch == null )
+                {
+                    return false;
+                }
+                bulkBatch.add( doc );
+                if ( bulkBatch.size() >= bulkBatchSize )
+                {
+                    fullBatch = bulkBatch;
+                    bulkBatch = new ArrayList<Document>( bulkBatchSize );
+                }
+            }
+            if ( fullBatch != null )
+            {
+                log.debug( "Adding bulk batch of {} documents", fullBatch.size() );
+                try
+                {
+                    writer.addDocuments( fullBatch );
+                }
+                catch ( IOException ex )
+                {
+                    recordBulkLoadFailure( ex );
+                    throw ex;
+                }
+            }
+            return true;
+        }
+        finally
+        {
+            bulkLoadLock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Removes the documents of a PID from the current bulk batch and from
+     * the batches already added to the IndexWriter, without committing.
+     *
+     * @return false if not bulk loading
+     */
+    private boolean removeFromBulkBatch( final String uid ) throws IOException
+    {
+        bulkLoadLock.readLock().lock();
+        try
+        {
+            synchronized ( bulkBatchLock )
+            {
+                if ( bulkBatch == null )
+                {
+                    return false;
+                }
+                Iterator<Document> it = bulkBatch.iterator();
+                while ( it.hasNext() )
+                {
+                    if ( uid.equals( it.next().get( "pid" ) ) )
+                    {
+                        it.remove();
+                    }
+                }
+            }
+            try
+            {
+                writer.deleteDocuments( new Term( "pid", uid ) );
+            }
+            catch ( IOException ex )
+            {
+                recordBulkLoadFailure( ex );
+                throw ex;
+            }
+            return true;
+        }
+        finally
+        {
+            bulkLoadLock.readLock().unlock();
+        }
+    }
+
+
+    private void recordBulkLoadFailure( final IOException ex )
+    {
+        synchronized ( bulkBatchLock )
+        {
+            if ( bulkLoadFailure == null )
+            {
+                bulkLoadFailure = ex;
+            }
+        }
+    }
+
+
+    private void markWrite()
+    {
+        if ( refresher != null )
+        {
+            refresher.markWrite();
+        }
+    }
+
+
+    /**
+     * Makes sure the searcher is fresh enough for a search. With a background
+     * refresher, searches may lag behind writes by up to the max staleness.
+     */
+    private void refreshSearcher() throws IOException
+    {
+        if ( refresher == null )
+        {
+            searchManager.maybeRefreshBlocking();
+        }
+    }
+
+
+    /**
+     * Blocks until all writes completed before the call are searchable. Used
+     * by lookups which must see preceding updates, like existence checks and
+     * PID generation.
+     *
+     * @throws IOException if the searcher could not be refreshed
+     */
+    void waitForLatestWrites() throws IOException
+    {
+        if ( refresher == null )
+        {
+            searchManager.maybeRefreshBlocking();
+        }
+        else
+        {
+            refresher.waitForGeneration( refresher.getWriteGeneration() );
+        }
+    }
+
+
+    /**
+     * This method takes a {@link FieldSearchQuery} consisting of {@link Pair}s
+     * of {@link FedoraFieldName}s and {@link String}s and executes the
+     * corresponding search against the lucene index
+     *
+     * For a Query consisting of
+     * <pre>
+     * List< Pair< "CREATOR", "Friedrich Nietzche" > >
+     * </pre>
+     *
+     * the search will retrieve all pids matching that query
+     *
+     * @param fsq a FieldSearchQuery object containing the query
+     * @return all PIDs in result set as IPidList object
+     */
+    @Override
+    IPidList search( final FieldSearchQuery fsq ) throws IOException, ParseException
+    {
+        long time = System.currentTimeMillis();
+
+        Query luceneQuery = constructQuery( fsq );
+
+        IPidList results = null;
+
+        // The shared results are keyed by the version of the searcher which runs the query
+        refreshSearcher();
+        IndexSearcher localSearcher = searchManager.acquire();
+        try
+        {
+            long generation = -1;
+            if( resultCache != null )
+            {
+                generation = getSearcherGeneration( localSearcher );
+                results = resultCache.get( generation, luceneQuery );
+            }
+
+            if( results != null )
+            {
+                log.debug( "Using shared result for query: {}", luceneQuery );
+            }
+            else if( luceneQuery instanceof AllFieldsQuery )
+            {
+                log.info( "AllFieldsQuery detected, returning all documents from index" );
+                results = getAll( localSearcher );
+            }
+            else
+            {
+                log.debug( "Query: {}", luceneQuery.toString() );
+                results = collectPids( localSearcher, luceneQuery );
+            }
+
+            if( resultCache != null && !( results instanceof PidListShared ) && resultCache.accepts( results.size() ) )
+            {
+                results = shareResult( generation, luceneQuery, results );
+            }
+        }
+        finally
+        {
+            searchManager.release( localSearcher );
+        }
+
+        time = System.currentTimeMillis() - time;
+        lastSearchTimeMS = time;
+        totalSearchTimeMS.addAndGet( time );
+        searchesPerformed.incrementAndGet();
+
+        log.trace( "Size of result set: {}, time {} ms", results.size(), time );
+
+        /*
+        For this to be enabled, we need a method to (re)set cursor position on a
+        pid list!!!
+
+        if( log.isTraceEnabled() )
+        {
+            log.trace( "Size of result set: {}, time {} ms", results.size(), time );
+            int i = 1;
+            String pid = results.getNextPid();
+            while( pid != null )
+            {
+                log.trace( "result no {} has PID {}", i++, pid );
+                pid = results.getNextPid();
+            }
+        }
+        */
+
+        return results;
+    }
+
+    /**
+     * Collects the PIDs of all documents matching the query. With a search
+     * executor, each segment is searched by its own collector, and the
+     * results are merged in segment order, giving the same PIDs in the same
+     * order as the sequential search.
+     */
+    private IPidList collectPids( final IndexSearcher searcher, final Query query ) throws IOException
+    {
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        final long startNs = System.nanoTime();
+        final long timeoutNs = TimeUnit.MILLISECONDS.toNanos( searchTimeoutMs );
+        List<AtomicReaderContext> leaves = searcher.getIndexReader().leaves();
+
+        PidCollector pidCollector = newPidCollector( cancelled, startNs, timeoutNs );
+        boolean success = false;
+        try
+        {
+            if( searchExecutor == null || leaves.size() < 2 )
+            {
+                searcher.search( query, pidCollector );
+            }
+            else
+            {
+                parallelSearches.incrementAndGet();
+                searchSegments( searcher.createNormalizedWeight( query ), leaves, pidCollector, cancelled, startNs, timeoutNs );
+            }
+            success = true;
+        }
+        catch( InterruptedIOException ex )
+        {
+            cancelledSearches.incrementAndGet();
+            throw ex;
+        }
+        finally
+        {
+            if( !success )
+            {
+                pidCollector.dispose();
+            }
+        }
+
+        countStoredFieldLookups( pidCollector );
+        return pidCollector.getResults();
+    }
+
+    private PidCollector newPidCollector( final AtomicBoolean cancelled, final long startNs, final long timeoutNs )
+    {
+        PidCollector pidCollector = new PidCollector( pidCollectorMaxInMemory, pidCollectorTmpDir, pidCollectorCompactFiles );
+        pidCollector.setCancellation( cancelled, startNs, timeoutNs );
+        return pidCollector;
+    }
+
+    /**
+     * Searches each segment in a task on the search executor and merges the
+     * results into pidCollector. If a task fails or the timeout passes, the
+     * remaining tasks are cancelled.
+     */
+    private void searchSegments( final Weight weight, final List<AtomicReaderContext> leaves, final PidCollector pidCollector,
+            final AtomicBoolean cancelled, final long startNs, final long timeoutNs ) throws IOException
+    {
+        List<Future<PidCollector>> futures = new ArrayList<Future<PidCollector>>( leaves.size() );
+        int merged = 0;
+        try
+        {
+            for( final AtomicReaderContext leaf : leaves )
+            {
+                final PidCollector segmentCollector = newPidCollector( cancelled, startNs, timeoutNs );
+                futures.add( searchExecutor.submit( new Callable<PidCollector>()
+                {
+                    @Override
+                    public PidCollector call() throws IOException
+                    {
+                        try
+                        {
+                            segmentCollector.setNextReader( leaf );
+                            Scorer scorer = weight.scorer( leaf, !segmentCollector.acceptsDocsOutOfOrder(), true, leaf.reader().getLiveDocs() );
+                            if( scorer != null )
+                            {
+                                scorer.score( segmentCollector );
+                            }
+                        }
+                        catch( IOException ex )
+                        {
+                            segmentCollector.dispose();
+                            throw ex;
+                        }
+                        return segmentCollector;
+                    }
+                } ) );
+            }
+
+            for( Future<PidCollector> future : futures )
+            {
+                PidCollector segmentCollector;
+                if( timeoutNs > 0 )
+                {
+                    segmentCollector = future.get( Math.max( 0, timeoutNs - ( System.nanoTime() - startNs ) ), TimeUnit.NANOSECONDS );
+                }
+                else
+                {
+                    segmentCollector = future.get();
+                }
+                merged++;
+                pidCollector.addResults( segmentCollector );
+            }
+        }
+        catch( TimeoutException ex )
+        {
+            throw new InterruptedIOException( String.format( "Search exceeded timeout of %d ms", searchTimeoutMs ) );
+        }
+        catch( InterruptedException ex )
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted while waiting for segment searches" );
+        }
+        catch( ExecutionException ex )
+        {
+            if( ex.getCause() instanceof IOException )
+            {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException( "Segment search failed", ex.getCause() );
+        }
+        finally
+        {
+            if( merged < futures.size() )
+            {
+                cancelled.set( true );
+                disposeSegmentResults( futures.subList( merged, futures.size() ) );
+            }
+        }
+    }
+
+    /**
+     * Waits for segment searches that are no longer needed and disposes
+     * their results. The searches have been cancelled through the shared
+     * flag, so the collectors abort after at most a few documents.
+     */
+    private static void disposeSegmentResults( final List<Future<PidCollector>> futures )
+    {
+        for( Future<PidCollector> future : futures )
+        {
+            try
+            {
+                future.get().dispose();
+            }
+            catch( InterruptedException ex )
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            catch( ExecutionException ex )
+            {
+                log.trace( "Segment search failed after the search was cancelled", ex );
+            }
+        }
+    }
+
+    /**
+     * Creates daemon threads for parallel segment searches.
+     */
+    private static final class SearchThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        @Override
+        public Thread newThread( Runnable r )
+        {
+            Thread thread = new Thread( r, "LuceneFieldIndex-search-" + threadNumber.incrementAndGet() );
+            thread.setDaemon( true );
+            return thread;
+        }
+    }
+
+    /**
+     * Returns one page of the PIDs matching a query, in PID order, starting
+     * after the given PID. The page is computed directly with a sorted
+     * search on the PID doc values, so no state is kept between pages and
+     * memory use only depends on the page size.
+     * <p>
+     * Documents indexed without PID doc values sort first with an empty
+     * value and are left out, so the index must be rebuilt for them to be
+     * included.
+     *
+     * @param fsq the query
+     * @param afterPid return only PIDs after this one, or null to start from the first PID
+     * @param count maximum number of PIDs to return
+     * @return the PIDs of the page, in order. Fewer than count PIDs means the last page
+     */
+    @Override
+    List<String> searchAfter( final FieldSearchQuery fsq, final String afterPid, final int count ) throws IOException, ParseException
+    {
+        long time = System.currentTimeMillis();
+
+        Query luceneQuery = constructQuery( fsq );
+        if( luceneQuery instanceof AllFieldsQuery )
+        {
+            luceneQuery = new MatchAllDocsQuery();
+        }
+
+        SortField pidSortField = new SortField( PID_DOCVALUES, SortField.Type.STRING );
+        pidSortField.setUseIndexValues( true );
+        Sort pidSort = new Sort( pidSortField );
+
+        List<String> pids = new ArrayList<String>( count );
+        refreshSearcher();
+        IndexSearcher localSearcher = searchManager.acquire();
+        try
+        {
+            log.debug( "Query: {}, after {}", luceneQuery, afterPid );
+            TopDocs hits;
+            if( afterPid == null )
+            {
+                hits = localSearcher.search( luceneQuery, count, pidSort );
+            }
+            else
+            {
+                // The highest doc id places the start after all documents with the same PID
+                FieldDoc after = new FieldDoc( Integer.MAX_VALUE, Float.NaN, new Object[] { new BytesRef( afterPid ) } );
+                hits = localSearcher.searchAfter( after, luceneQuery, count, pidSort );
+            }
+
+            for( ScoreDoc hit : hits.scoreDocs )
+            {
+                BytesRef pid = (BytesRef) ( (FieldDoc) hit ).fields[ 0 ];
+                if( pid == null || pid.length == 0 )
+                {
+                    log.warn( "Document {} has no PID doc values and is left out of the result", hit.doc );
+                    continue;
+                }
+                pids.add( pid.utf8ToString() );
+            }
+        }
+        finally
+        {
+            searchManager.release( localSearcher );
+        }
+
+        time = System.currentTimeMillis() - time;
+        lastSearchTimeMS = time;
+        totalSearchTimeMS.addAndGet( time );
+        searchesPerformed.incrementAndGet();
+        log.debug( "Found {} pids after {}, time {} ms", new Object[] { pids.size(), afterPid, time } );
+
+        return pids;
+    }
+
+    /**
+     * Counts the documents matching a query without collecting their PIDs,
+     * so memory use does not depend on the size of the result.
+     *
+     * @param fsq the query
+     * @return the number of matching documents
+     */
+    @Override
+    int count( final FieldSearchQuery fsq ) throws IOException, ParseException
+    {
+        long time = System.currentTimeMillis();
+
+        Query luceneQuery = constructQuery( fsq );
+
+        int hits;
+        refreshSearcher();
+        IndexSearcher localSearcher = searchManager.acquire();
+        try
+        {
+            if( luceneQuery instanceof AllFieldsQuery )
+            {
+                hits = localSearcher.getIndexReader().numDocs();
+            }
+            else
+            {
+                log.debug( "Count query: {}", luceneQuery );
+                TotalHitCountCollector collector = new TotalHitCountCollector();
+                localSearcher.search( luceneQuery, collector );
+                hits = collector.getTotalHits();
+            }
+        }
+        finally
+        {
+            searchManager.release( localSearcher );
+        }
+
+        time = System.currentTimeMillis() - time;
+        lastSearchTimeMS = time;
+        totalSearchTimeMS.addAndGet( time );
+        searchesPerformed.incrementAndGet();
+        log.debug( "Counted {} hits, time {} ms", hits, time );
+
+        return hits;
+    }
+
+    /**
+     * Counts the values of the given fields over the documents matching a
+     * query, in a single pass over the matching documents.
+     *
+     * @param fsq the query
+     * @param fields the fields to count values for
+     * @param maxValues the maximum number of values to return for each field
+     * @return map from field to its most frequent values with their counts, by descending count
+     */
+    @Override
+    Map<FedoraFieldName, List<Pair<String, Integer>>> facets( final FieldSearchQuery fsq, final List<FedoraFieldName> fields, final int maxValues ) throws IOException, ParseException
+    {
+        long time = System.currentTimeMillis();
+
+        Query luceneQuery = constructQuery( fsq );
+        if( luceneQuery instanceof AllFieldsQuery )
+        {
+            luceneQuery = new MatchAllDocsQuery();
+        }
+
+        FacetCollector collector = new FacetCollector( fields );
+        Map<FedoraFieldName, List<Pair<String, Integer>>> facets;
+        refreshSearcher();
+        IndexSearcher localSearcher = searchManager.acquire();
+        try
+        {
+            log.debug( "Facet query: {}, fields {}", luceneQuery, fields );
+            localSearcher.search( luceneQuery, collector );
+            facets = collector.getTopValues( maxValues );
+        }
+        finally
+        {
+            searchManager.release( localSearcher );
+        }
+
+        time = System.currentTimeMillis() - time;
+        lastSearchTimeMS = time;
+        totalSearchTimeMS.addAndGet( time );
+        searchesPerformed.incrementAndGet();
+        log.debug( "Counted facets for {} fields, time {} ms", fields.size(), time );
+
+        return facets;
+    }
+
+    /**
+     * Moves a search result into the shared result cache.
+     *
+     * @return a private view of the shared result
+     */
+    private IPidList shareResult( long generation, Query query, IPidList results ) throws IOException
+    {
+        List<String> pids = new ArrayList<String>( results.size() );
+        if( results.size() > 0 )
+        {
+            pids.addAll( results.getNextPids( results.size() ) );
+        }
+        results.dispose();
+        resultCache.put( generation, query, pids );
+        return new PidListShared( pids );
+    }
+
+    /**
+     * @return the version of the index seen by the searcher. It changes
+     * whenever a refreshed searcher sees new changes
+     */
+    private static long getSearcherGeneration( final IndexSearcher searcher )
+    {
+        return ( (DirectoryReader) searcher.getIndexReader() ).getVersion();
+    }
+
+    /**
+     * Retrieves the stored documents for a list of PIDs, for use when result
+     * fields are served directly from the index. Only documents indexed with
+     * stored copies of the return fields are included, so callers must fall
+     * back to reading the object for PIDs missing from the returned map.
+     *
+     * @param pids the PIDs to retrieve stored documents for
+     * @return map from PID to stored document
+     * @throws IOException if the index could not be read
+     */
+    @Override
+    Map<String, Document> getStoredDocuments( final Collection<String> pids ) throws IOException
+    {
+        Map<String, Document> documents = new HashMap<String, Document>();
+        List<String> uniquePids = new ArrayList<String>( new LinkedHashSet<String>( pids ) );
+        refreshSearcher();
+        IndexSearcher localSearcher = searchManager.acquire();
+        try
+        {
+            // One query per page of PIDs, split only if the page has more PIDs than a BooleanQuery allows clauses
+            int maxClauses = BooleanQuery.getMaxClauseCount();
+            for( int start = 0; start < uniquePids.size(); start += maxClauses )
+            {
+                List<String> chunk = uniquePids.subList( start, Math.min( start + maxClauses, uniquePids.size() ) );
+                BooleanQuery query = new BooleanQuery( true );
+                for( String pid : chunk )
+                {
+                    query.add( new TermQuery( new Term( FedoraFieldName.PID.toString(), pid ) ), Occur.SHOULD );
+                }
+                TopDocs hits = localSearcher.search( query, chunk.size() );
+                for( ScoreDoc hit : hits.scoreDocs )
+                {
+                    Document document = localSearcher.doc( hit.doc );
+                    String pid = document.get( FedoraFieldName.PID.toString() );
+                    if( document.get( RETURN_FIELDS_STORED ) == null )
+                    {
+                        log.debug( "Index document for {} has no stored return fields", pid );
+                        continue;
+                    }
+                    documents.put( pid, document );
+                }
+            }
+            log.debug( "Found stored documents for {} of {} PIDs", documents.size(), uniquePids.size() );
+        }
+        finally
+        {
+            searchManager.release( localSearcher );
+        }
+        return documents;
+    }
+
+    /**
+     * Checks whether a document for the given PID is in the index, using a
+     * direct term lookup.
+     *
+     * @param pid the PID to look up
+     * @return true if a live document exists for the PID
+     * @throws IOException if the index could not be read
+     */
+    @Override
+    boolean pidExists( final String pid ) throws IOException
+    {
+        waitForLatestWrites();
+        IndexSearcher localSearcher = searchManager.acquire();
+        try
+        {
+            TopDocs hits = localSearcher.search( new TermQuery( new Term( FedoraFieldName.PID.toString(), pid ) ), 1 );
+            log.trace( "Found {} documents for {}", hits.totalHits, pid );
+            return hits.totalHits > 0;
+        }
+        finally
+        {
+            searchManager.release( localSearcher );
+        }
+    }
+
+    /**
+     * Returns an iterator streaming the PIDs of all documents in the index.
+     * The iterator holds a searcher until it is exhausted or closed.
+     *
+     * @return iterator over all PIDs in the index
+     * @throws IOException if the index could not be read
+     */
+    @Override
+    PidIterator pidIterator() throws IOException
+    {
+        return new PidIterator( Collections.singletonList( getRefreshedSearcherManager() ) );
+    }
+
+    /**
+     * @return the searcher manager of the index, refreshed so the searchers
+     * it hands out see all writes, unless a background refresher does it
+     */
+    SearcherManager getRefreshedSearcherManager() throws IOException
+    {
+        refreshSearcher();
+        return searchManager;
+    }
+
+    @Override
+    public int findHighestId(String namespace) throws IOException {
+        TermQuery luceneQuery = new TermQuery(new Term(PID_NAMESPACE, namespace));
+        waitForLatestWrites();
+        IndexSearcher localSearcher = searchManager.acquire();
+        try {
+            log.debug("Query: {}", luceneQuery.toString());
+            TopFieldDocs search = localSearcher.search(luceneQuery, 1, new Sort(new SortField(PID_INT, SortField.Type.INT, true)));
+
+            if (search.scoreDocs.length > 0) {
+                IndexReader localReader = localSearcher.getIndexReader();
+                Document document = localReader.document( search.scoreDocs[0].doc );
                 IndexableField identifer = document.getField(PID_INT);
                 if (identifer != null) {
                     return identifer.numericValue().intValue();
@@ -668,44 +1953,59 @@ public final class LuceneFieldIndex
      */
     IPidList getAll() throws IOException
     {
-        IPidList results = null;
-
-        searchManager.maybeRefreshBlocking();
+        refreshSearcher();
         IndexSearcher localSearcher = searchManager.acquire();
+        try
+        {
+            return getAll( localSearcher );
+        }
+        finally
+        {
+            searchManager.release( localSearcher );
+        }
+    }
+
+    private IPidList getAll( final IndexSearcher localSearcher ) throws IOException
+    {
+        IPidList results = null;
         IndexReader localReader = localSearcher.getIndexReader();
 
-        try
+        PidCollector pidCollector = new PidCollector( pidCollectorMaxInMemory, pidCollectorTmpDir, pidCollectorCompactFiles );
+
+        for ( AtomicReaderContext context : localReader.getContext().leaves())
         {
-            PidCollector pidCollector = new PidCollector( pidCollectorMaxInMemory, pidCollectorTmpDir );
+            AtomicReader subReader = context.reader();
+            pidCollector.setNextReader( context );
+            Bits liveDocs = subReader.getLiveDocs();
 
-            for ( AtomicReaderContext context : localReader.getContext().leaves())
+            int numDocs = subReader.numDocs();
+            int numDelDocs = subReader.numDeletedDocs();
+            log.debug( "getAll, reader has {} documents, {} deleted documents", numDocs, numDelDocs );
+            for( int i = 0; i < numDocs + numDelDocs ; i++ )
             {
-                AtomicReader subReader = context.reader();
-                pidCollector.setNextReader( context );
-                Bits liveDocs = subReader.getLiveDocs();
-
-                int numDocs = subReader.numDocs();
-                int numDelDocs = subReader.numDeletedDocs();
-                log.debug( "getAll, reader has {} documents, {} deleted documents", numDocs, numDelDocs );
-                for( int i = 0; i < numDocs + numDelDocs ; i++ )
+                if (liveDocs != null && !liveDocs.get(i))
                 {
-                    if (liveDocs != null && !liveDocs.get(i))
-                    {
-                        // Skip deleted documents
-                        log.trace( "Skipping deleted document {}", i );
-                        continue;
-                    }
-                    log.trace( "Getting doc id {}", i );
-                    pidCollector.collect( i );
+                    // Skip deleted documents
+                    log.trace( "Skipping deleted document {}", i );
+                    continue;
                 }
+                log.trace( "Getting doc id {}", i );
+                pidCollector.collect( i );
             }
-            results = pidCollector.getResults();
         }
-        finally
+        results = pidCollector.getResults();
+        countStoredFieldLookups( pidCollector );
+        return results;
+    }
+
+    private void countStoredFieldLookups( PidCollector pidCollector )
+    {
+        long lookups = pidCollector.getStoredFieldLookups();
+        if ( lookups > 0 )
         {
-            searchManager.release( localSearcher );
+            storedFieldPidLookups.addAndGet( lookups );
+            log.debug( "{} PIDs were read from stored documents without PID doc values", lookups );
         }
-        return results;
     }
 
     /**
@@ -715,12 +2015,42 @@ public final class LuceneFieldIndex
      *
      * @throws IOException if any of the shutdown operations fails
      */
+    @Override
     void closeIndex() throws IOException
     {
+        if ( isBulkLoading() )
+        {
+            log.warn( "Closing index while bulk loading, rolling back the documents loaded so far" );
+            abortBulkLoad();
+        }
+        if ( searchExecutor != null )
+        {
+            searchExecutor.shutdownNow();
+        }
+        if ( refresher != null )
+        {
+            refresher.close();
+        }
+        if ( backup != null )
+        {
+            backup.close();
+        }
         searchManager.close();
         if ( wal != null )
         {
-            wal.shutdown();
+            try
+            {
+                wal.shutdown();
+            }
+            catch ( AlreadyClosedException ex )
+            {
+                if ( !rolledBack )
+                {
+                    throw ex;
+                }
+                // The write ahead log was flushed when the bulk load started, and bulk loads bypass it
+                log.info( "Write ahead log not committed, since the index writer was rolled back" );
+            }
         }
 
         if( null != this.writer )
@@ -740,6 +2070,10 @@ public final class LuceneFieldIndex
             server.unregisterMBean( indexMonitorObjectName );
             server.unregisterMBean( fieldIndexObjectName );
             server.unregisterMBean( mergePolicyObjectName );
+            if ( backupObjectName != null )
+            {
+                server.unregisterMBean( backupObjectName );
+            }
         }
         catch ( JMException ex )
         {
@@ -748,11 +2082,63 @@ public final class LuceneFieldIndex
         }
     }
     
+    @Override
     void flush() throws IOException {
         wal.flush();
     }
 
+    /**
+     * Starts an online backup of the index to the given directory, see
+     * {@link IndexBackup}.
+     *
+     * @throws IllegalStateException if the index does not support online backups, a backup is already
+     *         running, or the index is being bulk loaded
+     */
+    void startBackup( File directory ) throws IOException
+    {
+        if ( backup == null )
+        {
+            throw new IllegalStateException( "Online backup requires the index writer to use a SnapshotDeletionPolicy" );
+        }
+        if ( isBulkLoading() )
+        {
+            throw new IllegalStateException( "Cannot take a backup while the index is being bulk loaded" );
+        }
+        backup.start( directory );
+    }
+
+    /**
+     * Waits for a running backup to finish.
+     */
+    void awaitBackup() throws InterruptedIOException
+    {
+        if ( backup != null )
+        {
+            backup.awaitCompletion();
+        }
+    }
+
     private Query constructQuery( final FieldSearchQuery fsq ) throws ParseException
+    {
+        if( planCache == null )
+        {
+            return buildQuery( fsq );
+        }
+        Object key = QueryPlanCache.getKey( fsq );
+        Query query = planCache.get( key );
+        if( query == null )
+        {
+            query = buildQuery( fsq );
+            planCache.put( key, query );
+        }
+        else
+        {
+            log.debug( "Using cached query {}", query );
+        }
+        return query;
+    }
+
+    private Query buildQuery( final FieldSearchQuery fsq ) throws ParseException
     {
         BooleanQuery booleanQuery = new BooleanQuery();
         if( fsq.getType() == FieldSearchQuery.CONDITIONS_TYPE && fsq.getConditions().isEmpty() )
@@ -788,7 +2174,7 @@ public final class LuceneFieldIndex
                 log.debug( debugQuery );
                 try
                 {
-                    booleanQuery.add( buildQueryFromClause( searchField.toLowerCase(), operator, value ), Occur.MUST );
+                    booleanQuery.add( cacheCommonClause( buildQueryFromClause( searchField.toLowerCase(), operator, value ) ), Occur.MUST );
                 } catch( IllegalArgumentException ex )
                 {
                     log.warn( "Could not add query {}: {}", debugQuery, ex.getMessage() );
@@ -823,6 +2209,24 @@ public final class LuceneFieldIndex
         return booleanQuery;
     }
 
+    /**
+     * Replaces exact matches on the object state, which are shared by many
+     * queries, with a cached filter. The filters hold a bit per document, so
+     * fields with many values, like the PID namespace, are not cached.
+     */
+    private Query cacheCommonClause( final Query clause )
+    {
+        if( planCache != null && clause instanceof TermQuery )
+        {
+            String field = ( (TermQuery) clause ).getTerm().field();
+            if( field.equals( FedoraFieldName.STATE.equalsFieldName() ) )
+            {
+                return planCache.getCachedTermQuery( (TermQuery) clause );
+            }
+        }
+        return clause;
+    }
+
     /**
      * Rules for interpreting a FieldSearchQuery (fsq):
      *
@@ -849,13 +2253,13 @@ public final class LuceneFieldIndex
             if( value.contains( "*:" ) )
             {
                 log.trace( "value '{}' matches .contains( \"*:\" )", value );
-                String splitPid = value.split( ":" )[1];
+                String splitPid = value.substring( value.indexOf( ':' ) + 1 );
                 return new TermQuery( new Term( PID_IDENTIFIER, splitPid ) );
             }
             else if( value.contains( ":*" ) )
             {
                 log.trace( "value '{}' matches .contains( \":*\" )", value );
-                String splitPid = value.split( ":" )[0];
+                String splitPid = value.substring( 0, value.indexOf( ':' ) );
                 return new TermQuery( new Term( PID_NAMESPACE, splitPid ) );
             }
             else if( value.contains( "*" ) )
@@ -1026,8 +2430,8 @@ public final class LuceneFieldIndex
             log.error( error );
             throw new IllegalArgumentException( error );
         }
-        SimpleDateFormat formatter = new SimpleDateFormat();
-        formatter.setTimeZone( TimeZone.getTimeZone( "UTC" ) );
+        // The default pattern of SimpleDateFormat is used if no pattern matches
+        String pattern = null;
         int length = dateString.length();
         if( dateString.startsWith( "-" ) )
         {
@@ -1041,11 +2445,11 @@ public final class LuceneFieldIndex
 
             if( length == 11 )
             {
-                formatter.applyPattern( "yyyy-MM-dd'Z'" );
+                pattern = "yyyy-MM-dd'Z'";
             }
             else if( length == 20 )
             {
-                formatter.applyPattern( "yyyy-MM-dd'T'HH:mm:ss'Z'" );
+                pattern = "yyyy-MM-dd'T'HH:mm:ss'Z'";
             }
             else if( length > 21 && length < 24 )
             {
@@ -1060,22 +2464,22 @@ public final class LuceneFieldIndex
                 }
                 sb.append( "Z" );
                 dateString = sb.toString();
-                formatter.applyPattern( "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'" );
+                pattern = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'";
             }
             else if( length == 24 )
             {
-                formatter.applyPattern( "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'" );
+                pattern = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'";
             }
         }
         else
         {
             if( length == 10 )
             {
-                formatter.applyPattern( "yyyy-MM-dd" );
+                pattern = "yyyy-MM-dd";
             }
             else if( length == 19 )
             {
-                formatter.applyPattern( "yyyy-MM-dd'T'HH:mm:ss" );
+                pattern = "yyyy-MM-dd'T'HH:mm:ss";
             }
             else if( length > 20 && length < 23 )
             {
@@ -1089,21 +2493,37 @@ public final class LuceneFieldIndex
                     sb.append( "0" );
                 }
                 dateString = sb.toString();
-                formatter.applyPattern( "yyyy-MM-dd'T'HH:mm:ss.SSS" );
+                pattern = "yyyy-MM-dd'T'HH:mm:ss.SSS";
             }
             else if( length == 23 )
             {
-                formatter.applyPattern( "yyyy-MM-dd'T'HH:mm:ss.SSS" );
+                pattern = "yyyy-MM-dd'T'HH:mm:ss.SSS";
             }
             else if( dateString.endsWith( "GMT" ) || dateString.endsWith( "UTC" ) )
             {
-                formatter.applyPattern( "EEE, dd MMMM yyyyy HH:mm:ss z" );
+                pattern = "EEE, dd MMMM yyyyy HH:mm:ss z";
             }
         }
+        SimpleDateFormat formatter = getQueryDateFormat( pattern );
+        // Parsing a time zone name may change the zone of the format
+        formatter.setTimeZone( UTC );
         return formatter.parse( dateString ).getTime();
     }
 
 
+    private static SimpleDateFormat getQueryDateFormat( final String pattern )
+    {
+        Map<String, SimpleDateFormat> formats = queryDateFormats.get();
+        SimpleDateFormat format = formats.get( pattern );
+        if( format == null )
+        {
+            format = ( pattern == null ) ? new SimpleDateFormat() : new SimpleDateFormat( pattern );
+            formats.put( pattern, format );
+        }
+        return format;
+    }
+
+
     private boolean isSpecialCaseQuery( final String idxField, final String value )
     {
         if( null == idxField
@@ -5,10 +5,18 @@
 package dk.dbc.opensearch.fedora.search;
 
 import org.fcrepo.server.management.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -20,11 +28,25 @@ import org.fcrepo.server.Server;
 import org.fcrepo.server.errors.ModuleInitializationException;
 import org.fcrepo.server.errors.ServerException;
 import org.fcrepo.server.search.FieldSearch;
+import org.fcrepo.server.storage.DOManager;
+import org.fcrepo.server.storage.DefaultDOManager;
 
 
 /**
- * A PIDGenerator that uses a database to keep track of the highest pid it knows
- * about for each namespace.
+ * A PIDGenerator that uses the field search index to find the highest pid
+ * in each namespace.
+ * <p>
+ * Each namespace has its own counter, seeded once from the index the first
+ * time the namespace is used. Ranges of pids are handed out with a single
+ * atomic update of the counter, so concurrent callers do not block each
+ * other.
+ * <p>
+ * If the highWaterMarkFile parameter is set, the generator persists a
+ * high-water mark for each namespace in that file, reserving
+ * highWaterMarkBlockSize ids ahead of the counter at a time. A restarted
+ * generator continues from the high-water mark, so pids handed out before
+ * the restart are never generated again, even if the objects were never
+ * ingested.
  *
  * @author Chris Wilper
  */
@@ -33,26 +55,37 @@ public class LucenePIDGenerator
         implements PIDGenerator {
 
     private static final Logger logger =
-            LoggerFactory.getLogger(DBPIDGenerator.class);
+            LoggerFactory.getLogger(LucenePIDGenerator.class);
+
+    private static final long DEFAULT_HIGH_WATER_MARK_BLOCK_SIZE = 1000;
 
-    private final HashMap m_highestID;
+    /** Time to wait for queued FieldSearch updates before seeding a namespace */
+    private static final long SEED_INDEX_UPDATES_TIMEOUT_MS = 60000;
 
-    private PID m_lastPID;
+    private final ConcurrentMap<String, NamespaceCounter> m_counters;
+
+    private volatile PID m_lastPID;
 
     protected FieldSearch m_fieldSearch;
 
+    /** File holding the high-water mark of each namespace, or null if they are not persisted */
+    private File m_highWaterMarkFile;
+
+    private long m_highWaterMarkBlockSize = DEFAULT_HIGH_WATER_MARK_BLOCK_SIZE;
+
+    /** High-water marks by namespace, as written to m_highWaterMarkFile */
+    private final Properties m_highWaterMarks;
+
     /**
-     * Initialize the DBPIDGenerator. This initializes the memory hash with
-     * values in the database, if any. If oldPidGenDir is not null, the
-     * constructor will then call neverGeneratePID on the most recently
-     * generated PID as reported by the log files in that directory. This is to
-     * support automatic upgrade of this functionality from versions of Fedora
-     * prior to 1.2.
+     * Initialize the LucenePIDGenerator. Counters are seeded from the field
+     * search index and the high-water mark file when a namespace is first
+     * used.
      */
     public LucenePIDGenerator(Map moduleParameters, Server server, String role)
             throws ModuleInitializationException {
         super(moduleParameters, server, role);
-        m_highestID = new HashMap();
+        m_counters = new ConcurrentHashMap<String, NamespaceCounter>();
+        m_highWaterMarks = new Properties();
     }
 
     @Override
@@ -60,31 +93,72 @@ public class LucenePIDGenerator
         m_fieldSearch =
                 (FieldSearch) getServer()
                         .getModule("org.fcrepo.server.search.FieldSearch");
+
+        String blockSize = getParameter("highWaterMarkBlockSize");
+        if (blockSize != null && !blockSize.equals("")) {
+            try {
+                m_highWaterMarkBlockSize = Long.parseLong(blockSize);
+            } catch (NumberFormatException e) {
+                throw new ModuleInitializationException(
+                        "highWaterMarkBlockSize must be a number, was " + blockSize, getRole(), e);
+            }
+            if (m_highWaterMarkBlockSize < 1) {
+                throw new ModuleInitializationException(
+                        "highWaterMarkBlockSize must be positive, was " + blockSize, getRole());
+            }
+        }
+
+        String highWaterMarkFile = getParameter("highWaterMarkFile");
+        if (highWaterMarkFile != null && !highWaterMarkFile.equals("")) {
+            // a relative path is resolved against FEDORA_HOME, not the working directory
+            m_highWaterMarkFile = new File(getParameter("highWaterMarkFile", true));
+            try {
+                loadHighWaterMarks();
+            } catch (IOException e) {
+                throw new ModuleInitializationException(
+                        "Unable to read PID high-water marks from " + m_highWaterMarkFile, getRole(), e);
+            }
+            logger.info("Using PID high-water mark file " + m_highWaterMarkFile
+                    + " with block size " + m_highWaterMarkBlockSize);
+        }
     }
 
     /**
      * Generate a new pid that is guaranteed to be unique, within the given
      * namespace.
      */
-    public synchronized PID generatePID(String namespace) throws IOException {
-        int i = getHighestID(namespace);
-        i++;
+    public PID generatePID(String namespace) throws IOException {
+        return generatePIDs(namespace, 1)[0];
+    }
+
+    /**
+     * Generate a number of new pids that are guaranteed to be unique, within
+     * the given namespace. The pids are a contiguous range of ids, reserved
+     * in one step.
+     */
+    public PID[] generatePIDs(String namespace, int count) throws IOException {
+        if (count < 1) {
+            throw new IllegalArgumentException("count must be positive, was " + count);
+        }
+        long first = getCounter(namespace).allocate(count);
 
+        PID[] pids = new PID[count];
         try {
-            m_lastPID = new PID(namespace + ":" + i);
+            for (int i = 0; i < count; i++) {
+                pids[i] = new PID(namespace + ":" + (first + i));
+            }
         } catch (MalformedPIDException e) {
             throw new IOException(e);
         }
 
-        setHighestID(namespace, i);
-
-        return m_lastPID;
+        m_lastPID = pids[count - 1];
+        return pids;
     }
 
     /**
      * Get the last pid that was generated.
      */
-    public synchronized PID getLastPID() {
+    public PID getLastPID() {
         return m_lastPID;
     }
 
@@ -96,12 +170,8 @@ public class LucenePIDGenerator
         try {
             PID p = new PID(pid);
             String ns = p.getNamespaceId();
-            int id = Integer.parseInt(p.getObjectId());
-            synchronized (m_highestID) {
-                if (id > getHighestID(ns)) {
-                    setHighestID(ns, id);
-                }
-            }
+            long id = Long.parseLong(p.getObjectId());
+            getCounter(ns).raise(id);
         } catch (MalformedPIDException mpe) {
             throw new IOException(mpe);
         } catch (NumberFormatException nfe) {
@@ -111,15 +181,62 @@ public class LucenePIDGenerator
     }
 
     /**
-     * Gets the highest id ever used for the given namespace.
+     * Gets the counter for the given namespace, seeding it the first time
+     * the namespace is used.
+     */
+    private NamespaceCounter getCounter(String namespace) throws IOException {
+        NamespaceCounter counter = m_counters.get(namespace);
+        if (counter == null) {
+            // Seeding is rare, so it is done under a lock to search the index only once per namespace
+            synchronized (m_counters) {
+                counter = m_counters.get(namespace);
+                if (counter == null) {
+                    counter = seedCounter(namespace);
+                    m_counters.put(namespace, counter);
+                }
+            }
+        }
+        return counter;
+    }
+
+    private NamespaceCounter seedCounter(String namespace) throws IOException {
+        awaitIndexUpdates(namespace);
+        long highestID = findHighestPid(namespace);
+        long reservedID = 0;
+        String highWaterMark = m_highWaterMarks.getProperty(namespace);
+        if (highWaterMark != null) {
+            try {
+                reservedID = Long.parseLong(highWaterMark);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid high-water mark for namespace " + namespace + ": " + highWaterMark, e);
+            }
+            highestID = Math.max(highestID, reservedID);
+        }
+        logger.info("Seeding PID generator for namespace " + namespace + " with " + highestID);
+        return new NamespaceCounter(namespace, highestID, reservedID);
+    }
+
+    /**
+     * Waits for FieldSearch updates still queued by the DOManager, so
+     * objects committed, or being replayed after a crash, are seen by
+     * the index before it is searched for the highest pid.
      */
-    private int getHighestID(String namespace) {
-        Integer i = (Integer) m_highestID.get(namespace);
-        if (i == null) {
-            i = findHighestPid(namespace);
-            m_highestID.put(namespace, i);
+    private void awaitIndexUpdates(String namespace) throws IOException {
+        DOManager manager =
+                (DOManager) getServer().getModule("org.fcrepo.server.storage.DOManager");
+        if (!(manager instanceof DefaultDOManager)) {
+            return;
+        }
+        try {
+            if (!((DefaultDOManager) manager).awaitIndexUpdates(SEED_INDEX_UPDATES_TIMEOUT_MS)) {
+                throw new IOException("Timed out waiting for queued FieldSearch updates "
+                        + "before seeding namespace " + namespace);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for queued FieldSearch updates "
+                    + "before seeding namespace " + namespace);
         }
-        return i.intValue();
     }
 
     private int findHighestPid(String namespace) {
@@ -132,13 +249,103 @@ public class LucenePIDGenerator
         }
     }
 
+    private void loadHighWaterMarks() throws IOException {
+        if (!m_highWaterMarkFile.exists()) {
+            File dir = m_highWaterMarkFile.getAbsoluteFile().getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Unable to create directory " + dir);
+            }
+            return;
+        }
+        FileInputStream in = new FileInputStream(m_highWaterMarkFile);
+        try {
+            m_highWaterMarks.load(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the high-water marks of all namespaces, with the new mark for
+     * the given namespace. The file is replaced in one rename, so a crash
+     * leaves either the old or the new marks.
+     */
+    private void persistHighWaterMark(String namespace, long mark) throws IOException {
+        synchronized (m_highWaterMarks) {
+            m_highWaterMarks.setProperty(namespace, Long.toString(mark));
+            File tmpFile = new File(m_highWaterMarkFile.getPath() + ".tmp");
+            FileOutputStream out = new FileOutputStream(tmpFile);
+            try {
+                m_highWaterMarks.store(out, "Highest PID id reserved for each namespace");
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!tmpFile.renameTo(m_highWaterMarkFile)) {
+                throw new IOException("Unable to replace " + m_highWaterMarkFile + " with " + tmpFile);
+            }
+        }
+    }
 
     /**
-     * Sets the highest id ever used for the given namespace.
+     * The ids handed out in one namespace.
      */
-    private void setHighestID(String namespace, int id) throws IOException {
-        logger.debug("Setting highest ID for " + namespace + " to " + id);
-        m_highestID.put(namespace, new Integer(id));
+    private final class NamespaceCounter {
+
+        private final String m_namespace;
+
+        /** Highest id generated or never to be generated */
+        private final AtomicLong m_highestID;
+
+        /** Highest id covered by the persisted high-water mark */
+        private volatile long m_reservedID;
+
+        NamespaceCounter(String namespace, long highestID, long reservedID) {
+            m_namespace = namespace;
+            m_highestID = new AtomicLong(highestID);
+            m_reservedID = reservedID;
+        }
+
+        /**
+         * Reserves count ids.
+         *
+         * @return the first of the reserved ids
+         */
+        long allocate(int count) throws IOException {
+            long last = m_highestID.addAndGet(count);
+            ensureReserved(last);
+            return last - count + 1;
+        }
+
+        /**
+         * Makes sure the given id is never allocated.
+         */
+        void raise(long id) throws IOException {
+            long current = m_highestID.get();
+            while (id > current && !m_highestID.compareAndSet(current, id)) {
+                current = m_highestID.get();
+            }
+            ensureReserved(id);
+        }
+
+        /**
+         * Makes sure the persisted high-water mark covers the given id
+         * before it is handed out. The mark is moved a block ahead, so only
+         * one in every block of ids waits for the file to be written.
+         */
+        private void ensureReserved(long id) throws IOException {
+            if (m_highWaterMarkFile == null || id <= m_reservedID) {
+                return;
+            }
+            synchronized (this) {
+                if (id > m_reservedID) {
+                    long mark = id + m_highWaterMarkBlockSize;
+                    logger.debug("Setting high-water mark for " + m_namespace + " to " + mark);
+                    persistHighWaterMark(m_namespace, mark);
+                    m_reservedID = mark;
+                }
+            }
+        }
     }
 
 }
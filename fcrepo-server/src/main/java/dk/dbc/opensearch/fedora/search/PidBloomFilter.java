@@ -0,0 +1,136 @@
+/*
+ * This file is part of opensearch.
+ * Copyright (c) 2012, Dansk Bibliotekscenter a/s,
+ * Tempovej 7-11, DK-2750 Ballerup, Denmark. CVR: 15149043
+ *
+ * opensearch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * opensearch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with opensearch. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dk.dbc.opensearch.fedora.search;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe Bloom filter over PIDs, used to answer existence checks for
+ * PIDs that have never been indexed without searching the index.
+ * <p>
+ * PIDs are never removed, so a deleted PID will still be reported as
+ * possibly present. A negative answer is always definite.
+ */
+final class PidBloomFilter
+{
+    private final static Charset ENCODING = Charset.forName( "UTF-8" );
+
+    private final AtomicLongArray bits;
+    private final long numBits;
+    private final int numHashes;
+
+    /**
+     * @param expectedPids number of PIDs the filter is sized for
+     * @param falsePositiveRate wanted false positive rate at {@code expectedPids} entries
+     */
+    PidBloomFilter( long expectedPids, double falsePositiveRate )
+    {
+        if( expectedPids < 1 )
+        {
+            throw new IllegalArgumentException( String.format( "expectedPids must be positive: %d", expectedPids ) );
+        }
+        if( falsePositiveRate <= 0.0 || falsePositiveRate >= 1.0 )
+        {
+            throw new IllegalArgumentException( String.format( "falsePositiveRate must be between 0 and 1: %f", falsePositiveRate ) );
+        }
+        long optimalBits = (long) Math.ceil( -expectedPids * Math.log( falsePositiveRate ) / ( Math.log( 2 ) * Math.log( 2 ) ) );
+        int words = (int) Math.min( Integer.MAX_VALUE, ( optimalBits + 63 ) / 64 );
+        this.bits = new AtomicLongArray( words );
+        this.numBits = words * 64L;
+        this.numHashes = Math.max( 1, (int) Math.round( (double) numBits / expectedPids * Math.log( 2 ) ) );
+    }
+
+    void add( String pid )
+    {
+        long hash = hash( pid );
+        int h1 = (int) hash;
+        int h2 = (int) ( hash >>> 32 );
+        for( int i = 1; i <= numHashes; i++ )
+        {
+            long bit = index( h1 + i * h2 );
+            int word = (int) ( bit >>> 6 );
+            long mask = 1L << bit;
+            long current;
+            do
+            {
+                current = bits.get( word );
+                if( ( current & mask ) != 0 )
+                {
+                    break;
+                }
+            }
+            while( !bits.compareAndSet( word, current, current | mask ) );
+        }
+    }
+
+    /**
+     * @return false if the PID has definitely never been added, true if it may have been
+     */
+    boolean mightContain( String pid )
+    {
+        long hash = hash( pid );
+        int h1 = (int) hash;
+        int h2 = (int) ( hash >>> 32 );
+        for( int i = 1; i <= numHashes; i++ )
+        {
+            long bit = index( h1 + i * h2 );
+            if( ( bits.get( (int) ( bit >>> 6 ) ) & ( 1L << bit ) ) == 0 )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    long getNumBits()
+    {
+        return numBits;
+    }
+
+    int getNumHashes()
+    {
+        return numHashes;
+    }
+
+    private long index( int combinedHash )
+    {
+        long positive = combinedHash & 0xffffffffL;
+        return positive % numBits;
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the UTF-8 encoded PID, with a final avalanche
+     * step so both halves are usable as independent hashes.
+     */
+    private static long hash( String pid )
+    {
+        long hash = 0xcbf29ce484222325L;
+        for( byte b : pid.getBytes( ENCODING ) )
+        {
+            hash ^= ( b & 0xff );
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -20,21 +20,35 @@
 package dk.dbc.opensearch.fedora.search;
 
 import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.DocValues;
 import org.apache.lucene.index.IndexableField;
-import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.Collector;
 import org.apache.lucene.search.Scorer;
+import org.apache.lucene.util.BytesRef;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.apache.lucene.index.AtomicReaderContext;
 
 /**
  * This class is an implementation of the
  * {@link org.apache.lucene.search.Collector} abstract class for providing
  * the entire collection of search result PIDs unsorted.
+ * <p>
+ * PIDs are read column-wise from the per-segment PID doc values. Segments
+ * (or documents) indexed before the doc values field was introduced have no
+ * value there, and for those the PID is read from the stored document
+ * instead. Rebuilding the index removes the need for that fallback.
+ * <p>
+ * A collector can be given a cancellation flag and a timeout with
+ * {@link #setCancellation(AtomicBoolean, long, long)}, making it abort the
+ * search with an {@link InterruptedIOException}.
  */
 public class PidCollector extends Collector
 {
@@ -42,18 +56,69 @@ public class PidCollector extends Collector
 
     private IPidList pidList;
     private long pidsCollected = 0;
-    private IndexReader currentReader = null;
+    private long storedFieldLookups = 0;
+    private AtomicReader currentReader = null;
+    private DocValues.Source currentPidValues = null;
+    private final BytesRef scratch = new BytesRef();
     private final static String pidFieldName = "pid";
     private final int maxInMemory;
     private final File tmpDir;
+    private final boolean compactFiles;
+
+    /** Number of documents collected between checks for cancellation */
+    private final static int CANCELLATION_CHECK_INTERVAL = 1024;
+    private AtomicBoolean cancelled = null;
+    private long startNs = 0;
+    private long timeoutNs = 0;
+    private int docsSinceCancellationCheck = 0;
 
     public PidCollector( int maxInMemory, File tmpDir )
+    {
+        this( maxInMemory, tmpDir, false );
+    }
+
+    /**
+     * @param maxInMemory number of PIDs to collect in memory before moving them to a file in tmpDir
+     * @param tmpDir directory for PID files
+     * @param compactFiles if true, use the compact memory-mapped {@link PidListMapped} format for PID files
+     */
+    public PidCollector( int maxInMemory, File tmpDir, boolean compactFiles )
     {
         this.maxInMemory = maxInMemory;
         this.tmpDir = tmpDir;
+        this.compactFiles = compactFiles;
         pidList = new PidListInMemory();
     }
 
+    /**
+     * Makes the collector abort the search when the flag is set, or when
+     * the timeout has passed. The collector sets the flag itself on timeout,
+     * so collectors sharing the flag abort as well.
+     *
+     * @param cancelled flag shared by the collectors of one search
+     * @param startNs start time of the search, from {@link System#nanoTime()}
+     * @param timeoutNs timeout in nanoseconds from startNs, or 0 for no timeout
+     */
+    void setCancellation( AtomicBoolean cancelled, long startNs, long timeoutNs )
+    {
+        this.cancelled = cancelled;
+        this.startNs = startNs;
+        this.timeoutNs = timeoutNs;
+    }
+
+    private void checkCancelled() throws InterruptedIOException
+    {
+        if( timeoutNs > 0 && System.nanoTime() - startNs > timeoutNs )
+        {
+            cancelled.set( true );
+            throw new InterruptedIOException( String.format( "Search exceeded timeout of %d ms", timeoutNs / 1000000 ) );
+        }
+        if( cancelled.get() )
+        {
+            throw new InterruptedIOException( "Search was cancelled" );
+        }
+    }
+
     @Override
     public void setScorer( final Scorer scorer ) throws IOException
     {
@@ -67,40 +132,141 @@ public class PidCollector extends Collector
     {
         log.trace( "Collecting docId: {}", docId );
 
-        Document doc = currentReader.document( docId );
-        if( doc == null )
+        if( cancelled != null && ++docsSinceCancellationCheck == CANCELLATION_CHECK_INTERVAL )
         {
-            log.warn( "Failed to retrieve Document for id {}", docId );
+            docsSinceCancellationCheck = 0;
+            checkCancelled();
         }
-        else
+
+        if( docId < 0 || docId >= currentReader.maxDoc() )
+        {
+            throw new IllegalArgumentException( String.format( "docId %d is out of bounds for reader with maxDoc %d",
+                    docId, currentReader.maxDoc() ) );
+        }
+
+        String pidFieldValue = null;
+        if( currentPidValues != null )
         {
-            IndexableField pidField = doc.getField( pidFieldName );
-            if( pidField == null )
+            currentPidValues.getBytes( docId, scratch );
+            if( scratch.length > 0 )
             {
-                log.warn( "Unable to retrieve PID field '{}' from the index Document", pidFieldName );
+                pidFieldValue = scratch.utf8ToString();
             }
-            else
+        }
+
+        if( pidFieldValue == null )
+        {
+            pidFieldValue = getStoredPid( docId );
+        }
+
+        if( pidFieldValue == null )
+        {
+            return;
+        }
+
+        if( pidFieldValue.isEmpty() )
+        {
+            log.warn( "Empty value for PID from field '{}' will not be in result set", pidFieldName );
+        }
+        else
+        {
+            log.debug( "Adding PID '{}' to result set", pidFieldValue );
+            addPid( pidFieldValue );
+        }
+    }
+
+    private void addPid( final String pid ) throws IOException
+    {
+        if( pidsCollected == maxInMemory )
+        {
+            File pidFile = File.createTempFile( "pids", ".bin", tmpDir );
+            IPidList tmpPidList = compactFiles ? new PidListMapped( pidFile, pidList ) : new PidListInFile( pidFile, pidList );
+            pidList.dispose();
+            pidList = tmpPidList;
+        }
+
+        pidList.addPid( pid );
+        pidsCollected++;
+    }
+
+    /**
+     * Appends the results of another collector to the results of this one,
+     * and disposes the results of the other collector. Used to merge the
+     * results of collectors run on separate segments.
+     *
+     * @param other collector to append the results of
+     */
+    void addResults( final PidCollector other ) throws IOException
+    {
+        IPidList otherPids = other.getResults();
+        try
+        {
+            int remaining = otherPids.size();
+            while( remaining > 0 )
             {
-                String pidFieldValue = pidField.stringValue();
-                if( pidFieldValue.isEmpty() )
+                Collection< String > pids = otherPids.getNextPids( Math.min( remaining, 1000 ) );
+                if( pids.isEmpty() )
                 {
-                    log.warn( "Empty value for PID from field '{}' will not be in result set", pidFieldName );
+                    break;
                 }
-                else
+                for( String pid : pids )
                 {
-                    if( pidsCollected == maxInMemory )
-                    {
-                        IPidList tmpPidList = new PidListInFile( File.createTempFile( "pids", ".bin", tmpDir ), pidList );
-                        pidList.dispose();
-                        pidList = tmpPidList;
-                    }
-
-                    log.debug( "Adding PID '{}' to result set", pidFieldValue );
-                    pidList.addPid( pidFieldValue );
-                    pidsCollected++;
+                    addPid( pid );
                 }
+                remaining -= pids.size();
             }
         }
+        finally
+        {
+            otherPids.dispose();
+        }
+        storedFieldLookups += other.storedFieldLookups;
+    }
+
+    /**
+     * Disposes the collected results, for searches that fail before
+     * {@link #getResults()} is handed on.
+     */
+    void dispose()
+    {
+        pidList.dispose();
+    }
+
+    /**
+     * Reads the PID from the stored document. Only used for documents that
+     * were indexed without PID doc values.
+     *
+     * @param docId segment relative document id
+     * @return the stored PID or null if it could not be retrieved
+     */
+    private String getStoredPid( final int docId ) throws IOException
+    {
+        storedFieldLookups++;
+        Document doc = currentReader.document( docId );
+        if( doc == null )
+        {
+            log.warn( "Failed to retrieve Document for id {}", docId );
+            return null;
+        }
+
+        IndexableField pidField = doc.getField( pidFieldName );
+        if( pidField == null )
+        {
+            log.warn( "Unable to retrieve PID field '{}' from the index Document", pidFieldName );
+            return null;
+        }
+        return pidField.stringValue();
+    }
+
+    /**
+     * Gets the number of PIDs that had to be read from stored documents
+     * because the document had no PID doc value
+     *
+     * @return number of stored field lookups
+     */
+    public long getStoredFieldLookups()
+    {
+        return storedFieldLookups;
     }
 
     /**
@@ -117,7 +283,18 @@ public class PidCollector extends Collector
     @Override
     public void setNextReader(AtomicReaderContext context) throws IOException
     {
+        if( cancelled != null )
+        {
+            checkCancelled();
+        }
         currentReader = context.reader();
+        DocValues pidValues = currentReader.docValues( LuceneFieldIndex.PID_DOCVALUES );
+        // Read from the index files rather than loading the whole PID column of the segment into the heap
+        currentPidValues = ( pidValues == null ) ? null : pidValues.getDirectSource();
+        if( currentPidValues == null )
+        {
+            log.debug( "Segment {} has no PID doc values, reading PIDs from stored documents", context.ord );
+        }
     }
 
     @Override
@@ -0,0 +1,199 @@
+/*
+ * This file is part of opensearch.
+ * Copyright (c) 2012, Dansk Bibliotekscenter a/s,
+ * Tempovej 7-11, DK-2750 Ballerup, Denmark. CVR: 15149043
+ *
+ * opensearch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * opensearch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with opensearch. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dk.dbc.opensearch.fedora.search;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Iterates the PIDs of all live documents in a point-in-time view of the
+ * index, segment by segment, without collecting them in a list. A sharded
+ * index is iterated one shard after the other.
+ * <p>
+ * The searchers are acquired on construction and released when the
+ * iterator is exhausted or closed. Callers that stop iterating early must
+ * call {@link #close()}.
+ */
+final class PidIterator implements Iterator<String>, Closeable
+{
+    private static final Logger log = LoggerFactory.getLogger( PidIterator.class );
+
+    private final static String pidFieldName = "pid";
+
+    private final List<SearcherManager> searchManagers;
+    /** Searchers acquired from searchManagers, in the same order. Null once released */
+    private List<IndexSearcher> searchers;
+    private final List<AtomicReaderContext> leaves = new ArrayList<AtomicReaderContext>();
+    private final BytesRef scratch = new BytesRef();
+
+    private int leaf = -1;
+    private AtomicReader reader = null;
+    private Bits liveDocs = null;
+    private DocValues.Source pidValues = null;
+    private int docId = 0;
+    private int maxDoc = 0;
+
+    private String nextPid = null;
+
+    /**
+     * @param searchManagers the searcher managers of the index, one for each shard
+     */
+    PidIterator( List<SearcherManager> searchManagers ) throws IOException
+    {
+        this.searchManagers = searchManagers;
+        this.searchers = new ArrayList<IndexSearcher>( searchManagers.size() );
+        try
+        {
+            for( SearcherManager searchManager : searchManagers )
+            {
+                IndexSearcher searcher = searchManager.acquire();
+                searchers.add( searcher );
+                leaves.addAll( searcher.getIndexReader().getContext().leaves() );
+            }
+            advance();
+        }
+        catch( IOException ex )
+        {
+            close();
+            throw ex;
+        }
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        return nextPid != null;
+    }
+
+    @Override
+    public String next()
+    {
+        if( nextPid == null )
+        {
+            throw new NoSuchElementException( "No more PIDs in index" );
+        }
+        String pid = nextPid;
+        try
+        {
+            advance();
+        }
+        catch( IOException ex )
+        {
+            close();
+            throw new IllegalStateException( "Unable to read next PID from index", ex );
+        }
+        return pid;
+    }
+
+    @Override
+    public void remove()
+    {
+        throw new UnsupportedOperationException( "PIDs cannot be removed through the iterator" );
+    }
+
+    /**
+     * Releases the searchers held by this iterator. Safe to call more than once.
+     */
+    @Override
+    public void close()
+    {
+        nextPid = null;
+        if( searchers != null )
+        {
+            for( int i = 0; i < searchers.size(); i++ )
+            {
+                try
+                {
+                    searchManagers.get( i ).release( searchers.get( i ) );
+                }
+                catch( IOException ex )
+                {
+                    log.warn( "Failed to release searcher", ex );
+                }
+            }
+            searchers = null;
+        }
+    }
+
+    private void advance() throws IOException
+    {
+        while( true )
+        {
+            if( docId >= maxDoc )
+            {
+                if( ++leaf >= leaves.size() )
+                {
+                    log.debug( "Iterated all {} segments", leaves.size() );
+                    close();
+                    return;
+                }
+                reader = leaves.get( leaf ).reader();
+                liveDocs = reader.getLiveDocs();
+                DocValues values = reader.docValues( LuceneFieldIndex.PID_DOCVALUES );
+                // Iterating every document, so avoid also holding all PIDs of the segment in memory
+                pidValues = ( values == null ) ? null : values.getDirectSource();
+                docId = 0;
+                maxDoc = reader.maxDoc();
+                continue;
+            }
+
+            int doc = docId++;
+            if( liveDocs != null && !liveDocs.get( doc ) )
+            {
+                continue;
+            }
+
+            String pid = readPid( doc );
+            if( pid != null && !pid.isEmpty() )
+            {
+                nextPid = pid;
+                return;
+            }
+        }
+    }
+
+    private String readPid( int doc ) throws IOException
+    {
+        if( pidValues != null )
+        {
+            pidValues.getBytes( doc, scratch );
+            if( scratch.length > 0 )
+            {
+                return scratch.utf8ToString();
+            }
+        }
+        Document document = reader.document( doc );
+        return document == null ? null : document.get( pidFieldName );
+    }
+}
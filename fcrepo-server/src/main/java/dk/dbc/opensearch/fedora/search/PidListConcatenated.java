@@ -0,0 +1,109 @@
+/*
+ * This file is part of opensearch.
+ * Copyright (c) 2012, Dansk Bibliotekscenter a/s,
+ * Tempovej 7-11, DK-2750 Ballerup, Denmark. CVR: 15149043
+ *
+ * opensearch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * opensearch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with opensearch. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package dk.dbc.opensearch.fedora.search;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Read-only PID list traversing several PID lists one after the other,
+ * used to merge the search results of the shards of a sharded index
+ * without copying them.
+ */
+public class PidListConcatenated implements IPidList
+{
+    private final List< IPidList > pidLists;
+    private final int size;
+    private int current = 0;
+
+    /**
+     * @param pidLists the lists to traverse, in order. The lists are owned, and disposed, by this list
+     */
+    public PidListConcatenated( List< IPidList > pidLists )
+    {
+        if ( pidLists == null )
+        {
+            throw new NullPointerException( "pidLists parameter must not be null" );
+        }
+        this.pidLists = new ArrayList< IPidList >( pidLists );
+        int total = 0;
+        for ( IPidList pidList : this.pidLists )
+        {
+            total += pidList.size();
+        }
+        this.size = total;
+    }
+
+    /**
+     * Not supported, since the list is made of other lists
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public void addPid( String pid )
+    {
+        throw new UnsupportedOperationException( "Concatenated PID lists are read-only" );
+    }
+
+    @Override
+    public Collection< String > getNextPids( int wanted ) throws IOException
+    {
+        List< String > result = new ArrayList< String >( Math.min( wanted, size ) );
+        while ( result.size() < wanted && current < pidLists.size() )
+        {
+            Collection< String > pids = pidLists.get( current ).getNextPids( wanted - result.size() );
+            if ( pids.isEmpty() )
+            {
+                current++;
+            }
+            result.addAll( pids );
+        }
+        return result;
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    @Override
+    public void commit() throws IOException
+    {
+        for ( IPidList pidList : pidLists )
+        {
+            pidList.commit();
+        }
+        current = 0;
+    }
+
+    @Override
+    public void dispose()
+    {
+        for ( IPidList pidList : pidLists )
+        {
+            pidList.dispose();
+        }
+        current = pidLists.size();
+    }
+}
@@ -0,0 +1,435 @@
+/*
+ * This file is part of opensearch.
+ * Copyright (c) 2012, Dansk Bibliotekscenter a/s,
+ * Tempovej 7-11, DK-2750 Ballerup, Denmark. CVR: 15149043
+ *
+ * opensearch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * opensearch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with opensearch. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dk.dbc.opensearch.fedora.search;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compact PID list backed by a memory-mapped file, for very large result sets.
+ * <p>
+ * Each PID is split into a namespace prefix (up to and including the first
+ * colon) and an identifier. Prefixes are stored once in an in-memory
+ * dictionary, and each record in the file holds the dictionary index. Numeric
+ * identifiers are stored as a varint delta from the previous numeric
+ * identifier, other identifiers as length prefixed UTF-8.
+ * <p>
+ * Every {@value #CHECKPOINT_INTERVAL} records a checkpoint of the file offset
+ * and delta state is kept, so {@link #seek(int)} decodes at most
+ * {@value #CHECKPOINT_INTERVAL} records. Once committed, the file is mapped
+ * and read directly from the mapping, without reopening it per call.
+ * The file is deleted when the list is exhausted or disposed.
+ */
+public class PidListMapped implements IPidList
+{
+    private static final Logger log = LoggerFactory.getLogger( PidListMapped.class );
+
+    private final static Charset ENCODING = Charset.forName( "UTF-8" );
+
+    final static int CHECKPOINT_INTERVAL = 128;
+
+    /** Longest decimal identifier which always fits in a long */
+    private final static int MAX_NUMERIC_DIGITS = 18;
+
+    private final File pidFile;
+
+    private final List< String > namespaces = new ArrayList< String >();
+    private final Map< String, Integer > namespaceIndex = new HashMap< String, Integer >();
+
+    private long[] checkpointOffsets = new long[ 16 ];
+    private long[] checkpointNumerics = new long[ 16 ];
+
+    private int size = 0;
+
+    /** Write state */
+    private OutputStream outputStream = null;
+    private long bytesWritten = 0;
+    private long lastWrittenNumeric = 0;
+
+    /** Read state */
+    private ByteBuffer buffer = null;
+    private int cursor = 0;
+    private long lastReadNumeric = 0;
+
+    public PidListMapped( File pidFile )
+    {
+        log.debug( "Creating mapped PID list with storage in file '{}'", pidFile );
+        if ( pidFile == null )
+        {
+            throw new NullPointerException( "pidFile parameter must not be null" );
+        }
+
+        this.pidFile = pidFile;
+    }
+
+    /**
+     * Copy constructor. Copy pids from an existing list
+     * @param pidFile The file to store the PIDs in.
+     * @param pids Source list to copy PIDs from
+     * @throws IOException
+     */
+    public PidListMapped( File pidFile, IPidList pids ) throws IOException
+    {
+        this( pidFile );
+        log.debug( "Copying {} PIDs from source list", pids.size() );
+        if ( pids.size() > 0 )
+        {
+            for ( String pid : pids.getNextPids( pids.size() ) )
+            {
+                addPid( pid );
+            }
+        }
+    }
+
+
+    @Override
+    public void addPid( String pid ) throws IOException
+    {
+        if ( pid == null )
+        {
+            return;
+        }
+        if ( buffer != null )
+        {
+            throw new IOException( "Adding to a committed PidList is not allowed" );
+        }
+        if ( outputStream == null )
+        {
+            outputStream = new BufferedOutputStream( new FileOutputStream( pidFile, true ) );
+        }
+
+        if ( size % CHECKPOINT_INTERVAL == 0 )
+        {
+            addCheckpoint( size / CHECKPOINT_INTERVAL, bytesWritten, lastWrittenNumeric );
+        }
+
+        int colon = pid.indexOf( ':' );
+        String prefix = pid.substring( 0, colon + 1 );
+        String identifier = pid.substring( colon + 1 );
+
+        int prefixIndex = getNamespaceIndex( prefix );
+        if ( isNumeric( identifier ) )
+        {
+            long value = Long.parseLong( identifier );
+            bytesWritten += writeVarLong( outputStream, ( (long) prefixIndex << 1 ) | 1 );
+            bytesWritten += writeVarLong( outputStream, zigZag( value - lastWrittenNumeric ) );
+            lastWrittenNumeric = value;
+        }
+        else
+        {
+            byte[] bytes = identifier.getBytes( ENCODING );
+            bytesWritten += writeVarLong( outputStream, (long) prefixIndex << 1 );
+            bytesWritten += writeVarLong( outputStream, bytes.length );
+            outputStream.write( bytes );
+            bytesWritten += bytes.length;
+        }
+        size++;
+        log.trace( "Appended PID '{}'. Size is now {}", pid, size );
+    }
+
+
+    private int getNamespaceIndex( String prefix )
+    {
+        Integer index = namespaceIndex.get( prefix );
+        if ( index == null )
+        {
+            index = namespaces.size();
+            namespaces.add( prefix );
+            namespaceIndex.put( prefix, index );
+        }
+        return index;
+    }
+
+
+    private void addCheckpoint( int checkpoint, long offset, long numeric )
+    {
+        if ( checkpoint == checkpointOffsets.length )
+        {
+            checkpointOffsets = Arrays.copyOf( checkpointOffsets, checkpoint * 2 );
+            checkpointNumerics = Arrays.copyOf( checkpointNumerics, checkpoint * 2 );
+        }
+        checkpointOffsets[ checkpoint ] = offset;
+        checkpointNumerics[ checkpoint ] = numeric;
+    }
+
+
+    /**
+     * Identifiers are stored as numbers only if they convert back to the
+     * exact same string, i.e. without sign or leading zeros.
+     */
+    static boolean isNumeric( String identifier )
+    {
+        int length = identifier.length();
+        if ( length == 0 || length > MAX_NUMERIC_DIGITS )
+        {
+            return false;
+        }
+        if ( length > 1 && identifier.charAt( 0 ) == '0' )
+        {
+            return false;
+        }
+        for ( int i = 0; i < length; i++ )
+        {
+            char c = identifier.charAt( i );
+            if ( c < '0' || c > '9' )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    @Override
+    public Collection< String > getNextPids( int wanted ) throws IOException
+    {
+        log.trace( "Getting next {} PIDs from cursor {}", wanted, cursor );
+        if ( outputStream != null )
+        {
+            throw new IOException( "Reading from uncommitted PidList is not allowed" );
+        }
+        if ( cursor >= size || ( buffer == null && !pidFile.exists() ) )
+        {
+            log.debug( "PID list has been exhausted" );
+            return Collections.emptyList();
+        }
+        ByteBuffer data = getBuffer();
+
+        int count = Math.min( wanted, size - cursor );
+        ArrayList< String > pids = new ArrayList< String >( count );
+        for ( int i = 0; i < count; i++ )
+        {
+            pids.add( readPid( data ) );
+        }
+
+        if ( cursor >= size )
+        {
+            log.debug( "Exhausted pid list in file '{}'", pidFile );
+            release();
+        }
+        log.debug( "Returning {} pids", pids.size() );
+        return pids;
+    }
+
+
+    /**
+     * Moves the cursor to the given position, decoding at most
+     * {@value #CHECKPOINT_INTERVAL} records to get there.
+     *
+     * @param position the index of the next PID to return
+     * @throws IOException if the list is not committed or the file could not be mapped
+     */
+    public void seek( int position ) throws IOException
+    {
+        if ( position < 0 || position > size )
+        {
+            throw new IndexOutOfBoundsException( String.format( "Position %d is outside list of size %d", position, size ) );
+        }
+        if ( outputStream != null )
+        {
+            throw new IOException( "Seeking in uncommitted PidList is not allowed" );
+        }
+        if ( position == size )
+        {
+            cursor = size;
+            return;
+        }
+        ByteBuffer data = getBuffer();
+        int checkpoint = position / CHECKPOINT_INTERVAL;
+        data.position( (int) checkpointOffsets[ checkpoint ] );
+        lastReadNumeric = checkpointNumerics[ checkpoint ];
+        cursor = checkpoint * CHECKPOINT_INTERVAL;
+        while ( cursor < position )
+        {
+            readPid( data );
+        }
+    }
+
+
+    private String readPid( ByteBuffer data )
+    {
+        long header = readVarLong( data );
+        String prefix = namespaces.get( (int) ( header >>> 1 ) );
+        String identifier;
+        if ( ( header & 1 ) == 1 )
+        {
+            lastReadNumeric += unZigZag( readVarLong( data ) );
+            identifier = Long.toString( lastReadNumeric );
+        }
+        else
+        {
+            int length = (int) readVarLong( data );
+            byte[] bytes = new byte[ length ];
+            data.get( bytes );
+            identifier = new String( bytes, ENCODING );
+        }
+        cursor++;
+        return prefix.isEmpty() ? identifier : prefix + identifier;
+    }
+
+
+    private ByteBuffer getBuffer() throws IOException
+    {
+        if ( buffer == null )
+        {
+            if ( !pidFile.exists() )
+            {
+                throw new IOException( String.format( "PID file '%s' no longer exists. Cursor %d, size %d", pidFile, cursor, size ) );
+            }
+            if ( bytesWritten > Integer.MAX_VALUE )
+            {
+                throw new IOException( String.format( "PID file '%s' of %d bytes is too large to be mapped", pidFile, bytesWritten ) );
+            }
+            RandomAccessFile file = new RandomAccessFile( pidFile, "r" );
+            try
+            {
+                MappedByteBuffer mapped = file.getChannel().map( FileChannel.MapMode.READ_ONLY, 0, bytesWritten );
+                buffer = mapped;
+            }
+            finally
+            {
+                // The mapping stays valid after the channel is closed
+                file.close();
+            }
+        }
+        return buffer;
+    }
+
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+
+    @Override
+    public void commit() throws IOException
+    {
+        log.debug( "Committing search result in file '{}'", pidFile );
+        if ( outputStream != null )
+        {
+            outputStream.close();
+            outputStream = null;
+        }
+        cursor = 0;
+        lastReadNumeric = 0;
+        if ( buffer != null )
+        {
+            buffer.position( 0 );
+        }
+    }
+
+
+    @Override
+    public void dispose()
+    {
+        log.debug( "Disposing search result in file '{}'", pidFile );
+        if ( outputStream != null )
+        {
+            try
+            {
+                outputStream.close();
+            }
+            catch( IOException ex )
+            {
+                // We don't want the exception to propagate upwards, so just log it.
+                log.warn( "Closing stream for file '{}' failed", pidFile, ex );
+            }
+            outputStream = null;
+        }
+        release();
+        cursor = 0;
+        size = 0;
+    }
+
+
+    /**
+     * Drops the mapping and deletes the file. The mapping itself is released
+     * when the buffer is garbage collected.
+     */
+    private void release()
+    {
+        buffer = null;
+        if ( pidFile.exists() && !pidFile.delete() )
+        {
+            log.warn( "File '{}' could not be deleted", pidFile );
+        }
+    }
+
+
+    private static int writeVarLong( OutputStream stream, long value ) throws IOException
+    {
+        int written = 1;
+        while ( ( value & ~0x7FL ) != 0 )
+        {
+            stream.write( (int) ( ( value & 0x7F ) | 0x80 ) );
+            value >>>= 7;
+            written++;
+        }
+        stream.write( (int) value );
+        return written;
+    }
+
+
+    private static long readVarLong( ByteBuffer data )
+    {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do
+        {
+            b = data.get();
+            value |= (long) ( b & 0x7F ) << shift;
+            shift += 7;
+        }
+        while ( ( b & 0x80 ) != 0 );
+        return value;
+    }
+
+
+    private static long zigZag( long value )
+    {
+        return ( value << 1 ) ^ ( value >> 63 );
+    }
+
+
+    private static long unZigZag( long value )
+    {
+        return ( value >>> 1 ) ^ -( value & 1 );
+    }
+}
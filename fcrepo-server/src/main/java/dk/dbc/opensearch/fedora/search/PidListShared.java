@@ -0,0 +1,89 @@
+/*
+ * This file is part of opensearch.
+ * Copyright (c) 2012, Dansk Bibliotekscenter a/s,
+ * Tempovej 7-11, DK-2750 Ballerup, Denmark. CVR: 15149043
+ *
+ * opensearch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * opensearch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with opensearch. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dk.dbc.opensearch.fedora.search;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Read-only view of a PID list shared between search results, e.g. through
+ * the {@link QueryResultCache}. Each view has its own cursor, while the
+ * underlying list is never modified.
+ */
+public class PidListShared implements IPidList
+{
+    private final List< String > pidList;
+    private int cursor = 0;
+
+    /**
+     * @param pidList the shared list. Must not be modified after the view is created
+     */
+    public PidListShared( List< String > pidList )
+    {
+        if ( pidList == null )
+        {
+            throw new NullPointerException( "pidList parameter must not be null" );
+        }
+        this.pidList = Collections.unmodifiableList( pidList );
+    }
+
+    /**
+     * Not supported, since the list is shared
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public void addPid( String pid )
+    {
+        throw new UnsupportedOperationException( "Shared PID lists are read-only" );
+    }
+
+    @Override
+    public Collection< String > getNextPids( int wanted )
+    {
+        int toIndex = Math.min( cursor + wanted, pidList.size() );
+        List< String > result = pidList.subList( cursor, toIndex );
+        cursor = toIndex;
+
+        return result;
+    }
+
+    @Override
+    public int size()
+    {
+        return pidList.size();
+    }
+
+    @Override
+    public void commit()
+    {
+        cursor = 0;
+    }
+
+    /**
+     * Releases this view only. The shared list is left untouched for other views
+     */
+    @Override
+    public void dispose()
+    {
+        cursor = pidList.size();
+    }
+}
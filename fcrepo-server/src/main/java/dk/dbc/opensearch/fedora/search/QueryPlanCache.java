@@ -0,0 +1,220 @@
+/*
+ * This file is part of opensearch.
+ * Copyright (c) 2012, Dansk Bibliotekscenter a/s,
+ * Tempovej 7-11, DK-2750 Ballerup, Denmark. CVR: 15149043
+ *
+ * opensearch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * opensearch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with opensearch. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package dk.dbc.opensearch.fedora.search;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.CachingWrapperFilter;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryWrapperFilter;
+import org.apache.lucene.search.TermQuery;
+import org.fcrepo.server.search.FieldSearchQuery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache of the Lucene queries built from {@link FieldSearchQuery}s, so
+ * repeated queries, like the searches behind resumed sessions and paged
+ * results, are not rebuilt for every request.
+ * <p>
+ * Queries only depend on the FieldSearchQuery, not on the contents of the
+ * index, so cached queries never become stale. The cache holds at most
+ * maxQueries queries, and evicts the least recently used first.
+ * <p>
+ * The cache also holds filters for clauses matching a single object state.
+ * Such clauses are common to many queries, and their filters keep the
+ * matching documents of each index segment in memory, so the terms are not
+ * looked up again until the segment changes. Each filter holds a bit set
+ * the size of the index, so filters are only cached for the few values of
+ * the state, not for fields with many values like the PID namespace.
+ */
+final class QueryPlanCache
+{
+    private static final Logger log = LoggerFactory.getLogger( QueryPlanCache.class );
+
+    /** Maximum number of cached clause filters, limiting the memory held for unusual values */
+    private static final int MAX_FILTERS = 8;
+
+    private final int maxQueries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong filterHits = new AtomicLong();
+    private final AtomicLong filterMisses = new AtomicLong();
+
+    /** Guarded by this */
+    private final LinkedHashMap<Object, Query> queries;
+
+    private final ConcurrentMap<Term, Filter> filters = new ConcurrentHashMap<Term, Filter>();
+
+    /**
+     * @param maxQueries maximum number of queries held by the cache
+     */
+    QueryPlanCache( int maxQueries )
+    {
+        if ( maxQueries <= 0 )
+        {
+            throw new IllegalArgumentException( String.format( "maxQueries must be positive, was %d", maxQueries ) );
+        }
+        this.maxQueries = maxQueries;
+        // Access order, so iteration starts with the least recently used query
+        this.queries = new LinkedHashMap<Object, Query>( 16, 0.75f, true );
+    }
+
+
+    /**
+     * Returns a key identifying the given query. Two FieldSearchQueries
+     * with equal keys build the same Lucene query.
+     */
+    static Object getKey( FieldSearchQuery fsq )
+    {
+        if ( fsq.getType() == FieldSearchQuery.TERMS_TYPE )
+        {
+            return Collections.singletonList( fsq.getTerms() );
+        }
+        return new ArrayList<Object>( fsq.getConditions() );
+    }
+
+
+    /**
+     * @return the cached query for the key, or null if not cached
+     */
+    synchronized Query get( Object key )
+    {
+        Query query = queries.get( key );
+        if ( query == null )
+        {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return query;
+    }
+
+
+    /**
+     * Caches a query. The query must not be modified afterwards.
+     */
+    synchronized void put( Object key, Query query )
+    {
+        queries.put( key, query );
+        if ( queries.size() > maxQueries )
+        {
+            Map.Entry<Object, Query> eldest = queries.entrySet().iterator().next();
+            log.debug( "Evicting cached query {}", eldest.getValue() );
+            queries.remove( eldest.getKey() );
+            evictions.incrementAndGet();
+        }
+    }
+
+
+    /**
+     * Returns a query matching the same documents as the given term query,
+     * using a cached filter shared by all queries on the same term. Only
+     * term queries on the state should be given.
+     */
+    Query getCachedTermQuery( TermQuery termQuery )
+    {
+        Term term = termQuery.getTerm();
+        Filter filter = filters.get( term );
+        if ( filter == null )
+        {
+            if ( filters.size() >= MAX_FILTERS )
+            {
+                return termQuery;
+            }
+            filterMisses.incrementAndGet();
+            Filter newFilter = new CachingWrapperFilter( new QueryWrapperFilter( termQuery ) );
+            filter = filters.putIfAbsent( term, newFilter );
+            if ( filter == null )
+            {
+                log.debug( "Caching filter for {}", term );
+                filter = newFilter;
+            }
+        }
+        else
+        {
+            filterHits.incrementAndGet();
+        }
+        return new ConstantScoreQuery( filter );
+    }
+
+
+    long getHits()
+    {
+        return hits.get();
+    }
+
+
+    long getMisses()
+    {
+        return misses.get();
+    }
+
+
+    long getEvictions()
+    {
+        return evictions.get();
+    }
+
+
+    synchronized int getCachedQueries()
+    {
+        return queries.size();
+    }
+
+
+    long getFilterHits()
+    {
+        return filterHits.get();
+    }
+
+
+    long getFilterMisses()
+    {
+        return filterMisses.get();
+    }
+
+
+    int getCachedFilters()
+    {
+        return filters.size();
+    }
+
+
+    void resetCounters()
+    {
+        hits.set( 0 );
+        misses.set( 0 );
+        evictions.set( 0 );
+        filterHits.set( 0 );
+        filterMisses.set( 0 );
+    }
+}
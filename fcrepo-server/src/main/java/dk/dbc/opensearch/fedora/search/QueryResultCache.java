@@ -0,0 +1,190 @@
+/*
+ * This file is part of opensearch.
+ * Copyright (c) 2012, Dansk Bibliotekscenter a/s,
+ * Tempovej 7-11, DK-2750 Ballerup, Denmark. CVR: 15149043
+ *
+ * opensearch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * opensearch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with opensearch. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dk.dbc.opensearch.fedora.search;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.lucene.search.Query;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache of search results shared between sessions, so identical queries
+ * issued by different clients only search the index once.
+ * <p>
+ * Results are keyed by the Lucene query itself rather than its string form,
+ * which different queries may share, and are only valid for the
+ * index generation they were found in. When a search sees a new generation,
+ * i.e. after the searcher has been refreshed, all cached results are
+ * dropped. The cache is bounded by the total number of PIDs held, and
+ * evicts the least recently used results first.
+ */
+final class QueryResultCache
+{
+    private static final Logger log = LoggerFactory.getLogger( QueryResultCache.class );
+
+    private final long maxPids;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /** Guarded by this */
+    private final LinkedHashMap<Query, List<String>> results;
+    private long generation = -1;
+    private long cachedPids = 0;
+
+    /**
+     * @param maxPids maximum total number of PIDs held by the cache
+     */
+    QueryResultCache( long maxPids )
+    {
+        if ( maxPids <= 0 )
+        {
+            throw new IllegalArgumentException( String.format( "maxPids must be positive, was %d", maxPids ) );
+        }
+        this.maxPids = maxPids;
+        // Access order, so iteration starts with the least recently used result
+        this.results = new LinkedHashMap<Query, List<String>>( 16, 0.75f, true );
+    }
+
+
+    /**
+     * Returns the cached result of a query in the given index generation.
+     *
+     * @param generation version of the index the caller searches
+     * @param query the query which found the result
+     * @return a private view of the cached PIDs, or null if not cached
+     */
+    synchronized IPidList get( long generation, Query query )
+    {
+        invalidateIfNewGeneration( generation );
+        List<String> pids = results.get( query );
+        if ( pids == null )
+        {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        log.debug( "Query result cache hit for {}, {} pids", query, pids.size() );
+        return new PidListShared( pids );
+    }
+
+
+    /**
+     * Caches the result of a query. Results larger than the cache itself,
+     * and results from an older index generation than the cached ones, are
+     * ignored.
+     *
+     * @param generation version of the index the result was found in
+     * @param query the query which found the result
+     * @param pids the complete result. Must not be modified afterwards
+     */
+    synchronized void put( long generation, Query query, List<String> pids )
+    {
+        invalidateIfNewGeneration( generation );
+        if ( generation != this.generation || pids.size() > maxPids )
+        {
+            return;
+        }
+        List<String> previous = results.put( query, pids );
+        if ( previous != null )
+        {
+            cachedPids -= previous.size();
+        }
+        cachedPids += pids.size();
+
+        Iterator<Map.Entry<Query, List<String>>> eldest = results.entrySet().iterator();
+        while ( cachedPids > maxPids && eldest.hasNext() )
+        {
+            Map.Entry<Query, List<String>> entry = eldest.next();
+            log.debug( "Evicting cached result for {}", entry.getKey() );
+            cachedPids -= entry.getValue().size();
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+
+    /**
+     * Checks whether a result of the given size can be cached at all
+     */
+    boolean accepts( int size )
+    {
+        return size <= maxPids;
+    }
+
+
+    private void invalidateIfNewGeneration( long generation )
+    {
+        if ( generation > this.generation )
+        {
+            if ( !results.isEmpty() )
+            {
+                log.debug( "Index generation changed from {} to {}, dropping {} cached results",
+                        new Object[] { this.generation, generation, results.size() } );
+            }
+            results.clear();
+            cachedPids = 0;
+            this.generation = generation;
+        }
+    }
+
+
+    long getHits()
+    {
+        return hits.get();
+    }
+
+
+    long getMisses()
+    {
+        return misses.get();
+    }
+
+
+    long getEvictions()
+    {
+        return evictions.get();
+    }
+
+
+    synchronized int getCachedResults()
+    {
+        return results.size();
+    }
+
+
+    synchronized long getCachedPids()
+    {
+        return cachedPids;
+    }
+
+
+    void resetCounters()
+    {
+        hits.set( 0 );
+        misses.set( 0 );
+        evictions.set( 0 );
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * This file is part of opensearch.
+ * Copyright (c) 2012, Dansk Bibliotekscenter a/s,
+ * Tempovej 7-11, DK-2750 Ballerup, Denmark. CVR: 15149043
+ *
+ * opensearch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * opensearch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with opensearch. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dk.dbc.opensearch.fedora.search;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.lucene.search.SearcherManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Background thread refreshing a {@link SearcherManager}, so searches do not
+ * have to refresh the searcher themselves.
+ * <p>
+ * Every write to the index is given a generation by {@link #markWrite()}.
+ * The searcher is refreshed at least every {@code targetMaxStaleSec}
+ * seconds. When a thread waits for a generation to become searchable with
+ * {@link #waitForGeneration(long)}, the refresh is brought forward to at
+ * most {@code targetMinStaleSec} seconds after the previous refresh. If a
+ * refresh fails, waiting threads refresh the searcher themselves, so they
+ * see the failure instead of waiting for a later refresh to succeed.
+ * <p>
+ * Lucene 4.1 ships the same idea as NRTManagerReopenThread, but that
+ * requires all writes to go through a TrackingIndexWriter, while updates
+ * here are applied to the IndexWriter by the WriteAheadLog.
+ */
+final class SearcherRefresher implements Runnable, Closeable
+{
+    private static final Logger log = LoggerFactory.getLogger( SearcherRefresher.class );
+
+    private final SearcherManager manager;
+    private final long targetMaxStaleNs;
+    private final long targetMinStaleNs;
+
+    private final AtomicLong writeGeneration = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+
+    private final Thread thread;
+
+    private final Object lock = new Object();
+    /** Guarded by lock */
+    private long searchingGeneration = 0;
+    private long waitingGeneration = 0;
+    private boolean finished = false;
+    /** Number of failed refreshes, guarded by lock */
+    private long failures = 0;
+
+    /**
+     * @param manager the searcher manager to refresh
+     * @param targetMaxStaleSec maximum time in seconds before a write is searchable when nobody is waiting for it
+     * @param targetMinStaleSec minimum time in seconds between refreshes, also when threads are waiting
+     */
+    SearcherRefresher( SearcherManager manager, double targetMaxStaleSec, double targetMinStaleSec )
+    {
+        if ( targetMaxStaleSec <= 0 )
+        {
+            throw new IllegalArgumentException( String.format( "targetMaxStaleSec must be positive, was %s", targetMaxStaleSec ) );
+        }
+        if ( targetMinStaleSec < 0 || targetMinStaleSec > targetMaxStaleSec )
+        {
+            throw new IllegalArgumentException( String.format( "targetMinStaleSec must be between 0 and targetMaxStaleSec (%s), was %s",
+                    targetMaxStaleSec, targetMinStaleSec ) );
+        }
+        this.manager = manager;
+        this.targetMaxStaleNs = (long) ( targetMaxStaleSec * 1000000000 );
+        this.targetMinStaleNs = (long) ( targetMinStaleSec * 1000000000 );
+        this.thread = new Thread( this, "SearcherRefresher" );
+        this.thread.setDaemon( true );
+    }
+
+
+    void start()
+    {
+        log.info( "Starting searcher refresher with target max stale {} ms and min stale {} ms",
+                targetMaxStaleNs / 1000000, targetMinStaleNs / 1000000 );
+        thread.start();
+    }
+
+
+    /**
+     * Registers a write to the index. Must be called after the write has
+     * been applied to the IndexWriter.
+     *
+     * @return the generation of the write, to pass to {@link #waitForGeneration(long)}
+     */
+    long markWrite()
+    {
+        return writeGeneration.incrementAndGet();
+    }
+
+
+    /**
+     * @return the generation of the latest write registered
+     */
+    long getWriteGeneration()
+    {
+        return writeGeneration.get();
+    }
+
+
+    /**
+     * @return the number of refreshes performed
+     */
+    long getRefreshes()
+    {
+        return refreshes.get();
+    }
+
+
+    /**
+     * Blocks until a searcher acquired from the manager sees all writes up
+     * to the given generation.
+     *
+     * @param generation a generation returned by {@link #markWrite()}
+     * @throws IOException if interrupted, or if the searcher could not be refreshed after a background refresh
+     *         failed or the refresher was closed
+     */
+    void waitForGeneration( long generation ) throws IOException
+    {
+        if ( generation > writeGeneration.get() )
+        {
+            throw new IllegalArgumentException( String.format( "Generation %d has not been written yet", generation ) );
+        }
+
+        synchronized ( lock )
+        {
+            if ( generation > waitingGeneration )
+            {
+                waitingGeneration = generation;
+                lock.notifyAll();
+            }
+            long startFailures = failures;
+            try
+            {
+                while ( searchingGeneration < generation && !finished && failures == startFailures )
+                {
+                    lock.wait();
+                }
+            }
+            catch ( InterruptedException ex )
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException( String.format( "Interrupted while waiting for generation %d", generation ) );
+            }
+            if ( searchingGeneration >= generation )
+            {
+                return;
+            }
+        }
+        // Closed, or a refresh failed, while waiting. Refresh directly
+        manager.maybeRefreshBlocking();
+    }
+
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            refreshLoop();
+        }
+        finally
+        {
+            // Also when stopped by an Error, so waiting threads do not wait for refreshes that never come
+            synchronized ( lock )
+            {
+                finished = true;
+                lock.notifyAll();
+            }
+        }
+    }
+
+
+    private void refreshLoop()
+    {
+        long lastRefreshStartNs = System.nanoTime();
+        while ( true )
+        {
+            synchronized ( lock )
+            {
+                try
+                {
+                    while ( !finished )
+                    {
+                        boolean hasWaiting = waitingGeneration > searchingGeneration;
+                        long nextRefreshStartNs = lastRefreshStartNs + ( hasWaiting ? targetMinStaleNs : targetMaxStaleNs );
+                        long sleepNs = nextRefreshStartNs - System.nanoTime();
+                        if ( sleepNs <= 0 )
+                        {
+                            break;
+                        }
+                        lock.wait( sleepNs / 1000000, (int) ( sleepNs % 1000000 ) );
+                    }
+                }
+                catch ( InterruptedException ex )
+                {
+                    log.warn( "Searcher refresher interrupted, stopping" );
+                    finished = true;
+                    lock.notifyAll();
+                }
+                if ( finished )
+                {
+                    return;
+                }
+            }
+
+            lastRefreshStartNs = System.nanoTime();
+            // Writes up to this generation are in the IndexWriter, so the refreshed searcher sees them
+            long refreshGeneration = writeGeneration.get();
+            try
+            {
+                manager.maybeRefreshBlocking();
+                refreshes.incrementAndGet();
+            }
+            catch ( IOException ex )
+            {
+                refreshFailed( ex );
+                continue;
+            }
+            catch ( RuntimeException ex )
+            {
+                refreshFailed( ex );
+                continue;
+            }
+
+            synchronized ( lock )
+            {
+                if ( refreshGeneration > searchingGeneration )
+                {
+                    searchingGeneration = refreshGeneration;
+                }
+                lock.notifyAll();
+            }
+        }
+    }
+
+
+    /**
+     * Records a failed refresh, and wakes up waiting threads so they refresh
+     * the searcher themselves.
+     */
+    private void refreshFailed( Exception ex )
+    {
+        log.error( "Failed to refresh searcher", ex );
+        synchronized ( lock )
+        {
+            failures++;
+            lock.notifyAll();
+        }
+    }
+
+
+    /**
+     * Stops the refresher thread and waits for it to finish. Threads
+     * waiting for a generation refresh the searcher themselves.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        synchronized ( lock )
+        {
+            finished = true;
+            lock.notifyAll();
+        }
+        try
+        {
+            thread.join();
+        }
+        catch ( InterruptedException ex )
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted while stopping searcher refresher" );
+        }
+    }
+}
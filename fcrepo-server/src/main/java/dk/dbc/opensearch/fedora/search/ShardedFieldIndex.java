@@ -0,0 +1,565 @@
+/*
+ * This file is part of opensearch.
+ * Copyright (c) 2012, Dansk Bibliotekscenter a/s,
+ * Tempovej 7-11, DK-2750 Ballerup, Denmark. CVR: 15149043
+ *
+ * opensearch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * opensearch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with opensearch. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package dk.dbc.opensearch.fedora.search;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.util.BytesRef;
+import org.fcrepo.server.search.FieldSearchQuery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Field search index spread over several independent {@link LuceneFieldIndex}
+ * shards, each with its own directory, index writer and write ahead log, so
+ * updates are indexed, committed and merged in parallel.
+ * <p>
+ * Each object lives in exactly one shard, chosen from the hash of its PID,
+ * or of its namespace if all objects of a namespace should share a shard.
+ * Updates, deletes and lookups of a single PID go to its shard. Searches
+ * are run against all shards in parallel and their results merged.
+ * <p>
+ * The hash is {@link String#hashCode()}, which is the same on every JVM,
+ * but changing the number of shards, or what is hashed, moves objects
+ * between shards, so the index must be rebuilt afterwards.
+ */
+final class ShardedFieldIndex extends FieldIndex
+{
+    private static final Logger log = LoggerFactory.getLogger( ShardedFieldIndex.class );
+
+    private final List<LuceneFieldIndex> shards;
+    private final boolean shardByNamespace;
+
+    /** Runs the searches of the shards in parallel */
+    private final ExecutorService searchExecutor;
+
+    /**
+     * @param shards the shards, in a fixed order
+     * @param shardByNamespace if true, objects are placed by the hash of their namespace instead of their PID
+     */
+    ShardedFieldIndex( List<LuceneFieldIndex> shards, boolean shardByNamespace )
+    {
+        if( shards.isEmpty() )
+        {
+            throw new IllegalArgumentException( "A sharded index needs at least one shard" );
+        }
+        this.shards = new ArrayList<LuceneFieldIndex>( shards );
+        this.shardByNamespace = shardByNamespace;
+        this.searchExecutor = Executors.newFixedThreadPool( shards.size(), new ShardThreadFactory() );
+        log.info( "Using {} index shards, placing objects by {}", shards.size(), shardByNamespace ? "namespace" : "PID" );
+    }
+
+
+    /**
+     * @return the index of the shard holding the given PID
+     */
+    static int getShard( String pid, int shardCount, boolean shardByNamespace )
+    {
+        String key = pid;
+        if( shardByNamespace )
+        {
+            int colon = pid.indexOf( ':' );
+            key = pid.substring( 0, Math.max( colon, 0 ) );
+        }
+        return ( key.hashCode() & Integer.MAX_VALUE ) % shardCount;
+    }
+
+
+    private LuceneFieldIndex shardOf( String pid )
+    {
+        return shards.get( getShard( pid, shards.size(), shardByNamespace ) );
+    }
+
+
+    @Override
+    void indexFields( List<Pair<FedoraFieldName, String>> fieldList, long extractTimeNs ) throws IOException
+    {
+        String pid = "";
+        for( Pair<FedoraFieldName, String> field : fieldList )
+        {
+            if( field.getFirst() == FedoraFieldName.PID && field.getSecond() != null )
+            {
+                pid = field.getSecond();
+                break;
+            }
+        }
+        shardOf( pid ).indexFields( fieldList, extractTimeNs );
+    }
+
+
+    @Override
+    void removeDocument( String uid ) throws IOException
+    {
+        shardOf( uid ).removeDocument( uid );
+    }
+
+
+    @Override
+    IPidList search( final FieldSearchQuery fsq ) throws IOException, ParseException
+    {
+        List<IPidList> results = runOnShards( new ShardTask<IPidList>()
+        {
+            @Override
+            IPidList run( LuceneFieldIndex shard ) throws IOException, ParseException
+            {
+                return shard.search( fsq );
+            }
+
+            @Override
+            void discard( IPidList result )
+            {
+                result.dispose();
+            }
+        } );
+        return new PidListConcatenated( results );
+    }
+
+
+    /**
+     * Each shard returns its first count PIDs after afterPid, so the page
+     * is the first count PIDs of their union, in the byte order of the PID
+     * doc values the shards sort by.
+     */
+    @Override
+    List<String> searchAfter( final FieldSearchQuery fsq, final String afterPid, final int count ) throws IOException, ParseException
+    {
+        List<List<String>> pages = runOnShards( new ShardTask<List<String>>()
+        {
+            @Override
+            List<String> run( LuceneFieldIndex shard ) throws IOException, ParseException
+            {
+                return shard.searchAfter( fsq, afterPid, count );
+            }
+        } );
+        List<String> pids = new ArrayList<String>();
+        for( List<String> page : pages )
+        {
+            pids.addAll( page );
+        }
+        Collections.sort( pids, BY_PID_BYTES );
+        return pids.size() > count ? new ArrayList<String>( pids.subList( 0, count ) ) : pids;
+    }
+
+
+    @Override
+    int count( final FieldSearchQuery fsq ) throws IOException, ParseException
+    {
+        List<Integer> counts = runOnShards( new ShardTask<Integer>()
+        {
+            @Override
+            Integer run( LuceneFieldIndex shard ) throws IOException, ParseException
+            {
+                return shard.count( fsq );
+            }
+        } );
+        int total = 0;
+        for( Integer count : counts )
+        {
+            total += count;
+        }
+        return total;
+    }
+
+
+    /**
+     * Shards return all their values, so the merged counts are exact.
+     */
+    @Override
+    Map<FedoraFieldName, List<Pair<String, Integer>>> facets( final FieldSearchQuery fsq, final List<FedoraFieldName> fields, int maxValues ) throws IOException, ParseException
+    {
+        List<Map<FedoraFieldName, List<Pair<String, Integer>>>> shardFacets = runOnShards( new ShardTask<Map<FedoraFieldName, List<Pair<String, Integer>>>>()
+        {
+            @Override
+            Map<FedoraFieldName, List<Pair<String, Integer>>> run( LuceneFieldIndex shard ) throws IOException, ParseException
+            {
+                return shard.facets( fsq, fields, Integer.MAX_VALUE );
+            }
+        } );
+        return FacetCollector.mergeTopValues( shardFacets, maxValues );
+    }
+
+
+    @Override
+    Map<String, Document> getStoredDocuments( Collection<String> pids ) throws IOException
+    {
+        Map<LuceneFieldIndex, List<String>> pidsByShard = new HashMap<LuceneFieldIndex, List<String>>();
+        for( String pid : pids )
+        {
+            LuceneFieldIndex shard = shardOf( pid );
+            List<String> shardPids = pidsByShard.get( shard );
+            if( shardPids == null )
+            {
+                shardPids = new ArrayList<String>();
+                pidsByShard.put( shard, shardPids );
+            }
+            shardPids.add( pid );
+        }
+
+        Map<String, Document> documents = new HashMap<String, Document>();
+        for( Map.Entry<LuceneFieldIndex, List<String>> entry : pidsByShard.entrySet() )
+        {
+            documents.putAll( entry.getKey().getStoredDocuments( entry.getValue() ) );
+        }
+        return documents;
+    }
+
+
+    @Override
+    boolean pidExists( String pid ) throws IOException
+    {
+        return shardOf( pid ).pidExists( pid );
+    }
+
+
+    @Override
+    PidIterator pidIterator() throws IOException
+    {
+        List<SearcherManager> managers = new ArrayList<SearcherManager>( shards.size() );
+        for( LuceneFieldIndex shard : shards )
+        {
+            managers.add( shard.getRefreshedSearcherManager() );
+        }
+        return new PidIterator( managers );
+    }
+
+
+    @Override
+    int findHighestId( final String namespace ) throws IOException
+    {
+        if( shardByNamespace )
+        {
+            return shardOf( namespace + ":" ).findHighestId( namespace );
+        }
+        List<Integer> ids;
+        try
+        {
+            ids = runOnShards( new ShardTask<Integer>()
+            {
+                @Override
+                Integer run( LuceneFieldIndex shard ) throws IOException
+                {
+                    return shard.findHighestId( namespace );
+                }
+            } );
+        }
+        catch( ParseException ex )
+        {
+            throw new IllegalStateException( "Looking up the highest id does not parse queries", ex );
+        }
+        int highest = 0;
+        for( Integer id : ids )
+        {
+            highest = Math.max( highest, id );
+        }
+        return highest;
+    }
+
+
+    @Override
+    void beginBulkLoad( int batchSize, double ramBufferSizeMB ) throws IOException
+    {
+        for( LuceneFieldIndex shard : shards )
+        {
+            shard.beginBulkLoad( batchSize, ramBufferSizeMB );
+        }
+    }
+
+
+    /**
+     * Ends the bulk load of all shards in two phases: the commit of every
+     * shard is prepared first, and only then are the shards committed. If a
+     * shard fails to prepare, which rolls it back, all other shards are
+     * rolled back as well, leaving the index as it was before the bulk load.
+     * <p>
+     * A shard failing to commit once prepared leaves the shards committed
+     * before it with the bulk loaded documents and the rest rolled back. The
+     * index is then inconsistent and must be rebuilt, which is logged.
+     */
+    @Override
+    void endBulkLoad() throws IOException
+    {
+        int prepared = 0;
+        try
+        {
+            for( LuceneFieldIndex shard : shards )
+            {
+                shard.prepareBulkLoadCommit();
+                prepared++;
+            }
+        }
+        finally
+        {
+            if( prepared < shards.size() )
+            {
+                for( int i = 0; i < shards.size(); i++ )
+                {
+                    if( i != prepared )
+                    {
+                        abortShardBulkLoad( i );
+                    }
+                }
+            }
+        }
+
+        for( int i = 0; i < shards.size(); i++ )
+        {
+            try
+            {
+                shards.get( i ).commitBulkLoad();
+            }
+            catch( IOException ex )
+            {
+                log.error( String.format( "Failed to commit the bulk load of shard %d after %d of %d shards were committed. "
+                        + "The index is inconsistent and must be rebuilt", i, i, shards.size() ), ex );
+                for( int j = i + 1; j < shards.size(); j++ )
+                {
+                    abortShardBulkLoad( j );
+                }
+                throw ex;
+            }
+        }
+    }
+
+
+    private void abortShardBulkLoad( int i )
+    {
+        try
+        {
+            shards.get( i ).abortBulkLoad();
+        }
+        catch( IOException ex )
+        {
+            log.warn( String.format( "Failed to roll back the bulk load of shard %d", i ), ex );
+        }
+    }
+
+
+    /**
+     * Rolls back the bulk load of all shards, also if some of them fail to
+     * roll back.
+     *
+     * @throws IOException the first failure, after all shards have been rolled back
+     */
+    @Override
+    void abortBulkLoad() throws IOException
+    {
+        IOException failure = null;
+        for( LuceneFieldIndex shard : shards )
+        {
+            try
+            {
+                shard.abortBulkLoad();
+            }
+            catch( IOException ex )
+            {
+                if( failure == null )
+                {
+                    failure = ex;
+                }
+            }
+        }
+        if( failure != null )
+        {
+            throw failure;
+        }
+    }
+
+
+    @Override
+    void flush() throws IOException
+    {
+        for( LuceneFieldIndex shard : shards )
+        {
+            shard.flush();
+        }
+    }
+
+
+    /**
+     * Closes all shards, also if some of them fail to close.
+     *
+     * @throws IOException the first failure, after all shards have been closed
+     */
+    @Override
+    void closeIndex() throws IOException
+    {
+        searchExecutor.shutdownNow();
+        IOException failure = null;
+        for( LuceneFieldIndex shard : shards )
+        {
+            try
+            {
+                shard.closeIndex();
+            }
+            catch( IOException ex )
+            {
+                log.error( "Failed to close index shard", ex );
+                if( failure == null )
+                {
+                    failure = ex;
+                }
+            }
+        }
+        if( failure != null )
+        {
+            throw failure;
+        }
+    }
+
+
+    /**
+     * Runs a task against every shard in parallel and waits for all of
+     * them to finish.
+     *
+     * @return the results of the shards, in shard order
+     * @throws IOException the first failure of a shard. Results of the other shards are discarded
+     */
+    private <T> List<T> runOnShards( final ShardTask<T> task ) throws IOException, ParseException
+    {
+        List<Future<T>> futures = new ArrayList<Future<T>>( shards.size() );
+        for( final LuceneFieldIndex shard : shards )
+        {
+            futures.add( searchExecutor.submit( new Callable<T>()
+            {
+                @Override
+                public T call() throws IOException, ParseException
+                {
+                    return task.run( shard );
+                }
+            } ) );
+        }
+
+        List<T> results = new ArrayList<T>( futures.size() );
+        Throwable failure = null;
+        boolean interrupted = false;
+        for( Future<T> future : futures )
+        {
+            try
+            {
+                results.add( future.get() );
+            }
+            catch( InterruptedException ex )
+            {
+                // The remaining shards are still waited for, so their results can be discarded
+                interrupted = true;
+                future.cancel( true );
+            }
+            catch( ExecutionException ex )
+            {
+                if( failure == null )
+                {
+                    failure = ex.getCause();
+                }
+            }
+        }
+
+        if( failure == null && !interrupted )
+        {
+            return results;
+        }
+        for( T result : results )
+        {
+            task.discard( result );
+        }
+        if( interrupted )
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted while waiting for shard searches" );
+        }
+        if( failure instanceof IOException )
+        {
+            throw (IOException) failure;
+        }
+        if( failure instanceof ParseException )
+        {
+            throw (ParseException) failure;
+        }
+        if( failure instanceof RuntimeException )
+        {
+            throw (RuntimeException) failure;
+        }
+        throw new IOException( "Shard search failed", failure );
+    }
+
+
+    /**
+     * An operation run against each shard.
+     */
+    private abstract static class ShardTask<T>
+    {
+        abstract T run( LuceneFieldIndex shard ) throws IOException, ParseException;
+
+        /**
+         * Releases the result of a shard when the operation failed on
+         * another shard.
+         */
+        void discard( T result )
+        {
+        }
+    }
+
+
+    /**
+     * Orders PIDs like the PID doc values, by their UTF-8 bytes.
+     */
+    private static final Comparator<String> BY_PID_BYTES = new Comparator<String>()
+    {
+        @Override
+        public int compare( String a, String b )
+        {
+            return new BytesRef( a ).compareTo( new BytesRef( b ) );
+        }
+    };
+
+
+    /**
+     * Creates daemon threads for the shard searches.
+     */
+    private static final class ShardThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        @Override
+        public Thread newThread( Runnable r )
+        {
+            Thread thread = new Thread( r, "ShardedFieldIndex-search-" + threadNumber.incrementAndGet() );
+            thread.setDaemon( true );
+            return thread;
+        }
+    }
+}
@@ -10,11 +10,28 @@ import com.esotericsoftware.kryo.io.Output;
 import com.esotericsoftware.kryo.io.OutputChunked;
 import java.io.File;
 import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
 import java.lang.management.ManagementFactory;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import javax.management.JMException;
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
@@ -23,9 +40,12 @@ import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.SortedBytesDocValuesField;
+import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.util.BytesRef;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,6 +55,9 @@ public class WriteAheadLog extends WriteAheadLogStats
     private final static String LOG_COMITTING_POSTFIX = ".committing";
     private final static String LOG_NAME = "writeaheadlog";
 
+    /** Number of committing log files allowed to wait for the background committer before updates block */
+    final static int DEFAULT_MAX_PENDING_COMMITS = 2;
+
     private final static String PID_FIELD_NAME = "pid";
 
     private static final Logger log = LoggerFactory.getLogger( WriteAheadLog.class );
@@ -45,10 +68,49 @@ public class WriteAheadLog extends WriteAheadLogStats
 
     private final boolean keepFileOpen;
 
+    /**
+     * Group commit settings. When enabled, records are appended without
+     * synchronous writes, and each caller waits until a single force() of
+     * the log file has made its record durable.
+     */
+    private final boolean groupCommit;
+    private final long groupCommitMaxDelayNs;
+    private final long groupCommitMaxBatchBytes;
+
+    /** Guards the group commit positions below. Always taken after the log monitor, never before. */
+    private final Object syncLock = new Object();
+    private long appendedBytes = 0;
+    private long appendedRecords = 0;
+    private long durableBytes = 0;
+    private long durableRecords = 0;
+    private boolean syncInProgress = false;
+
+    /**
+     * Lucene commits are run by this single thread, in the order the log
+     * files were rotated. Null if commits are run synchronously in the
+     * update path.
+     */
+    private final ExecutorService committer;
+    private final Semaphore pendingCommits;
+
+    /** Committing files not yet deleted. Only accessed by the committer thread, and after it has terminated */
+    private final List<File> uncommittedFiles = new ArrayList<File>();
+
+    /**
+     * Held for reading while log files are renamed or deleted, and for
+     * writing while a backup copies them. Always taken after the log
+     * monitor, never before.
+     */
+    private final ReadWriteLock logFileLock = new ReentrantReadWriteLock();
+
+    private long committingSequence = 0;
+
     private boolean isOpen = false;
 
     private File currentFile;
 
+    private LogSegment currentSegment = new LogSegment();
+
     RandomAccessFile fileAccess = null;
     private ObjectName jmxObjectName;
     private final static Kryo serializer = new Kryo();
@@ -110,9 +172,76 @@ public class WriteAheadLog extends WriteAheadLogStats
                 return new TextField( name, value, stored ? Field.Store.YES : Field.Store.NO );
             }
         });
+        serializer.addDefaultSerializer( SortedBytesDocValuesField.class, new Serializer<SortedBytesDocValuesField>()
+        {
+            @Override
+            public void write( Kryo kryo, Output output, SortedBytesDocValuesField object )
+            {
+                BytesRef value = object.binaryValue();
+                output.writeString( object.name() );
+                output.writeInt( value.length, true );
+                output.writeBytes( value.bytes, value.offset, value.length );
+            }
+            @Override
+            public SortedBytesDocValuesField read( Kryo kryo, Input input, Class<SortedBytesDocValuesField> type )
+            {
+                String name = input.readString();
+                int length = input.readInt( true );
+                byte[] value = input.readBytes( length );
+
+                return new SortedBytesDocValuesField( name, new BytesRef( value ) );
+            }
+        });
+        serializer.addDefaultSerializer( StoredField.class, new Serializer<StoredField>()
+        {
+            @Override
+            public void write( Kryo kryo, Output output, StoredField object )
+            {
+                output.writeString( object.name() );
+                output.writeString( object.stringValue() );
+            }
+            @Override
+            public StoredField read( Kryo kryo, Input input, Class<StoredField> type )
+            {
+                String name = input.readString();
+                String value = input.readString();
+
+                return new StoredField( name, value );
+            }
+        });
     }
 
     public WriteAheadLog( IndexWriter writer, File storageDirectory, int commitSize, boolean keepFileOpen ) throws IOException
+    {
+        this( writer, storageDirectory, commitSize, keepFileOpen, false, 0, 0, DEFAULT_MAX_PENDING_COMMITS );
+    }
+
+    /**
+     * @param writer the index writer updates are applied to
+     * @param storageDirectory directory holding the log files
+     * @param commitSize number of updates between commits of the index writer
+     * @param keepFileOpen keep the log file open between updates. Ignored in group commit mode, where the file is always kept open
+     * @param groupCommit if true, batch concurrent updates into a single sync of the log file instead of a synchronous write per update
+     * @param groupCommitMaxDelayMs maximum time to wait for more updates before syncing a batch
+     * @param groupCommitMaxBatchBytes sync a batch without further delay once this many bytes are waiting
+     * @param maxPendingCommits number of rotated log files allowed to wait for the background committer before
+     *        updates block. If 0 or less, commits are run synchronously by the update crossing the commit size
+     */
+    public WriteAheadLog( IndexWriter writer, File storageDirectory, int commitSize, boolean keepFileOpen,
+            boolean groupCommit, long groupCommitMaxDelayMs, long groupCommitMaxBatchBytes,
+            int maxPendingCommits ) throws IOException
+    {
+        this( writer, storageDirectory, commitSize, keepFileOpen, groupCommit, groupCommitMaxDelayMs,
+                groupCommitMaxBatchBytes, maxPendingCommits, null );
+    }
+
+    /**
+     * @param shardName name of the index shard the log belongs to, added to the name of its JMX bean,
+     *        or null if the index is not sharded
+     */
+    public WriteAheadLog( IndexWriter writer, File storageDirectory, int commitSize, boolean keepFileOpen,
+            boolean groupCommit, long groupCommitMaxDelayMs, long groupCommitMaxBatchBytes,
+            int maxPendingCommits, String shardName ) throws IOException
     {
         super( commitSize );
         log.info( "Creating Write Ahead Log in directory {}, with commit size: {} and keepFileOpen: {}",
@@ -121,15 +250,48 @@ public class WriteAheadLog extends WriteAheadLogStats
         checkParameterForNullLogAndThrow( "writer", writer );
         checkParameterForNullLogAndThrow( "storageDirectory", storageDirectory );
 
+        if ( groupCommit )
+        {
+            log.info( "Using group commit with max delay {} ms and max batch size {} bytes",
+                    groupCommitMaxDelayMs, groupCommitMaxBatchBytes );
+            if ( !keepFileOpen )
+            {
+                log.warn( "keepFileOpen is ignored when group commit is enabled. The log file is kept open" );
+            }
+        }
 
         this.writer = writer;
         this.storageDirectory = storageDirectory;
-        this.keepFileOpen = keepFileOpen;
+        this.keepFileOpen = keepFileOpen || groupCommit;
+        this.groupCommit = groupCommit;
+        this.groupCommitMaxDelayNs = Math.max( 0, groupCommitMaxDelayMs ) * 1000000L;
+        this.groupCommitMaxBatchBytes = groupCommitMaxBatchBytes;
+
+        if ( maxPendingCommits > 0 )
+        {
+            log.info( "Committing in background with at most {} pending commits", maxPendingCommits );
+            this.pendingCommits = new Semaphore( maxPendingCommits );
+            this.committer = Executors.newSingleThreadExecutor( new ThreadFactory()
+            {
+                @Override
+                public Thread newThread( Runnable r )
+                {
+                    Thread thread = new Thread( r, "WriteAheadLog-committer" );
+                    thread.setDaemon( true );
+                    return thread;
+                }
+            } );
+        }
+        else
+        {
+            this.pendingCommits = null;
+            this.committer = null;
+        }
 
         // Register the JMX monitoring bean
         try
         {
-            jmxObjectName = new ObjectName( "FieldSearchLucene:name=WriteAheadLog" );
+            jmxObjectName = LuceneFieldIndex.getJmxObjectName( "WriteAheadLog", shardName );
             MBeanServer server = ManagementFactory.getPlatformMBeanServer();
             server.registerMBean( this, jmxObjectName);
         }
@@ -166,16 +328,8 @@ public class WriteAheadLog extends WriteAheadLogStats
 
     int recoverUncomittedFiles( ) throws IOException
     {
-        File comittingFile = new File( storageDirectory, LOG_NAME + LOG_COMITTING_POSTFIX );
-        File logFile = new File( storageDirectory, LOG_NAME + LOG_OPEN_POSTFIX );
-
         int count = 0;
-        if ( comittingFile.exists() )
-        {
-            count += recoverUncomittedFile( comittingFile, writer );
-            comittingFile.delete();
-        }
-        if ( logFile.exists() )
+        for ( File logFile : getLogFiles( storageDirectory ) )
         {
             count += recoverUncomittedFile( logFile, writer );
             logFile.delete();
@@ -184,6 +338,154 @@ public class WriteAheadLog extends WriteAheadLogStats
     }
 
 
+    /**
+     * Returns the log files in the directory in the order they must be
+     * replayed: committing files oldest first, followed by the open log
+     * file if it exists.
+     */
+    static List<File> getLogFiles( File directory )
+    {
+        List<File> files = new ArrayList<File>( Arrays.asList( getComittingFiles( directory ) ) );
+        File logFile = new File( directory, LOG_NAME + LOG_OPEN_POSTFIX );
+        if ( logFile.exists() )
+        {
+            files.add( logFile );
+        }
+        return files;
+    }
+
+
+    /**
+     * Copies the log files to the given directory, keeping their names, so
+     * they can be replayed with {@link #recoverUncomittedFile(File, IndexWriter)}
+     * in the order given by {@link #getLogFiles(File)}.
+     * <p>
+     * Must be called between {@link #holdLogFiles()} and
+     * {@link #releaseLogFiles()}. Updates may still be appended to the open
+     * log file while it is copied, in which case the copy ends with a torn
+     * record that is ignored on replay.
+     *
+     * @return the number of bytes copied
+     */
+    long copyLogFiles( File targetDirectory ) throws IOException
+    {
+        long bytes = 0;
+        byte[] buffer = new byte[ 64 * 1024 ];
+        for ( File logFile : getLogFiles( storageDirectory ) )
+        {
+            File target = new File( targetDirectory, logFile.getName() );
+            FileInputStream in = new FileInputStream( logFile );
+            try
+            {
+                FileOutputStream out = new FileOutputStream( target );
+                try
+                {
+                    int read;
+                    while ( ( read = in.read( buffer ) ) > 0 )
+                    {
+                        out.write( buffer, 0, read );
+                        bytes += read;
+                    }
+                    out.getFD().sync();
+                }
+                finally
+                {
+                    out.close();
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+            log.debug( "Copied log file {} to {}", logFile, target );
+        }
+        return bytes;
+    }
+
+
+    /**
+     * Prevents log files from being rotated or deleted until
+     * {@link #releaseLogFiles()} is called. Updates and commits continue,
+     * but an update rotating the log file blocks until the files are
+     * released.
+     * <p>
+     * Every update not in the latest commit of the index writer is in a log
+     * file, so a snapshot of the latest commit taken while the files are held,
+     * together with a copy of the files, covers all updates made so far.
+     */
+    void holdLogFiles()
+    {
+        logFileLock.writeLock().lock();
+    }
+
+
+    void releaseLogFiles()
+    {
+        logFileLock.writeLock().unlock();
+    }
+
+
+    /**
+     * Returns the committing log files in the directory in the order they
+     * were rotated. A committing file without a sequence number, as written
+     * by earlier versions, is the oldest.
+     */
+    static File[] getComittingFiles( File directory )
+    {
+        List<File> files = new ArrayList<File>();
+        File[] candidates = directory.listFiles();
+        if ( candidates != null )
+        {
+            for ( File file : candidates )
+            {
+                if ( getComittingSequence( file ) >= -1 )
+                {
+                    files.add( file );
+                }
+            }
+        }
+        File[] result = files.toArray( new File[ files.size() ] );
+        Arrays.sort( result, new Comparator<File>()
+        {
+            @Override
+            public int compare( File f1, File f2 )
+            {
+                long s1 = getComittingSequence( f1 );
+                long s2 = getComittingSequence( f2 );
+                return s1 < s2 ? -1 : ( s1 == s2 ? 0 : 1 );
+            }
+        } );
+        return result;
+    }
+
+
+    /**
+     * @return the sequence number of a committing file, -1 for a committing
+     * file without sequence number, or -2 if the file is not a committing file
+     */
+    private static long getComittingSequence( File file )
+    {
+        String prefix = LOG_NAME + LOG_COMITTING_POSTFIX;
+        String name = file.getName();
+        if ( name.equals( prefix ) )
+        {
+            return -1;
+        }
+        if ( !name.startsWith( prefix + "." ) )
+        {
+            return -2;
+        }
+        try
+        {
+            return Long.parseLong( name.substring( prefix.length() + 1 ) );
+        }
+        catch ( NumberFormatException ex )
+        {
+            return -2;
+        }
+    }
+
+
     static int recoverUncomittedFile( File walFile, IndexWriter writer ) throws IOException
     {
         log.warn( "Recovering file {}", walFile );
@@ -194,9 +496,13 @@ public class WriteAheadLog extends WriteAheadLogStats
 
         try
         {
-            while ( true )
+            // Only a file begun by an earlier version may contain Kryo records
+            boolean legacyFile = fileToRecover.length() > 0 && fileToRecover.readByte() != WriteAheadLogRecord.MARKER;
+            fileToRecover.seek( 0 );
+
+            DocumentData docData;
+            while ( ( docData = WriteAheadLog.readDocumentData( fileToRecover, legacyFile ) ) != null )
             {
-                DocumentData docData = WriteAheadLog.readDocumentData( fileToRecover );
                 count++;
                 Term pidTerm = getPidTerm( docData.pid );
 
@@ -214,8 +520,14 @@ public class WriteAheadLog extends WriteAheadLogStats
         }
         catch( KryoException ex )
         {
+            // End of a log file written with Kryo records only
             log.debug( "No more updates found in log file {}", walFile);
         }
+        catch( IOException ex )
+        {
+            throw new IOException( String.format( "Unable to recover log file %s after %d changes, the file is kept",
+                    walFile, count ), ex );
+        }
         finally
         {
             fileToRecover.close();
@@ -254,9 +566,13 @@ public class WriteAheadLog extends WriteAheadLogStats
         long updateStart = System.nanoTime();
 
         File commitFile = null;
+        LogSegment segment;
+        LogSegment rotatedSegment = null;
+        long durableTarget = -1;
         numberOfUncomittedDocuments.incrementAndGet();
         int updates = numberOfUpdatedDocuments.incrementAndGet();
-        byte[] recordBytes = createDocumentData( pid, docOrNull );
+        ByteBuffer record = createDocumentData( pid, docOrNull );
+        int recordLength = record.remaining();
 
         synchronized ( this )
         {
@@ -265,7 +581,13 @@ public class WriteAheadLog extends WriteAheadLogStats
                 throw new IOException( "Write Ahead Log is not open");
             }
 
-            writeDocumentToFile( recordBytes );
+            writeDocumentToFile( record );
+            if ( groupCommit )
+            {
+                durableTarget = recordAppended( recordLength );
+            }
+            segment = currentSegment;
+            segment.beginUpdate();
 
             if ( updates % commitSize == 0)
             {
@@ -274,6 +596,11 @@ public class WriteAheadLog extends WriteAheadLogStats
                 {
                     try
                     {
+                        if ( groupCommit )
+                        {
+                            // Records waiting for a group sync must be durable before the file is closed
+                            syncFile( fileAccess );
+                        }
                         fileAccess.close();
                     }
                     finally
@@ -281,19 +608,39 @@ public class WriteAheadLog extends WriteAheadLogStats
                         fileAccess = null;
                     }
                 }
-                commitFile = new File( storageDirectory, LOG_NAME + LOG_COMITTING_POSTFIX );
-                currentFile.renameTo( commitFile );
+                commitFile = new File( storageDirectory, LOG_NAME + LOG_COMITTING_POSTFIX + "." + committingSequence++ );
+                logFileLock.readLock().lock();
+                try
+                {
+                    currentFile.renameTo( commitFile );
+                }
+                finally
+                {
+                    logFileLock.readLock().unlock();
+                }
                 currentFile = createNewFile();
+                rotatedSegment = segment;
+                currentSegment = new LogSegment();
             }
         }
 
-        updateInWriter( pid, docOrNull );
+        try
+        {
+            updateInWriter( pid, docOrNull );
+        }
+        finally
+        {
+            segment.endUpdate();
+        }
+
+        if ( durableTarget >= 0 )
+        {
+            waitForDurable( durableTarget );
+        }
 
         if ( commitFile != null )
         {
-            commitWriter();
-            // Erase old file
-            commitFile.delete();
+            commitLogFile( commitFile, rotatedSegment );
         }
         long updateEnd = System.nanoTime();
 
@@ -301,6 +648,320 @@ public class WriteAheadLog extends WriteAheadLogStats
     }
 
 
+    /**
+     * Commits the index writer once all updates logged in the rotated file
+     * have been applied to it, and deletes the file. With a background
+     * committer the commit is queued, and the caller only blocks while
+     * the maximum number of commits is pending.
+     */
+    private void commitLogFile( final File commitFile, final LogSegment segment ) throws IOException
+    {
+        if ( committer == null )
+        {
+            awaitSegment( segment );
+            commitWriter();
+            // Erase old file
+            logFileLock.readLock().lock();
+            try
+            {
+                commitFile.delete();
+            }
+            finally
+            {
+                logFileLock.readLock().unlock();
+            }
+            return;
+        }
+
+        try
+        {
+            pendingCommits.acquire();
+        }
+        catch ( InterruptedException ex )
+        {
+            Thread.currentThread().interrupt();
+            // The file is left for the next commit or recovery
+            throw new InterruptedIOException( "Interrupted while waiting for pending commits" );
+        }
+        numberOfPendingCommits.incrementAndGet();
+
+        try
+        {
+            committer.execute( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        runBackgroundCommit( commitFile, segment );
+                    }
+                    finally
+                    {
+                        numberOfPendingCommits.decrementAndGet();
+                        pendingCommits.release();
+                    }
+                }
+            } );
+        }
+        catch ( RejectedExecutionException ex )
+        {
+            // Shutting down. The file is committed and deleted by shutdown
+            numberOfPendingCommits.decrementAndGet();
+            pendingCommits.release();
+            log.debug( "Commit of {} left for shutdown", commitFile );
+        }
+    }
+
+
+    private void runBackgroundCommit( File commitFile, LogSegment segment )
+    {
+        uncommittedFiles.add( commitFile );
+        try
+        {
+            awaitSegment( segment );
+            commitWriter();
+            deleteUncommittedFiles();
+        }
+        catch ( IOException ex )
+        {
+            // The file is kept, and deleted after the next successful commit or replayed on recovery
+            numberOfFailedCommits.incrementAndGet();
+            log.error( String.format( "Background commit of %s failed", commitFile ), ex );
+        }
+    }
+
+
+    private void deleteUncommittedFiles()
+    {
+        logFileLock.readLock().lock();
+        try
+        {
+            for ( File file : uncommittedFiles )
+            {
+                if ( !file.delete() )
+                {
+                    log.warn( "Could not delete committed log file {}", file );
+                }
+            }
+        }
+        finally
+        {
+            logFileLock.readLock().unlock();
+        }
+        uncommittedFiles.clear();
+    }
+
+
+    private static void awaitSegment( LogSegment segment ) throws IOException
+    {
+        try
+        {
+            segment.awaitUpdates();
+        }
+        catch ( InterruptedException ex )
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted while waiting for updates to be applied to the index" );
+        }
+    }
+
+
+    /**
+     * Registers a record appended to the log file in group commit mode.
+     * Must be called with the log monitor held, right after the write.
+     *
+     * @return the log position that must be durable for the record to be durable
+     */
+    private long recordAppended( int length )
+    {
+        synchronized ( syncLock )
+        {
+            appendedBytes += length;
+            appendedRecords++;
+            if ( appendedBytes - durableBytes >= groupCommitMaxBatchBytes )
+            {
+                // Wake a leader waiting for the batch to fill up
+                syncLock.notifyAll();
+            }
+            return appendedBytes;
+        }
+    }
+
+    /**
+     * Blocks until the log is durable up to the given position. The first
+     * waiting thread becomes leader: it waits up to the max delay for the
+     * batch to fill, then syncs the log file once on behalf of all records
+     * appended so far, while the other threads wait for it to finish.
+     */
+    private void waitForDurable( long target ) throws IOException
+    {
+        long waitStart = System.nanoTime();
+        try
+        {
+            while ( true )
+            {
+                long syncBytes;
+                long syncRecords;
+                synchronized ( syncLock )
+                {
+                    while ( durableBytes < target && syncInProgress )
+                    {
+                        syncLock.wait();
+                    }
+                    if ( durableBytes >= target )
+                    {
+                        return;
+                    }
+                    syncInProgress = true;
+                    try
+                    {
+                        long deadline = System.nanoTime() + groupCommitMaxDelayNs;
+                        long remaining = groupCommitMaxDelayNs;
+                        while ( appendedBytes - durableBytes < groupCommitMaxBatchBytes && remaining > 0 )
+                        {
+                            syncLock.wait( remaining / 1000000L, (int) ( remaining % 1000000L ) );
+                            remaining = deadline - System.nanoTime();
+                        }
+                    }
+                    catch ( InterruptedException ex )
+                    {
+                        syncInProgress = false;
+                        syncLock.notifyAll();
+                        throw ex;
+                    }
+                    syncBytes = appendedBytes;
+                    syncRecords = appendedRecords;
+                }
+
+                boolean synced = false;
+                try
+                {
+                    RandomAccessFile file;
+                    boolean ownFile = false;
+                    synchronized ( this )
+                    {
+                        file = fileAccess;
+                        if ( file == null && currentFile == null )
+                        {
+                            throw new IOException( "Write ahead log was shut down before the log file was synced" );
+                        }
+                        if ( file == null )
+                        {
+                            // The file is not kept open, was reset after a failed write, or was rotated
+                            // and the new file not opened yet. Sync the current file through a handle of
+                            // our own, records in a rotated file were synced by the rotation
+                            file = new RandomAccessFile( currentFile, "rw" );
+                            ownFile = true;
+                        }
+                    }
+                    try
+                    {
+                        syncFile( file );
+                    }
+                    finally
+                    {
+                        if ( ownFile )
+                        {
+                            file.close();
+                        }
+                    }
+                    synced = true;
+                }
+                finally
+                {
+                    synchronized ( syncLock )
+                    {
+                        if ( synced )
+                        {
+                            markDurable( syncBytes, syncRecords );
+                        }
+                        syncInProgress = false;
+                        syncLock.notifyAll();
+                    }
+                }
+            }
+        }
+        catch ( InterruptedException ex )
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted while waiting for Write Ahead Log sync" );
+        }
+        finally
+        {
+            totalSyncWaitTimeMicroS.addAndGet( ( System.nanoTime() - waitStart ) / 1000 );
+        }
+    }
+
+    /**
+     * Forces the log file to disk. In group commit mode all records appended
+     * before the call are durable when it returns.
+     */
+    private void syncFile( RandomAccessFile file ) throws IOException
+    {
+        long syncBytes;
+        long syncRecords;
+        synchronized ( syncLock )
+        {
+            syncBytes = appendedBytes;
+            syncRecords = appendedRecords;
+        }
+        long syncStart = System.nanoTime();
+        try
+        {
+            file.getChannel().force( false );
+        }
+        catch ( ClosedChannelException ex )
+        {
+            // Also thrown as ClosedByInterruptException when this thread was interrupted
+            synchronized ( syncLock )
+            {
+                if ( durableBytes >= syncBytes )
+                {
+                    // The file was closed by a rotation, which synced it first
+                    log.debug( "Log file was rotated during sync" );
+                    return;
+                }
+            }
+            throw ex;
+        }
+        long syncEnd = System.nanoTime();
+        numberOfSyncs.incrementAndGet();
+        totalSyncTimeMicroS.addAndGet( ( syncEnd - syncStart ) / 1000 );
+        synchronized ( syncLock )
+        {
+            markDurable( syncBytes, syncRecords );
+            syncLock.notifyAll();
+        }
+    }
+
+    /**
+     * Advances the durable position. Must be called with syncLock held.
+     */
+    private void markDurable( long bytes, long records )
+    {
+        if ( bytes > durableBytes )
+        {
+            totalSyncedBytes.addAndGet( bytes - durableBytes );
+            totalSyncedRecords.addAndGet( records - durableRecords );
+            durableBytes = bytes;
+            durableRecords = records;
+        }
+    }
+
+    /**
+     * Marks everything appended so far as durable, after it has been
+     * committed to the index.
+     */
+    private void markAllDurable()
+    {
+        synchronized ( syncLock )
+        {
+            markDurable( appendedBytes, appendedRecords );
+            syncLock.notifyAll();
+        }
+    }
+
     private void commitWriter() throws IOException
     {
         long commitStart = System.nanoTime();
@@ -334,12 +995,21 @@ public class WriteAheadLog extends WriteAheadLogStats
 
     public synchronized void flush() throws IOException{
         commitWriter();
+        markAllDurable();
         if ( fileAccess != null )
         {
             fileAccess.close();
             fileAccess = null;
         }
-        currentFile.delete();
+        logFileLock.readLock().lock();
+        try
+        {
+            currentFile.delete();
+        }
+        finally
+        {
+            logFileLock.readLock().unlock();
+        }
         currentFile = createNewFile();  
         
     }
@@ -348,7 +1018,30 @@ public class WriteAheadLog extends WriteAheadLogStats
         log.info( "Shutting down Write Ahead Log");
         isOpen = false;
 
+        if ( committer != null )
+        {
+            committer.shutdown();
+            try
+            {
+                while ( !committer.awaitTermination( 10, TimeUnit.SECONDS ) )
+                {
+                    log.info( "Waiting for background commits to finish" );
+                }
+            }
+            catch ( InterruptedException ex )
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException( "Interrupted while waiting for background commits" );
+            }
+        }
+
         commitWriter();
+        // Committing files left by failed or rejected background commits are covered by the commit above
+        for ( File comittingFile : getComittingFiles( storageDirectory ) )
+        {
+            comittingFile.delete();
+        }
+        markAllDurable();
 
         log.info( "Added {} documents. Comitted {} times", numberOfUpdatedDocuments, numberOfCommits );
         if ( currentFile != null )
@@ -384,7 +1077,8 @@ public class WriteAheadLog extends WriteAheadLogStats
     {
         if ( fileAccess == null )
         {
-            fileAccess = new RandomAccessFile( currentFile, "rwd" );
+            // In group commit mode durability is provided by explicit syncs of whole batches
+            fileAccess = new RandomAccessFile( currentFile, groupCommit ? "rw" : "rwd" );
             fileAccess.seek( currentFile.length() );
         }
         return fileAccess;
@@ -399,12 +1093,12 @@ public class WriteAheadLog extends WriteAheadLogStats
         }
     }
 
-    private void writeDocumentToFile( byte[] recordBytes ) throws IOException
+    private void writeDocumentToFile( ByteBuffer record ) throws IOException
     {
         long writeStart = System.nanoTime();
         try
         {
-            writeDocumentData( getFileAccess(), recordBytes );
+            writeDocumentData( getFileAccess(), record );
         }
         finally
         {
@@ -414,17 +1108,36 @@ public class WriteAheadLog extends WriteAheadLogStats
         totalWriteToFileTimeMicroS.addAndGet( (writeEnd - writeStart)/1000 );
     }
 
-//    private static byte[] createDocumentData( String pid, Document docOrNull ) throws IOException
-//    {
-//        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-//        ObjectOutputStream out = new ObjectOutputStream( bos );
-//        out.writeObject( pid );
-//        out.writeObject( docOrNull );
-//        byte[] recordBytes= bos.toByteArray();
-//        out.reset();
-//        return recordBytes;
-//    }
-    private static byte[] createDocumentData( String pid, Document docOrNull ) throws IOException
+    /**
+     * Encodes a record in the buffer of the calling thread, see
+     * {@link WriteAheadLogRecord}. The returned buffer is only valid until
+     * the thread encodes its next record.
+     */
+    private static ByteBuffer createDocumentData( String pid, Document docOrNull ) throws IOException
+    {
+        return WriteAheadLogRecord.encode( pid, docOrNull );
+    }
+
+
+    static void writeDocumentData( RandomAccessFile raf, String pid, Document docOrNull ) throws IOException
+    {
+        writeDocumentData( raf, createDocumentData( pid, docOrNull ) );
+    }
+
+    static void writeDocumentData( RandomAccessFile raf, ByteBuffer record ) throws IOException
+    {
+        FileChannel channel = raf.getChannel();
+        while ( record.hasRemaining() )
+        {
+            channel.write( record );
+        }
+    }
+
+    /**
+     * Writes a record in the Kryo format used by earlier versions, which
+     * {@link #readDocumentData(RandomAccessFile, boolean)} still reads.
+     */
+    static void writeLegacyDocumentData( RandomAccessFile raf, String pid, Document docOrNull ) throws IOException
     {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         OutputChunked output = new OutputChunked( bos );
@@ -435,26 +1148,38 @@ public class WriteAheadLog extends WriteAheadLogStats
         }
         output.endChunks();
         output.close();
-        byte[] recordBytes= bos.toByteArray();
-        return recordBytes;
-    }
-
-
-    static void writeDocumentData( RandomAccessFile raf, String pid, Document docOrNull ) throws IOException
-    {
-        byte[] recordBytes = createDocumentData( pid, docOrNull );
-
-        writeDocumentData( raf, recordBytes );
+        writeDocumentData( raf, ByteBuffer.wrap( bos.toByteArray() ) );
     }
 
-    static void writeDocumentData( RandomAccessFile raf, byte[] recordBytes ) throws IOException
+    /**
+     * Reads the record at the current position of the file, in the current
+     * format or, if allowed, in the Kryo format of earlier versions.
+     *
+     * @param allowLegacy whether the file was begun by an earlier version and may contain Kryo records
+     * @return the record, or null at the end of the file or if the rest of the file is a torn record
+     * @throws IOException if a record in the current format is corrupt, or if Kryo records are not allowed and the record does not start with a marker
+     * @throws KryoException if a Kryo record can not be read, which is also the case at the end of a file of Kryo records
+     */
+    static DocumentData readDocumentData( RandomAccessFile raf, boolean allowLegacy ) throws IOException, KryoException
     {
-        ByteBuffer rbb = ByteBuffer.wrap(recordBytes);
-
-        raf.getChannel().write( rbb );
+        long start = raf.getFilePointer();
+        if ( start >= raf.length() )
+        {
+            return null;
+        }
+        if ( raf.readByte() == WriteAheadLogRecord.MARKER )
+        {
+            return WriteAheadLogRecord.read( raf );
+        }
+        if ( !allowLegacy )
+        {
+            throw new IOException( String.format( "Corrupt record at position %d in the write ahead log", start ) );
+        }
+        raf.seek( start );
+        return readLegacyDocumentData( raf );
     }
 
-    static DocumentData readDocumentData( RandomAccessFile raf ) throws KryoException
+    private static DocumentData readLegacyDocumentData( RandomAccessFile raf ) throws KryoException
     {
         InputChunked input = new InputChunked( Channels.newInputStream( raf.getChannel() ) );
 
@@ -477,6 +1202,39 @@ public class WriteAheadLog extends WriteAheadLogStats
     }
 
 
+    /**
+     * Tracks updates written to one log file which are not yet applied to
+     * the index writer. A rotated file must not be deleted before its
+     * updates are applied and committed.
+     */
+    private static final class LogSegment
+    {
+        private int pendingUpdates = 0;
+
+        synchronized void beginUpdate()
+        {
+            pendingUpdates++;
+        }
+
+        synchronized void endUpdate()
+        {
+            pendingUpdates--;
+            if ( pendingUpdates == 0 )
+            {
+                notifyAll();
+            }
+        }
+
+        synchronized void awaitUpdates() throws InterruptedException
+        {
+            while ( pendingUpdates > 0 )
+            {
+                wait();
+            }
+        }
+    }
+
+
     static class DocumentData
     {
         final String pid;
@@ -0,0 +1,489 @@
+/*
+ * This file is part of opensearch.
+ * Copyright (c) 2012, Dansk Bibliotekscenter a/s,
+ * Tempovej 7-11, DK-2750 Ballerup, Denmark. CVR: 15149043
+ *
+ * opensearch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * opensearch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with opensearch. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package dk.dbc.opensearch.fedora.search;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.IntField;
+import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.SortedBytesDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.util.BytesRef;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Binary record format of the {@link WriteAheadLog}.
+ * <p>
+ * A record is laid out as
+ * <pre>
+ *   byte    0 (marker, never the first byte of a Kryo record)
+ *   byte    format version
+ *   int     payload length
+ *   int     CRC32 of the payload
+ *   payload:
+ *     string  pid
+ *     varint  number of fields, or 0 for a deleted document
+ *     per field:
+ *       byte    field type, with STORED_FLAG set for stored fields
+ *       varint  index in FIELD_NAMES plus one, or 0 followed by the name as a string
+ *       value   string, long, int or bytes depending on the type
+ * </pre>
+ * Strings and bytes are written as a varint length followed by the UTF-8
+ * encoded or raw bytes.
+ * <p>
+ * Records are encoded into a buffer owned by the calling thread, so
+ * encoding needs no locking and only allocates when a record is larger
+ * than any the thread encoded before.
+ */
+final class WriteAheadLogRecord
+{
+    private static final Logger log = LoggerFactory.getLogger( WriteAheadLogRecord.class );
+
+    static final byte MARKER = 0;
+    static final byte VERSION = 2;
+    private static final int HEADER_LENGTH = 10;
+
+    private static final int TYPE_STRING = 1;
+    private static final int TYPE_TEXT = 2;
+    private static final int TYPE_LONG = 3;
+    private static final int TYPE_INT = 4;
+    private static final int TYPE_STORED = 5;
+    private static final int TYPE_SORTED_BYTES = 6;
+    private static final int TYPE_MASK = 0x0f;
+    private static final int STORED_FLAG = 0x10;
+
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    /**
+     * Field names written as a dictionary index. This list is part of the
+     * record format: names may only be appended, never removed or reordered.
+     */
+    private static final List<String> FIELD_NAMES = Arrays.asList(
+            "pid", "pid_eq", "pid_namespace", "pid_identifier", "pid_int", "pid_docvalues",
+            "label", "label_eq", "label_stored",
+            "state", "state_eq", "state_stored",
+            "ownerid", "ownerid_eq", "ownerid_stored",
+            "cdate", "mdate", "dcmdate",
+            "title", "title_eq", "title_stored",
+            "creator", "creator_eq", "creator_stored",
+            "subject", "subject_eq", "subject_stored",
+            "description", "description_eq", "description_stored",
+            "publisher", "publisher_eq", "publisher_stored",
+            "contributor", "contributor_eq", "contributor_stored",
+            "date", "date_eq", "date_stored", "dateraw", "dateraw_eq",
+            "type", "type_eq", "type_stored",
+            "format", "format_eq", "format_stored",
+            "identifier", "identifier_eq", "identifier_stored",
+            "source", "source_eq", "source_stored",
+            "language", "language_eq", "language_stored",
+            "relation", "relation_eq", "relation_stored",
+            "coverage", "coverage_eq", "coverage_stored",
+            "rights", "rights_eq", "rights_stored",
+            "relobj", "relobj_eq", "relobj_stored",
+            "relpredobj", "relpredobj_eq", "relpredobj_stored",
+            "relsyspredobj", "relsyspredobj_eq", "relsyspredobj_stored",
+            "returnfields_stored" );
+
+    private static final Map<String, Integer> FIELD_NAME_INDEX = new HashMap<String, Integer>();
+
+    static
+    {
+        for ( int i = 0; i < FIELD_NAMES.size(); i++ )
+        {
+            FIELD_NAME_INDEX.put( FIELD_NAMES.get( i ), i );
+        }
+    }
+
+    private static final ThreadLocal<WriteAheadLogRecord> encoders = new ThreadLocal<WriteAheadLogRecord>()
+    {
+        @Override
+        protected WriteAheadLogRecord initialValue()
+        {
+            return new WriteAheadLogRecord();
+        }
+    };
+
+    private byte[] buffer = new byte[ 4096 ];
+    private int position;
+    private final CRC32 crc = new CRC32();
+    private final BytesRef scratch = new BytesRef();
+
+    private WriteAheadLogRecord()
+    {
+    }
+
+    /**
+     * Encodes an update or delete record into the buffer of the calling
+     * thread.
+     *
+     * @param pid the pid of the document
+     * @param docOrNull the document, or null for a delete
+     * @return a buffer holding the record. It is only valid until the calling thread encodes its next record
+     * @throws IOException if the document contains a field type which can not be encoded
+     */
+    static ByteBuffer encode( String pid, Document docOrNull ) throws IOException
+    {
+        return encoders.get().encodeRecord( pid, docOrNull );
+    }
+
+    private ByteBuffer encodeRecord( String pid, Document docOrNull ) throws IOException
+    {
+        position = HEADER_LENGTH;
+        writeString( pid );
+        if ( docOrNull == null )
+        {
+            writeVarInt( 0 );
+        }
+        else
+        {
+            List<IndexableField> fields = docOrNull.getFields();
+            if ( fields.isEmpty() )
+            {
+                throw new IOException( String.format( "Document for %s has no fields", pid ) );
+            }
+            writeVarInt( fields.size() );
+            for ( IndexableField field : fields )
+            {
+                writeField( field );
+            }
+        }
+
+        int payloadLength = position - HEADER_LENGTH;
+        crc.reset();
+        crc.update( buffer, HEADER_LENGTH, payloadLength );
+        buffer[ 0 ] = MARKER;
+        buffer[ 1 ] = VERSION;
+        putInt( 2, payloadLength );
+        putInt( 6, (int) crc.getValue() );
+        return ByteBuffer.wrap( buffer, 0, position );
+    }
+
+    private void writeField( IndexableField field ) throws IOException
+    {
+        int type;
+        if ( field instanceof StringField )
+        {
+            type = TYPE_STRING;
+        }
+        else if ( field instanceof TextField )
+        {
+            type = TYPE_TEXT;
+        }
+        else if ( field instanceof LongField )
+        {
+            type = TYPE_LONG;
+        }
+        else if ( field instanceof IntField )
+        {
+            type = TYPE_INT;
+        }
+        else if ( field instanceof SortedBytesDocValuesField )
+        {
+            type = TYPE_SORTED_BYTES;
+        }
+        else if ( field instanceof StoredField )
+        {
+            type = TYPE_STORED;
+        }
+        else
+        {
+            throw new IOException( String.format( "Unable to write field %s of type %s to the write ahead log",
+                    field.name(), field.getClass().getName() ) );
+        }
+        boolean stored = field.fieldType().stored();
+        writeByte( stored && type != TYPE_STORED ? type | STORED_FLAG : type );
+
+        Integer nameIndex = FIELD_NAME_INDEX.get( field.name() );
+        if ( nameIndex == null )
+        {
+            writeVarInt( 0 );
+            writeString( field.name() );
+        }
+        else
+        {
+            writeVarInt( nameIndex + 1 );
+        }
+
+        switch ( type )
+        {
+        case TYPE_LONG:
+            writeLong( field.numericValue().longValue() );
+            break;
+        case TYPE_INT:
+            writeInt( field.numericValue().intValue() );
+            break;
+        case TYPE_SORTED_BYTES:
+            BytesRef value = field.binaryValue();
+            writeBytes( value.bytes, value.offset, value.length );
+            break;
+        default:
+            String stringValue = field.stringValue();
+            if ( stringValue == null )
+            {
+                throw new IOException( String.format( "Field %s has no string value and can not be written to the write ahead log", field.name() ) );
+            }
+            writeString( stringValue );
+        }
+    }
+
+    private void ensureCapacity( int bytes )
+    {
+        if ( position + bytes > buffer.length )
+        {
+            buffer = Arrays.copyOf( buffer, Math.max( buffer.length * 2, position + bytes ) );
+        }
+    }
+
+    private void writeByte( int value )
+    {
+        ensureCapacity( 1 );
+        buffer[ position++ ] = (byte) value;
+    }
+
+    private void writeVarInt( int value )
+    {
+        ensureCapacity( 5 );
+        while ( ( value & ~0x7f ) != 0 )
+        {
+            buffer[ position++ ] = (byte) ( ( value & 0x7f ) | 0x80 );
+            value >>>= 7;
+        }
+        buffer[ position++ ] = (byte) value;
+    }
+
+    private void writeInt( int value )
+    {
+        ensureCapacity( 4 );
+        putInt( position, value );
+        position += 4;
+    }
+
+    private void writeLong( long value )
+    {
+        writeInt( (int) ( value >>> 32 ) );
+        writeInt( (int) value );
+    }
+
+    private void writeBytes( byte[] bytes, int offset, int length )
+    {
+        writeVarInt( length );
+        ensureCapacity( length );
+        System.arraycopy( bytes, offset, buffer, position, length );
+        position += length;
+    }
+
+    private void writeString( String value )
+    {
+        scratch.copyChars( value );
+        writeBytes( scratch.bytes, scratch.offset, scratch.length );
+    }
+
+    private void putInt( int offset, int value )
+    {
+        buffer[ offset ] = (byte) ( value >>> 24 );
+        buffer[ offset + 1 ] = (byte) ( value >>> 16 );
+        buffer[ offset + 2 ] = (byte) ( value >>> 8 );
+        buffer[ offset + 3 ] = (byte) value;
+    }
+
+
+    /**
+     * Reads a record, after its marker byte, from the current position of
+     * the file.
+     * <p>
+     * Only a torn tail, a record reaching the end of the file as left by a
+     * write interrupted by a crash, ends the log. A damaged record followed
+     * by more data is corruption, as skipping it would lose the records
+     * after it.
+     *
+     * @return the record, or null if the rest of the file is a torn tail
+     * @throws IOException if the record is corrupt, has an unknown version or can not be decoded
+     */
+    static WriteAheadLog.DocumentData read( RandomAccessFile raf ) throws IOException
+    {
+        long start = raf.getFilePointer() - 1;
+        byte[] payload;
+        try
+        {
+            int version = raf.readByte();
+            if ( version == 0 )
+            {
+                // A file system may leave zeros after the last write when crashing
+                if ( !isZeroFilled( raf ) )
+                {
+                    throw new IOException( String.format( "Corrupt record at position %d in the write ahead log", start ) );
+                }
+                log.warn( "Zero filled tail at position {} in the write ahead log", start );
+                return null;
+            }
+            if ( version != VERSION )
+            {
+                throw new IOException( String.format( "Unknown write ahead log record version %d at position %d", version, start ) );
+            }
+            int length = raf.readInt();
+            int checksum = raf.readInt();
+            if ( length < 0 )
+            {
+                throw new IOException( String.format( "Invalid length %d of record at position %d in the write ahead log", length, start ) );
+            }
+            if ( length > raf.length() - raf.getFilePointer() )
+            {
+                log.warn( "Incomplete record of {} bytes at the end of the write ahead log", length );
+                return null;
+            }
+            payload = new byte[ length ];
+            raf.readFully( payload );
+
+            CRC32 payloadCrc = new CRC32();
+            payloadCrc.update( payload );
+            if ( (int) payloadCrc.getValue() != checksum )
+            {
+                if ( raf.getFilePointer() < raf.length() )
+                {
+                    throw new IOException( String.format( "Checksum mismatch for record at position %d in the write ahead log, followed by %d more bytes",
+                            start, raf.length() - raf.getFilePointer() ) );
+                }
+                log.warn( "Checksum mismatch for the record at the end of the write ahead log, at position {}", start );
+                return null;
+            }
+        }
+        catch ( EOFException ex )
+        {
+            log.warn( "Incomplete record header at the end of the write ahead log" );
+            return null;
+        }
+        return decode( ByteBuffer.wrap( payload ) );
+    }
+
+    /**
+     * @return whether the file holds only zeros from the current position
+     */
+    private static boolean isZeroFilled( RandomAccessFile raf ) throws IOException
+    {
+        byte[] chunk = new byte[ 4096 ];
+        int read;
+        while ( ( read = raf.read( chunk ) ) > 0 )
+        {
+            for ( int i = 0; i < read; i++ )
+            {
+                if ( chunk[ i ] != 0 )
+                {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static WriteAheadLog.DocumentData decode( ByteBuffer in ) throws IOException
+    {
+        try
+        {
+            String pid = readString( in );
+            int fieldCount = readVarInt( in );
+            if ( fieldCount == 0 )
+            {
+                return new WriteAheadLog.DocumentData( pid, null );
+            }
+            Document doc = new Document();
+            for ( int i = 0; i < fieldCount; i++ )
+            {
+                doc.add( readField( in ) );
+            }
+            return new WriteAheadLog.DocumentData( pid, doc );
+        }
+        catch ( RuntimeException ex )
+        {
+            // Buffer underflows and invalid dictionary indexes in a record which passed the checksum
+            throw new IOException( "Unable to decode write ahead log record", ex );
+        }
+    }
+
+    private static Field readField( ByteBuffer in ) throws IOException
+    {
+        int typeAndFlags = in.get();
+        boolean stored = ( typeAndFlags & STORED_FLAG ) != 0;
+        Field.Store store = stored ? Field.Store.YES : Field.Store.NO;
+        int nameIndex = readVarInt( in );
+        String name = nameIndex == 0 ? readString( in ) : FIELD_NAMES.get( nameIndex - 1 );
+
+        switch ( typeAndFlags & TYPE_MASK )
+        {
+        case TYPE_STRING:
+            return new StringField( name, readString( in ), store );
+        case TYPE_TEXT:
+            return new TextField( name, readString( in ), store );
+        case TYPE_LONG:
+            return new LongField( name, in.getLong(), store );
+        case TYPE_INT:
+            return new IntField( name, in.getInt(), store );
+        case TYPE_STORED:
+            return new StoredField( name, readString( in ) );
+        case TYPE_SORTED_BYTES:
+            return new SortedBytesDocValuesField( name, new BytesRef( readBytes( in ) ) );
+        default:
+            throw new IOException( String.format( "Unknown field type %d for field %s in write ahead log record", typeAndFlags & TYPE_MASK, name ) );
+        }
+    }
+
+    private static int readVarInt( ByteBuffer in )
+    {
+        int value = 0;
+        for ( int shift = 0; ; shift += 7 )
+        {
+            byte b = in.get();
+            value |= ( b & 0x7f ) << shift;
+            if ( ( b & 0x80 ) == 0 )
+            {
+                return value;
+            }
+        }
+    }
+
+    private static byte[] readBytes( ByteBuffer in )
+    {
+        byte[] bytes = new byte[ readVarInt( in ) ];
+        in.get( bytes );
+        return bytes;
+    }
+
+    private static String readString( ByteBuffer in )
+    {
+        int length = readVarInt( in );
+        String value = new String( in.array(), in.arrayOffset() + in.position(), length, UTF8 );
+        in.position( in.position() + length );
+        return value;
+    }
+}
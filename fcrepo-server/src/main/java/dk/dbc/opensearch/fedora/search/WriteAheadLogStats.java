@@ -47,6 +47,20 @@ public class WriteAheadLogStats implements WriteAheadLogStatsMBean
 
     protected final AtomicLong totalCommitToLuceneTimeMicroS = new AtomicLong();
 
+    protected final AtomicInteger numberOfFailedCommits = new AtomicInteger();
+
+    protected final AtomicInteger numberOfPendingCommits = new AtomicInteger();
+
+    protected final AtomicInteger numberOfSyncs = new AtomicInteger();
+
+    protected final AtomicLong totalSyncTimeMicroS = new AtomicLong();
+
+    protected final AtomicLong totalSyncWaitTimeMicroS = new AtomicLong();
+
+    protected final AtomicLong totalSyncedRecords = new AtomicLong();
+
+    protected final AtomicLong totalSyncedBytes = new AtomicLong();
+
     protected final int commitSize;
 
 
@@ -94,6 +108,66 @@ public class WriteAheadLogStats implements WriteAheadLogStatsMBean
     }
 
 
+    @Override
+    public int getNumberOfFailedCommits()
+    {
+        return numberOfFailedCommits.get();
+    }
+
+
+    @Override
+    public int getNumberOfPendingCommits()
+    {
+        return numberOfPendingCommits.get();
+    }
+
+
+    @Override
+    public long getAverageSyncTimeMicroS()
+    {
+        int syncs = getNumberOfSyncs();
+        return syncs == 0 ? 0 : totalSyncTimeMicroS.get() / syncs;
+    }
+
+
+    @Override
+    public long getAverageSyncWaitTimeMicroS()
+    {
+        long records = totalSyncedRecords.get();
+        return records == 0 ? 0 : totalSyncWaitTimeMicroS.get() / records;
+    }
+
+
+    @Override
+    public long getAverageSyncBatchRecords()
+    {
+        int syncs = getNumberOfSyncs();
+        return syncs == 0 ? 0 : totalSyncedRecords.get() / syncs;
+    }
+
+
+    @Override
+    public long getAverageSyncBatchBytes()
+    {
+        int syncs = getNumberOfSyncs();
+        return syncs == 0 ? 0 : totalSyncedBytes.get() / syncs;
+    }
+
+
+    @Override
+    public int getNumberOfSyncs()
+    {
+        return numberOfSyncs.get();
+    }
+
+
+    @Override
+    public long getTotalSyncTimeMicroS()
+    {
+        return totalSyncTimeMicroS.get();
+    }
+
+
     @Override
     public int getCommitSize()
     {
@@ -44,4 +44,20 @@ public interface WriteAheadLogStatsMBean {
     long getAverageUpdateTimeMicroS();
 
     long getAverageWriteToFileTimeMicroS();
+
+    int getNumberOfFailedCommits();
+
+    int getNumberOfPendingCommits();
+
+    int getNumberOfSyncs();
+
+    long getTotalSyncTimeMicroS();
+
+    long getAverageSyncTimeMicroS();
+
+    long getAverageSyncWaitTimeMicroS();
+
+    long getAverageSyncBatchRecords();
+
+    long getAverageSyncBatchBytes();
 }
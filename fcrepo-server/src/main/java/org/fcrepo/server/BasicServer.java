@@ -17,6 +17,7 @@ import org.fcrepo.common.rdf.RDFName;
 import org.fcrepo.server.errors.ModuleInitializationException;
 import org.fcrepo.server.errors.ServerInitializationException;
 import org.fcrepo.server.storage.DOManager;
+import org.fcrepo.server.storage.DefaultDOManager;
 import org.fcrepo.server.storage.DOWriter;
 import org.fcrepo.server.utilities.status.ServerState;
 import org.fcrepo.server.utilities.status.ServerStatusFile;
@@ -95,6 +96,9 @@ public class BasicServer
     public void postInitServer() throws ServerInitializationException {
         // check for system objects and pre-ingest them if necessary
         DOManager doManager = (DOManager) getModule(DOManager.class.getName());
+        if (doManager instanceof DefaultDOManager) {
+            ((DefaultDOManager) doManager).replayIndexUpdates();
+        }
         try {
             boolean firstRun = checkFirstRun();
             preIngestIfNeeded(firstRun, doManager, Models.CONTENT_MODEL_3_0);
@@ -5,6 +5,7 @@
 package org.fcrepo.server.access;
 
 import java.util.Date;
+import java.util.Map;
 
 import org.fcrepo.server.Context;
 import org.fcrepo.server.errors.ServerException;
@@ -125,6 +126,68 @@ public interface Access {
                                                String sessionToken)
             throws ServerException;
 
+    /**
+     * Lists the specified fields of each object matching the given criteria,
+     * one page at a time in pid order, without a session on the server.
+     *
+     * @param context
+     *        the context of this request
+     * @param resultFields
+     *        the names of the fields to return
+     * @param maxResults
+     *        the maximum number of results in the page
+     * @param query
+     *        the query
+     * @param afterPid
+     *        return only objects with a pid after this one, or null for the
+     *        first page
+     * @return the specified fields of each object in the page.
+     * @throws ServerException
+     *         If any type of error occurred fulfilling the request.
+     */
+    public FieldSearchResult findObjectsAfter(Context context,
+                                              String[] resultFields,
+                                              int maxResults,
+                                              FieldSearchQuery query,
+                                              String afterPid)
+            throws ServerException;
+
+    /**
+     * Counts the objects matching the given criteria.
+     *
+     * @param context
+     *        the context of this request
+     * @param query
+     *        the query
+     * @return the number of matching objects.
+     * @throws ServerException
+     *         If any type of error occurred fulfilling the request.
+     */
+    public long countObjects(Context context, FieldSearchQuery query)
+            throws ServerException;
+
+    /**
+     * Counts the values of the given fields over the objects matching the
+     * given criteria.
+     *
+     * @param context
+     *        the context of this request
+     * @param fields
+     *        the names of the fields to count values for
+     * @param maxValues
+     *        the maximum number of values to return for each field
+     * @param query
+     *        the query
+     * @return the most frequent values of each field and their counts.
+     * @throws ServerException
+     *         If any type of error occurred fulfilling the request.
+     */
+    public Map<String, Map<String, Integer>> findFacets(Context context,
+                                                        String[] fields,
+                                                        int maxValues,
+                                                        FieldSearchQuery query)
+            throws ServerException;
+
     /**
      * Gets information that describes the repository.
      * 
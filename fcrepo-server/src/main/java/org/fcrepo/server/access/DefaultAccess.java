@@ -706,6 +706,83 @@ public class DefaultAccess
         return m_manager.resumeFindObjects(context, sessionToken);
     }
 
+    /**
+     * <p>
+     * Lists the specified fields of each object matching the given criteria,
+     * one page at a time in pid order.
+     * </p>
+     *
+     * @param context
+     *        the context of this request
+     * @param resultFields
+     *        the names of the fields to return
+     * @param maxResults
+     *        the maximum number of results in the page
+     * @param query
+     *        the query
+     * @param afterPid
+     *        return only objects with a pid after this one, or null for the
+     *        first page
+     * @return the page of results
+     * @throws ServerException
+     *         If any type of error occurred fulfilling the request.
+     */
+    public FieldSearchResult findObjectsAfter(Context context,
+                                              String[] resultFields,
+                                              int maxResults,
+                                              FieldSearchQuery query,
+                                              String afterPid)
+            throws ServerException {
+        m_authorizationModule.enforceFindObjects(context);
+        return m_manager.findObjectsAfter(context, resultFields, maxResults, query, afterPid);
+    }
+
+    /**
+     * <p>
+     * Counts the objects matching the given criteria, without listing them.
+     * </p>
+     *
+     * @param context
+     *        the context of this request
+     * @param query
+     *        the query
+     * @return the number of matching objects
+     * @throws ServerException
+     *         If any type of error occurred fulfilling the request.
+     */
+    public long countObjects(Context context, FieldSearchQuery query)
+            throws ServerException {
+        m_authorizationModule.enforceFindObjects(context);
+        return m_manager.countObjects(context, query);
+    }
+
+    /**
+     * <p>
+     * Counts the values of the given fields over the objects matching the
+     * given criteria.
+     * </p>
+     *
+     * @param context
+     *        the context of this request
+     * @param fields
+     *        the names of the fields to count values for
+     * @param maxValues
+     *        the maximum number of values to return for each field
+     * @param query
+     *        the query
+     * @return the most frequent values of each field and their counts
+     * @throws ServerException
+     *         If any type of error occurred fulfilling the request.
+     */
+    public Map<String, Map<String, Integer>> findFacets(Context context,
+                                                        String[] fields,
+                                                        int maxValues,
+                                                        FieldSearchQuery query)
+            throws ServerException {
+        m_authorizationModule.enforceFindObjects(context);
+        return m_manager.findFacets(context, fields, maxValues, query);
+    }
+
     /**
      * <p>
      * Gets information that describes the repository.
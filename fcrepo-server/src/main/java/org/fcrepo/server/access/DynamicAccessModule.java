@@ -311,6 +311,34 @@ public class DynamicAccessModule
         return null;
     }
 
+    // FIXIT: What do these mean in this context...anything?
+    // Maybe these methods' exposure needs to be re-thought?
+    public FieldSearchResult findObjectsAfter(Context context,
+                                              String[] resultFields,
+                                              int maxResults,
+                                              FieldSearchQuery query,
+                                              String afterPid)
+            throws ServerException {
+        return null;
+    }
+
+    // FIXIT: What do these mean in this context...anything?
+    // Maybe these methods' exposure needs to be re-thought?
+    public long countObjects(Context context, FieldSearchQuery query)
+            throws ServerException {
+        return 0;
+    }
+
+    // FIXIT: What do these mean in this context...anything?
+    // Maybe these methods' exposure needs to be re-thought?
+    public Map<String, Map<String, Integer>> findFacets(Context context,
+                                                        String[] fields,
+                                                        int maxValues,
+                                                        FieldSearchQuery query)
+            throws ServerException {
+        return null;
+    }
+
     // FIXIT: What do these mean in this context...anything?
     // Maybe these methods' exposure needs to be re-thought?
     public RepositoryInfo describeRepository(Context context)
@@ -143,6 +143,19 @@ public class DBPIDGenerator
         return m_lastPID;
     }
 
+    /**
+     * Generate a number of new pids that are guaranteed to be unique, within
+     * the given namespace.
+     */
+    public synchronized PID[] generatePIDs(String namespace, int count)
+            throws IOException {
+        PID[] pids = new PID[count];
+        for (int i = 0; i < count; i++) {
+            pids[i] = generatePID(namespace);
+        }
+        return pids;
+    }
+
     /**
      * Get the last pid that was generated.
      */
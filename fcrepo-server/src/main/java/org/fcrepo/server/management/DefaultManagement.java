@@ -123,6 +123,9 @@ public class DefaultManagement
     // FCREPO-765: move to Admin module
     private static final String xmlHeader = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n";
 
+    /** Locations of managed content that is fetched when the object is committed */
+    private static final Pattern URL_PROTOCOL = Pattern.compile("^\\w+:\\/.*$");
+
     /**
      * @param purgeDelayInMillis milliseconds to delay before removing
      *                           old uploaded files
@@ -552,10 +555,7 @@ public class DefaultManagement
             }
 
             if (checksum != null && checksumType != null) {
-                String check = ds.getChecksum();
-                if (!checksum.equals(check)) {
-                    throw new ValidationException("Checksum Mismatch: " + check);
-                }
+                verifyChecksum(ds, checksum);
             }
 
             // Update audit trail
@@ -764,10 +764,7 @@ public class DefaultManagement
                 if (checksumType == null) {
                     newds.DSChecksumType = orig.DSChecksumType;
                 }
-                String check = newds.getChecksum();
-                if (!checksum.equals(check)) {
-                    throw new ValidationException("Checksum Mismatch: " + check);
-                }
+                verifyChecksum(newds, checksum);
             }
 
             // Update audit trail
@@ -1465,6 +1462,24 @@ public class DefaultManagement
         }
     }
 
+    /**
+     * Checks that a checksum passed in matches the content of a datastream.
+     * The check of managed content that is fetched at commit time is left to
+     * the commit, which computes the checksum while it stores the content.
+     */
+    private static void verifyChecksum(Datastream ds, String checksum)
+            throws ValidationException {
+        if (ds instanceof DatastreamManagedContent && ds.DSLocation != null
+                && URL_PROTOCOL.matcher(ds.DSLocation).matches()) {
+            ((DatastreamManagedContent) ds).DSExpectedChecksum = checksum;
+            return;
+        }
+        String check = ds.getChecksum();
+        if (!checksum.equals(check)) {
+            throw new ValidationException("Checksum Mismatch: " + check);
+        }
+    }
+
     public String compareDatastreamChecksum(Context context,
                                             String pid,
                                             String datastreamID,
@@ -204,6 +204,13 @@ public class ResourceIndexRebuilder
         m_ri.addObject(new SimpleDOReader(null, null, null, null, null, obj));
     }
 
+    /**
+     * Nothing to roll back, the objects added so far stay in the resource
+     * index.
+     */
+    public void abort() {
+    }
+
     /**
      * Free up any system resources associated with rebuilding.
      */
@@ -519,6 +519,12 @@ public class DefaultSerializer {
 
     String searchResultToXml(
             FieldSearchResult result) {
+        return searchResultToXml(result, null);
+    }
+
+    String searchResultToXml(
+            FieldSearchResult result,
+            Map<String, Map<String, Integer>> facets) {
         StringBuffer xmlBuf = new StringBuffer();
 
         xmlBuf.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
@@ -543,45 +549,93 @@ public class DefaultSerializer {
         xmlBuf.append("  <resultList>\n");
 
         if (result != null) {
-            List<ObjectFields> fieldList = result.objectFieldsList();
-
-            for (int i = 0; i < fieldList.size(); i++) {
-                ObjectFields f = fieldList.get(i);
-                xmlBuf.append("  <objectFields>\n");
-                appendXML("pid", f.getPid(), xmlBuf);
-                appendXML("label", f.getLabel(), xmlBuf);
-                appendXML("state", f.getState(), xmlBuf);
-                appendXML("ownerId", f.getOwnerId(), xmlBuf);
-                appendXML("cDate", f.getCDate(), xmlBuf);
-                appendXML("mDate", f.getMDate(), xmlBuf);
-                appendXML("dcmDate", f.getDCMDate(), xmlBuf);
-                appendXML("relObj", f.relObjs(), xmlBuf);
-                appendXML("relPredObj", f.relPredObjs(), xmlBuf);
-                appendXML("relSysPredObj", f.relSysPredObjs(), xmlBuf);
-                appendXML("title", f.titles(), xmlBuf);
-                appendXML("creator", f.creators(), xmlBuf);
-                appendXML("subject", f.subjects(), xmlBuf);
-                appendXML("description", f.descriptions(), xmlBuf);
-                appendXML("publisher", f.publishers(), xmlBuf);
-                appendXML("contributor", f.contributors(), xmlBuf);
-                appendXML("date", f.dates(), xmlBuf);
-                appendXML("type", f.types(), xmlBuf);
-                appendXML("format", f.formats(), xmlBuf);
-                appendXML("identifier", f.identifiers(), xmlBuf);
-                appendXML("source", f.sources(), xmlBuf);
-                appendXML("language", f.languages(), xmlBuf);
-                appendXML("relation", f.relations(), xmlBuf);
-                appendXML("coverage", f.coverages(), xmlBuf);
-                appendXML("rights", f.rights(), xmlBuf);
-                xmlBuf.append("  </objectFields>\n");
-            }
+            appendObjectFieldsXml(result.objectFieldsList(), xmlBuf);
         }
         xmlBuf.append("  </resultList>\n");
+        appendFacetsXml(facets, xmlBuf);
+        xmlBuf.append("</result>\n");
+
+        return xmlBuf.toString();
+    }
+
+    String searchCountToXml(
+            long count,
+            Map<String, Map<String, Integer>> facets) {
+        StringBuffer xmlBuf = new StringBuffer();
+
+        xmlBuf.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        xmlBuf.append("<result xmlns=\"http://www.fedora.info/definitions/1/0/types/\">\n");
+        xmlBuf.append("  <completeListSize>" + count + "</completeListSize>\n");
+        appendFacetsXml(facets, xmlBuf);
         xmlBuf.append("</result>\n");
 
         return xmlBuf.toString();
     }
 
+    private static void appendFacetsXml(
+            Map<String, Map<String, Integer>> facets,
+            StringBuffer xmlBuf) {
+        if (facets == null) {
+            return;
+        }
+        xmlBuf.append("  <facetList>\n");
+        for (Map.Entry<String, Map<String, Integer>> facet : facets.entrySet()) {
+            xmlBuf.append("    <facet name=\"" + enc(facet.getKey()) + "\">\n");
+            for (Map.Entry<String, Integer> value : facet.getValue().entrySet()) {
+                xmlBuf.append("      <value count=\"" + value.getValue() + "\">"
+                              + enc(value.getKey()) + "</value>\n");
+            }
+            xmlBuf.append("    </facet>\n");
+        }
+        xmlBuf.append("  </facetList>\n");
+    }
+
+    /**
+     * Serializes a page of objectFields elements without the enclosing
+     * result document, for responses streaming several pages.
+     */
+    String objectFieldsToXml(
+            List<ObjectFields> fieldList) {
+        StringBuffer xmlBuf = new StringBuffer();
+        appendObjectFieldsXml(fieldList, xmlBuf);
+        return xmlBuf.toString();
+    }
+
+    private static void appendObjectFieldsXml(
+            List<ObjectFields> fieldList,
+            StringBuffer xmlBuf) {
+        for (int i = 0; i < fieldList.size(); i++) {
+            ObjectFields f = fieldList.get(i);
+            xmlBuf.append("  <objectFields>\n");
+            appendXML("pid", f.getPid(), xmlBuf);
+            appendXML("label", f.getLabel(), xmlBuf);
+            appendXML("state", f.getState(), xmlBuf);
+            appendXML("ownerId", f.getOwnerId(), xmlBuf);
+            appendXML("cDate", f.getCDate(), xmlBuf);
+            appendXML("mDate", f.getMDate(), xmlBuf);
+            appendXML("dcmDate", f.getDCMDate(), xmlBuf);
+            appendXML("relObj", f.relObjs(), xmlBuf);
+            appendXML("relPredObj", f.relPredObjs(), xmlBuf);
+            appendXML("relSysPredObj", f.relSysPredObjs(), xmlBuf);
+            appendXML("title", f.titles(), xmlBuf);
+            appendXML("creator", f.creators(), xmlBuf);
+            appendXML("subject", f.subjects(), xmlBuf);
+            appendXML("description", f.descriptions(), xmlBuf);
+            appendXML("publisher", f.publishers(), xmlBuf);
+            appendXML("contributor", f.contributors(), xmlBuf);
+            appendXML("date", f.dates(), xmlBuf);
+            appendXML("type", f.types(), xmlBuf);
+            appendXML("format", f.formats(), xmlBuf);
+            appendXML("identifier", f.identifiers(), xmlBuf);
+            appendXML("source", f.sources(), xmlBuf);
+            appendXML("language", f.languages(), xmlBuf);
+            appendXML("relation", f.relations(), xmlBuf);
+            appendXML("coverage", f.coverages(), xmlBuf);
+            appendXML("rights", f.rights(), xmlBuf);
+            xmlBuf.append("  </objectFields>\n");
+        }
+    }
+
     static private String join(
             List<DCField> l) {
         StringBuffer ret = new StringBuffer();
@@ -5,9 +5,14 @@
 package org.fcrepo.server.rest;
 
 import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -17,25 +22,36 @@ import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import org.fcrepo.server.Context;
+import org.fcrepo.server.errors.ServerException;
 import org.fcrepo.server.search.Condition;
 import org.fcrepo.server.search.FieldSearchQuery;
 import org.fcrepo.server.search.FieldSearchResult;
+import org.fcrepo.server.search.ObjectFields;
 
 
 /**
  * Implement /objects REST API (search)
  *
- * GET /objects ? terms query sessionToken maxResults format
+ * GET /objects ? terms query sessionToken maxResults format countOnly facet facetLimit
+ * GET /objects/stream ? terms query pageSize
  *
  * @author cuong.tran@yourmediashelf.com
  * @version $Id$
  */
 @Path("/objects")
 public class FedoraObjectSearchResource extends BaseRestResource {
+    private static final Logger logger =
+            LoggerFactory.getLogger(FedoraObjectSearchResource.class);
+
     static final String[] SEARCHABLE_FIELDS = { "pid", "label", "state", "ownerId",
             "cDate", "mDate", "dcmDate", "relObj", "relPredObj", "relSysPredObj", "title", "creator", "subject", "description",
             "publisher", "contributor", "date", "type", "format", "identifier",
@@ -55,13 +71,33 @@ public class FedoraObjectSearchResource extends BaseRestResource {
             String sessionToken,
             @QueryParam("resultFormat")
             @DefaultValue(HTML)
-            String format) {
+            String format,
+            @QueryParam("countOnly")
+            @DefaultValue("false")
+            boolean countOnly,
+            @QueryParam("facet")
+            List<String> facetFields,
+            @QueryParam("facetLimit")
+            @DefaultValue("10")
+            int facetLimit) {
 
         try {
             Context context = getContext();
-            String[] wantedFields = getWantedFields(servletRequest);
             MediaType mime = RestHelper.getContentType(format);
 
+            // Facets are only included in XML results
+            Map<String, Map<String, Integer>> facets = null;
+            if (facetFields != null && !facetFields.isEmpty() && sessionToken == null
+                    && (countOnly || !TEXT_HTML.isCompatible(mime))) {
+                facets = apiAService.findFacets(context, facetFields.toArray(new String[facetFields.size()]),
+                        facetLimit, getQuery(terms, query));
+            }
+            if (countOnly) {
+                long count = apiAService.countObjects(context, getQuery(terms, query));
+                return Response.ok(getSerializer(context).searchCountToXml(count, facets), TEXT_XML).build();
+            }
+            String[] wantedFields = getWantedFields(servletRequest);
+
             FieldSearchResult result = null;
 
             if (wantedFields.length > 0 || sessionToken != null) {
@@ -80,7 +116,7 @@ public class FedoraObjectSearchResource extends BaseRestResource {
             if (TEXT_HTML.isCompatible(mime)) {
                 output = getSerializer(context).searchResultToHtml(query, terms, SEARCHABLE_FIELDS, wantedFields, maxResults, result);
             } else {
-                output = getSerializer(context).searchResultToXml(result);
+                output = getSerializer(context).searchResultToXml(result, facets);
 
             }
 
@@ -90,6 +126,95 @@ public class FedoraObjectSearchResource extends BaseRestResource {
         }
     }
 
+    /**
+     * Builds the query from the terms or query parameter. Without either,
+     * the query matches all objects.
+     */
+    private static FieldSearchQuery getQuery(String terms, String query)
+            throws ServerException {
+        if ((terms != null) && (terms.length() != 0)) {
+            return new FieldSearchQuery(terms);
+        } else if ((query != null) && (query.length() != 0)) {
+            return new FieldSearchQuery(Condition.getConditions(query));
+        } else {
+            return new FieldSearchQuery("*");
+        }
+    }
+
+    /**
+     * Streams all objects matching the search as a single XML result,
+     * ordered by pid. The result is fetched from the search module one page
+     * of pageSize objects at a time, each page continuing after the last pid
+     * of the previous one, so no search session is held open on the server
+     * while the client reads the response.
+     */
+    @Path("stream")
+    @GET
+    @Produces( { XML })
+    public Response streamObjects(
+            @QueryParam("terms")
+            String terms,
+            @QueryParam("query")
+            String query,
+            @QueryParam("pageSize")
+            @DefaultValue("1000")
+            int pageSize) {
+
+        try {
+            if (pageSize <= 0) {
+                throw new IllegalArgumentException("pageSize must be positive, was " + pageSize);
+            }
+            final Context context = getContext();
+            final String[] wantedFields = getStreamedFields(servletRequest);
+            final FieldSearchQuery fsq = getQuery(terms, query);
+            final DefaultSerializer serializer = getSerializer(context);
+            final int size = pageSize;
+
+            // Fetch the first page before streaming, so errors in the query
+            // are reported with a proper status code
+            final FieldSearchResult first = apiAService.findObjectsAfter(context, wantedFields, size, fsq, null);
+
+            StreamingOutput stream = new StreamingOutput() {
+                @Override
+                public void write(OutputStream output) throws IOException {
+                    Writer out = new OutputStreamWriter(output, "UTF-8");
+                    out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+                    out.write("<result xmlns=\"http://www.fedora.info/definitions/1/0/types/\">\n");
+                    out.write("  <resultList>\n");
+                    FieldSearchResult result = first;
+                    while (true) {
+                        List<ObjectFields> page = result.objectFieldsList();
+                        out.write(serializer.objectFieldsToXml(page));
+                        out.flush();
+                        if (result.getCompleteListSize() < size) {
+                            break;
+                        }
+                        if (page.isEmpty()) {
+                            // None of the objects in the page could be read, so
+                            // there is no pid to continue after
+                            logger.warn("Stopping object stream, no object in a page of {} could be read", size);
+                            break;
+                        }
+                        String afterPid = page.get(page.size() - 1).getPid();
+                        try {
+                            result = apiAService.findObjectsAfter(context, wantedFields, size, fsq, afterPid);
+                        } catch (ServerException ex) {
+                            logger.error("Unable to continue object stream after " + afterPid, ex);
+                            throw new WebApplicationException(ex);
+                        }
+                    }
+                    out.write("  </resultList>\n");
+                    out.write("</result>\n");
+                    out.flush();
+                }
+            };
+
+            return Response.ok(stream, TEXT_XML).build();
+        } catch (Exception ex) {
+            return handleException(ex);
+        }
+    }
+
     /**
      * Implements the "getNextPID" functionality of the Fedora Management LITE
      * (API-M-LITE) interface using a java servlet front end. The syntax defined
@@ -156,4 +281,22 @@ public class FedoraObjectSearchResource extends BaseRestResource {
 
         return fields.toArray(new String[fields.size()]);
     }
+
+    /**
+     * The wanted fields for a stream always include the pid, which is
+     * needed to continue after the last object of each page.
+     */
+    private static String[] getStreamedFields(
+            HttpServletRequest request) {
+        List<String> fields = new ArrayList<String>();
+        fields.add("pid");
+
+        for (String f : SEARCHABLE_FIELDS) {
+            if (!"pid".equals(f) && "true".equals(request.getParameter(f))) {
+                fields.add(f);
+            }
+        }
+
+        return fields.toArray(new String[fields.size()]);
+    }
 }
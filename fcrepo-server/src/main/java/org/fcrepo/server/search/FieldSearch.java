@@ -4,6 +4,9 @@
  */
 package org.fcrepo.server.search;
 
+import java.util.Iterator;
+import java.util.Map;
+
 import org.fcrepo.server.errors.ServerException;
 import org.fcrepo.server.storage.DOReader;
 
@@ -79,6 +82,117 @@ public interface FieldSearch {
     public FieldSearchResult resumeFindObjects(String sessionToken)
             throws ServerException;
 
+    /**
+     * Search across specific fields and return one page of results, ordered
+     * by pid, starting after the given pid. No session is kept on the
+     * server; the next page is requested with the last pid of this page.
+     * Objects added or removed between pages are included or left out
+     * according to their position in the pid order.
+     *
+     * @param resultFields
+     *        the fields to return
+     * @param maxResults
+     *        the maximum number of results in the page
+     * @param query
+     *        the query
+     * @param afterPid
+     *        return only objects with a pid after this one, or null for the
+     *        first page
+     * @return FieldSearchResult the page of results, without session token
+     * @throws ServerException
+     *         if anything went wrong
+     */
+    public FieldSearchResult findObjectsAfter(String[] resultFields,
+                                              int maxResults,
+                                              FieldSearchQuery query,
+                                              String afterPid)
+            throws ServerException;
+
+    /**
+     * Count the objects matching a query, without building a search result.
+     *
+     * @param query
+     *        the query
+     * @return the number of matching objects
+     * @throws ServerException
+     *         if anything went wrong
+     */
+    public long countObjects(FieldSearchQuery query) throws ServerException;
+
+    /**
+     * Count the values of the given fields over the objects matching a
+     * query (facets).
+     *
+     * @param fields
+     *        the fields to count values for
+     * @param maxValues
+     *        the maximum number of values to return for each field
+     * @param query
+     *        the query
+     * @return map from each field to its most frequent values and their
+     *         counts, ordered by descending count
+     * @throws ServerException
+     *         if anything went wrong, or a field can not be counted
+     */
+    public Map<String, Map<String, Integer>> findFacets(String[] fields,
+                                                        int maxValues,
+                                                        FieldSearchQuery query)
+            throws ServerException;
+
     public int findHighestID(String namespace)
             throws ServerException;
+
+    /**
+     * Check whether an object is present in the search indexes, without
+     * building a search result.
+     *
+     * @param pid
+     *        the unique id of the object
+     * @return true if the object is indexed; false otherwise.
+     * @throws ServerException
+     *         if anything went wrong
+     */
+    public boolean objectExists(String pid) throws ServerException;
+
+    /**
+     * Enumerate the pids of all objects in the search indexes. The pids are
+     * read as the iterator advances, so the complete list is never held in
+     * memory. Implementations may hold index resources until the iterator
+     * is exhausted.
+     *
+     * @return an iterator over all indexed pids, in no particular order
+     * @throws ServerException
+     *         if anything went wrong
+     */
+    public Iterator<String> listObjectPIDs() throws ServerException;
+
+    /**
+     * Start bulk loading, for rebuilding the search indexes from scratch.
+     * The indexes are emptied, and updates may be buffered until
+     * {@link #endBulkLoad()} makes them all searchable at once.
+     *
+     * @return true if bulk loading was started; false if it is not
+     *         supported, in which case updates are indexed as usual.
+     * @throws ServerException
+     *         if anything went wrong
+     */
+    public boolean beginBulkLoad() throws ServerException;
+
+    /**
+     * End bulk loading started by {@link #beginBulkLoad()}, committing the
+     * updates since.
+     *
+     * @throws ServerException
+     *         if anything went wrong
+     */
+    public void endBulkLoad() throws ServerException;
+
+    /**
+     * Abort bulk loading started by {@link #beginBulkLoad()}, rolling the
+     * search indexes back to how they were before.
+     *
+     * @throws ServerException
+     *         if anything went wrong
+     */
+    public void abortBulkLoad() throws ServerException;
 }
@@ -16,6 +16,9 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
 import org.fcrepo.server.errors.MethodNotFoundException;
 
 import org.slf4j.Logger;
@@ -422,4 +425,96 @@ public class FieldSearchSQLImpl
     public int findHighestID(String namespace) throws ServerException {
         throw new MethodNotFoundException("FieldSearchSQL does not implement findHighestID");
     }
+
+    @Override
+    public FieldSearchResult findObjectsAfter(String[] resultFields,
+                                              int maxResults,
+                                              FieldSearchQuery query,
+                                              String afterPid)
+            throws ServerException {
+        throw new MethodNotFoundException("FieldSearchSQL does not implement findObjectsAfter");
+    }
+
+    @Override
+    public long countObjects(FieldSearchQuery query) throws ServerException {
+        throw new MethodNotFoundException("FieldSearchSQL does not implement countObjects");
+    }
+
+    @Override
+    public Map<String, Map<String, Integer>> findFacets(String[] fields,
+                                                        int maxValues,
+                                                        FieldSearchQuery query)
+            throws ServerException {
+        throw new MethodNotFoundException("FieldSearchSQL does not implement findFacets");
+    }
+
+    @Override
+    public boolean objectExists(String pid) throws ServerException {
+        FieldSearchResult result =
+                findObjects(new String[] {"pid"}, 1, pidQuery(pid));
+        return !result.objectFieldsList().isEmpty();
+    }
+
+    /**
+     * Lists the pids a page of findObjects results at a time, resuming the
+     * search session as the iterator advances.
+     */
+    @Override
+    public Iterator<String> listObjectPIDs() throws ServerException {
+        final FieldSearchResult first =
+                findObjects(new String[] {"pid"}, m_maxResults, pidQuery("*"));
+        return new Iterator<String>() {
+
+            private FieldSearchResult m_page = first;
+
+            private Iterator<ObjectFields> m_fields =
+                    first.objectFieldsList().iterator();
+
+            public boolean hasNext() {
+                while (!m_fields.hasNext() && m_page.getToken() != null) {
+                    try {
+                        m_page = resumeFindObjects(m_page.getToken());
+                    } catch (ServerException e) {
+                        throw new IllegalStateException("Unable to read next page of pids", e);
+                    }
+                    m_fields = m_page.objectFieldsList().iterator();
+                }
+                return m_fields.hasNext();
+            }
+
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException("No more pids");
+                }
+                return m_fields.next().getPid();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Bulk loading is not supported, the database is updated object by
+     * object.
+     */
+    @Override
+    public boolean beginBulkLoad() {
+        return false;
+    }
+
+    @Override
+    public void endBulkLoad() {
+    }
+
+    @Override
+    public void abortBulkLoad() {
+    }
+
+    private static FieldSearchQuery pidQuery(String pid) {
+        List<Condition> conditions = new ArrayList<Condition>();
+        conditions.add(new Condition("pid", Operator.EQUALS, pid));
+        return new FieldSearchQuery(conditions);
+    }
 }
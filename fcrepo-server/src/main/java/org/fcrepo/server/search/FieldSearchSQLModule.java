@@ -4,6 +4,7 @@
  */
 package org.fcrepo.server.search;
 
+import java.util.Iterator;
 import java.util.Map;
 
 import org.fcrepo.server.Module;
@@ -172,4 +173,51 @@ public class FieldSearchSQLModule
         return m_wrappedFieldSearch.findHighestID(namespace);
     }
 
+    @Override
+    public FieldSearchResult findObjectsAfter(String[] resultFields,
+                                              int maxResults,
+                                              FieldSearchQuery query,
+                                              String afterPid)
+            throws ServerException {
+        return m_wrappedFieldSearch.findObjectsAfter(resultFields, maxResults, query, afterPid);
+    }
+
+    @Override
+    public long countObjects(FieldSearchQuery query) throws ServerException {
+        return m_wrappedFieldSearch.countObjects(query);
+    }
+
+    @Override
+    public Map<String, Map<String, Integer>> findFacets(String[] fields,
+                                                        int maxValues,
+                                                        FieldSearchQuery query)
+            throws ServerException {
+        return m_wrappedFieldSearch.findFacets(fields, maxValues, query);
+    }
+
+    @Override
+    public boolean objectExists(String pid) throws ServerException {
+        return m_wrappedFieldSearch.objectExists(pid);
+    }
+
+    @Override
+    public Iterator<String> listObjectPIDs() throws ServerException {
+        return m_wrappedFieldSearch.listObjectPIDs();
+    }
+
+    @Override
+    public boolean beginBulkLoad() throws ServerException {
+        return m_wrappedFieldSearch.beginBulkLoad();
+    }
+
+    @Override
+    public void endBulkLoad() throws ServerException {
+        m_wrappedFieldSearch.endBulkLoad();
+    }
+
+    @Override
+    public void abortBulkLoad() throws ServerException {
+        m_wrappedFieldSearch.abortBulkLoad();
+    }
+
 }
@@ -0,0 +1,389 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.fcrepo.server.errors.ServerException;
+import org.fcrepo.server.storage.types.Datastream;
+
+/**
+ * Background job that reads the stored content of managed datastream
+ * versions and verifies it against the checksum recorded in the object.
+ * <p>
+ * A pass visits every object once. Passes start every intervalMs
+ * milliseconds, or when one is requested with {@link #startAudit()}. Reads
+ * are throttled to maxBytesPerSecond, so an audit does not starve the
+ * requests served by the same storage. Mismatches are logged and counted;
+ * nothing is repaired.
+ */
+public class ChecksumAuditor
+        implements Runnable, ChecksumAuditorMBean {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(ChecksumAuditor.class);
+
+    private static final int BUFFER_SIZE = 65536;
+
+    /**
+     * Gives the auditor access to the objects and their stored content.
+     */
+    public interface ContentSource {
+
+        Iterator<String> listPIDs() throws ServerException;
+
+        /**
+         * @return all versions of the managed datastreams of the object
+         */
+        List<Datastream> getManagedDatastreams(String pid) throws ServerException;
+
+        /**
+         * @param internalId the low level storage id of a datastream version
+         */
+        InputStream getContent(String internalId) throws ServerException;
+    }
+
+    private final ContentSource m_source;
+
+    private final long m_intervalMs;
+
+    private final long m_maxBytesPerSecond;
+
+    private final Thread m_thread;
+
+    /** Guards the flags below, and is waited on between passes and reads */
+    private final Object m_lock = new Object();
+
+    private boolean m_requested = false;
+
+    private boolean m_running = false;
+
+    private boolean m_finished = false;
+
+    private final AtomicLong m_passes = new AtomicLong();
+
+    private final AtomicLong m_objects = new AtomicLong();
+
+    private final AtomicLong m_datastreams = new AtomicLong();
+
+    private final AtomicLong m_bytes = new AtomicLong();
+
+    private final AtomicLong m_mismatches = new AtomicLong();
+
+    private final AtomicLong m_errors = new AtomicLong();
+
+    private volatile long m_lastPassStart = 0;
+
+    private volatile long m_lastPassMs = 0;
+
+    private volatile String m_lastMismatch = null;
+
+    /**
+     * @param source the objects to audit
+     * @param intervalMs time between the start of passes, or 0 to only
+     *        audit when requested
+     * @param maxBytesPerSecond maximum rate content is read at, or 0 for no
+     *        limit
+     */
+    public ChecksumAuditor(ContentSource source,
+                           long intervalMs,
+                           long maxBytesPerSecond) {
+        if (intervalMs < 0) {
+            throw new IllegalArgumentException("intervalMs cannot be negative, was " + intervalMs);
+        }
+        if (maxBytesPerSecond < 0) {
+            throw new IllegalArgumentException("maxBytesPerSecond cannot be negative, was "
+                    + maxBytesPerSecond);
+        }
+        m_source = source;
+        m_intervalMs = intervalMs;
+        m_maxBytesPerSecond = maxBytesPerSecond;
+        m_thread = new Thread(this, "ChecksumAuditor");
+        m_thread.setDaemon(true);
+        m_thread.setPriority(Thread.MIN_PRIORITY);
+    }
+
+    public void start() {
+        logger.info("Starting checksum auditor with interval " + m_intervalMs
+                + " ms and at most " + m_maxBytesPerSecond + " bytes per second");
+        m_thread.start();
+    }
+
+    /**
+     * Requests a pass to start now.
+     *
+     * @return false if a pass is already running
+     */
+    public boolean startAudit() {
+        synchronized (m_lock) {
+            if (m_running || m_finished) {
+                return false;
+            }
+            m_requested = true;
+            m_lock.notifyAll();
+            return true;
+        }
+    }
+
+    public void run() {
+        long nextPass = System.currentTimeMillis() + m_intervalMs;
+        while (true) {
+            synchronized (m_lock) {
+                try {
+                    while (!m_finished && !m_requested) {
+                        if (m_intervalMs == 0) {
+                            m_lock.wait();
+                        } else {
+                            long sleep = nextPass - System.currentTimeMillis();
+                            if (sleep <= 0) {
+                                break;
+                            }
+                            m_lock.wait(sleep);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    m_finished = true;
+                }
+                if (m_finished) {
+                    return;
+                }
+                m_requested = false;
+                m_running = true;
+            }
+            nextPass = System.currentTimeMillis() + m_intervalMs;
+            try {
+                audit();
+            } catch (InterruptedException e) {
+                logger.info("Checksum audit stopped");
+                return;
+            } catch (Throwable th) {
+                logger.error("Checksum audit failed", th);
+            } finally {
+                synchronized (m_lock) {
+                    m_running = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Audits all objects once, in the calling thread.
+     *
+     * @throws InterruptedException if the auditor was closed during the pass
+     */
+    void audit() throws ServerException, InterruptedException {
+        long start = System.currentTimeMillis();
+        m_lastPassStart = start;
+        logger.info("Starting checksum audit");
+        Throttle throttle = new Throttle();
+        long mismatches = m_mismatches.get();
+        Iterator<String> pids = m_source.listPIDs();
+        try {
+            while (pids.hasNext()) {
+                String pid = pids.next();
+                List<Datastream> datastreams;
+                try {
+                    datastreams = m_source.getManagedDatastreams(pid);
+                } catch (ServerException e) {
+                    // most likely purged since it was listed
+                    logger.debug("Unable to read " + pid + " for checksum audit", e);
+                    continue;
+                }
+                for (Datastream ds : datastreams) {
+                    verify(pid, ds, throttle);
+                }
+                m_objects.incrementAndGet();
+            }
+        } finally {
+            // the pids may hold index resources until they are exhausted
+            if (pids instanceof Closeable) {
+                try {
+                    ((Closeable) pids).close();
+                } catch (IOException e) {
+                    logger.warn("Unable to close pid iterator", e);
+                }
+            }
+        }
+        m_passes.incrementAndGet();
+        m_lastPassMs = System.currentTimeMillis() - start;
+        logger.info("Finished checksum audit in " + m_lastPassMs + " ms, found "
+                + (m_mismatches.get() - mismatches) + " mismatches");
+    }
+
+    private void verify(String pid, Datastream ds, Throttle throttle)
+            throws InterruptedException {
+        String type = ds.DSChecksumType;
+        if (type == null || type.equals("") || type.equals(Datastream.CHECKSUM_NONE)
+                || type.equals(Datastream.CHECKSUMTYPE_DISABLED)
+                || ds.DSChecksum == null || ds.DSChecksum.equals(Datastream.CHECKSUM_NONE)) {
+            return;
+        }
+        String name = pid + "/" + ds.DatastreamID + "/" + ds.DSVersionID;
+        String checksum;
+        try {
+            checksum = computeChecksum(ds.DSLocation, MessageDigest.getInstance(type), throttle);
+        } catch (NoSuchAlgorithmException e) {
+            logger.warn("Unknown checksum type " + type + " of " + name);
+            m_errors.incrementAndGet();
+            return;
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            logger.warn("Unable to read " + name + " for checksum audit", e);
+            m_errors.incrementAndGet();
+            return;
+        }
+        m_datastreams.incrementAndGet();
+        if (!checksum.equals(ds.DSChecksum)) {
+            logger.error("Checksum mismatch for " + name + ": expected " + ds.DSChecksum
+                    + ", stored content has " + checksum);
+            m_mismatches.incrementAndGet();
+            m_lastMismatch = name;
+        }
+    }
+
+    private String computeChecksum(String internalId,
+                                   MessageDigest digest,
+                                   Throttle throttle) throws ServerException,
+            IOException, InterruptedException {
+        DigestingInputStream in =
+                new DigestingInputStream(m_source.getContent(internalId), digest);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                m_bytes.addAndGet(n);
+                throttle.consumed(n);
+            }
+        } finally {
+            in.close();
+        }
+        return in.getHexDigest();
+    }
+
+    /**
+     * Stops the auditor, aborting a running pass.
+     */
+    public void close() {
+        synchronized (m_lock) {
+            m_finished = true;
+            m_lock.notifyAll();
+        }
+    }
+
+    /**
+     * Keeps the reads of one pass at or below maxBytesPerSecond.
+     */
+    private class Throttle {
+
+        private final long m_start = System.nanoTime();
+
+        private long m_consumed = 0;
+
+        void consumed(long bytes) throws InterruptedException {
+            synchronized (m_lock) {
+                if (m_finished) {
+                    throw new InterruptedException("Checksum auditor closed");
+                }
+                m_consumed += bytes;
+                if (m_maxBytesPerSecond == 0) {
+                    return;
+                }
+                long dueNanos = dueNanos(m_consumed, m_maxBytesPerSecond);
+                long aheadMs = (dueNanos - (System.nanoTime() - m_start)) / 1000000;
+                if (aheadMs > 0) {
+                    m_lock.wait(aheadMs);
+                    if (m_finished) {
+                        throw new InterruptedException("Checksum auditor closed");
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the time it takes to read the given number of bytes at the
+     * given rate, in nanoseconds. The whole seconds and the remainder are
+     * computed separately, as bytes times 10^9 overflows after about 9 GB.
+     */
+    static long dueNanos(long bytes, long bytesPerSecond) {
+        long seconds = bytes / bytesPerSecond;
+        long remainder = bytes % bytesPerSecond;
+        return seconds * 1000000000L
+                + (long) (remainder * 1000000000.0 / bytesPerSecond);
+    }
+
+    public long getIntervalMs() {
+        return m_intervalMs;
+    }
+
+    public long getMaxBytesPerSecond() {
+        return m_maxBytesPerSecond;
+    }
+
+    public boolean isRunning() {
+        synchronized (m_lock) {
+            return m_running;
+        }
+    }
+
+    public long getPasses() {
+        return m_passes.get();
+    }
+
+    public long getAuditedObjects() {
+        return m_objects.get();
+    }
+
+    public long getAuditedDatastreams() {
+        return m_datastreams.get();
+    }
+
+    public long getAuditedBytes() {
+        return m_bytes.get();
+    }
+
+    public long getMismatches() {
+        return m_mismatches.get();
+    }
+
+    public long getErrors() {
+        return m_errors.get();
+    }
+
+    public String getLastMismatch() {
+        return m_lastMismatch;
+    }
+
+    public long getLastPassStart() {
+        return m_lastPassStart;
+    }
+
+    public long getLastPassMs() {
+        return m_lastPassMs;
+    }
+
+    public void resetCounters() {
+        m_passes.set(0);
+        m_objects.set(0);
+        m_datastreams.set(0);
+        m_bytes.set(0);
+        m_mismatches.set(0);
+        m_errors.set(0);
+        m_lastMismatch = null;
+    }
+}
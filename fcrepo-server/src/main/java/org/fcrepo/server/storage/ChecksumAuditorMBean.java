@@ -0,0 +1,45 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.storage;
+
+/**
+ * JMX view of the {@link ChecksumAuditor} of the DOManager.
+ */
+public interface ChecksumAuditorMBean {
+
+    /** Time between the start of passes, or 0 if passes only run when requested */
+    long getIntervalMs();
+
+    /** Maximum rate content is read at, or 0 for no limit */
+    long getMaxBytesPerSecond();
+
+    boolean isRunning();
+
+    /** Starts a pass now, returning false if one is already running */
+    boolean startAudit();
+
+    long getPasses();
+
+    long getAuditedObjects();
+
+    long getAuditedDatastreams();
+
+    long getAuditedBytes();
+
+    long getMismatches();
+
+    /** Number of datastream versions that could not be read */
+    long getErrors();
+
+    /** PID, datastream ID and version ID of the latest mismatch found */
+    String getLastMismatch();
+
+    /** Start of the latest pass, in milliseconds since the epoch */
+    long getLastPassStart();
+
+    long getLastPassMs();
+
+    void resetCounters();
+}
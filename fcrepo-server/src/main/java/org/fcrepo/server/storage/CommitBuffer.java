@@ -0,0 +1,74 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+/**
+ * Growable buffer holding the serialization of an object being committed.
+ * <p>
+ * The content is read back through {@link #toInputStream()} without copying
+ * it. Each thread reuses its buffer for its commits, unless the buffer grew
+ * beyond {@link #MAX_RETAINED_BYTES}, in which case it is dropped when
+ * released, so a single large object does not pin its memory.
+ */
+final class CommitBuffer
+        extends ByteArrayOutputStream {
+
+    static final int MAX_RETAINED_BYTES = 1024 * 1024;
+
+    private static final int INITIAL_BYTES = 64 * 1024;
+
+    private static final ThreadLocal<CommitBuffer> BUFFERS =
+            new ThreadLocal<CommitBuffer>();
+
+    private boolean m_inUse = false;
+
+    private CommitBuffer() {
+        super(INITIAL_BYTES);
+    }
+
+    /**
+     * Gets an empty buffer for the current thread. A fresh buffer is
+     * returned if the buffer of the thread is already in use.
+     */
+    static CommitBuffer acquire() {
+        CommitBuffer buffer = BUFFERS.get();
+        if (buffer == null) {
+            buffer = new CommitBuffer();
+            BUFFERS.set(buffer);
+        } else if (buffer.m_inUse) {
+            return new CommitBuffer();
+        }
+        buffer.m_inUse = true;
+        return buffer;
+    }
+
+    /**
+     * Empties the buffer, making it available for the next commit of the
+     * thread.
+     */
+    void release() {
+        if (!m_inUse) {
+            return;
+        }
+        m_inUse = false;
+        reset();
+        if (buf.length > MAX_RETAINED_BYTES && BUFFERS.get() == this) {
+            BUFFERS.remove();
+        }
+    }
+
+    /**
+     * @return a stream reading the content of the buffer, valid until the
+     *         buffer is written to or released
+     */
+    InputStream toInputStream() {
+        return new ByteArrayInputStream(buf, 0, count);
+    }
+
+}
@@ -0,0 +1,207 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.storage;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides which commits verify the serialized object by deserializing it
+ * again, and keeps the time spent in each phase of committing added or
+ * modified objects.
+ */
+public class CommitMonitor
+        implements CommitMonitorMBean {
+
+    /**
+     * How often the serialized form of a committed object is verified.
+     */
+    public enum Verification {
+        /** Never verify */
+        OFF,
+        /** Verify one in every sample rate commits */
+        SAMPLED,
+        /** Verify every commit */
+        ALWAYS;
+
+        /**
+         * @throws IllegalArgumentException if the value is not off, sampled
+         *         or always
+         */
+        public static Verification parse(String value) {
+            return valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    /**
+     * The phases of a commit.
+     */
+    public enum Phase {
+        SERIALIZE, VALIDATE, VERIFY, RESOURCE_INDEX, STORE, FIELD_SEARCH
+    }
+
+    private final Verification m_verification;
+
+    private final int m_sampleRate;
+
+    private final AtomicLong m_commits = new AtomicLong();
+
+    private final AtomicLong m_verifications = new AtomicLong();
+
+    private final AtomicLongArray m_totalNanos =
+            new AtomicLongArray(Phase.values().length);
+
+    private final AtomicLongArray m_counts =
+            new AtomicLongArray(Phase.values().length);
+
+    /**
+     * @param verification how often to verify commits
+     * @param sampleRate verify one in every sampleRate commits when sampled
+     */
+    public CommitMonitor(Verification verification, int sampleRate) {
+        if (sampleRate < 1) {
+            throw new IllegalArgumentException("sampleRate must be positive, was " + sampleRate);
+        }
+        m_verification = verification;
+        m_sampleRate = sampleRate;
+    }
+
+    /**
+     * Registers a new commit.
+     *
+     * @return whether the commit should be verified
+     */
+    public boolean startCommit() {
+        long commit = m_commits.incrementAndGet();
+        boolean verify;
+        switch (m_verification) {
+            case ALWAYS:
+                verify = true;
+                break;
+            case SAMPLED:
+                verify = commit % m_sampleRate == 0;
+                break;
+            default:
+                verify = false;
+        }
+        if (verify) {
+            m_verifications.incrementAndGet();
+        }
+        return verify;
+    }
+
+    /**
+     * Adds the time since the given start to a phase.
+     *
+     * @param startNanos the System.nanoTime() the phase started
+     * @return the current System.nanoTime(), to start the next phase
+     */
+    public long record(Phase phase, long startNanos) {
+        long now = System.nanoTime();
+        m_totalNanos.addAndGet(phase.ordinal(), now - startNanos);
+        m_counts.incrementAndGet(phase.ordinal());
+        return now;
+    }
+
+    @Override
+    public String getVerificationMode() {
+        return m_verification.name().toLowerCase();
+    }
+
+    @Override
+    public int getVerificationSampleRate() {
+        return m_sampleRate;
+    }
+
+    @Override
+    public long getCommits() {
+        return m_commits.get();
+    }
+
+    @Override
+    public long getVerifications() {
+        return m_verifications.get();
+    }
+
+    @Override
+    public long getSerializeTotalMicroS() {
+        return total(Phase.SERIALIZE);
+    }
+
+    @Override
+    public long getSerializeAverageMicroS() {
+        return average(Phase.SERIALIZE);
+    }
+
+    @Override
+    public long getValidateTotalMicroS() {
+        return total(Phase.VALIDATE);
+    }
+
+    @Override
+    public long getValidateAverageMicroS() {
+        return average(Phase.VALIDATE);
+    }
+
+    @Override
+    public long getVerifyTotalMicroS() {
+        return total(Phase.VERIFY);
+    }
+
+    @Override
+    public long getVerifyAverageMicroS() {
+        return average(Phase.VERIFY);
+    }
+
+    @Override
+    public long getResourceIndexTotalMicroS() {
+        return total(Phase.RESOURCE_INDEX);
+    }
+
+    @Override
+    public long getResourceIndexAverageMicroS() {
+        return average(Phase.RESOURCE_INDEX);
+    }
+
+    @Override
+    public long getStoreTotalMicroS() {
+        return total(Phase.STORE);
+    }
+
+    @Override
+    public long getStoreAverageMicroS() {
+        return average(Phase.STORE);
+    }
+
+    @Override
+    public long getFieldSearchTotalMicroS() {
+        return total(Phase.FIELD_SEARCH);
+    }
+
+    @Override
+    public long getFieldSearchAverageMicroS() {
+        return average(Phase.FIELD_SEARCH);
+    }
+
+    @Override
+    public void resetCounters() {
+        m_commits.set(0);
+        m_verifications.set(0);
+        for (int i = 0; i < m_totalNanos.length(); i++) {
+            m_totalNanos.set(i, 0);
+            m_counts.set(i, 0);
+        }
+    }
+
+    private long total(Phase phase) {
+        return m_totalNanos.get(phase.ordinal()) / 1000;
+    }
+
+    private long average(Phase phase) {
+        long count = m_counts.get(phase.ordinal());
+        return (count == 0) ? 0 : total(phase) / count;
+    }
+
+}
@@ -0,0 +1,50 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.storage;
+
+/**
+ * JMX view of the {@link CommitMonitor} of the DOManager: the verification
+ * of committed objects, and the time spent in each phase of committing
+ * added or modified objects.
+ */
+public interface CommitMonitorMBean {
+
+    /** off, sampled or always */
+    String getVerificationMode();
+
+    /** Verify every this many commits when sampled */
+    int getVerificationSampleRate();
+
+    long getCommits();
+
+    long getVerifications();
+
+    long getSerializeTotalMicroS();
+
+    long getSerializeAverageMicroS();
+
+    /** Time spent on final validation, which only runs with debug logging */
+    long getValidateTotalMicroS();
+
+    long getValidateAverageMicroS();
+
+    long getVerifyTotalMicroS();
+
+    long getVerifyAverageMicroS();
+
+    long getResourceIndexTotalMicroS();
+
+    long getResourceIndexAverageMicroS();
+
+    long getStoreTotalMicroS();
+
+    long getStoreAverageMicroS();
+
+    long getFieldSearchTotalMicroS();
+
+    long getFieldSearchAverageMicroS();
+
+    void resetCounters();
+}
@@ -6,6 +6,8 @@ package org.fcrepo.server.storage;
 
 import java.io.InputStream;
 
+import java.util.Map;
+
 import org.fcrepo.server.Context;
 import org.fcrepo.server.errors.ServerException;
 import org.fcrepo.server.errors.StorageDeviceException;
@@ -93,6 +95,22 @@ public interface DOManager
                                                String sessionToken)
             throws ServerException;
 
+    public FieldSearchResult findObjectsAfter(Context context,
+                                              String[] resultFields,
+                                              int maxResults,
+                                              FieldSearchQuery query,
+                                              String afterPid)
+            throws ServerException;
+
+    public long countObjects(Context context, FieldSearchQuery query)
+            throws ServerException;
+
+    public Map<String, Map<String, Integer>> findFacets(Context context,
+                                                        String[] fields,
+                                                        int maxValues,
+                                                        FieldSearchQuery query)
+            throws ServerException;
+
     public String[] getNextPID(int numPIDs, String namespace)
             throws ServerException;
 
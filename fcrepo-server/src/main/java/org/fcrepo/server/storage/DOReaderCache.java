@@ -4,77 +4,105 @@
  */
 package org.fcrepo.server.storage;
 
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.fcrepo.server.storage.types.Datastream;
+import org.fcrepo.server.storage.types.DatastreamXMLMetadata;
+import org.fcrepo.server.storage.types.DigitalObject;
+
+/**
+ * A cache of DOReaders, bounded by the number of readers and by their
+ * estimated size in bytes, evicting the least recently used readers first.
+ * <p>
+ * The cache is split in segments selected by the hash of the PID, each a
+ * LinkedHashMap in access order guarded by its own monitor, so lookups of
+ * different objects rarely contend and moving an entry to the most recently
+ * used position takes constant time. Each segment holds its share of the
+ * bounds.
+ * <p>
+ * Readers expire when they have not been used for maxCachedSeconds. Expired
+ * readers are dropped when they are looked up, and from the least recently
+ * used end of a segment whenever a reader is added to it, so no thread is
+ * needed to expire them.
+ */
 public class DOReaderCache
-        extends Thread {
+        implements DOReaderCacheMBean {
 
-    private final int m_maxReaders;
+    private static final Logger logger =
+            LoggerFactory.getLogger(DOReaderCache.class);
 
-    private final int m_maxCachedSeconds;
+    private static final int MAX_SEGMENTS = 16;
 
-    private final Map m_readers;
+    /** Fewest readers in a segment before the cache is split in more segments */
+    private static final int MIN_SEGMENT_READERS = 16;
 
-    private final List m_pidList;
+    /** Estimated bytes of a reader and its object, besides datastreams */
+    private static final long OBJECT_OVERHEAD = 2048;
 
-    private boolean m_stopRequested;
+    /** Estimated bytes of each datastream version, besides inline content */
+    private static final long DATASTREAM_OVERHEAD = 512;
 
-    public DOReaderCache(int maxReaders, int maxCachedSeconds) {
+    /** Estimated bytes of each audit record */
+    private static final long AUDIT_RECORD_OVERHEAD = 512;
 
-        m_maxReaders = maxReaders;
-        m_maxCachedSeconds = maxCachedSeconds;
+    private final int m_maxReaders;
 
-        m_readers = new HashMap();
-        m_pidList = new ArrayList();
+    private final long m_maxBytes;
 
-        m_stopRequested = false;
-        start();
-    }
+    private final long m_maxCachedNanos;
+
+    private final Segment[] m_segments;
+
+    private final AtomicLong m_hits = new AtomicLong();
+
+    private final AtomicLong m_misses = new AtomicLong();
+
+    private final AtomicLong m_evictions = new AtomicLong();
+
+    private final AtomicLong m_expirations = new AtomicLong();
 
     /**
-     * Until closed, check for and remove any expired entries every second.
+     * @param maxReaders the maximum number of readers to cache
+     * @param maxBytes the maximum estimated size of the cached readers, or 0
+     *        to bound the cache by the number of readers only
+     * @param maxCachedSeconds the number of seconds a reader is kept after
+     *        it was last used
      */
-    @Override
-    public void run() {
-        while (!m_stopRequested) {
-            removeExpired();
-            if (!m_stopRequested) {
-                try {
-                    Thread.sleep(1000);
-                } catch (Exception e) {
-                }
-            }
+    public DOReaderCache(int maxReaders, long maxBytes, int maxCachedSeconds) {
+        if (maxReaders < 1) {
+            throw new IllegalArgumentException("maxReaders must be positive, was " + maxReaders);
         }
-    }
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes must not be negative, was " + maxBytes);
+        }
+        m_maxReaders = maxReaders;
+        m_maxBytes = maxBytes;
+        m_maxCachedNanos = maxCachedSeconds * 1000000000L;
 
-    private void removeExpired() {
-        long cutoffTime =
-                System.currentTimeMillis() - 1000 * m_maxCachedSeconds;
-        synchronized (m_readers) {
-            if (m_pidList.size() > 0) {
-                boolean done = false;
-                List expiredList = new ArrayList();
-                Iterator pids = m_pidList.iterator();
-                while (pids.hasNext() && !done) {
-                    String pid = (String) pids.next();
-                    List l = (List) m_readers.get(pid);
-                    long cachedTime = ((Long) l.get(1)).longValue();
-                    if (cachedTime < cutoffTime) {
-                        expiredList.add(pid);
-                    } else {
-                        done = true;
-                    }
-                }
-                pids = expiredList.iterator();
-                while (pids.hasNext()) {
-                    remove((String) pids.next());
-                }
-            }
+        int segmentCount = 1;
+        while (segmentCount < MAX_SEGMENTS
+                && maxReaders / (segmentCount * 2) >= MIN_SEGMENT_READERS) {
+            segmentCount *= 2;
         }
+        m_segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            // Spread the remainders so the segment bounds add up to the cache bounds
+            int readers = maxReaders / segmentCount
+                    + (i < maxReaders % segmentCount ? 1 : 0);
+            long bytes = maxBytes / segmentCount
+                    + (i < maxBytes % segmentCount ? 1 : 0);
+            m_segments[i] = new Segment(readers, bytes);
+        }
+        logger.info("Reader cache holds up to " + maxReaders + " readers"
+                + (maxBytes > 0 ? " and " + maxBytes + " bytes" : "")
+                + " for " + maxCachedSeconds + " seconds in "
+                + segmentCount + " segments");
     }
 
     /**
@@ -82,11 +110,7 @@ public class DOReaderCache
      * nothing.
      */
     public void remove(String pid) {
-        synchronized (m_readers) {
-            if (m_readers.remove(pid) != null) {
-                m_pidList.remove(pid);
-            }
-        }
+        getSegment(pid).remove(pid);
     }
 
     /**
@@ -99,22 +123,10 @@ public class DOReaderCache
             pid = reader.GetObjectPID();
         } catch (Exception e) {
         }
-        Long time = new Long(System.currentTimeMillis());
-        List l = new ArrayList();
-        l.add(reader);
-        l.add(time);
-        synchronized (m_readers) {
-            m_readers.put(pid, l);
-            if (m_pidList.contains(pid)) {
-                // ensure it only appears in the list once, at the end
-                m_pidList.remove(pid);
-            }
-            m_pidList.add(pid);
-            if (m_readers.size() > m_maxReaders) {
-                Object overflowPid = m_pidList.remove(0);
-                m_readers.remove(overflowPid);
-            }
+        if (pid == null) {
+            return;
         }
+        getSegment(pid).put(pid, reader, estimateSize(reader));
     }
 
     /**
@@ -122,24 +134,223 @@ public class DOReaderCache
      * null. If it does exist, set its time to the current time and return it.
      */
     public DOReader get(String pid) {
-        DOReader reader = null;
-        synchronized (m_readers) {
-            List l = (List) m_readers.get(pid);
-            if (l != null) {
-                reader = (DOReader) l.get(0);
-                l.remove(1);
-                l.add(new Long(System.currentTimeMillis()));
-                // move it to the end of the list so the list stays sorted
-                m_pidList.remove(pid);
-                m_pidList.add(pid);
-            }
+        DOReader reader = getSegment(pid).get(pid);
+        if (reader == null) {
+            m_misses.incrementAndGet();
+        } else {
+            m_hits.incrementAndGet();
         }
         return reader;
     }
 
+    /**
+     * Empties the cache.
+     */
     public void close() {
-        // make sure the thread finishes
-        m_stopRequested = true;
+        for (Segment segment : m_segments) {
+            segment.clear();
+        }
+    }
+
+    @Override
+    public int getMaxReaders() {
+        return m_maxReaders;
+    }
+
+    @Override
+    public long getMaxBytes() {
+        return m_maxBytes;
+    }
+
+    @Override
+    public int getReaders() {
+        int readers = 0;
+        for (Segment segment : m_segments) {
+            readers += segment.size();
+        }
+        return readers;
+    }
+
+    @Override
+    public long getEstimatedBytes() {
+        long bytes = 0;
+        for (Segment segment : m_segments) {
+            bytes += segment.bytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getHits() {
+        return m_hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+        return m_misses.get();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long hits = m_hits.get();
+        long lookups = hits + m_misses.get();
+        return (lookups == 0) ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public long getEvictions() {
+        return m_evictions.get();
+    }
+
+    @Override
+    public long getExpirations() {
+        return m_expirations.get();
+    }
+
+    @Override
+    public void resetCounters() {
+        m_hits.set(0);
+        m_misses.set(0);
+        m_evictions.set(0);
+        m_expirations.set(0);
+    }
+
+    private Segment getSegment(String pid) {
+        return m_segments[(pid.hashCode() & Integer.MAX_VALUE) % m_segments.length];
+    }
+
+    /**
+     * Estimates the memory held by a reader from the datastream versions and
+     * audit records of its object. Only inline XML content is counted, as
+     * other content is not kept in memory.
+     */
+    static long estimateSize(DOReader reader) {
+        return estimateSize(reader.getObject());
+    }
+
+    /**
+     * Estimates the memory held by an object, as for a reader.
+     */
+    static long estimateSize(DigitalObject obj) {
+        long size = OBJECT_OVERHEAD;
+        if (obj == null) {
+            return size;
+        }
+        Iterator<String> ids = obj.datastreamIdIterator();
+        while (ids.hasNext()) {
+            for (Datastream ds : obj.datastreams(ids.next())) {
+                size += DATASTREAM_OVERHEAD;
+                if (ds instanceof DatastreamXMLMetadata) {
+                    byte[] content = ((DatastreamXMLMetadata) ds).xmlContent;
+                    if (content != null) {
+                        size += content.length;
+                    }
+                }
+            }
+        }
+        size += AUDIT_RECORD_OVERHEAD * obj.getAuditRecords().size();
+        return size;
+    }
+
+    private static final class Entry {
+
+        final DOReader reader;
+
+        final long size;
+
+        long lastUsed;
+
+        Entry(DOReader reader, long size, long lastUsed) {
+            this.reader = reader;
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    /**
+     * A part of the cache, with its own share of the bounds. All access is
+     * synchronized on the segment.
+     */
+    private final class Segment {
+
+        private final int m_maxReaders;
+
+        private final long m_maxBytes;
+
+        /** Entries from least to most recently used */
+        private final LinkedHashMap<String, Entry> m_entries =
+                new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+        private long m_bytes = 0;
+
+        Segment(int maxReaders, long maxBytes) {
+            m_maxReaders = maxReaders;
+            m_maxBytes = maxBytes;
+        }
+
+        synchronized DOReader get(String pid) {
+            Entry entry = m_entries.get(pid);
+            if (entry == null) {
+                return null;
+            }
+            long now = System.nanoTime();
+            if (now - entry.lastUsed > m_maxCachedNanos) {
+                removeEntry(pid);
+                m_expirations.incrementAndGet();
+                return null;
+            }
+            entry.lastUsed = now;
+            return entry.reader;
+        }
+
+        synchronized void put(String pid, DOReader reader, long size) {
+            long now = System.nanoTime();
+            Entry old = m_entries.put(pid, new Entry(reader, size, now));
+            if (old != null) {
+                m_bytes -= old.size;
+            }
+            m_bytes += size;
+
+            // Entries are in order of last use, so expired entries are first
+            Iterator<Map.Entry<String, Entry>> it = m_entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Entry> eldest = it.next();
+                if (now - eldest.getValue().lastUsed > m_maxCachedNanos) {
+                    m_expirations.incrementAndGet();
+                } else if (m_entries.size() > m_maxReaders
+                        || (m_maxBytes > 0 && m_bytes > m_maxBytes && m_entries.size() > 1)) {
+                    m_evictions.incrementAndGet();
+                } else {
+                    break;
+                }
+                m_bytes -= eldest.getValue().size;
+                it.remove();
+            }
+        }
+
+        synchronized void remove(String pid) {
+            removeEntry(pid);
+        }
+
+        synchronized void clear() {
+            m_entries.clear();
+            m_bytes = 0;
+        }
+
+        synchronized int size() {
+            return m_entries.size();
+        }
+
+        synchronized long bytes() {
+            return m_bytes;
+        }
+
+        private void removeEntry(String pid) {
+            Entry entry = m_entries.remove(pid);
+            if (entry != null) {
+                m_bytes -= entry.size;
+            }
+        }
     }
 
-}
\ No newline at end of file
+}
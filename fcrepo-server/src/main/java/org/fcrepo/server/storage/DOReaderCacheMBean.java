@@ -0,0 +1,36 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.storage;
+
+/**
+ * JMX view of the {@link DOReaderCache} of the DOManager.
+ */
+public interface DOReaderCacheMBean {
+
+    int getMaxReaders();
+
+    /** Maximum estimated size of the cached readers, or 0 if unbounded */
+    long getMaxBytes();
+
+    /** Number of readers currently cached */
+    int getReaders();
+
+    /** Estimated size of the readers currently cached */
+    long getEstimatedBytes();
+
+    long getHits();
+
+    long getMisses();
+
+    double getHitRatio();
+
+    /** Number of readers removed to keep the cache within its bounds */
+    long getEvictions();
+
+    /** Number of readers removed because they were not used for too long */
+    long getExpirations();
+
+    void resetCounters();
+}
@@ -5,7 +5,7 @@
 package org.fcrepo.server.storage;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -14,6 +14,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 
+import java.lang.management.ManagementFactory;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -28,15 +33,18 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
-import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.fcrepo.common.Constants;
 import org.fcrepo.common.Models;
+import org.fcrepo.common.PID;
 
 import org.fcrepo.server.Context;
 import org.fcrepo.server.Module;
@@ -56,6 +64,7 @@ import org.fcrepo.server.errors.ServerException;
 import org.fcrepo.server.errors.StorageDeviceException;
 import org.fcrepo.server.errors.StreamIOException;
 import org.fcrepo.server.errors.StorageMaintenanceException;
+import org.fcrepo.server.errors.ValidationException;
 import org.fcrepo.server.management.Management;
 import org.fcrepo.server.management.PIDGenerator;
 import org.fcrepo.server.resourceIndex.ResourceIndex;
@@ -103,6 +112,9 @@ public class DefaultDOManager
 
     private static final Pattern URL_PROTOCOL = Pattern.compile("^\\w+:\\/.*$");
 
+    /** Time to wait for queued FieldSearch updates when shutting down */
+    private static final long INDEX_UPDATE_QUEUE_CLOSE_TIMEOUT_MS = 60000;
+
     private String m_pidNamespace;
 
     protected String m_storagePool;
@@ -139,204 +151,33 @@ public class DefaultDOManager
 
     private ModelDeploymentMap m_cModelDeploymentMap;
 
-    private final StringLock stringLock;
-
-
-    /**
-     * Class needed for synchronisation of access to modification of digital
-     * objects represented by a PID (String)
-     * To avoid the throwing of an ObjectLockedException when there were multiple
-     * attempts to modify a DO we use this class to lock on the pids.
-     * The Map lockMap has a PID as value and a Pair consisting of a lock and a counter.
-     * The counter is used to maintain the map so we know when a lock is no longer
-     * in use and can be deleted
-     */
-    private class StringLock {
-
-        /**
-         * inner inner class used by the other inner class StringLock It
-         * maintains a lock and a counter
-         */
-
-        private class LockAdmin {
-
-            private final ReentrantLock lock;
-            private int counter;
-            private long owner;
-
-            LockAdmin() {
-                this.lock = new ReentrantLock();
-                this.counter = 0;
-                this.owner = 0L;
-            }
-
-            /**
-             * Retrieves the lock of the pair.
-             *
-             * @return ReentrantLock The lock of the pair.
-             */
-            ReentrantLock getLock() {
-                return lock;
-            }
-
-            /**
-             * Retrieves the counter of the pair.
-             *
-             * @return int The counter the pair.
-             */
-            boolean counterIsZero() {
-                if (counter == 0) {
-                    return true;
-                }
-                return false;
-            }
-
-            /**
-             * decreases the counter part of the pair with 1
-             *
-             * @throws IllegalStateException if the counter is attempted to be
-             * decreased below zero
-             */
-            void decreaseCounter() throws IllegalStateException {
-                if (counter == 0) {
-                    String msg = "counter is decreased below zero!!";
-                    logger.error(msg);
-                    throw new IllegalStateException(msg);
-                }
-
-                counter--;
-            }
-
-            /**
-             * increases the counter part of the pair with 1
-             */
-            void increaseCounter() {
-                counter++;
-            }
+    private final PIDLockManager m_pidLocks;
 
-            /**
-             * sets the owner of the lock
-             */
-            void setOwner(long id) {
-                owner = id;
-            }
-
-            /**
-             * gets the owner of the lock
-             */
-            long getOwner() {
-                return owner;
-            }
-
-            /**
-             * A string representation of the elements in the following format:
-             * a string representation of the lock, the value of the counter and
-             * the value of the threadId of the thread currently holding the
-             * lock
-             *
-             * @return a String representation of the object
-             */
-            @Override
-            public String toString() {
-                return String.format("LockPair< %s, %s, %s >", lock.toString(), counter, owner);
-            }
-
-            /**
-             * Returns a unique hashcode for the specific combination of
-             * elements in this Pair. Notice, if you use the same two objects in
-             * the same order in two different Pairs, then the two Pairs will
-             * return the same hashcode.
-             */
-            @Override
-            public int hashCode() {
-                return lock.hashCode() ^ counter ^ (int) owner;
-            }
-        }
+    private ObjectName m_pidLocksObjectName;
 
-        private final Map< String, LockAdmin> lockMap;
-        private boolean writesDisabled = false;
+    private ObjectName m_readerCacheObjectName;
 
-        /**
-         * Constructor for the StringLock class
-         */
-        StringLock() {
-            lockMap = new HashMap< String, LockAdmin>();
-            logger.info("DOLock constructed");
-        }
-        
-        void setWritesDisabled(boolean writesDisabled){
-            synchronized (lockMap) {
-                this.writesDisabled = writesDisabled;
-                logger.info("Write access modified: writesDisabled="+writesDisabled);
-            }
-        }
-        
-        int lockCount(){
-            return this.lockMap.size();
-        }
-        
-        void lock(String pid) throws ObjectLockedException, StorageMaintenanceException {
-            logger.debug(String.format("Thread '%s' calling DOLock.lock with pid: '%s'", Thread.currentThread().getId(), pid));
-            ReentrantLock pidLock;
-            LockAdmin lockAdm;
-            synchronized (lockMap) {
-                lockAdm = lockMap.get(pid);
-
-                // If Fedora is set to temporarily blocking all writes, 
-                // only the current lock owner may acquire the lock 
-                // in order to finish up work. All other threads are rejected
-                // until writes are enabled again.
-                if (writesDisabled) {
-                    if (lockAdm == null || lockAdm.getOwner() != Thread.currentThread().getId()) {
-                        throw new StorageMaintenanceException("Writes are temporarily disabled");
-                    }
-                }
+    /** Deserialized objects shared by readers, or null if every reader parses its object */
+    private DigitalObjectCache m_objectCache;
 
-                if (lockAdm == null) {
-                    lockAdm = new LockAdmin();
-                    lockMap.put(pid, lockAdm);
-                }
+    private ObjectName m_objectCacheObjectName;
 
-                lockAdm.increaseCounter();
-                pidLock = lockAdm.getLock();
-            }
+    private CommitMonitor m_commitMonitor;
 
-            logger.trace(String.format("DOLock.lock, Thread '%s' trying to get lock on pid :'%s'", Thread.currentThread().getId(), pid));
-            pidLock.lock();
-            lockAdm.setOwner(Thread.currentThread().getId());
-            logger.trace(String.format("DOLock.lock, Thread '%s' got lock on pid: '%s'", Thread.currentThread().getId(), pid));
-        }
+    private ObjectName m_commitMonitorObjectName;
 
-        void unlock(String pid) {
-            logger.debug(String.format("Thread '%s' calling DOLock.unlock with pid: '%s'", Thread.currentThread().getId(), pid));
+    private ManagedContentStager m_contentStager;
 
-            synchronized (lockMap) {
-                LockAdmin lockAdm = lockMap.get(pid);
-                if (lockAdm == null) {
-                    String msg = String.format("DOLock.unlock called and no LockAdmin corresponding to the PID: '%s' found in the lockMap", pid);
-                    logger.error(msg);
-                    throw new IllegalStateException(msg);
-                }
+    private ObjectName m_contentStagerObjectName;
 
-                logger.trace(String.format("DOLock.unlock called by thread: '%s' when lock for pid: '%s' is owned by thread: '%s'", Thread.currentThread().getId(), pid, lockAdm.getOwner()));
-                if (lockAdm.getOwner() != Thread.currentThread().getId()) {
-                    String msg = String.format("DOLock.unlock called by thread: '%s' but lock for pid: '%s' is owned by thread: '%s'", Thread.currentThread().getId(), pid, lockAdm.getOwner());
-                    logger.error(msg);
-                    throw new IllegalStateException(msg);
-                }
+    /** Applies FieldSearch updates in the background, or null to update synchronously */
+    private IndexUpdateQueue m_indexUpdateQueue;
 
-                logger.debug(String.format("DOLock.unlock, thread: '%s' released lock on pid: '%s'", Thread.currentThread().getId(), pid));
-                lockAdm.getLock().unlock();
-                lockAdm.decreaseCounter();
+    private ObjectName m_indexUpdateQueueObjectName;
 
-                if (lockAdm.counterIsZero()) {
-                    logger.debug(String.format("DOLock.unlock, removed lock associated with pid: '%s' from the lockMap", pid));
-                    lockMap.remove(pid);
-                }
-            }
-        }
+    private ChecksumAuditor m_checksumAuditor;
 
-    }
+    private ObjectName m_checksumAuditorObjectName;
 
     /**
      * Creates a new DefaultDOManager.
@@ -347,7 +188,7 @@ public class DefaultDOManager
         //        m_lockedPIDs = new HashSet<String>();
         if ( server == null )
             throw new NullPointerException("Server is null");
-        stringLock = new StringLock();
+        m_pidLocks = new PIDLockManager(0);
     }
 
     /**
@@ -458,9 +299,160 @@ public class DefaultDOManager
                                                     getRole());
         }
 
+        // readerCacheMaxBytes (optional, default = 67108864, 0 = unbounded)
+        String rcMaxBytes = getParameter("readerCacheMaxBytes");
+        if (rcMaxBytes == null) {
+            logger.debug("Parameter readerCacheMaxBytes not given, using 67108864");
+            rcMaxBytes = "67108864";
+        }
+        long readerCacheMaxBytes;
+        try {
+            readerCacheMaxBytes = Long.parseLong(rcMaxBytes);
+            if (readerCacheMaxBytes < 0) {
+                throw new Exception("Cannot be less than zero");
+            }
+        } catch (Exception e) {
+            throw new ModuleInitializationException("Bad value for readerCacheMaxBytes parameter: "
+                                                            + e.getMessage(),
+                                                    getRole());
+        }
+
         if (readerCacheSize > 0) {
             m_readerCache =
-                    new DOReaderCache(readerCacheSize, readerCacheSeconds);
+                    new DOReaderCache(readerCacheSize, readerCacheMaxBytes,
+                                      readerCacheSeconds);
+            m_readerCacheObjectName = registerMBean(m_readerCache, "DOReaderCache");
+        }
+
+        // objectCacheSize (optional, default = 1000, 0 = disabled)
+        String ocSize = getParameter("objectCacheSize");
+        if (ocSize == null) {
+            logger.debug("Parameter objectCacheSize not given, using 1000");
+            ocSize = "1000";
+        }
+        int objectCacheSize;
+        try {
+            objectCacheSize = Integer.parseInt(ocSize);
+            if (objectCacheSize < 0) {
+                throw new Exception("Cannot be less than zero");
+            }
+        } catch (Exception e) {
+            throw new ModuleInitializationException("Bad value for objectCacheSize parameter: "
+                                                            + e.getMessage(),
+                                                    getRole());
+        }
+
+        // objectCacheMaxBytes (optional, default = 67108864, 0 = unbounded)
+        String ocMaxBytes = getParameter("objectCacheMaxBytes");
+        if (ocMaxBytes == null) {
+            logger.debug("Parameter objectCacheMaxBytes not given, using 67108864");
+            ocMaxBytes = "67108864";
+        }
+        long objectCacheMaxBytes;
+        try {
+            objectCacheMaxBytes = Long.parseLong(ocMaxBytes);
+            if (objectCacheMaxBytes < 0) {
+                throw new Exception("Cannot be less than zero");
+            }
+        } catch (Exception e) {
+            throw new ModuleInitializationException("Bad value for objectCacheMaxBytes parameter: "
+                                                            + e.getMessage(),
+                                                    getRole());
+        }
+
+        if (objectCacheSize > 0) {
+            m_objectCache = new DigitalObjectCache(objectCacheSize, objectCacheMaxBytes);
+            m_objectCacheObjectName = registerMBean(m_objectCache, "DigitalObjectCache");
+        }
+
+        // lockTimeoutMs (optional, default = 0, wait indefinitely)
+        String lockTimeout = getParameter("lockTimeoutMs");
+        if (lockTimeout == null) {
+            logger.debug("Parameter lockTimeoutMs not given, using 0");
+            lockTimeout = "0";
+        }
+        try {
+            m_pidLocks.setLockTimeoutMs(Long.parseLong(lockTimeout));
+        } catch (Exception e) {
+            throw new ModuleInitializationException("Bad value for lockTimeoutMs parameter: "
+                                                            + e.getMessage(),
+                                                    getRole());
+        }
+        m_pidLocksObjectName = registerMBean(m_pidLocks, "PIDLockManager");
+
+        // commitVerification and commitVerificationSampleRate (optional, defaults = always, 100)
+        String verification = getParameter("commitVerification");
+        if (verification == null) {
+            logger.debug("Parameter commitVerification not given, using always");
+            verification = "always";
+        }
+        String sampleRate = getParameter("commitVerificationSampleRate");
+        if (sampleRate == null) {
+            logger.debug("Parameter commitVerificationSampleRate not given, using 100");
+            sampleRate = "100";
+        }
+        try {
+            m_commitMonitor =
+                    new CommitMonitor(CommitMonitor.Verification.parse(verification),
+                                      Integer.parseInt(sampleRate));
+        } catch (Exception e) {
+            throw new ModuleInitializationException("Bad value for commitVerification or "
+                                                            + "commitVerificationSampleRate parameter: "
+                                                            + e.getMessage(),
+                                                    getRole());
+        }
+        m_commitMonitorObjectName = registerMBean(m_commitMonitor, "CommitMonitor");
+
+        // managedContentThreads and managedContentMaxPerObject (optional, defaults = 4, 4)
+        String stagerThreads = getParameter("managedContentThreads");
+        if (stagerThreads == null) {
+            logger.debug("Parameter managedContentThreads not given, using 4");
+            stagerThreads = "4";
+        }
+        String stagerMaxPerObject = getParameter("managedContentMaxPerObject");
+        if (stagerMaxPerObject == null) {
+            logger.debug("Parameter managedContentMaxPerObject not given, using 4");
+            stagerMaxPerObject = "4";
+        }
+        try {
+            m_contentStager =
+                    new ManagedContentStager(Integer.parseInt(stagerThreads),
+                                             Integer.parseInt(stagerMaxPerObject));
+        } catch (Exception e) {
+            throw new ModuleInitializationException("Bad value for managedContentThreads or "
+                                                            + "managedContentMaxPerObject parameter: "
+                                                            + e.getMessage(),
+                                                    getRole());
+        }
+        m_contentStagerObjectName = registerMBean(m_contentStager, "ManagedContentStager");
+    }
+
+    /**
+     * Registers a monitoring bean of this module with the platform MBean
+     * server.
+     *
+     * @return the name of the bean, or null if it could not be registered
+     */
+    private ObjectName registerMBean(Object bean, String type) {
+        try {
+            ObjectName name =
+                    new ObjectName("org.fcrepo.server.storage:type=" + type);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(bean, name);
+            return name;
+        } catch (JMException e) {
+            logger.warn("Unable to register " + type
+                    + " monitor. JMX monitoring will be unavailable", e);
+            return null;
+        }
+    }
+
+    private void unregisterMBean(ObjectName name) {
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException e) {
+                logger.warn("Failed to unregister " + name, e);
+            }
         }
     }
 
@@ -487,11 +479,45 @@ public class DefaultDOManager
     }
     
     public void setWritesDisabled(boolean writesDisabled){
-        stringLock.setWritesDisabled(writesDisabled);
+        m_pidLocks.setWritesDisabled(writesDisabled);
     }
     
+    /**
+     * @return the number of objects being modified, plus the number of
+     *         FieldSearch updates still queued
+     */
     public int writesInProgress(){
-        return stringLock.lockCount();
+        int writes = m_pidLocks.getLockedPIDs();
+        if (m_indexUpdateQueue != null) {
+            writes += m_indexUpdateQueue.getPendingUpdates();
+        }
+        return writes;
+    }
+
+    /**
+     * Waits until the FieldSearch updates of all objects committed before
+     * the call have been applied. Returns immediately if FieldSearch is
+     * updated as part of each commit.
+     *
+     * @param timeoutMs the maximum time to wait, or 0 to wait indefinitely
+     * @return whether the updates were applied within the timeout
+     */
+    public boolean awaitIndexUpdates(long timeoutMs) throws InterruptedException {
+        if (m_indexUpdateQueue == null) {
+            return true;
+        }
+        return m_indexUpdateQueue.awaitUpdates(timeoutMs);
+    }
+
+    /**
+     * Replays the FieldSearch updates left queued when the server was last
+     * stopped. Called once all modules are initialized, as FieldSearch may
+     * not be ready for updates before.
+     */
+    public void replayIndexUpdates() {
+        if (m_indexUpdateQueue != null) {
+            m_indexUpdateQueue.replay();
+        }
     }
 
     @Override
@@ -595,6 +621,111 @@ public class DefaultDOManager
 
         /* Load the service deployment cache from the registry */
         initializeCModelDeploymentCache();
+
+        initIndexUpdateQueue();
+
+        initChecksumAuditor();
+    }
+
+    /**
+     * Opens the FieldSearch update queue if the indexUpdateQueueDir
+     * parameter is given.
+     */
+    private void initIndexUpdateQueue() throws ModuleInitializationException {
+        String queueDir = getParameter("indexUpdateQueueDir");
+        if (queueDir == null || queueDir.equals("")) {
+            logger.debug("Parameter indexUpdateQueueDir not given, updating FieldSearch synchronously");
+            return;
+        }
+        String workers = getParameter("indexUpdateWorkers");
+        if (workers == null) {
+            logger.debug("Parameter indexUpdateWorkers not given, using 4");
+            workers = "4";
+        }
+        int workerCount;
+        try {
+            workerCount = Integer.parseInt(workers);
+            if (workerCount < 1) {
+                throw new Exception("Cannot be less than one");
+            }
+        } catch (Exception e) {
+            throw new ModuleInitializationException("Bad value for indexUpdateWorkers parameter: "
+                                                            + e.getMessage(),
+                                                    getRole());
+        }
+        File dir = new File(getParameter("indexUpdateQueueDir", true));
+        try {
+            m_indexUpdateQueue =
+                    new IndexUpdateQueue(dir, workerCount, m_fieldSearch,
+                                         new IndexUpdateQueue.ReaderSource() {
+                        public DOReader getReader(String pid) throws ServerException {
+                            return DefaultDOManager.this.getReader(false, ReadOnlyContext.EMPTY, pid);
+                        }
+                    });
+        } catch (IOException e) {
+            throw new ModuleInitializationException("Unable to open FieldSearch update queue in "
+                                                            + dir + ": " + e.getMessage(),
+                                                    getRole(), e);
+        }
+        m_indexUpdateQueueObjectName = registerMBean(m_indexUpdateQueue, "IndexUpdateQueue");
+        logger.info("Updating FieldSearch asynchronously with " + workerCount
+                + " workers, journaled in " + dir);
+    }
+
+    /**
+     * Starts the background audit of managed content checksums. With a
+     * checksumAuditIntervalHours of 0, audits only run when started through
+     * JMX.
+     */
+    private void initChecksumAuditor() throws ModuleInitializationException {
+        String intervalHours = getParameter("checksumAuditIntervalHours");
+        if (intervalHours == null) {
+            logger.debug("Parameter checksumAuditIntervalHours not given, using 0");
+            intervalHours = "0";
+        }
+        String maxMBPerSecond = getParameter("checksumAuditMaxMBPerSecond");
+        if (maxMBPerSecond == null) {
+            logger.debug("Parameter checksumAuditMaxMBPerSecond not given, using 10");
+            maxMBPerSecond = "10";
+        }
+        ChecksumAuditor.ContentSource source = new ChecksumAuditor.ContentSource() {
+            public Iterator<String> listPIDs() throws ServerException {
+                return m_fieldSearch.listObjectPIDs();
+            }
+
+            public List<Datastream> getManagedDatastreams(String pid)
+                    throws ServerException {
+                // parsed from storage, so a pass over all objects does not
+                // push the objects in use out of the reader and object caches
+                DigitalObject obj = parseObject(m_permanentStore.retrieveObject(pid));
+                List<Datastream> versions = new ArrayList<Datastream>();
+                Iterator<String> dsIDs = obj.datastreamIdIterator();
+                while (dsIDs.hasNext()) {
+                    for (Datastream ds : obj.datastreams(dsIDs.next())) {
+                        if (ds.DSControlGrp.equals("M")) {
+                            versions.add(ds);
+                        }
+                    }
+                }
+                return versions;
+            }
+
+            public InputStream getContent(String internalId) throws ServerException {
+                return m_permanentStore.retrieveDatastream(internalId);
+            }
+        };
+        try {
+            long intervalMs = (long) (Double.parseDouble(intervalHours) * 3600000);
+            long maxBytesPerSecond = (long) (Double.parseDouble(maxMBPerSecond) * 1048576);
+            m_checksumAuditor = new ChecksumAuditor(source, intervalMs, maxBytesPerSecond);
+        } catch (Exception e) {
+            throw new ModuleInitializationException("Bad value for checksumAuditIntervalHours or "
+                                                            + "checksumAuditMaxMBPerSecond parameter: "
+                                                            + e.getMessage(),
+                                                    getRole());
+        }
+        m_checksumAuditor.start();
+        m_checksumAuditorObjectName = registerMBean(m_checksumAuditor, "ChecksumAuditor");
     }
 
     public String lookupDeploymentForCModel(String cModelPid, String sDefPid) {
@@ -762,9 +893,37 @@ public class DefaultDOManager
 
     @Override
     public void shutdownModule() {
+        if (m_checksumAuditor != null) {
+            m_checksumAuditor.close();
+            m_checksumAuditor = null;
+        }
+        unregisterMBean(m_checksumAuditorObjectName);
+        m_checksumAuditorObjectName = null;
+        if (m_indexUpdateQueue != null) {
+            m_indexUpdateQueue.close(INDEX_UPDATE_QUEUE_CLOSE_TIMEOUT_MS);
+            m_indexUpdateQueue = null;
+        }
+        unregisterMBean(m_indexUpdateQueueObjectName);
+        m_indexUpdateQueueObjectName = null;
         if (m_readerCache != null) {
             m_readerCache.close();
         }
+        unregisterMBean(m_readerCacheObjectName);
+        m_readerCacheObjectName = null;
+        if (m_objectCache != null) {
+            m_objectCache.close();
+        }
+        unregisterMBean(m_objectCacheObjectName);
+        m_objectCacheObjectName = null;
+        unregisterMBean(m_pidLocksObjectName);
+        m_pidLocksObjectName = null;
+        unregisterMBean(m_commitMonitorObjectName);
+        m_commitMonitorObjectName = null;
+        if (m_contentStager != null) {
+            m_contentStager.close();
+        }
+        unregisterMBean(m_contentStagerObjectName);
+        m_contentStagerObjectName = null;
     }
 
     public void releaseWriter(DOWriter writer) {
@@ -794,14 +953,14 @@ public class DefaultDOManager
 
     private void releaseWriteLock(String pid) {
 
-        stringLock.unlock( pid );
+        m_pidLocks.unlock(pid);
         // synchronized (m_lockedPIDs) {
         //     m_lockedPIDs.remove(pid);
         //        }
     }
 
     private void getWriteLock(String pid) throws ObjectLockedException, StorageMaintenanceException {
-        stringLock.lock( pid );
+        m_pidLocks.lock(pid);
 
         // synchronized (m_lockedPIDs) {
         //     if (m_lockedPIDs.contains(pid)) {
@@ -870,8 +1029,7 @@ public class DefaultDOManager
                                                m_defaultExportFormat,
                                                m_defaultStorageFormat,
                                                m_storageCharacterEncoding,
-                                               m_permanentStore
-                                                       .retrieveObject(pid));
+                                               getReadOnlyObject(pid));
                     source = "filesystem";
                     if (m_readerCache != null) {
                         m_readerCache.put(reader);
@@ -904,8 +1062,7 @@ public class DefaultDOManager
                                                      m_defaultExportFormat,
                                                      m_defaultStorageFormat,
                                                      m_storageCharacterEncoding,
-                                                     m_permanentStore
-                                                             .retrieveObject(pid));
+                                                     getReadOnlyObject(pid));
         }
     }
 
@@ -923,11 +1080,45 @@ public class DefaultDOManager
                                                      m_defaultExportFormat,
                                                      m_defaultStorageFormat,
                                                      m_storageCharacterEncoding,
-                                                     m_permanentStore
-                                                             .retrieveObject(pid));
+                                                     getReadOnlyObject(pid));
         }
     }
 
+    /**
+     * Gets the deserialized object for a reader. Objects that have not been
+     * committed since they were last parsed come from the object cache.
+     * The object may be shared with other readers, so it must not be
+     * modified.
+     */
+    private DigitalObject getReadOnlyObject(String pid) throws ServerException {
+        if (m_objectCache == null) {
+            return parseObject(m_permanentStore.retrieveObject(pid));
+        }
+        DigitalObject obj = m_objectCache.get(pid);
+        if (obj == null) {
+            // taken before reading, so a commit meanwhile keeps obj out of the cache
+            long generation = m_objectCache.getGeneration(pid);
+            InputStream in = m_permanentStore.retrieveObject(pid);
+            long start = System.nanoTime();
+            obj = parseObject(in);
+            // only cache under the PID commits invalidate
+            if (pid.equals(obj.getPid())) {
+                m_objectCache.put(pid, obj, generation, System.nanoTime() - start);
+            }
+        }
+        return obj;
+    }
+
+    private DigitalObject parseObject(InputStream in) throws ServerException {
+        BasicDigitalObject obj = new BasicDigitalObject();
+        m_translator.deserialize(in,
+                                 obj,
+                                 m_defaultStorageFormat,
+                                 m_storageCharacterEncoding,
+                                 DOTranslationUtility.DESERIALIZE_INSTANCE);
+        return obj;
+    }
+
     /**
      * Gets a writer on an an existing object.
      */
@@ -1342,6 +1533,9 @@ public class DefaultDOManager
             if (m_readerCache != null) {
                 m_readerCache.remove(obj.getPid());
             }
+            if (m_objectCache != null) {
+                m_objectCache.invalidate(obj.getPid());
+            }
 
             // REGISTRY:
             // Remove digital object from the registry
@@ -1354,7 +1548,15 @@ public class DefaultDOManager
             // remove digital object from the default search index
             try {
                 logger.trace("Deleting from FieldSearch index");
-                m_fieldSearch.delete(obj.getPid());
+                if (m_indexUpdateQueue != null) {
+                    m_indexUpdateQueue.delete(obj.getPid());
+                } else {
+                    m_fieldSearch.delete(obj.getPid());
+                }
+            } catch (IOException ioe) {
+                logger.warn("Object removal couldn't be queued for the FieldSearch index ("
+                        + ioe.getMessage()
+                        + "), but that might be ok; continuing with purge");
             } catch (ServerException se) {
                 logger.warn("Object couldn't be removed from FieldSearch index ("
                         + se.getMessage()
@@ -1373,6 +1575,8 @@ public class DefaultDOManager
 
                 // DATASTREAM STORAGE:
                 // copy and store any datastreams of type Managed Content
+                List<ManagedContentStager.Task> stagingTasks =
+                        new ArrayList<ManagedContentStager.Task>();
                 Iterator<String> dsIDIter = obj.datastreamIdIterator();
                 while (dsIDIter.hasNext()) {
                     String dsID = dsIDIter.next();
@@ -1387,79 +1591,7 @@ public class DefaultDOManager
                             String internalId = obj.getPid() + "+" + dmc.DatastreamID + "+" + dmc.DSVersionID;
                             // if it's a url, we need to grab content for this version
                             if (URL_PROTOCOL.matcher(dmc.DSLocation).matches()) {
-                                MIMETypedStream mimeTypedStream;
-                                if (dmc.DSLocation.startsWith(DatastreamManagedContent.UPLOADED_SCHEME)) {
-                                    mimeTypedStream =
-                                            new MIMETypedStream(null,
-                                                                m_management.getTempStream(dmc.DSLocation),
-                                                                null,
-                                                                dmc.DSSize);
-                                    logger.info("Getting managed datastream from internal uploaded "
-                                            + "location: " + dmc.DSLocation);
-                                } else if (dmc.DSLocation.startsWith(DatastreamManagedContent.COPY_SCHEME)) {
-                                    // make a copy of the pre-existing content
-                                    mimeTypedStream =
-                                            new MIMETypedStream(null,
-                                                                m_permanentStore
-                                                                        .retrieveDatastream(dmc.DSLocation
-                                                                                .substring(7)),
-                                                                null,
-                                                                dmc.DSSize);
-                                } else if (dmc.DSLocation.startsWith(DatastreamManagedContent.TEMP_SCHEME)) {
-                                    File file =
-                                            new File(dmc.DSLocation
-                                                    .substring(7));
-                                    logger.info("Getting base64 decoded datastream spooled from archive");
-                                    try {
-                                        InputStream str =
-                                                new FileInputStream(file);
-                                        mimeTypedStream =
-                                                new MIMETypedStream(dmc.DSMIME,
-                                                                    str,
-                                                                    null,
-                                                                    file.length());
-                                    } catch (FileNotFoundException fnfe) {
-                                        logger.warn("Unable to read temp file created for datastream from archive",
-                                                      fnfe);
-                                        throw new StreamIOException("Error reading from temporary file created for binary content");
-                                    }
-                                } else {
-                                    ContentManagerParams params = new ContentManagerParams(DOTranslationUtility
-                                            .makeAbsoluteURLs(dmc.DSLocation.toString()), dmc.DSMIME, null, null);
-                                    params.setContext(context);
-                                    mimeTypedStream = m_contentManager.getExternalContent(params);
-                                    logger.info("Getting managed datastream from remote location: " + dmc.DSLocation);
-                                }
-                                if (obj.isNew()) {
-                                    dmc.DSSize = m_permanentStore.addDatastream(internalId, mimeTypedStream.getStream());
-                                } else {
-                                    // object already existed...so we may need to call
-                                    // replace if "add" indicates that it was already there
-                                    try {
-                                        dmc.DSSize = m_permanentStore
-                                                .addDatastream(internalId, mimeTypedStream.getStream());
-                                    } catch (ObjectAlreadyInLowlevelStorageException oailse) {
-                                        dmc.DSSize = m_permanentStore
-                                                .replaceDatastream(internalId, mimeTypedStream.getStream());
-                                    }
-                                }
-                                if(mimeTypedStream != null) {
-                                    mimeTypedStream.close();
-                                if (dmc.DSLocation.startsWith(DatastreamManagedContent.TEMP_SCHEME)) {
-                                    // delete the temp file created to store the binary content from archive
-                                    File file = new File(dmc.DSLocation.substring(7));
-                                    if (file.exists()) {
-                                        if (!file.delete()) {
-                                            logger.warn("Failed to remove temp file, marked for deletion when VM closes: " + file.toString());
-                                            file.deleteOnExit();
-                                }
-                                    } else
-                                        logger.warn("Cannot delete temp file as it no longer exists: " + file.getAbsolutePath());
-                                }
-                                // Reset dsLocation in object to new internal location.
-                                dmc.DSLocation = internalId;
-                                logger.info("Replaced managed datastream location with internal id: " + internalId);
-                                }
+                                stagingTasks.add(new ManagedContentTask(context, obj, dmc, internalId));
                             } else if (!internalId.equals(dmc.DSLocation)) {
                                 logger.warn("Unrecognized DSLocation \"" + dmc.DSLocation + "\" given for datastream "
                                         + dmc.DatastreamID + " of object " + obj.getPid());
@@ -1467,6 +1599,12 @@ public class DefaultDOManager
                         }
                     }
                 }
+                m_contentStager.stage(obj.getPid(), stagingTasks,
+                                      new ManagedContentStager.Rollback() {
+                    public void remove(String id) throws Exception {
+                        m_permanentStore.removeDatastream(id);
+                    }
+                });
 
                 // MANAGED DATASTREAM PURGE:
                 // find out which, if any, managed datastreams were purged,
@@ -1485,78 +1623,88 @@ public class DefaultDOManager
                 // MODIFIED DATE:
                 // set digital object last modified date, in UTC
                 obj.setLastModDate(Server.getCurrentDate(context));
-                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                boolean verify = m_commitMonitor.startCommit();
+                long phaseStart = System.nanoTime();
+                CommitBuffer out = CommitBuffer.acquire();
+                try {
 
-                // FINAL XML SERIALIZATION:
-                // serialize the object in its final form for persistent storage
-                logger.debug("Serializing digital object for persistent storage");
-                m_translator
-                        .serialize(obj,
-                                   out,
-                                   m_defaultStorageFormat,
-                                   m_storageCharacterEncoding,
-                                   DOTranslationUtility.SERIALIZE_STORAGE_INTERNAL);
-
-                // FINAL VALIDATION:
-                // As of version 2.0, final validation is only performed in DEBUG mode.
-                // This is to help performance during the ingest process since validation
-                // is a large amount of the overhead of ingest.  Instead of a second run
-                // of the validation module, we depend on the integrity of our code to
-                // create valid XML files for persistent storage of digital objects.  As
-                // a sanity check, we check that we can deserialize the object we just serialized
-                if (logger.isDebugEnabled()) {
-                    ByteArrayInputStream inV =
-                            new ByteArrayInputStream(out.toByteArray());
-                    logger.debug("Final Validation (storage phase)");
-                    m_validator.validate(inV,
-                                         m_defaultStorageFormat,
-                                         DOValidatorImpl.VALIDATE_ALL,
-                                         "store");
-                }
-                /* Verify that we can deserialize our object.  */
-                m_translator
-                        .deserialize(new ByteArrayInputStream(out.toByteArray()),
-                             new BasicDigitalObject(),
-                             m_defaultStorageFormat,
-                             m_storageCharacterEncoding,
-                             DOTranslationUtility.SERIALIZE_STORAGE_INTERNAL);
+                    // FINAL XML SERIALIZATION:
+                    // serialize the object in its final form for persistent storage
+                    logger.debug("Serializing digital object for persistent storage");
+                    m_translator
+                            .serialize(obj,
+                                       out,
+                                       m_defaultStorageFormat,
+                                       m_storageCharacterEncoding,
+                                       DOTranslationUtility.SERIALIZE_STORAGE_INTERNAL);
+                    phaseStart = m_commitMonitor.record(CommitMonitor.Phase.SERIALIZE, phaseStart);
+
+                    // FINAL VALIDATION:
+                    // As of version 2.0, final validation is only performed in DEBUG mode.
+                    // This is to help performance during the ingest process since validation
+                    // is a large amount of the overhead of ingest.  Instead of a second run
+                    // of the validation module, we depend on the integrity of our code to
+                    // create valid XML files for persistent storage of digital objects.  As
+                    // a sanity check, we check that we can deserialize the object we just
+                    // serialized, as often as the commitVerification parameter asks for.
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Final Validation (storage phase)");
+                        m_validator.validate(out.toInputStream(),
+                                             m_defaultStorageFormat,
+                                             DOValidatorImpl.VALIDATE_ALL,
+                                             "store");
+                        phaseStart = m_commitMonitor.record(CommitMonitor.Phase.VALIDATE, phaseStart);
+                    }
+                    if (verify) {
+                        /* Verify that we can deserialize our object.  */
+                        m_translator
+                                .deserialize(out.toInputStream(),
+                                     new BasicDigitalObject(),
+                                     m_defaultStorageFormat,
+                                     m_storageCharacterEncoding,
+                                     DOTranslationUtility.SERIALIZE_STORAGE_INTERNAL);
+                        phaseStart = m_commitMonitor.record(CommitMonitor.Phase.VERIFY, phaseStart);
+                    }
 
 
-                // RESOURCE INDEX:
-                if (m_resourceIndex != null
-                        && m_resourceIndex.getIndexLevel() != ResourceIndex.INDEX_LEVEL_OFF) {
-                    logger.info("Adding to ResourceIndex");
-                    if (obj.isNew()) {
-                        m_resourceIndex.addObject(new SimpleDOReader(null,
-                                                                     null,
-                                                                     null,
-                                                                     null,
-                                                                     null,
-                                                                     obj));
-                    } else {
-                        m_resourceIndex.modifyObject(getReader(false, null, obj
-                                .getPid()), new SimpleDOReader(null,
-                                                               null,
-                                                               null,
-                                                               null,
-                                                               null,
-                                                               obj));
+                    // RESOURCE INDEX:
+                    if (m_resourceIndex != null
+                            && m_resourceIndex.getIndexLevel() != ResourceIndex.INDEX_LEVEL_OFF) {
+                        logger.info("Adding to ResourceIndex");
+                        if (obj.isNew()) {
+                            m_resourceIndex.addObject(new SimpleDOReader(null,
+                                                                         null,
+                                                                         null,
+                                                                         null,
+                                                                         null,
+                                                                         obj));
+                        } else {
+                            m_resourceIndex.modifyObject(getReader(false, null, obj
+                                    .getPid()), new SimpleDOReader(null,
+                                                                   null,
+                                                                   null,
+                                                                   null,
+                                                                   null,
+                                                                   obj));
 
+                        }
+                        logger.debug("Finished adding to ResourceIndex.");
+                        phaseStart = m_commitMonitor.record(CommitMonitor.Phase.RESOURCE_INDEX, phaseStart);
                     }
-                    logger.debug("Finished adding to ResourceIndex.");
-                }
 
-                // STORAGE:
-                // write XML serialization of object to persistent storage
-                logger.debug("Storing digital object");
-                if (obj.isNew()) {
-                    m_permanentStore.addObject(obj.getPid(),
-                                               new ByteArrayInputStream(out
-                                                       .toByteArray()));
-                } else {
-                    m_permanentStore.replaceObject(obj.getPid(),
-                                                   new ByteArrayInputStream(out
-                                                           .toByteArray()));
+                    // STORAGE:
+                    // write XML serialization of object to persistent storage
+                    logger.debug("Storing digital object");
+                    if (obj.isNew()) {
+                        m_permanentStore.addObject(obj.getPid(),
+                                                   out.toInputStream());
+                    } else {
+                        m_permanentStore.replaceObject(obj.getPid(),
+                                                       out.toInputStream());
+                    }
+                    m_commitMonitor.record(CommitMonitor.Phase.STORE, phaseStart);
+                } finally {
+                    out.release();
                 }
 
                 // INVALIDATE DOREADER CACHE:
@@ -1565,6 +1713,9 @@ public class DefaultDOManager
                 if (m_readerCache != null) {
                     m_readerCache.remove(obj.getPid());
                 }
+                if (m_objectCache != null) {
+                    m_objectCache.invalidate(obj.getPid());
+                }
 
                 // REGISTRY:
                 /*
@@ -1593,12 +1744,19 @@ public class DefaultDOManager
 
                 try {
                     logger.trace("Updating FieldSearch index");
-                    m_fieldSearch.update(new SimpleDOReader(null,
-                                                            null,
-                                                            null,
-                                                            null,
-                                                            null,
-                                                            obj));
+                    long fieldSearchStart = System.nanoTime();
+                    DOReader indexReader = new SimpleDOReader(null,
+                                                              null,
+                                                              null,
+                                                              null,
+                                                              null,
+                                                              obj);
+                    if (m_indexUpdateQueue != null) {
+                        m_indexUpdateQueue.update(obj.getPid(), indexReader);
+                    } else {
+                        m_fieldSearch.update(indexReader);
+                    }
+                    m_commitMonitor.record(CommitMonitor.Phase.FIELD_SEARCH, fieldSearchStart);
 
                     // FIXME: also remove from temp storage if this is successful
                     //                    removeReplicationJob(obj.getPid());
@@ -1633,6 +1791,181 @@ public class DefaultDOManager
         }
     }
 
+    /**
+     * Fetches the content of a managed datastream version from its URL and
+     * writes it to low level storage, computing its size and, if it has none
+     * yet, its checksum while it is written. A checksum given by the client
+     * is verified against the computed one.
+     */
+    private class ManagedContentTask
+            implements ManagedContentStager.Task {
+
+        private final Context m_context;
+
+        private final DigitalObject m_obj;
+
+        private final Datastream m_dmc;
+
+        private final String m_internalId;
+
+        private long m_size;
+
+        ManagedContentTask(Context context, DigitalObject obj, Datastream dmc, String internalId) {
+            m_context = context;
+            m_obj = obj;
+            m_dmc = dmc;
+            m_internalId = internalId;
+        }
+
+        public String getId() {
+            return m_internalId;
+        }
+
+        public long getSize() {
+            return m_size;
+        }
+
+        public boolean stage() throws Exception {
+            Datastream dmc = m_dmc;
+            MIMETypedStream mimeTypedStream;
+            if (dmc.DSLocation.startsWith(DatastreamManagedContent.UPLOADED_SCHEME)) {
+                mimeTypedStream =
+                        new MIMETypedStream(null,
+                                            m_management.getTempStream(dmc.DSLocation),
+                                            null,
+                                            dmc.DSSize);
+                logger.info("Getting managed datastream from internal uploaded "
+                        + "location: " + dmc.DSLocation);
+            } else if (dmc.DSLocation.startsWith(DatastreamManagedContent.COPY_SCHEME)) {
+                // make a copy of the pre-existing content
+                mimeTypedStream =
+                        new MIMETypedStream(null,
+                                            m_permanentStore
+                                                    .retrieveDatastream(dmc.DSLocation
+                                                            .substring(7)),
+                                            null,
+                                            dmc.DSSize);
+            } else if (dmc.DSLocation.startsWith(DatastreamManagedContent.TEMP_SCHEME)) {
+                File file =
+                        new File(dmc.DSLocation
+                                .substring(7));
+                logger.info("Getting base64 decoded datastream spooled from archive");
+                try {
+                    InputStream str =
+                            new FileInputStream(file);
+                    mimeTypedStream =
+                            new MIMETypedStream(dmc.DSMIME,
+                                                str,
+                                                null,
+                                                file.length());
+                } catch (FileNotFoundException fnfe) {
+                    logger.warn("Unable to read temp file created for datastream from archive",
+                                  fnfe);
+                    throw new StreamIOException("Error reading from temporary file created for binary content");
+                }
+            } else {
+                ContentManagerParams params = new ContentManagerParams(DOTranslationUtility
+                        .makeAbsoluteURLs(dmc.DSLocation.toString()), dmc.DSMIME, null, null);
+                params.setContext(m_context);
+                mimeTypedStream = m_contentManager.getExternalContent(params);
+                logger.info("Getting managed datastream from remote location: " + dmc.DSLocation);
+            }
+
+            boolean added = true;
+            DigestingInputStream content;
+            try {
+                content = new DigestingInputStream(mimeTypedStream.getStream(),
+                                                   getChecksumDigest(dmc));
+                if (m_obj.isNew()) {
+                    m_permanentStore.addDatastream(m_internalId, content);
+                } else {
+                    // object already existed...so we may need to call
+                    // replace if "add" indicates that it was already there
+                    try {
+                        m_permanentStore.addDatastream(m_internalId, content);
+                    } catch (ObjectAlreadyInLowlevelStorageException oailse) {
+                        content = new DigestingInputStream(mimeTypedStream.getStream(),
+                                                           getChecksumDigest(dmc));
+                        m_permanentStore.replaceDatastream(m_internalId, content);
+                        added = false;
+                    }
+                }
+            } finally {
+                mimeTypedStream.close();
+            }
+            m_size = content.getCount();
+            dmc.DSSize = m_size;
+            String checksum = content.getHexDigest();
+            String expected = getExpectedChecksum(dmc);
+            if (expected != null) {
+                if (checksum == null) {
+                    checksum = Datastream.CHECKSUM_NONE;
+                }
+                if (!expected.equals(checksum)) {
+                    // the stager only rolls back tasks that succeed, so
+                    // remove the content stored under a new id here
+                    if (added) {
+                        try {
+                            m_permanentStore.removeDatastream(m_internalId);
+                        } catch (Exception e) {
+                            logger.warn("Unable to remove managed datastream " + m_internalId
+                                    + " after checksum mismatch", e);
+                        }
+                    }
+                    throw new ValidationException("Checksum Mismatch: " + checksum);
+                }
+                ((DatastreamManagedContent) dmc).DSExpectedChecksum = null;
+            }
+            if (checksum != null) {
+                dmc.DSChecksum = checksum;
+            }
+
+            if (dmc.DSLocation.startsWith(DatastreamManagedContent.TEMP_SCHEME)) {
+                // delete the temp file created to store the binary content from archive
+                File file = new File(dmc.DSLocation.substring(7));
+                if (file.exists()) {
+                    if (!file.delete()) {
+                        logger.warn("Failed to remove temp file, marked for deletion when VM closes: " + file.toString());
+                        file.deleteOnExit();
+                    }
+                } else
+                    logger.warn("Cannot delete temp file as it no longer exists: " + file.getAbsolutePath());
+            }
+            // Reset dsLocation in object to new internal location.
+            dmc.DSLocation = m_internalId;
+            logger.info("Replaced managed datastream location with internal id: " + m_internalId);
+            return added;
+        }
+    }
+
+    /**
+     * Gets a digest to compute the checksum of a datastream version while
+     * its content is written, or null if it has a checksum already or
+     * checksums are disabled.
+     */
+    private static MessageDigest getChecksumDigest(Datastream ds) {
+        if (ds.DSChecksum != null && !ds.DSChecksum.equals(Datastream.CHECKSUM_NONE)
+                && getExpectedChecksum(ds) == null) {
+            return null;
+        }
+        String type = ds.getChecksumType();
+        if (type == null || type.equals(Datastream.CHECKSUMTYPE_DISABLED)) {
+            return null;
+        }
+        try {
+            return MessageDigest.getInstance(type);
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    private static String getExpectedChecksum(Datastream ds) {
+        if (ds instanceof DatastreamManagedContent) {
+            return ((DatastreamManagedContent) ds).DSExpectedChecksum;
+        }
+        return null;
+    }
+
     private Set<Long> getDatastreamDates(Iterable<Datastream> ds) {
         Set<Long> dates = new HashSet<Long>();
         for (Datastream d : ds) {
@@ -1696,17 +2029,16 @@ public class DefaultDOManager
      * Checks the object registry for the given object.
      */
     public boolean objectExists( String pid) throws StorageDeviceException {
-        logger.debug("Checking if " + pid + " already exists");
+        logger.debug("Checking if {} already exists", pid);
+        if (m_indexUpdateQueue != null) {
+            // the index lags behind objects with queued updates
+            Boolean queued = m_indexUpdateQueue.getQueuedExistence(pid);
+            if (queued != null) {
+                return queued.booleanValue();
+            }
+        }
         try {
-            Context context = ReadOnlyContext.getContext(null,
-                                         null,
-                                         null,
-                                         false);
-            List<Condition> conditions = new ArrayList<Condition>();
-            conditions.add(new Condition("pid", Operator.EQUALS, pid));
-            FieldSearchQuery query = new FieldSearchQuery(conditions);
-            FieldSearchResult findObjects = findObjects(context, new String[] { "PID" }, 1, query);
-            return findObjects.getCompleteListSize() > 0;
+            return m_fieldSearch.objectExists(pid);
         }
         catch (Exception ex) {
             throw new StorageDeviceException("Failed to determine if object exists", ex);
@@ -1758,33 +2090,35 @@ public class DefaultDOManager
     public String[] listObjectPIDs(Context context)
             throws StorageDeviceException {
 
+        Iterator<String> pids = null;
         try {
-            List<Condition> conditions = new ArrayList<Condition>();
-            conditions.add(new Condition("pid", Operator.EQUALS, "*"));
-            FieldSearchQuery query = new FieldSearchQuery(conditions);
-            FieldSearchResult findObjects = findObjects(context, new String[] { "PID" }, 1, query);
-            long size = findObjects.getCompleteListSize();
-            if (size > Integer.MAX_VALUE) {
-                throw new StorageDeviceException( "Too many objects in repository to return: " + size);
-            }
-            String[] result = new String[(int)size];
-            int index = 0;
-            for (ObjectFields fields : findObjects.objectFieldsList()) {
-                result[index++] = fields.getPid();
+            List<String> result = new ArrayList<String>();
+            pids = m_fieldSearch.listObjectPIDs();
+            while (pids.hasNext()) {
+                result.add(pids.next());
             }
-            String token = findObjects.getToken();
-            while (token != null) {
-                findObjects = resumeFindObjects(context, token);
-                for (ObjectFields fields : findObjects.objectFieldsList()) {
-                    result[index++] = fields.getPid();
-                }
-                token = findObjects.getToken();
-            }
-            return result;
+            return result.toArray(new String[result.size()]);
         }
         catch (Exception ex) {
             throw new StorageDeviceException("Failed to determine objects", ex);
         }
+        finally {
+            closePIDIterator(pids);
+        }
+    }
+
+    /**
+     * Releases the index resources held by an iterator from
+     * {@link FieldSearch#listObjectPIDs()}, also if it was not exhausted.
+     */
+    private static void closePIDIterator(Iterator<String> pids) {
+        if (pids instanceof Closeable) {
+            try {
+                ((Closeable) pids).close();
+            } catch (IOException e) {
+                logger.warn("Unable to close pid iterator", e);
+            }
+        }
     }
 
     // translates simple wildcard string to sql-appropriate.
@@ -1908,6 +2242,28 @@ public class DefaultDOManager
         return m_fieldSearch.resumeFindObjects(sessionToken);
     }
 
+    public FieldSearchResult findObjectsAfter(Context context,
+                                              String[] resultFields,
+                                              int maxResults,
+                                              FieldSearchQuery query,
+                                              String afterPid)
+            throws ServerException {
+        return m_fieldSearch.findObjectsAfter(resultFields, maxResults, query, afterPid);
+    }
+
+    public long countObjects(Context context, FieldSearchQuery query)
+            throws ServerException {
+        return m_fieldSearch.countObjects(query);
+    }
+
+    public Map<String, Map<String, Integer>> findFacets(Context context,
+                                                        String[] fields,
+                                                        int maxValues,
+                                                        FieldSearchQuery query)
+            throws ServerException {
+        return m_fieldSearch.findFacets(fields, maxValues, query);
+    }
+
     /**
      * <p>
      * Gets a list of the requested next available PIDs. the number of PIDs.
@@ -1935,8 +2291,9 @@ public class DefaultDOManager
             namespace = m_pidNamespace;
         }
         try {
+            PID[] pids = m_pidGenerator.generatePIDs(namespace, numPIDs);
             for (int i = 0; i < numPIDs; i++) {
-                pidList[i] = m_pidGenerator.generatePID(namespace).toString();
+                pidList[i] = pids[i].toString();
             }
             return pidList;
         } catch (IOException ioe) {
@@ -1975,8 +2332,7 @@ public class DefaultDOManager
             List<Condition> conditions = new ArrayList<Condition>();
             conditions.add(new Condition("pid", Operator.EQUALS, "*"));
             FieldSearchQuery query = new FieldSearchQuery(conditions);
-            FieldSearchResult findObjects = findObjects(context, new String[] { "PID" }, 1, query);
-            long size = findObjects.getCompleteListSize();
+            long size = countObjects(context, query);
             hash.append(size);
             //hash.append(getNumObjectsWithVersion(conn, 0));
             hash.append('|');
@@ -0,0 +1,112 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.storage;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.security.MessageDigest;
+
+import org.fcrepo.server.utilities.StringUtility;
+
+/**
+ * Counts the bytes read through it and, optionally, computes their digest,
+ * so the size and checksum of content are known once it has been copied
+ * without reading it again.
+ */
+public class DigestingInputStream
+        extends FilterInputStream {
+
+    private final MessageDigest m_digest;
+
+    private long m_count = 0;
+
+    /**
+     * @param in the stream to read
+     * @param digest the digest to update with the bytes read, or null to
+     *        only count them
+     */
+    public DigestingInputStream(InputStream in, MessageDigest digest) {
+        super(in);
+        m_digest = digest;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+            m_count++;
+            if (m_digest != null) {
+                m_digest.update((byte) b);
+            }
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0) {
+            m_count += n;
+            if (m_digest != null) {
+                m_digest.update(b, off, n);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Skips by reading, so the skipped bytes are part of the digest.
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped < n) {
+            int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if (read < 0) {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    /**
+     * @return the number of bytes read so far
+     */
+    public long getCount() {
+        return m_count;
+    }
+
+    /**
+     * Completes the digest. Must only be called once all content is read.
+     *
+     * @return the digest of the bytes read as a hex string, or null if no
+     *         digest is computed
+     */
+    public String getHexDigest() {
+        if (m_digest == null) {
+            return null;
+        }
+        return StringUtility.byteArraytoHexString(m_digest.digest());
+    }
+
+}
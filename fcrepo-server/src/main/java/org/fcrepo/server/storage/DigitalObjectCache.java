@@ -0,0 +1,346 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.fcrepo.server.storage.types.DigitalObject;
+
+/**
+ * A cache of deserialized objects, so reading an object that has not
+ * changed does not parse it again.
+ * <p>
+ * Cached objects do not expire. An object stays valid until it is
+ * invalidated by a commit of the object, which also advances the storage
+ * generation of its PID. A thread that parses an object takes the
+ * generation before it reads the object from storage, and the object is
+ * only cached if the generation has not moved on since, so an object
+ * parsed from storage while it was being replaced is never cached.
+ * Generations are kept for stripes of PIDs rather than per PID, so a
+ * commit only rarely keeps an unrelated object from being cached.
+ * <p>
+ * Like the {@link DOReaderCache}, the cache is split in segments, each a
+ * LinkedHashMap in access order with its share of the bounds on the number
+ * of objects and their estimated size, evicting the least recently used
+ * objects first.
+ * <p>
+ * Cached objects are shared by all readers of the object, so they must not
+ * be modified. Writers always parse their own copy.
+ */
+public class DigitalObjectCache
+        implements DigitalObjectCacheMBean {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(DigitalObjectCache.class);
+
+    private static final int MAX_SEGMENTS = 16;
+
+    /** Fewest objects in a segment before the cache is split in more segments */
+    private static final int MIN_SEGMENT_OBJECTS = 16;
+
+    private static final int GENERATION_STRIPES = 1024;
+
+    private final int m_maxObjects;
+
+    private final long m_maxBytes;
+
+    private final Segment[] m_segments;
+
+    private final AtomicLongArray m_generations =
+            new AtomicLongArray(GENERATION_STRIPES);
+
+    private final AtomicLong m_hits = new AtomicLong();
+
+    private final AtomicLong m_misses = new AtomicLong();
+
+    private final AtomicLong m_evictions = new AtomicLong();
+
+    private final AtomicLong m_invalidations = new AtomicLong();
+
+    /** Number of parsed objects not cached because they were committed meanwhile */
+    private final AtomicLong m_staleParses = new AtomicLong();
+
+    private final AtomicLong m_parses = new AtomicLong();
+
+    private final AtomicLong m_parseNanos = new AtomicLong();
+
+    private final AtomicLong m_savedParseNanos = new AtomicLong();
+
+    /**
+     * @param maxObjects the maximum number of objects to cache
+     * @param maxBytes the maximum estimated size of the cached objects, or 0
+     *        to bound the cache by the number of objects only
+     */
+    public DigitalObjectCache(int maxObjects, long maxBytes) {
+        if (maxObjects < 1) {
+            throw new IllegalArgumentException("maxObjects must be positive, was " + maxObjects);
+        }
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes must not be negative, was " + maxBytes);
+        }
+        m_maxObjects = maxObjects;
+        m_maxBytes = maxBytes;
+
+        int segmentCount = 1;
+        while (segmentCount < MAX_SEGMENTS
+                && maxObjects / (segmentCount * 2) >= MIN_SEGMENT_OBJECTS) {
+            segmentCount *= 2;
+        }
+        m_segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            // Spread the remainders so the segment bounds add up to the cache bounds
+            int objects = maxObjects / segmentCount
+                    + (i < maxObjects % segmentCount ? 1 : 0);
+            long bytes = maxBytes / segmentCount
+                    + (i < maxBytes % segmentCount ? 1 : 0);
+            m_segments[i] = new Segment(objects, bytes);
+        }
+        logger.info("Object cache holds up to " + maxObjects + " objects"
+                + (maxBytes > 0 ? " and " + maxBytes + " bytes" : "")
+                + " in " + segmentCount + " segments");
+    }
+
+    /**
+     * Gets the storage generation of a PID, to pass to
+     * {@link #put(String, DigitalObject, long, long)} once the object read
+     * from storage has been parsed. Must be called before the object is
+     * read.
+     */
+    public long getGeneration(String pid) {
+        return m_generations.get(getStripe(pid));
+    }
+
+    /**
+     * Gets a cached object, or null if it is not cached.
+     */
+    public DigitalObject get(String pid) {
+        Entry entry = getSegment(pid).get(pid);
+        if (entry == null) {
+            m_misses.incrementAndGet();
+            return null;
+        }
+        m_hits.incrementAndGet();
+        m_savedParseNanos.addAndGet(entry.parseNanos);
+        return entry.obj;
+    }
+
+    /**
+     * Caches a parsed object, unless it was committed since the generation
+     * was taken.
+     *
+     * @param generation the generation taken before the object was read
+     * @param parseNanos the time it took to parse the object
+     */
+    public void put(String pid, DigitalObject obj, long generation, long parseNanos) {
+        m_parses.incrementAndGet();
+        m_parseNanos.addAndGet(parseNanos);
+        if (!getSegment(pid).put(pid, obj, DOReaderCache.estimateSize(obj),
+                                 generation, parseNanos)) {
+            m_staleParses.incrementAndGet();
+        }
+    }
+
+    /**
+     * Removes an object that has been committed or purged. Must be called
+     * after the new state of the object is in storage.
+     */
+    public void invalidate(String pid) {
+        getSegment(pid).invalidate(pid);
+    }
+
+    /**
+     * Empties the cache.
+     */
+    public void close() {
+        for (Segment segment : m_segments) {
+            segment.clear();
+        }
+    }
+
+    public int getMaxObjects() {
+        return m_maxObjects;
+    }
+
+    public long getMaxBytes() {
+        return m_maxBytes;
+    }
+
+    public int getObjects() {
+        int objects = 0;
+        for (Segment segment : m_segments) {
+            objects += segment.size();
+        }
+        return objects;
+    }
+
+    public long getEstimatedBytes() {
+        long bytes = 0;
+        for (Segment segment : m_segments) {
+            bytes += segment.bytes();
+        }
+        return bytes;
+    }
+
+    public long getHits() {
+        return m_hits.get();
+    }
+
+    public long getMisses() {
+        return m_misses.get();
+    }
+
+    public double getHitRatio() {
+        long hits = m_hits.get();
+        long lookups = hits + m_misses.get();
+        return (lookups == 0) ? 0 : (double) hits / lookups;
+    }
+
+    public long getEvictions() {
+        return m_evictions.get();
+    }
+
+    public long getInvalidations() {
+        return m_invalidations.get();
+    }
+
+    public long getStaleParses() {
+        return m_staleParses.get();
+    }
+
+    public long getParses() {
+        return m_parses.get();
+    }
+
+    public long getAverageParseTimeMicroS() {
+        long parses = m_parses.get();
+        return (parses == 0) ? 0 : m_parseNanos.get() / parses / 1000;
+    }
+
+    public long getSavedParseTimeMs() {
+        return m_savedParseNanos.get() / 1000000;
+    }
+
+    public void resetCounters() {
+        m_hits.set(0);
+        m_misses.set(0);
+        m_evictions.set(0);
+        m_invalidations.set(0);
+        m_staleParses.set(0);
+        m_parses.set(0);
+        m_parseNanos.set(0);
+        m_savedParseNanos.set(0);
+    }
+
+    private Segment getSegment(String pid) {
+        return m_segments[(pid.hashCode() & Integer.MAX_VALUE) % m_segments.length];
+    }
+
+    private static int getStripe(String pid) {
+        // The segment takes the low bits of the hash, so the stripe mixes in the high bits
+        int hash = pid.hashCode();
+        return ((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % GENERATION_STRIPES;
+    }
+
+    private static final class Entry {
+
+        final DigitalObject obj;
+
+        final long size;
+
+        final long parseNanos;
+
+        Entry(DigitalObject obj, long size, long parseNanos) {
+            this.obj = obj;
+            this.size = size;
+            this.parseNanos = parseNanos;
+        }
+    }
+
+    /**
+     * A part of the cache, with its own share of the bounds. All access is
+     * synchronized on the segment, including the checks and updates of the
+     * generations of its PIDs.
+     */
+    private final class Segment {
+
+        private final int m_maxObjects;
+
+        private final long m_maxBytes;
+
+        /** Entries from least to most recently used */
+        private final LinkedHashMap<String, Entry> m_entries =
+                new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+        private long m_bytes = 0;
+
+        Segment(int maxObjects, long maxBytes) {
+            m_maxObjects = maxObjects;
+            m_maxBytes = maxBytes;
+        }
+
+        synchronized Entry get(String pid) {
+            return m_entries.get(pid);
+        }
+
+        /**
+         * @return false if the object was not cached because its generation
+         *         has moved on
+         */
+        synchronized boolean put(String pid,
+                                 DigitalObject obj,
+                                 long size,
+                                 long generation,
+                                 long parseNanos) {
+            if (m_generations.get(getStripe(pid)) != generation) {
+                return false;
+            }
+            Entry old = m_entries.put(pid, new Entry(obj, size, parseNanos));
+            if (old != null) {
+                m_bytes -= old.size;
+            }
+            m_bytes += size;
+
+            Iterator<Map.Entry<String, Entry>> it = m_entries.entrySet().iterator();
+            while (m_entries.size() > m_maxObjects
+                    || (m_maxBytes > 0 && m_bytes > m_maxBytes && m_entries.size() > 1)) {
+                Map.Entry<String, Entry> eldest = it.next();
+                m_bytes -= eldest.getValue().size;
+                it.remove();
+                m_evictions.incrementAndGet();
+            }
+            return true;
+        }
+
+        synchronized void invalidate(String pid) {
+            m_generations.incrementAndGet(getStripe(pid));
+            Entry entry = m_entries.remove(pid);
+            if (entry != null) {
+                m_bytes -= entry.size;
+                m_invalidations.incrementAndGet();
+            }
+        }
+
+        synchronized void clear() {
+            m_entries.clear();
+            m_bytes = 0;
+        }
+
+        synchronized int size() {
+            return m_entries.size();
+        }
+
+        synchronized long bytes() {
+            return m_bytes;
+        }
+    }
+
+}
@@ -0,0 +1,47 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.storage;
+
+/**
+ * JMX view of the {@link DigitalObjectCache} of the DOManager.
+ */
+public interface DigitalObjectCacheMBean {
+
+    int getMaxObjects();
+
+    /** Maximum estimated size of the cached objects, or 0 if unbounded */
+    long getMaxBytes();
+
+    /** Number of objects currently cached */
+    int getObjects();
+
+    /** Estimated size of the objects currently cached */
+    long getEstimatedBytes();
+
+    long getHits();
+
+    long getMisses();
+
+    double getHitRatio();
+
+    /** Number of objects removed to keep the cache within its bounds */
+    long getEvictions();
+
+    /** Number of cached objects removed because they were committed */
+    long getInvalidations();
+
+    /** Number of parsed objects not cached because they were committed while being parsed */
+    long getStaleParses();
+
+    /** Number of objects parsed on a cache miss */
+    long getParses();
+
+    long getAverageParseTimeMicroS();
+
+    /** Parse time saved by hits, counting each hit at the time its object took to parse */
+    long getSavedParseTimeMs();
+
+    void resetCounters();
+}
@@ -0,0 +1,634 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.storage;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.fcrepo.server.errors.ObjectNotInLowlevelStorageException;
+import org.fcrepo.server.errors.ServerException;
+import org.fcrepo.server.search.FieldSearch;
+
+/**
+ * Applies field search updates of committed objects in the background, so
+ * commits return once the object is stored.
+ * <p>
+ * Every update is appended to a journal and synced to disk before it is
+ * queued, and marked as done in the journal once applied. Updates not marked
+ * as done when the server stopped are replayed from the stored objects when
+ * the queue is opened again. Replaying an update indexes the object as it is
+ * stored, or removes it from the index if it no longer exists, so replays
+ * need not be ordered with new updates, and updates replayed more than once
+ * do no harm. Updates that fail are kept in the journal, and
+ * retried the next time the queue is opened.
+ * <p>
+ * Updates are spread over the workers by PID, each worker applying its
+ * updates in order, so the updates of one object are applied in the order
+ * they were committed. Callers needing the index to reflect their commits
+ * wait for them with {@link #awaitUpdates(long)}.
+ */
+public class IndexUpdateQueue
+        implements IndexUpdateQueueMBean {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(IndexUpdateQueue.class);
+
+    static final String JOURNAL_NAME = "index-updates.log";
+
+    /** Journal size above which it is rewritten once no updates are pending */
+    private static final long MAX_JOURNAL_BYTES = 1024 * 1024;
+
+    private static final char UPDATE = 'U';
+
+    private static final char DELETE = 'D';
+
+    private static final char DONE = '-';
+
+    /**
+     * Gets the current state of an object while replaying updates.
+     */
+    public interface ReaderSource {
+
+        /**
+         * @throws ObjectNotInLowlevelStorageException if the object no
+         *         longer exists
+         */
+        DOReader getReader(String pid) throws ServerException;
+    }
+
+    private final File m_journalFile;
+
+    private final FieldSearch m_fieldSearch;
+
+    private final ReaderSource m_readerSource;
+
+    /** Updates to replay, as operation and PID separated by a space */
+    private final List<String> m_replay;
+
+    private final ExecutorService[] m_workers;
+
+    /** Guards the journal, the sequence and the pending and failed updates */
+    private final Object m_lock = new Object();
+
+    private FileOutputStream m_journalStream;
+
+    private Writer m_journal;
+
+    private long m_journalBytes;
+
+    private long m_sequence = 0;
+
+    /** Serializes syncs of the journal, so one sync covers all lines written before it */
+    private final Object m_syncLock = new Object();
+
+    /** Highest sequence known to be on disk, guarded by m_syncLock */
+    private long m_syncedSequence = 0;
+
+    /** Enqueue time in nanoseconds of the pending updates, by sequence */
+    private final TreeMap<Long, Long> m_pending = new TreeMap<Long, Long>();
+
+    /** Journal lines of failed updates, by sequence */
+    private final Map<Long, String> m_failed = new LinkedHashMap<Long, String>();
+
+    /** Objects with updates not applied yet, including failed ones, by PID */
+    private final Map<String, QueuedObject> m_queued = new HashMap<String, QueuedObject>();
+
+    private final AtomicLong m_applied = new AtomicLong();
+
+    private final AtomicLong m_failures = new AtomicLong();
+
+    private final AtomicLong m_totalLagNanos = new AtomicLong();
+
+    private final AtomicLong m_replayed = new AtomicLong();
+
+    /**
+     * Opens the queue, starting the workers. The updates left in the
+     * journal are queued by {@link #replay()}.
+     *
+     * @param directory the directory of the journal, created if missing
+     * @param workers the number of threads applying updates
+     * @param fieldSearch the index to update
+     * @param readerSource gets the objects of replayed updates
+     */
+    public IndexUpdateQueue(File directory,
+                            int workers,
+                            FieldSearch fieldSearch,
+                            ReaderSource readerSource) throws IOException {
+        if (workers < 1) {
+            throw new IllegalArgumentException("workers must be positive, was " + workers);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory " + directory);
+        }
+        m_journalFile = new File(directory, JOURNAL_NAME);
+        m_fieldSearch = fieldSearch;
+        m_readerSource = readerSource;
+
+        // Compact the journal to the updates to replay, numbered from 1. A
+        // journal only found as the temporary file was being replaced by it
+        File compacted = new File(directory, JOURNAL_NAME + ".tmp");
+        if (!m_journalFile.exists() && compacted.exists()
+                && !compacted.renameTo(m_journalFile)) {
+            throw new IOException("Unable to rename " + compacted + " to " + m_journalFile);
+        }
+        m_replay = readJournal(m_journalFile);
+        synchronized (m_lock) {
+            for (String entry : m_replay) {
+                track(entry.charAt(0), entry.substring(2));
+            }
+        }
+        List<String> entries = new ArrayList<String>(m_replay.size());
+        for (String entry : m_replay) {
+            entries.add(++m_sequence + " " + entry);
+        }
+        replaceJournal(entries);
+
+        m_workers = new ExecutorService[workers];
+        for (int i = 0; i < workers; i++) {
+            m_workers[i] = Executors.newSingleThreadExecutor(new WorkerFactory(i));
+        }
+    }
+
+    /**
+     * Queues the updates left in the journal when the queue was last
+     * closed. Must be called once the field search index is ready for
+     * updates.
+     */
+    public void replay() {
+        if (!m_replay.isEmpty()) {
+            logger.info("Replaying " + m_replay.size() + " index updates from " + m_journalFile);
+        }
+        // The updates are already journaled with the first sequence numbers
+        long sequence = 0;
+        for (String entry : m_replay) {
+            Update update = new Update(++sequence, entry.charAt(0), entry.substring(2), null, true);
+            schedule(update);
+            m_replayed.incrementAndGet();
+        }
+        synchronized (m_lock) {
+            m_replay.clear();
+            m_lock.notifyAll();
+        }
+    }
+
+    /**
+     * Queues an update of the index with the given object.
+     *
+     * @param reader a reader of the object as committed, used instead of
+     *        reading the object back from storage
+     */
+    public void update(String pid, DOReader reader) throws IOException {
+        enqueue(UPDATE, pid, reader);
+    }
+
+    /**
+     * Queues the removal of an object from the index.
+     */
+    public void delete(String pid) throws IOException {
+        enqueue(DELETE, pid, null);
+    }
+
+    /**
+     * Tells whether an object exists according to the latest of its updates
+     * that are queued, being replayed or failed, which the index does not
+     * reflect yet.
+     *
+     * @return TRUE if the latest such update indexes the object, FALSE if it
+     *         removes the object, or null if the index is up to date for it
+     */
+    public Boolean getQueuedExistence(String pid) {
+        synchronized (m_lock) {
+            QueuedObject queued = m_queued.get(pid);
+            if (queued == null) {
+                return null;
+            }
+            return Boolean.valueOf(queued.m_operation == UPDATE);
+        }
+    }
+
+    /**
+     * Waits until all updates queued before the call, and all updates left
+     * to replay, have been applied or have failed.
+     *
+     * @param timeoutMs the maximum time to wait, or 0 to wait indefinitely
+     * @return whether the updates were applied within the timeout
+     */
+    public boolean awaitUpdates(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (m_lock) {
+            long target = m_sequence;
+            while (!m_replay.isEmpty()
+                    || (!m_pending.isEmpty() && m_pending.firstKey() <= target)) {
+                if (timeoutMs == 0) {
+                    m_lock.wait();
+                } else {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    m_lock.wait(remaining);
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Stops the workers, waiting for the queued updates to be applied for
+     * at most the given time. Updates not applied are replayed when the
+     * queue is opened again.
+     */
+    public void close(long timeoutMs) {
+        for (ExecutorService worker : m_workers) {
+            worker.shutdown();
+        }
+        try {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            for (ExecutorService worker : m_workers) {
+                long remaining = Math.max(0, deadline - System.currentTimeMillis());
+                if (!worker.awaitTermination(remaining, TimeUnit.MILLISECONDS)) {
+                    worker.shutdownNow();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (m_lock) {
+            if (!m_pending.isEmpty()) {
+                logger.warn(m_pending.size() + " index updates were not applied, "
+                        + "they will be replayed on startup");
+            }
+            try {
+                m_journal.close();
+            } catch (IOException e) {
+                logger.warn("Error closing " + m_journalFile, e);
+            }
+        }
+    }
+
+    @Override
+    public int getWorkers() {
+        return m_workers.length;
+    }
+
+    @Override
+    public int getPendingUpdates() {
+        synchronized (m_lock) {
+            return m_pending.size();
+        }
+    }
+
+    @Override
+    public long getOldestPendingAgeMs() {
+        synchronized (m_lock) {
+            if (m_pending.isEmpty()) {
+                return 0;
+            }
+            return (System.nanoTime() - m_pending.firstEntry().getValue()) / 1000000;
+        }
+    }
+
+    @Override
+    public long getAppliedUpdates() {
+        return m_applied.get();
+    }
+
+    @Override
+    public long getFailedUpdates() {
+        return m_failures.get();
+    }
+
+    @Override
+    public long getAverageLagMicroS() {
+        long applied = m_applied.get();
+        return (applied == 0) ? 0 : m_totalLagNanos.get() / 1000 / applied;
+    }
+
+    @Override
+    public long getReplayedUpdates() {
+        return m_replayed.get();
+    }
+
+    private void enqueue(char operation, String pid, DOReader reader)
+            throws IOException {
+        Update update;
+        synchronized (m_lock) {
+            long sequence = ++m_sequence;
+            writeJournal(sequence + " " + operation + " " + pid);
+            m_journal.flush();
+            track(operation, pid);
+            update = new Update(sequence, operation, pid, reader, false);
+            // pending from now on, so the journal is not rewritten before it is synced
+            m_pending.put(update.m_sequence, update.m_queued);
+        }
+        try {
+            syncJournal(update.m_sequence);
+        } catch (IOException e) {
+            synchronized (m_lock) {
+                m_pending.remove(update.m_sequence);
+                untrack(pid);
+                m_lock.notifyAll();
+            }
+            throw e;
+        }
+        execute(update);
+    }
+
+    /**
+     * Makes sure the journal is on disk up to the given sequence. Commits
+     * waiting for a sync in progress are covered by the next one, so the
+     * journal is synced once for each group of commits rather than once for
+     * each commit, and not while the lock is held.
+     */
+    private void syncJournal(long sequence) throws IOException {
+        synchronized (m_syncLock) {
+            if (m_syncedSequence >= sequence) {
+                return;
+            }
+            long target;
+            FileOutputStream stream;
+            synchronized (m_lock) {
+                target = m_sequence;
+                stream = m_journalStream;
+            }
+            stream.getFD().sync();
+            m_syncedSequence = target;
+        }
+    }
+
+    private void schedule(Update update) {
+        synchronized (m_lock) {
+            m_pending.put(update.m_sequence, update.m_queued);
+        }
+        execute(update);
+    }
+
+    private void execute(Update update) {
+        m_workers[(update.m_pid.hashCode() & Integer.MAX_VALUE) % m_workers.length].execute(update);
+    }
+
+    private void complete(Update update, boolean succeeded) {
+        long lag = System.nanoTime() - update.m_queued;
+        synchronized (m_lock) {
+            m_pending.remove(update.m_sequence);
+            try {
+                if (succeeded) {
+                    untrack(update.m_pid);
+                    writeJournal(DONE + Long.toString(update.m_sequence));
+                } else {
+                    m_failed.put(update.m_sequence, update.m_operation + " " + update.m_pid);
+                }
+                if (m_pending.isEmpty()) {
+                    m_journal.flush();
+                    if (m_journalBytes > MAX_JOURNAL_BYTES && m_replay.isEmpty()) {
+                        rewriteJournal();
+                    }
+                }
+            } catch (IOException e) {
+                logger.warn("Unable to write to " + m_journalFile
+                        + ", the update of " + update.m_pid + " may be replayed on startup", e);
+            }
+            m_lock.notifyAll();
+        }
+        if (succeeded) {
+            m_applied.incrementAndGet();
+            m_totalLagNanos.addAndGet(lag);
+        } else {
+            m_failures.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records a queued update of an object. Must be called with the lock
+     * held.
+     */
+    private void track(char operation, String pid) {
+        QueuedObject queued = m_queued.get(pid);
+        if (queued == null) {
+            queued = new QueuedObject();
+            m_queued.put(pid, queued);
+        }
+        queued.m_operation = operation;
+        queued.m_updates++;
+    }
+
+    /**
+     * Records an applied update of an object. Must be called with the lock
+     * held.
+     */
+    private void untrack(String pid) {
+        QueuedObject queued = m_queued.get(pid);
+        if (queued != null && --queued.m_updates == 0) {
+            m_queued.remove(pid);
+        }
+    }
+
+    /**
+     * Replaces the journal with one holding only the failed updates. Must be
+     * called with the lock held, no updates pending and none left to replay.
+     */
+    private void rewriteJournal() throws IOException {
+        List<String> entries = new ArrayList<String>(m_failed.size());
+        for (Map.Entry<Long, String> failed : m_failed.entrySet()) {
+            entries.add(failed.getKey() + " " + failed.getValue());
+        }
+        replaceJournal(entries);
+    }
+
+    /**
+     * Replaces the journal with the given entries. They are synced to a
+     * temporary file first, which is then renamed over the journal, so a
+     * crash leaves either the old or the new journal. If the journal can not
+     * be replaced, the old one stays open for appending when it still exists,
+     * otherwise the temporary file is picked up on startup.
+     */
+    private void replaceJournal(List<String> entries) throws IOException {
+        File compacted = new File(m_journalFile.getParentFile(), JOURNAL_NAME + ".tmp");
+        FileOutputStream stream = new FileOutputStream(compacted);
+        try {
+            Writer out = new OutputStreamWriter(stream, "UTF-8");
+            for (String entry : entries) {
+                out.write(entry);
+                out.write('\n');
+            }
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+        if (m_journal != null) {
+            m_journal.close();
+        }
+        if (!compacted.renameTo(m_journalFile)
+                && !(m_journalFile.delete() && compacted.renameTo(m_journalFile))) {
+            if (m_journalFile.exists()) {
+                openJournal();
+            }
+            throw new IOException("Unable to replace " + m_journalFile + " with " + compacted);
+        }
+        openJournal();
+    }
+
+    private void openJournal() throws IOException {
+        m_journalStream = new FileOutputStream(m_journalFile, true);
+        m_journal = new OutputStreamWriter(m_journalStream, "UTF-8");
+        m_journalBytes = m_journalFile.length();
+    }
+
+    private void writeJournal(String line) throws IOException {
+        m_journal.write(line);
+        m_journal.write('\n');
+        m_journalBytes += line.length() + 1;
+    }
+
+    /**
+     * Reads the updates of a journal that were not marked as done, in the
+     * order they were queued.
+     *
+     * @return the updates as operation and PID separated by a space
+     */
+    static List<String> readJournal(File journalFile) throws IOException {
+        Map<Long, String> open = new TreeMap<Long, String>();
+        if (journalFile.exists()) {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(journalFile), "UTF-8"));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    try {
+                        if (line.length() > 1 && line.charAt(0) == DONE) {
+                            open.remove(Long.valueOf(line.substring(1)));
+                        } else {
+                            int space = line.indexOf(' ');
+                            String entry = line.substring(space + 1);
+                            if (space > 0 && entry.length() > 2 && entry.charAt(1) == ' '
+                                    && (entry.charAt(0) == UPDATE || entry.charAt(0) == DELETE)) {
+                                open.put(Long.valueOf(line.substring(0, space)), entry);
+                            } else {
+                                logger.warn("Ignoring invalid line in " + journalFile + ": " + line);
+                            }
+                        }
+                    } catch (NumberFormatException e) {
+                        // A line cut short by a crash
+                        logger.warn("Ignoring invalid line in " + journalFile + ": " + line);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        }
+        return new ArrayList<String>(open.values());
+    }
+
+    private void apply(Update update) throws ServerException {
+        if (update.m_replayed) {
+            // The object may have changed since the update was queued, so it
+            // is indexed as it is stored now
+            DOReader reader;
+            try {
+                reader = m_readerSource.getReader(update.m_pid);
+            } catch (ObjectNotInLowlevelStorageException e) {
+                logger.debug("Replayed object " + update.m_pid + " no longer exists, removing it from the index");
+                m_fieldSearch.delete(update.m_pid);
+                return;
+            }
+            m_fieldSearch.update(reader);
+        } else if (update.m_operation == DELETE) {
+            m_fieldSearch.delete(update.m_pid);
+        } else {
+            m_fieldSearch.update(update.m_reader);
+        }
+    }
+
+    /**
+     * The updates of an object the index does not reflect yet.
+     */
+    private static final class QueuedObject {
+
+        /** Operation of the latest update queued */
+        char m_operation;
+
+        int m_updates;
+    }
+
+    /**
+     * An update waiting for its worker.
+     */
+    private final class Update
+            implements Runnable {
+
+        final long m_sequence;
+
+        final char m_operation;
+
+        final String m_pid;
+
+        final DOReader m_reader;
+
+        final boolean m_replayed;
+
+        final long m_queued = System.nanoTime();
+
+        Update(long sequence, char operation, String pid, DOReader reader,
+               boolean replayed) {
+            m_sequence = sequence;
+            m_operation = operation;
+            m_pid = pid;
+            m_reader = reader;
+            m_replayed = replayed;
+        }
+
+        public void run() {
+            boolean succeeded = false;
+            try {
+                apply(this);
+                succeeded = true;
+            } catch (Throwable th) {
+                logger.error("Error updating FieldSearch index for " + m_pid
+                        + ", the update will be retried on startup", th);
+            } finally {
+                complete(this, succeeded);
+            }
+        }
+    }
+
+    private static final class WorkerFactory
+            implements ThreadFactory {
+
+        private final int m_index;
+
+        WorkerFactory(int index) {
+            m_index = index;
+        }
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "IndexUpdateQueue-" + m_index);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
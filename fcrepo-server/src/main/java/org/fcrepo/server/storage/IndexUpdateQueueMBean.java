@@ -0,0 +1,30 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.storage;
+
+/**
+ * JMX view of the {@link IndexUpdateQueue} of the DOManager.
+ */
+public interface IndexUpdateQueueMBean {
+
+    int getWorkers();
+
+    /** Number of updates queued but not applied yet */
+    int getPendingUpdates();
+
+    /** Time in milliseconds the oldest pending update has been queued */
+    long getOldestPendingAgeMs();
+
+    long getAppliedUpdates();
+
+    /** Number of updates that failed, and are retried when the server starts */
+    long getFailedUpdates();
+
+    /** Average time from queueing to applying an update */
+    long getAverageLagMicroS();
+
+    /** Number of updates replayed from the journal at startup */
+    long getReplayedUpdates();
+}
@@ -0,0 +1,334 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.storage;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.fcrepo.server.errors.GeneralException;
+import org.fcrepo.server.errors.ServerException;
+
+/**
+ * Fetches the content of managed datastream versions and writes it to
+ * low level storage when an object is committed.
+ * <p>
+ * The versions of one commit are staged by a pool of threads shared by all
+ * commits, at most maxPerObject at a time, so one large object does not
+ * take over the pool. If a version fails, no further versions are started,
+ * and the versions the commit had added to storage are removed again once
+ * the running ones have finished.
+ */
+public class ManagedContentStager
+        implements ManagedContentStagerMBean {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(ManagedContentStager.class);
+
+    /**
+     * Stages the content of one datastream version.
+     */
+    public interface Task {
+
+        /**
+         * @return the low level storage id of the datastream version
+         */
+        String getId();
+
+        /**
+         * Fetches and stores the content.
+         *
+         * @return whether the content was added to storage, false if it
+         *         replaced content already there, in which case it cannot be
+         *         rolled back
+         */
+        boolean stage() throws Exception;
+
+        /**
+         * @return the number of bytes stored by {@link #stage()}
+         */
+        long getSize();
+    }
+
+    /**
+     * Removes datastream versions written by a failed commit.
+     */
+    public interface Rollback {
+
+        void remove(String id) throws Exception;
+    }
+
+    private final int m_threads;
+
+    private final int m_maxPerObject;
+
+    private final ExecutorService m_executor;
+
+    private final AtomicLong m_staged = new AtomicLong();
+
+    private final AtomicLong m_bytes = new AtomicLong();
+
+    private final AtomicLong m_failed = new AtomicLong();
+
+    private final AtomicLong m_rolledBack = new AtomicLong();
+
+    private final AtomicLong m_totalNanos = new AtomicLong();
+
+    private final AtomicLong m_maxNanos = new AtomicLong();
+
+    /**
+     * @param threads the size of the shared pool, or 0 to stage content in
+     *        the committing thread
+     * @param maxPerObject the maximum number of versions of one commit
+     *        staged at a time
+     */
+    public ManagedContentStager(int threads, int maxPerObject) {
+        if (threads < 0) {
+            throw new IllegalArgumentException("threads must not be negative, was " + threads);
+        }
+        if (maxPerObject < 1) {
+            throw new IllegalArgumentException("maxPerObject must be positive, was " + maxPerObject);
+        }
+        m_threads = threads;
+        m_maxPerObject = maxPerObject;
+        m_executor = (threads == 0) ? null
+                : Executors.newFixedThreadPool(threads, new StagerThreadFactory());
+    }
+
+    /**
+     * Stages the given versions of an object, returning once all are
+     * stored, or rolled back after a failure.
+     *
+     * @throws ServerException the first failure of a version
+     */
+    public void stage(String pid, List<Task> tasks, Rollback rollback)
+            throws ServerException {
+        if (tasks.isEmpty()) {
+            return;
+        }
+        List<String> added = new ArrayList<String>();
+        Throwable failure;
+        if (m_executor == null || tasks.size() == 1) {
+            failure = stageSequentially(tasks, added);
+        } else {
+            failure = stageConcurrently(tasks, added);
+        }
+        if (failure == null) {
+            return;
+        }
+
+        logger.warn("Staging managed content of " + pid + " failed, removing "
+                + added.size() + " datastream versions stored by the commit");
+        for (String id : added) {
+            try {
+                rollback.remove(id);
+                m_rolledBack.incrementAndGet();
+            } catch (Exception e) {
+                logger.warn("Unable to remove managed datastream " + id
+                        + " after failed commit", e);
+            }
+        }
+        if (failure instanceof ServerException) {
+            throw (ServerException) failure;
+        }
+        throw new GeneralException("Error storing managed content of " + pid, failure);
+    }
+
+    /**
+     * Stops the shared threads, letting staging already started finish.
+     */
+    public void close() {
+        if (m_executor != null) {
+            m_executor.shutdown();
+        }
+    }
+
+    @Override
+    public int getThreads() {
+        return m_threads;
+    }
+
+    @Override
+    public int getMaxPerObject() {
+        return m_maxPerObject;
+    }
+
+    @Override
+    public long getStagedDatastreams() {
+        return m_staged.get();
+    }
+
+    @Override
+    public long getStagedBytes() {
+        return m_bytes.get();
+    }
+
+    @Override
+    public long getFailedDatastreams() {
+        return m_failed.get();
+    }
+
+    @Override
+    public long getRolledBackDatastreams() {
+        return m_rolledBack.get();
+    }
+
+    @Override
+    public long getTotalStagingTimeMs() {
+        return m_totalNanos.get() / 1000000;
+    }
+
+    @Override
+    public long getAverageStagingTimeMs() {
+        long staged = m_staged.get();
+        return (staged == 0) ? 0 : getTotalStagingTimeMs() / staged;
+    }
+
+    @Override
+    public long getMaxStagingTimeMs() {
+        return m_maxNanos.get() / 1000000;
+    }
+
+    @Override
+    public void resetCounters() {
+        m_staged.set(0);
+        m_bytes.set(0);
+        m_failed.set(0);
+        m_rolledBack.set(0);
+        m_totalNanos.set(0);
+        m_maxNanos.set(0);
+    }
+
+    /**
+     * @return the failure, or null if all versions were staged
+     */
+    private Throwable stageSequentially(List<Task> tasks, List<String> added) {
+        for (Task task : tasks) {
+            try {
+                if (run(task)) {
+                    added.add(task.getId());
+                }
+            } catch (Throwable th) {
+                return th;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the first failure, or null if all versions were staged
+     */
+    private Throwable stageConcurrently(List<Task> tasks, List<String> added) {
+        CompletionService<Boolean> completion =
+                new ExecutorCompletionService<Boolean>(m_executor);
+        Iterator<Task> pending = tasks.iterator();
+        List<Future<Boolean>> running = new ArrayList<Future<Boolean>>();
+        List<String> ids = new ArrayList<String>();
+        Throwable failure = null;
+
+        while (pending.hasNext() && running.size() < m_maxPerObject) {
+            submit(completion, pending.next(), running, ids);
+        }
+        boolean interrupted = false;
+        while (!running.isEmpty()) {
+            Future<Boolean> done;
+            try {
+                done = completion.take();
+            } catch (InterruptedException e) {
+                // The running versions must finish before they can be rolled back
+                interrupted = true;
+                if (failure == null) {
+                    failure = e;
+                }
+                continue;
+            }
+            int index = running.indexOf(done);
+            String id = ids.get(index);
+            running.remove(index);
+            ids.remove(index);
+            try {
+                if (done.get()) {
+                    added.add(id);
+                }
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                }
+            } catch (InterruptedException e) {
+                // Not reached, the future is done
+                interrupted = true;
+            }
+            if (failure == null && pending.hasNext()) {
+                submit(completion, pending.next(), running, ids);
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return failure;
+    }
+
+    private void submit(CompletionService<Boolean> completion, final Task task,
+                        List<Future<Boolean>> running, List<String> ids) {
+        running.add(completion.submit(new Callable<Boolean>() {
+            public Boolean call() throws Exception {
+                return run(task);
+            }
+        }));
+        ids.add(task.getId());
+    }
+
+    /**
+     * @return whether the content was added to storage
+     */
+    private boolean run(Task task) throws Exception {
+        long start = System.nanoTime();
+        boolean added;
+        try {
+            added = task.stage();
+        } catch (Exception e) {
+            m_failed.incrementAndGet();
+            throw e;
+        }
+        long nanos = System.nanoTime() - start;
+        m_staged.incrementAndGet();
+        m_bytes.addAndGet(task.getSize());
+        m_totalNanos.addAndGet(nanos);
+        long max = m_maxNanos.get();
+        while (nanos > max && !m_maxNanos.compareAndSet(max, nanos)) {
+            max = m_maxNanos.get();
+        }
+        logger.info("Stored managed datastream " + task.getId() + " ("
+                + task.getSize() + " bytes) in " + nanos / 1000000 + " ms");
+        return added;
+    }
+
+    private static final class StagerThreadFactory
+            implements ThreadFactory {
+
+        private final AtomicInteger m_count = new AtomicInteger();
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ManagedContentStager-"
+                    + m_count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
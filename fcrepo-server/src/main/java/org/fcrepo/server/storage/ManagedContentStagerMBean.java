@@ -0,0 +1,35 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.storage;
+
+/**
+ * JMX view of the {@link ManagedContentStager} of the DOManager.
+ */
+public interface ManagedContentStagerMBean {
+
+    /** Threads shared by all commits, or 0 if content is staged by the committing thread */
+    int getThreads();
+
+    /** Maximum number of datastream versions of one object staged at a time */
+    int getMaxPerObject();
+
+    long getStagedDatastreams();
+
+    long getStagedBytes();
+
+    long getFailedDatastreams();
+
+    /** Number of datastream versions removed again because another one of the commit failed */
+    long getRolledBackDatastreams();
+
+    long getTotalStagingTimeMs();
+
+    long getAverageStagingTimeMs();
+
+    /** Longest time staging a single datastream version */
+    long getMaxStagingTimeMs();
+
+    void resetCounters();
+}
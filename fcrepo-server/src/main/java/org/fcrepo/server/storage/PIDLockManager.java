@@ -0,0 +1,293 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.storage;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.fcrepo.server.errors.ObjectLockedException;
+import org.fcrepo.server.errors.StorageMaintenanceException;
+
+/**
+ * Per-PID write locks of the DOManager.
+ * <p>
+ * Each locked PID has a reentrant lock and a count of the threads holding
+ * or waiting for it, so the lock is removed once nobody uses it. The locks
+ * are kept in a fixed number of stripes selected by the hash of the PID,
+ * each guarded by its own monitor, so writers of different PIDs rarely
+ * contend on the table itself. The monitor of a stripe is only held while
+ * the table is updated, never while waiting for a PID lock.
+ * <p>
+ * While writes are disabled, only threads already holding the lock of a
+ * PID may lock it again, in order to finish their work. All other threads
+ * are rejected with a {@link StorageMaintenanceException} until writes are
+ * enabled again.
+ */
+public class PIDLockManager
+        implements PIDLockManagerMBean {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(PIDLockManager.class);
+
+    private static final int STRIPES = 64;
+
+    private final Stripe[] m_stripes;
+
+    private volatile boolean m_writesDisabled = false;
+
+    private volatile long m_lockTimeoutMs;
+
+    private final AtomicInteger m_lockedPIDs = new AtomicInteger();
+
+    private final AtomicLong m_acquisitions = new AtomicLong();
+
+    private final AtomicLong m_contendedAcquisitions = new AtomicLong();
+
+    private final AtomicLong m_timeouts = new AtomicLong();
+
+    private final AtomicLong m_totalWaitTimeMicroS = new AtomicLong();
+
+    /**
+     * @param lockTimeoutMs time in milliseconds to wait for the lock of a PID
+     *        before failing with an ObjectLockedException, or 0 to wait
+     *        indefinitely
+     */
+    public PIDLockManager(long lockTimeoutMs) {
+        setLockTimeoutMs(lockTimeoutMs);
+        m_stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            m_stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Locks the given PID for the current thread, waiting for other threads
+     * holding it. Like {@link ReentrantLock#lock()}, waiting is not ended by
+     * an interrupt, which is kept for the caller to see.
+     *
+     * @throws ObjectLockedException if the lock timeout passes while waiting
+     *         for the lock
+     * @throws StorageMaintenanceException if writes are disabled
+     */
+    public void lock(String pid) throws ObjectLockedException,
+            StorageMaintenanceException {
+        logger.debug("Thread {} locking pid {}", Thread.currentThread().getId(), pid);
+        Stripe stripe = getStripe(pid);
+        PIDLock pidLock;
+        synchronized (stripe) {
+            pidLock = stripe.locks.get(pid);
+
+            if (m_writesDisabled
+                    && (pidLock == null || !pidLock.lock.isHeldByCurrentThread())) {
+                throw new StorageMaintenanceException("Writes are temporarily disabled");
+            }
+
+            if (pidLock == null) {
+                pidLock = new PIDLock();
+                stripe.locks.put(pid, pidLock);
+                m_lockedPIDs.incrementAndGet();
+            }
+            pidLock.users++;
+        }
+
+        m_acquisitions.incrementAndGet();
+        if (pidLock.lock.tryLock()) {
+            return;
+        }
+
+        logger.trace("Thread {} waiting for lock on pid {}", Thread.currentThread().getId(), pid);
+        m_contendedAcquisitions.incrementAndGet();
+        long waitStart = System.nanoTime();
+        boolean locked = false;
+        try {
+            long timeoutMs = m_lockTimeoutMs;
+            if (timeoutMs > 0) {
+                locked = tryLockUninterruptibly(pidLock.lock, timeoutMs);
+            } else {
+                pidLock.lock.lock();
+                locked = true;
+            }
+        } finally {
+            m_totalWaitTimeMicroS.addAndGet((System.nanoTime() - waitStart) / 1000);
+            if (!locked) {
+                release(stripe, pid, pidLock);
+            }
+        }
+
+        if (!locked) {
+            m_timeouts.incrementAndGet();
+            throw new ObjectLockedException(pid + " is currently being "
+                    + "modified by another thread");
+        }
+        logger.trace("Thread {} got lock on pid {}", Thread.currentThread().getId(), pid);
+    }
+
+    /**
+     * Waits at most timeoutMs for the lock, continuing to wait when
+     * interrupted and restoring the interrupt status afterwards.
+     */
+    private static boolean tryLockUninterruptibly(ReentrantLock lock, long timeoutMs) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return lock.tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Releases the lock of the given PID held by the current thread.
+     *
+     * @throws IllegalStateException if the current thread does not hold the
+     *         lock
+     */
+    public void unlock(String pid) {
+        logger.debug("Thread {} unlocking pid {}", Thread.currentThread().getId(), pid);
+        Stripe stripe = getStripe(pid);
+        synchronized (stripe) {
+            PIDLock pidLock = stripe.locks.get(pid);
+            if (pidLock == null || !pidLock.lock.isHeldByCurrentThread()) {
+                String msg = "Thread " + Thread.currentThread().getId()
+                        + " unlocking pid " + pid + " without holding its lock";
+                logger.error(msg);
+                throw new IllegalStateException(msg);
+            }
+            pidLock.lock.unlock();
+            removeIfUnused(stripe, pid, pidLock);
+        }
+    }
+
+    /**
+     * Disables or enables writes. Once this method has returned with writes
+     * disabled, {@link #getLockedPIDs()} covers every thread let through
+     * before, so maintenance can wait for it to reach zero.
+     */
+    public void setWritesDisabled(boolean writesDisabled) {
+        m_writesDisabled = writesDisabled;
+        // Wait for threads checking the flag under a stripe monitor to register their lock
+        for (Stripe stripe : m_stripes) {
+            synchronized (stripe) {
+                stripe.locks.size();
+            }
+        }
+        logger.info("Write access modified: writesDisabled=" + writesDisabled);
+    }
+
+    @Override
+    public boolean isWritesDisabled() {
+        return m_writesDisabled;
+    }
+
+    @Override
+    public int getLockedPIDs() {
+        return m_lockedPIDs.get();
+    }
+
+    @Override
+    public long getLockTimeoutMs() {
+        return m_lockTimeoutMs;
+    }
+
+    @Override
+    public void setLockTimeoutMs(long lockTimeoutMs) {
+        if (lockTimeoutMs < 0) {
+            throw new IllegalArgumentException("lockTimeoutMs must not be negative, was "
+                    + lockTimeoutMs);
+        }
+        m_lockTimeoutMs = lockTimeoutMs;
+    }
+
+    @Override
+    public long getAcquisitions() {
+        return m_acquisitions.get();
+    }
+
+    @Override
+    public long getContendedAcquisitions() {
+        return m_contendedAcquisitions.get();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return m_timeouts.get();
+    }
+
+    @Override
+    public long getTotalWaitTimeMicroS() {
+        return m_totalWaitTimeMicroS.get();
+    }
+
+    @Override
+    public long getAverageWaitTimeMicroS() {
+        long count = m_contendedAcquisitions.get();
+        return (count == 0) ? 0 : m_totalWaitTimeMicroS.get() / count;
+    }
+
+    @Override
+    public void resetCounters() {
+        m_acquisitions.set(0);
+        m_contendedAcquisitions.set(0);
+        m_timeouts.set(0);
+        m_totalWaitTimeMicroS.set(0);
+    }
+
+    private Stripe getStripe(String pid) {
+        return m_stripes[(pid.hashCode() & Integer.MAX_VALUE) % STRIPES];
+    }
+
+    private void release(Stripe stripe, String pid, PIDLock pidLock) {
+        synchronized (stripe) {
+            removeIfUnused(stripe, pid, pidLock);
+        }
+    }
+
+    /**
+     * Counts down the users of the lock, and removes it from the stripe when
+     * nobody uses it any more. Must be called with the stripe monitor held.
+     */
+    private void removeIfUnused(Stripe stripe, String pid, PIDLock pidLock) {
+        if (--pidLock.users == 0) {
+            stripe.locks.remove(pid);
+            m_lockedPIDs.decrementAndGet();
+            logger.trace("Removed lock of pid {}", pid);
+        }
+    }
+
+    /**
+     * The locks of the PIDs hashing to one stripe. Guarded by its own monitor.
+     */
+    private static final class Stripe {
+
+        final Map<String, PIDLock> locks = new HashMap<String, PIDLock>();
+    }
+
+    /**
+     * The lock of one PID, with the number of threads holding or waiting for
+     * it, counting reentrant acquisitions. Users are guarded by the monitor
+     * of the stripe.
+     */
+    private static final class PIDLock {
+
+        final ReentrantLock lock = new ReentrantLock();
+
+        int users = 0;
+    }
+}
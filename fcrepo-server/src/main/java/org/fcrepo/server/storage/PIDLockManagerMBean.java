@@ -0,0 +1,36 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.storage;
+
+/**
+ * JMX view of the {@link PIDLockManager} of the DOManager.
+ */
+public interface PIDLockManagerMBean {
+
+    /** Number of PIDs currently locked or waited for */
+    int getLockedPIDs();
+
+    boolean isWritesDisabled();
+
+    /** Time in milliseconds a writer waits for a lock before failing, or 0 to wait indefinitely */
+    long getLockTimeoutMs();
+
+    void setLockTimeoutMs(long lockTimeoutMs);
+
+    long getAcquisitions();
+
+    /** Number of acquisitions that had to wait for another thread to release the lock */
+    long getContendedAcquisitions();
+
+    /** Number of acquisitions that failed because the lock timeout passed */
+    long getTimeouts();
+
+    long getTotalWaitTimeMicroS();
+
+    /** Average wait time of the contended acquisitions */
+    long getAverageWaitTimeMicroS();
+
+    void resetCounters();
+}
@@ -97,6 +97,21 @@ public class SimpleDOReader
                                  DOTranslationUtility.DESERIALIZE_INSTANCE);
     }
 
+    /**
+     * Constructor for an object that has already been deserialized from the
+     * given storage format, such as a cached object.
+     */
+    public SimpleDOReader(Context context,
+                          RepositoryReader repoReader,
+                          DOTranslator translator,
+                          String exportFormat,
+                          String storageFormat,
+                          String encoding,
+                          DigitalObject obj) {
+        this(context, repoReader, translator, exportFormat, encoding, obj);
+        m_storageFormat = storageFormat;
+    }
+
     /**
      * Alternate constructor for when a DigitalObject is already available for
      * some reason.
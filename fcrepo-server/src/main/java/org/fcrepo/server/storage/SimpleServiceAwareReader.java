@@ -46,6 +46,20 @@ public class SimpleServiceAwareReader
               serializedObject);
     }
 
+    /**
+     * Constructor for an object that has already been deserialized from the
+     * given storage format, such as a cached object.
+     */
+    public SimpleServiceAwareReader(Context context,
+                                    RepositoryReader repoReader,
+                                    DOTranslator translator,
+                                    String exportFormat,
+                                    String storageFormat,
+                                    String encoding,
+                                    DigitalObject obj) {
+        super(context, repoReader, translator, exportFormat, storageFormat, encoding, obj);
+    }
+
     /**
      * Alternate constructor for when a DigitalObject is already available for
      * some reason.
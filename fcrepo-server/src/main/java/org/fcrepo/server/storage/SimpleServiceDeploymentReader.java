@@ -59,6 +59,21 @@ public class SimpleServiceDeploymentReader
         serviceMapper = new ServiceMapper(GetObjectPID());
     }
 
+    /**
+     * Constructor for an object that has already been deserialized from the
+     * given storage format, such as a cached object.
+     */
+    public SimpleServiceDeploymentReader(Context context,
+                             RepositoryReader repoReader,
+                             DOTranslator translator,
+                             String exportFormat,
+                             String storageFormat,
+                             String encoding,
+                             DigitalObject obj) {
+        super(context, repoReader, translator, exportFormat, storageFormat, encoding, obj);
+        serviceMapper = new ServiceMapper(GetObjectPID());
+    }
+
     /**
      * Alternate constructor for when a DigitalObject is already available for
      * some reason.
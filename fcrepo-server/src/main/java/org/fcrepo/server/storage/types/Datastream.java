@@ -36,6 +36,9 @@ public class Datastream {
 
     public final static String CHECKSUM_NONE = "none";
 
+    /** Size of the reads when computing a checksum, large enough for disks to stream */
+    private final static int CHECKSUM_BUFFER_SIZE = 65536;
+
     public final static String CHECKSUM_IOEXCEPTION = "ExceptionReadingStream";
 
     public boolean isNew = false;
@@ -195,10 +198,10 @@ public class Datastream {
             logger.debug("location = " + DSLocation);
             is = getContentStreamForChecksum();
             if (is != null) {
-                byte buffer[] = new byte[5000];
+                byte buffer[] = new byte[CHECKSUM_BUFFER_SIZE];
                 int numread;
                 logger.debug("Reading content...");
-                while ((numread = is.read(buffer, 0, 5000)) > 0) {
+                while ((numread = is.read(buffer, 0, CHECKSUM_BUFFER_SIZE)) > 0) {
                     md.update(buffer, 0, numread);
                 }
                 is.close();
@@ -60,6 +60,14 @@ public class DatastreamManagedContent
 
     public int DSMDClass = 0;
 
+    /**
+     * Checksum a client gave for content that is fetched when the object is
+     * committed. The DOManager verifies it against the checksum computed
+     * while it stores the content, so the content is not read an extra time
+     * to check it up front. Not copied or serialized.
+     */
+    public String DSExpectedChecksum;
+
     public DatastreamManagedContent() {
     }
 
@@ -123,6 +123,7 @@ public class Rebuild
                 long startTime = System.currentTimeMillis();
                 System.err.println();
                 System.err.println("Rebuilding...");
+                boolean completed = false;
                 try {
                     // looks good, so init the rebuilder
                     m_rebuilder.start(m_options);
@@ -164,7 +165,7 @@ public class Rebuild
                     threadPool.shutdown();
                     try
                     {
-                        threadPool.awaitTermination( 14, TimeUnit.DAYS );
+                        completed = threadPool.awaitTermination( 14, TimeUnit.DAYS );
                     }
                     catch( InterruptedException ex )
                     {
@@ -182,6 +183,9 @@ public class Rebuild
                                 + " objects failed to rebuild due to errors.");
                     }
                 } finally {
+                    if (!completed) {
+                        m_rebuilder.abort();
+                    }
                     m_rebuilder.finish();
                     if (server != null) {
                         server.shutdown(null);
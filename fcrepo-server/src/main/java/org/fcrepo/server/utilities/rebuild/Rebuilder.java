@@ -57,6 +57,12 @@ public interface Rebuilder {
      */
     public void addObject(DigitalObject object) throws Exception;
 
+    /**
+     * Mark the rebuild as not completed. Called before {@link #finish()}
+     * when not all objects were added.
+     */
+    public void abort();
+
     /**
      * Free up any system resources associated with rebuilding.
      */
@@ -71,6 +71,16 @@ public class SQLRebuilder
 
     private Context m_context;
 
+    /**
+     * Option for bulk loading the field search index, if the FieldSearch
+     * module supports it.
+     */
+    public static final String BULK_INDEX_OPTION = "bulkIndex";
+
+    private FieldSearch m_bulkLoadedFieldSearch;
+
+    private boolean m_aborted = false;
+
     /**
      * Get a short phrase describing what the user can do with this rebuilder.
      */
@@ -112,6 +122,9 @@ public class SQLRebuilder
     public Map<String, String> getOptions()
  {
         Map<String, String> m = new HashMap<String, String>();
+        m.put(BULK_INDEX_OPTION, "Enter true to rebuild the field search index from scratch"
+                + " in bulk, bypassing its write ahead log and committing once at the end."
+                + " Defaults to false, updating the existing index object by object.");
         return m;
     }
 
@@ -152,6 +165,19 @@ public class SQLRebuilder
                 e.printStackTrace();
             }
 
+            if (Boolean.parseBoolean(options.get(BULK_INDEX_OPTION))) {
+                FieldSearch fieldSearch =
+                        (FieldSearch) m_server
+                                .getModule("org.fcrepo.server.search.FieldSearch");
+                if (fieldSearch.beginBulkLoad()) {
+                    logger.info("Bulk loading the field search index");
+                    m_bulkLoadedFieldSearch = fieldSearch;
+                } else {
+                    logger.warn("The FieldSearch module does not support bulk"
+                            + " loading, updating the index object by object");
+                }
+            }
+
         } catch (InitializationException ie) {
             logger.error("Error initializing", ie);
             throw ie;
@@ -392,7 +418,28 @@ public class SQLRebuilder
      * Free up any system resources associated with rebuilding.
      */
     @Override
-    public void finish() {
+    public void finish() throws Exception {
+        if (m_bulkLoadedFieldSearch != null) {
+            FieldSearch fieldSearch = m_bulkLoadedFieldSearch;
+            m_bulkLoadedFieldSearch = null;
+            if (m_aborted) {
+                logger.warn("Rebuild did not complete, rolling back the bulk"
+                        + " loaded field search index");
+                fieldSearch.abortBulkLoad();
+            } else {
+                logger.info("Committing the bulk loaded field search index");
+                fieldSearch.endBulkLoad();
+            }
+        }
+    }
+
+    /**
+     * Marks the rebuild as not completed, so {@link #finish()} rolls the
+     * bulk loaded field search index back instead of committing it.
+     */
+    @Override
+    public void abort() {
+        m_aborted = true;
     }
 
     /**
@@ -21,8 +21,11 @@ package dk.dbc.opensearch.fedora.search;
 
 
 import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.KeepOnlyLastCommitDeletionPolicy;
+import org.apache.lucene.index.SnapshotDeletionPolicy;
 import org.apache.lucene.index.TieredMergePolicy;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.util.Version;
@@ -33,7 +36,9 @@ import org.fcrepo.server.search.FieldSearchQuery;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
 import java.io.IOException;
@@ -41,8 +46,11 @@ import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import org.apache.lucene.document.Document;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -74,6 +82,9 @@ public class LuceneFieldIndexTest {
 
     private final Pair<FedoraFieldName, String> date;
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     private static FSDirectory fsdir;
     private static String indexLocation = "build/test-index";
     private static LuceneFieldIndex instance;
@@ -199,6 +210,78 @@ public class LuceneFieldIndexTest {
         assertEquals( "demo:1", nextPidArray[0] );
     }
 
+    @Test
+    public void searchAfter_pagesThroughAllPidsInOrder() throws Exception
+    {
+        instance.indexFields( constructIndexFields( new Pair<FedoraFieldName, String>( FedoraFieldName.PID, "demo:3" ) ), 0 );
+        instance.indexFields( constructIndexFields( new Pair<FedoraFieldName, String>( FedoraFieldName.PID, "demo:1" ) ), 0 );
+        instance.indexFields( constructIndexFields( new Pair<FedoraFieldName, String>( FedoraFieldName.PID, "demo:5" ) ), 0 );
+        instance.indexFields( constructIndexFields( new Pair<FedoraFieldName, String>( FedoraFieldName.PID, "demo:2" ) ), 0 );
+        instance.indexFields( constructIndexFields( new Pair<FedoraFieldName, String>( FedoraFieldName.PID, "demo:4" ) ), 0 );
+
+        FieldSearchQuery fsq = getFieldSearchTerm( "*" );
+
+        List<String> firstPage = instance.searchAfter( fsq, null, 2 );
+        assertEquals( Arrays.asList( "demo:1", "demo:2" ), firstPage );
+
+        // A write between pages must not shift the following pages
+        instance.indexFields( constructIndexFields( new Pair<FedoraFieldName, String>( FedoraFieldName.PID, "demo:0" ) ), 0 );
+
+        List<String> secondPage = instance.searchAfter( fsq, "demo:2", 2 );
+        assertEquals( Arrays.asList( "demo:3", "demo:4" ), secondPage );
+
+        List<String> lastPage = instance.searchAfter( fsq, "demo:4", 2 );
+        assertEquals( Arrays.asList( "demo:5" ), lastPage );
+    }
+
+
+    @Test
+    public void count_returnsNumberOfMatchingDocuments() throws Exception
+    {
+        instance.indexFields( constructIndexFields( new Pair<FedoraFieldName, String>( FedoraFieldName.PID, "demo:1" ) ), 0 );
+        instance.indexFields( constructIndexFields( new Pair<FedoraFieldName, String>( FedoraFieldName.PID, "demo:2" ) ), 0 );
+        instance.indexFields( constructIndexFields( new Pair<FedoraFieldName, String>( FedoraFieldName.PID, "other:1" ) ), 0 );
+
+        assertEquals( 3, instance.count( getFieldSearchTerm( "*" ) ) );
+        assertEquals( 2, instance.count( getFieldSearchQuery( "PID", "has", "demo:*" ) ) );
+        assertEquals( 0, instance.count( getFieldSearchQuery( "PID", "eq", "none:1" ) ) );
+        assertEquals( instance.search( getFieldSearchQuery( "PID", "has", "demo:*" ) ).size(),
+                instance.count( getFieldSearchQuery( "PID", "has", "demo:*" ) ) );
+    }
+
+
+    @Test
+    public void facets_countsValuesOfMatchingDocumentsByDescendingCount() throws Exception
+    {
+        instance.indexFields( constructIndexFields( new Pair<FedoraFieldName, String>( FedoraFieldName.PID, "demo:1" ) ), 0 );
+        instance.indexFields( constructIndexFields( new Pair<FedoraFieldName, String>( FedoraFieldName.PID, "demo:2" ) ), 0 );
+        List<Pair<FedoraFieldName, String>> inactive = new ArrayList<Pair<FedoraFieldName, String>>();
+        inactive.add( new Pair<FedoraFieldName, String>( FedoraFieldName.PID, "demo:3" ) );
+        inactive.add( new Pair<FedoraFieldName, String>( FedoraFieldName.STATE, "i" ) );
+        instance.indexFields( inactive, 0 );
+        instance.indexFields( constructIndexFields( new Pair<FedoraFieldName, String>( FedoraFieldName.PID, "other:1" ) ), 0 );
+
+        Map<FedoraFieldName, List<Pair<String, Integer>>> facets =
+                instance.facets( getFieldSearchQuery( "PID", "has", "demo:*" ), Arrays.asList( FedoraFieldName.STATE, FedoraFieldName.TYPE ), 10 );
+
+        List<Pair<String, Integer>> states = facets.get( FedoraFieldName.STATE );
+        assertEquals( 2, states.size() );
+        assertEquals( "a", states.get( 0 ).getFirst() );
+        assertEquals( Integer.valueOf( 2 ), states.get( 0 ).getSecond() );
+        assertEquals( "i", states.get( 1 ).getFirst() );
+        assertEquals( Integer.valueOf( 1 ), states.get( 1 ).getSecond() );
+
+        List<Pair<String, Integer>> types = facets.get( FedoraFieldName.TYPE );
+        assertEquals( 1, types.size() );
+        assertEquals( type.getSecond(), types.get( 0 ).getFirst() );
+        assertEquals( Integer.valueOf( 2 ), types.get( 0 ).getSecond() );
+
+        facets = instance.facets( getFieldSearchTerm( "*" ), Arrays.asList( FedoraFieldName.STATE ), 1 );
+        assertEquals( 1, facets.get( FedoraFieldName.STATE ).size() );
+        assertEquals( Integer.valueOf( 3 ), facets.get( FedoraFieldName.STATE ).get( 0 ).getSecond() );
+    }
+
+
     @Test
     public void findHighestId() throws Exception
     {
@@ -425,10 +508,327 @@ public class LuceneFieldIndexTest {
         assertEquals( pid.getSecond(), searchResult.getNextPids( 1 ).iterator().next() );
     }
 
+    @Test
+    public void getStoredDocuments_returnsOriginalValuesOfIndexedFields() throws Exception
+    {
+        instance.closeIndex();
+        instance = createIndex( 0, true );
+
+        List< Pair< FedoraFieldName, String >> fieldList = constructIndexFields( pid );
+        fieldList.add( new Pair<FedoraFieldName, String>( FedoraFieldName.CREATOR, "Friedrich Nietzsche" ) );
+        fieldList.add( new Pair<FedoraFieldName, String>( FedoraFieldName.CREATOR, "Second Creator" ) );
+        instance.indexFields( fieldList, 0 );
+
+        List<String> pids = new ArrayList<String>();
+        pids.add( pid.getSecond() );
+        pids.add( "unknown:1" );
+        Map<String, Document> documents = instance.getStoredDocuments( pids );
+
+        assertEquals( 1, documents.size() );
+        Document document = documents.get( pid.getSecond() );
+        String[] creators = document.getValues( FedoraFieldName.CREATOR.toString() + LuceneFieldIndex.STORED_SUFFIX );
+        assertEquals( 2, creators.length );
+        assertEquals( "Friedrich Nietzsche", creators[0] );
+        assertEquals( "Second Creator", creators[1] );
+        assertEquals( label.getSecond(), document.get( FedoraFieldName.LABEL.toString() + LuceneFieldIndex.STORED_SUFFIX ) );
+    }
+
+
+    @Test
+    public void getStoredDocuments_withSeveralPids_returnsDocumentsKeyedByTheirPid() throws Exception
+    {
+        instance.closeIndex();
+        instance = createIndex( 0, true );
+
+        instance.indexFields( constructIndexFields( pid ), 0 );
+        instance.indexFields( constructCaseSensitiveIndexFields(), 0 );
+
+        List<String> pids = new ArrayList<String>();
+        pids.add( pid2.getSecond() );
+        pids.add( "unknown:1" );
+        pids.add( pid.getSecond() );
+        pids.add( pid2.getSecond() );
+        Map<String, Document> documents = instance.getStoredDocuments( pids );
+
+        assertEquals( 2, documents.size() );
+        assertEquals( pid.getSecond(), documents.get( pid.getSecond() ).get( FedoraFieldName.PID.toString() ) );
+        assertEquals( pid2.getSecond(), documents.get( pid2.getSecond() ).get( FedoraFieldName.PID.toString() ) );
+    }
+
+
+    @Test
+    public void getStoredDocuments_resultFieldsNotStored_returnsNoDocuments() throws Exception
+    {
+        instance.indexFields( constructIndexFields( pid ), 0 );
+
+        List<String> pids = new ArrayList<String>();
+        pids.add( pid.getSecond() );
+        Map<String, Document> documents = instance.getStoredDocuments( pids );
+
+        assertTrue( documents.isEmpty() );
+    }
+
+
+    @Test
+    public void pidExists_isTrueOnlyForIndexedAndNotDeletedPids() throws Exception
+    {
+        instance.indexFields( constructIndexFields( pid ), 0 );
+
+        assertTrue( instance.pidExists( pid.getSecond() ) );
+        assertFalse( instance.pidExists( pid2.getSecond() ) );
+
+        instance.removeDocument( pid.getSecond() );
+        assertFalse( instance.pidExists( pid.getSecond() ) );
+    }
+
+
+    @Test
+    public void pidIterator_returnsAllIndexedPids() throws Exception
+    {
+        instance.indexFields( constructIndexFields( pid ), 0 );
+        instance.indexFields( constructCaseSensitiveIndexFields(), 0 );
+
+        List<String> pids = new ArrayList<String>();
+        PidIterator iterator = instance.pidIterator();
+        while( iterator.hasNext() )
+        {
+            pids.add( iterator.next() );
+        }
+
+        assertEquals( 2, pids.size() );
+        assertTrue( pids.contains( pid.getSecond() ) );
+        assertTrue( pids.contains( pid2.getSecond() ) );
+    }
+
+
+    @Test
+    public void pidExists_withBackgroundRefresh_seesPrecedingWritesWithoutWaitingForMaxStale() throws Exception
+    {
+        instance.closeIndex();
+        TieredMergePolicy tieredMergePolicy = new TieredMergePolicy();
+        IndexWriterConfig conf = new IndexWriterConfig( Version.LUCENE_41, new WhitespaceAnalyzer( Version.LUCENE_41 ) ).
+                setWriteLockTimeout( 1000L ).
+                setMergePolicy( tieredMergePolicy );
+        IndexWriter writer = new IndexWriter( fsdir, conf );
+        // Max staleness of an hour, so only waiting lookups can trigger a refresh within the test
+        instance = new LuceneFieldIndex( writer, tieredMergePolicy,
+                PID_COLLECTOR_MAX_IN_MEMORY, PID_COLLECTOR_TMP_DIR, false, null, 3600, 0, 0, 0, 0, 0, 0 );
+
+        instance.indexFields( constructIndexFields( pid ), 0 );
+        assertTrue( instance.pidExists( pid.getSecond() ) );
+
+        instance.removeDocument( pid.getSecond() );
+        assertFalse( instance.pidExists( pid.getSecond() ) );
+    }
+
+
+    @Test
+    public void search_withQueryPlanCache_seesChangesToTheIndex() throws Exception
+    {
+        instance.closeIndex();
+        TieredMergePolicy tieredMergePolicy = new TieredMergePolicy();
+        IndexWriterConfig conf = new IndexWriterConfig( Version.LUCENE_41, new WhitespaceAnalyzer( Version.LUCENE_41 ) ).
+                setWriteLockTimeout( 1000L ).
+                setMergePolicy( tieredMergePolicy );
+        IndexWriter writer = new IndexWriter( fsdir, conf );
+        instance = new LuceneFieldIndex( writer, tieredMergePolicy,
+                PID_COLLECTOR_MAX_IN_MEMORY, PID_COLLECTOR_TMP_DIR, false, null, 0, 0, 0, 0, 0, 10, 0 );
+
+        // State clauses are served from cached filters
+        FieldSearchQuery fsq = getFieldSearchQuery( "state=a pid~demo:*" );
+        instance.indexFields( constructIndexFields( new Pair<FedoraFieldName, String>( FedoraFieldName.PID, "demo:1" ) ), 0 );
+        instance.indexFields( constructIndexFields( new Pair<FedoraFieldName, String>( FedoraFieldName.PID, "other:1" ) ), 0 );
+        assertEquals( 1, instance.search( fsq ).size() );
+        assertEquals( 1, instance.count( fsq ) );
+
+        instance.indexFields( constructIndexFields( new Pair<FedoraFieldName, String>( FedoraFieldName.PID, "demo:2" ) ), 0 );
+        assertEquals( 2, instance.search( fsq ).size() );
+
+        instance.removeDocument( "demo:1" );
+        IPidList result = instance.search( getFieldSearchQuery( "state=a pid~demo:*" ) );
+        assertEquals( 1, result.size() );
+        assertEquals( "demo:2", result.getNextPids( 1 ).iterator().next() );
+    }
+
+
+    @Test
+    public void search_withSearchThreads_returnsSamePidsAsSequentialSearch() throws Exception
+    {
+        instance.closeIndex();
+        instance = createIndex( 2, false );
+
+        // Searching between writes refreshes the searcher, leaving each write in its own segment
+        String[] pids = { "demo:3", "demo:1", "demo:2", "demo:4" };
+        FieldSearchQuery fsq = getFieldSearchQuery( "title", "eq", title.getSecond() );
+        for( String p : pids )
+        {
+            instance.indexFields( constructIndexFields( new Pair<FedoraFieldName, String>( FedoraFieldName.PID, p ) ), 0 );
+            instance.search( fsq ).dispose();
+        }
+        IPidList parallelResult = instance.search( fsq );
+        List<String> parallelPids = new ArrayList<String>( parallelResult.getNextPids( parallelResult.size() ) );
+
+        instance.closeIndex();
+        instance = createIndex( 0, false );
+        IPidList sequentialResult = instance.search( fsq );
+        List<String> sequentialPids = new ArrayList<String>( sequentialResult.getNextPids( sequentialResult.size() ) );
+
+        assertEquals( pids.length, parallelPids.size() );
+        assertEquals( sequentialPids, parallelPids );
+    }
+
+
+    @Test
+    public void endBulkLoad_afterBatchedIndexing_replacesIndexWithLoadedDocuments() throws Exception
+    {
+        instance.indexFields( constructIndexFields( new Pair<FedoraFieldName, String>( FedoraFieldName.PID, "old:1" ) ), 0 );
+
+        instance.beginBulkLoad( 2, 16 );
+        assertTrue( instance.isBulkLoading() );
+        for( int i = 1; i <= 5; i++ )
+        {
+            instance.indexFields( constructIndexFields( new Pair<FedoraFieldName, String>( FedoraFieldName.PID, "demo:" + i ) ), 0 );
+        }
+        instance.endBulkLoad();
+        assertFalse( instance.isBulkLoading() );
+
+        IPidList result = instance.search( getFieldSearchQuery( "title", "eq", title.getSecond() ) );
+        List<String> pids = new ArrayList<String>( result.getNextPids( result.size() ) );
+        assertEquals( 5, pids.size() );
+        assertFalse( pids.contains( "old:1" ) );
+        assertTrue( pids.contains( "demo:5" ) );
+    }
+
+
+    @Test
+    public void removeDocument_whileBulkLoading_removesLoadedAndBatchedDocuments() throws Exception
+    {
+        instance.beginBulkLoad( 2, 16 );
+        for( int i = 1; i <= 3; i++ )
+        {
+            instance.indexFields( constructIndexFields( new Pair<FedoraFieldName, String>( FedoraFieldName.PID, "demo:" + i ) ), 0 );
+        }
+        // demo:1 was added with the first batch, demo:3 is still in the current batch
+        instance.removeDocument( "demo:1" );
+        instance.removeDocument( "demo:3" );
+        instance.endBulkLoad();
+
+        IPidList result = instance.search( getFieldSearchQuery( "title", "eq", title.getSecond() ) );
+        assertEquals( 1, result.size() );
+        assertEquals( "demo:2", result.getNextPids( 1 ).iterator().next() );
+    }
+
+
+    @Test
+    public void abortBulkLoad_afterBatchedIndexing_leavesIndexAsBefore() throws Exception
+    {
+        instance.indexFields( constructIndexFields( new Pair<FedoraFieldName, String>( FedoraFieldName.PID, "old:1" ) ), 0 );
+
+        instance.beginBulkLoad( 2, 16 );
+        for( int i = 1; i <= 5; i++ )
+        {
+            instance.indexFields( constructIndexFields( new Pair<FedoraFieldName, String>( FedoraFieldName.PID, "demo:" + i ) ), 0 );
+        }
+        instance.abortBulkLoad();
+        assertFalse( instance.isBulkLoading() );
+
+        DirectoryReader reader = DirectoryReader.open( fsdir );
+        try
+        {
+            assertEquals( 1, reader.numDocs() );
+            assertEquals( "old:1", reader.document( 0 ).get( FedoraFieldName.PID.toString() ) );
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+
+    @Test
+    public void abortBulkLoad_afterPreparedCommit_leavesIndexAsBefore() throws Exception
+    {
+        instance.indexFields( constructIndexFields( new Pair<FedoraFieldName, String>( FedoraFieldName.PID, "old:1" ) ), 0 );
+
+        instance.beginBulkLoad( 2, 16 );
+        for( int i = 1; i <= 3; i++ )
+        {
+            instance.indexFields( constructIndexFields( new Pair<FedoraFieldName, String>( FedoraFieldName.PID, "demo:" + i ) ), 0 );
+        }
+        instance.prepareBulkLoadCommit();
+        assertTrue( instance.isBulkLoading() );
+        instance.abortBulkLoad();
+
+        DirectoryReader reader = DirectoryReader.open( fsdir );
+        try
+        {
+            assertEquals( 1, reader.numDocs() );
+            assertEquals( "old:1", reader.document( 0 ).get( FedoraFieldName.PID.toString() ) );
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+
+    @Test
+    public void startBackup_withWriteAheadLog_restoresCommittedAndLoggedUpdates() throws Exception
+    {
+        instance.closeIndex();
+        TieredMergePolicy tieredMergePolicy = new TieredMergePolicy();
+        IndexWriterConfig conf = new IndexWriterConfig( Version.LUCENE_41, new WhitespaceAnalyzer( Version.LUCENE_41 ) ).
+                setWriteLockTimeout( 1000L ).
+                setMergePolicy( tieredMergePolicy ).
+                setIndexDeletionPolicy( new SnapshotDeletionPolicy( new KeepOnlyLastCommitDeletionPolicy() ) );
+        IndexWriter writer = new IndexWriter( fsdir, conf );
+        // Commits every second update, so the third update is only in the log file
+        WriteAheadLog wal = new WriteAheadLog( writer, folder.newFolder( "wal" ), 2, false, false, 0, 0, 0 );
+        instance = new LuceneFieldIndex( writer, tieredMergePolicy,
+                PID_COLLECTOR_MAX_IN_MEMORY, PID_COLLECTOR_TMP_DIR, false, wal, 0, 0, 0, 0, 0, 0, 0 );
+
+        for( int i = 1; i <= 3; i++ )
+        {
+            instance.indexFields( constructIndexFields( new Pair<FedoraFieldName, String>( FedoraFieldName.PID, "demo:" + i ) ), 0 );
+        }
+        File backupDir = new File( folder.getRoot(), "backup" );
+        instance.startBackup( backupDir );
+        instance.awaitBackup();
+        instance.indexFields( constructIndexFields( new Pair<FedoraFieldName, String>( FedoraFieldName.PID, "demo:4" ) ), 0 );
+
+        File restoreDir = new File( folder.getRoot(), "restore" );
+        assertEquals( 1, IndexBackup.restore( backupDir, restoreDir ) );
+
+        FSDirectory restored = FSDirectory.open( restoreDir );
+        DirectoryReader reader = DirectoryReader.open( restored );
+        try
+        {
+            assertEquals( 3, reader.numDocs() );
+        }
+        finally
+        {
+            reader.close();
+            restored.close();
+        }
+    }
+
     /**
      * Below follows helper methods
      */
 
+    private LuceneFieldIndex createIndex( int searchThreads, boolean storeResultFields ) throws IOException
+    {
+        TieredMergePolicy tieredMergePolicy = new TieredMergePolicy();
+        IndexWriterConfig conf = new IndexWriterConfig( Version.LUCENE_41, new WhitespaceAnalyzer( Version.LUCENE_41 ) ).
+                setWriteLockTimeout( 1000L ).
+                setMergePolicy( tieredMergePolicy );
+        IndexWriter writer = new IndexWriter( fsdir, conf );
+        return new LuceneFieldIndex( writer, tieredMergePolicy,
+                PID_COLLECTOR_MAX_IN_MEMORY, PID_COLLECTOR_TMP_DIR, false, null, 0, 0, 0, searchThreads, 0, 0, 0,
+                storeResultFields, null );
+    }
+
+
     private List< Pair< FedoraFieldName, String > > constructIndexFields(Pair<FedoraFieldName, String> pid)
     {
         List< Pair< FedoraFieldName, String >> fieldList = new ArrayList< Pair< FedoraFieldName, String >>();
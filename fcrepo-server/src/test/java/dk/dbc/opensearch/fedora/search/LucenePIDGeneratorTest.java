@@ -0,0 +1,185 @@
+/*
+ * This file is part of opensearch.
+ * Copyright (c) 2012, Dansk Bibliotekscenter a/s,
+ * Tempovej 7-11, DK-2750 Ballerup, Denmark. CVR: 15149043
+ *
+ * opensearch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * opensearch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with opensearch. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dk.dbc.opensearch.fedora.search;
+
+import mockit.Delegate;
+import mockit.Mocked;
+import mockit.NonStrictExpectations;
+import org.fcrepo.common.PID;
+import org.fcrepo.server.Module;
+import org.fcrepo.server.Parameterized;
+import org.fcrepo.server.Server;
+import org.fcrepo.server.search.FieldSearch;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+
+/**
+ * LucenePIDGenerator unit tests
+ * <p>
+ * The test methods of this class uses the following naming convention:
+ *
+ *  unitOfWork_stateUnderTest_expectedBehavior
+ */
+public class LucenePIDGeneratorTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Mocked Server server;
+    @Mocked Parameterized parm;
+    @Mocked Module mod;
+    @Mocked FieldSearch fieldSearch;
+
+    private final Map<String, String> params = new HashMap<String, String>();
+
+    @Before
+    public void setUp() throws Exception
+    {
+        params.put( "highWaterMarkFile", new File( folder.getRoot(), "highwatermarks.properties" ).getPath() );
+        params.put( "highWaterMarkBlockSize", "10" );
+
+        new NonStrictExpectations( )
+        {{
+                parm.getParameter( anyString ); returns( new Delegate()
+                    {
+                        public String getParameter( String key )
+                        {
+                            return params.get( key );
+                        }
+                    }
+                );
+                // The test paths are absolute, so resolving them against FEDORA_HOME leaves them as they are
+                parm.getParameter( anyString, anyBoolean ); returns( new Delegate()
+                    {
+                        public String getParameter( String key, boolean asAbsolutePath )
+                        {
+                            return params.get( key );
+                        }
+                    }
+                );
+                mod.getServer(); returns( server );
+                server.getModule( "org.fcrepo.server.search.FieldSearch" ); returns( fieldSearch );
+                fieldSearch.findHighestID( "demo" ); returns( 5 );
+        }};
+    }
+
+    @Test
+    public void generatePIDs_withHighestIdInIndex_returnsContiguousRangeAfterIt() throws Exception
+    {
+        LucenePIDGenerator instance = createGenerator();
+
+        PID[] pids = instance.generatePIDs( "demo", 3 );
+
+        assertEquals( 3, pids.length );
+        assertEquals( "demo:6", pids[0].toString() );
+        assertEquals( "demo:7", pids[1].toString() );
+        assertEquals( "demo:8", pids[2].toString() );
+        assertEquals( "demo:9", instance.generatePID( "demo" ).toString() );
+        assertEquals( "demo:9", instance.getLastPID().toString() );
+    }
+
+    @Test
+    public void generatePID_afterRestart_neverReusesIds() throws Exception
+    {
+        LucenePIDGenerator instance = createGenerator();
+        instance.generatePIDs( "demo", 3 );
+
+        // The index still reports 5 as highest, as none of the pids were ingested
+        LucenePIDGenerator restarted = createGenerator();
+
+        assertEquals( "demo:19", restarted.generatePID( "demo" ).toString() );
+    }
+
+    @Test
+    public void neverGeneratePID_withHigherId_continuesAfterIt() throws Exception
+    {
+        LucenePIDGenerator instance = createGenerator();
+
+        instance.neverGeneratePID( "demo:42" );
+        instance.neverGeneratePID( "demo:7" );
+        instance.neverGeneratePID( "demo:name" );
+
+        assertEquals( "demo:43", instance.generatePID( "demo" ).toString() );
+    }
+
+    @Test
+    public void generatePIDs_fromConcurrentThreads_returnsUniquePids() throws Exception
+    {
+        final LucenePIDGenerator instance = createGenerator();
+        final Set<String> pids = Collections.synchronizedSet( new HashSet<String>() );
+        final int threadCount = 8;
+        final int rounds = 100;
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for( int i = 0; i < threadCount; i++ )
+        {
+            Thread thread = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        for( int round = 0; round < rounds; round++ )
+                        {
+                            for( PID pid : instance.generatePIDs( "demo", 7 ) )
+                            {
+                                pids.add( pid.toString() );
+                            }
+                        }
+                    }
+                    catch( Exception ex )
+                    {
+                        throw new RuntimeException( ex );
+                    }
+                }
+            };
+            threads.add( thread );
+            thread.start();
+        }
+        for( Thread thread : threads )
+        {
+            thread.join();
+        }
+
+        assertEquals( threadCount * rounds * 7, pids.size() );
+    }
+
+    private LucenePIDGenerator createGenerator() throws Exception
+    {
+        LucenePIDGenerator instance = new LucenePIDGenerator( params, server, "org.fcrepo.server.management.PIDGenerator" );
+        instance.postInitModule();
+        return instance;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * This file is part of opensearch.
+ * Copyright (c) 2012, Dansk Bibliotekscenter a/s,
+ * Tempovej 7-11, DK-2750 Ballerup, Denmark. CVR: 15149043
+ *
+ * opensearch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * opensearch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with opensearch. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dk.dbc.opensearch.fedora.search;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * PidBloomFilter unit tests
+ * <p>
+ * The test methods of this class uses the following naming convention:
+ *
+ *  unitOfWork_stateUnderTest_expectedBehavior
+ */
+public class PidBloomFilterTest
+{
+    @Test( expected = IllegalArgumentException.class )
+    public void constructor_expectedPidsNotPositive_throwsIllegalArgumentException()
+    {
+        new PidBloomFilter( 0, 0.01 );
+    }
+
+    @Test
+    public void mightContain_emptyFilter_returnsFalse()
+    {
+        PidBloomFilter instance = new PidBloomFilter( 1000, 0.01 );
+        assertFalse( instance.mightContain( "demo:1" ) );
+    }
+
+    @Test
+    public void mightContain_pidsAdded_returnsTrueForAllAddedPids()
+    {
+        PidBloomFilter instance = new PidBloomFilter( 1000, 0.01 );
+        for( int i = 0; i < 1000; i++ )
+        {
+            instance.add( "demo:" + i );
+        }
+        for( int i = 0; i < 1000; i++ )
+        {
+            assertTrue( instance.mightContain( "demo:" + i ) );
+        }
+    }
+
+    @Test
+    public void mightContain_pidsNotAdded_falsePositiveRateIsNearConfiguredRate()
+    {
+        PidBloomFilter instance = new PidBloomFilter( 10000, 0.01 );
+        for( int i = 0; i < 10000; i++ )
+        {
+            instance.add( "demo:" + i );
+        }
+        int falsePositives = 0;
+        for( int i = 0; i < 10000; i++ )
+        {
+            if( instance.mightContain( "other:" + i ) )
+            {
+                falsePositives++;
+            }
+        }
+        assertTrue( "False positives: " + falsePositives, falsePositives < 300 );
+    }
+}
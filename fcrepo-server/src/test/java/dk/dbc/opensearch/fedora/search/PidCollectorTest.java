@@ -22,10 +22,12 @@ package dk.dbc.opensearch.fedora.search;
 import org.apache.lucene.analysis.core.SimpleAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.SortedBytesDocValuesField;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.Version;
 import org.junit.After;
 import org.junit.AfterClass;
@@ -195,6 +197,50 @@ public class PidCollectorTest
         assertEquals( PID_FIELD_VALUE_3, nextPidArray[2] );
     }
 
+    @Test
+    public void collect_docIdArgExistsInIndexWithPidDocValues_pidIsReadFromDocValues() throws IOException
+    {
+        AtomicReader reader = populateIndexAndGetIndexReader( newIndexDocumentWithDocValues( PID_FIELD_VALUE_1 ),
+                                                             newIndexDocumentWithDocValues( PID_FIELD_VALUE_2 ) );
+        PidCollector instance = new PidCollector( MAX_IN_MEMORY, tmpDir );
+        instance.setNextReader( reader.getContext() );
+
+        int maxDoc = reader.maxDoc();
+        for( int i = 0; i < maxDoc; i++ )
+        {
+            instance.collect( i );
+        }
+
+        IPidList pidList = instance.getResults();
+        assertEquals( 2, pidList.size() );
+        assertEquals( 0, instance.getStoredFieldLookups() );
+        String[] nextPidArray = pidList.getNextPids(2).toArray(new String[0]);
+        assertEquals( PID_FIELD_VALUE_1, nextPidArray[0] );
+        assertEquals( PID_FIELD_VALUE_2, nextPidArray[1] );
+    }
+
+    @Test
+    public void collect_indexMixesDocumentsWithAndWithoutPidDocValues_allPidsAreAddedToPidList() throws IOException
+    {
+        AtomicReader reader = populateIndexAndGetIndexReader( newIndexDocumentWithDocValues( PID_FIELD_VALUE_1 ),
+                                                             newIndexDocument( PID_FIELD_NAME, PID_FIELD_VALUE_2 ) );
+        PidCollector instance = new PidCollector( MAX_IN_MEMORY, tmpDir );
+        instance.setNextReader( reader.getContext() );
+
+        int maxDoc = reader.maxDoc();
+        for( int i = 0; i < maxDoc; i++ )
+        {
+            instance.collect( i );
+        }
+
+        IPidList pidList = instance.getResults();
+        assertEquals( 2, pidList.size() );
+        assertEquals( 1, instance.getStoredFieldLookups() );
+        String[] nextPidArray = pidList.getNextPids(2).toArray(new String[0]);
+        assertEquals( PID_FIELD_VALUE_1, nextPidArray[0] );
+        assertEquals( PID_FIELD_VALUE_2, nextPidArray[1] );
+    }
+
     private AtomicReader populateIndexAndGetIndexReader( Document... docs ) throws IOException
     {
         IndexWriterConfig config = new IndexWriterConfig( Version.LUCENE_41, new SimpleAnalyzer( Version.LUCENE_41 ) );
@@ -214,4 +260,11 @@ public class PidCollectorTest
         doc.add( new Field( fieldName, fieldValue, Field.Store.YES, Field.Index.ANALYZED ) );
         return doc;
     }
+
+    private Document newIndexDocumentWithDocValues( String pid )
+    {
+        Document doc = newIndexDocument( PID_FIELD_NAME, pid );
+        doc.add( new SortedBytesDocValuesField( LuceneFieldIndex.PID_DOCVALUES, new BytesRef( pid ) ) );
+        return doc;
+    }
 }
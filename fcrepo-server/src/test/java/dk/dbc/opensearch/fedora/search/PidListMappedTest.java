@@ -0,0 +1,135 @@
+/*
+ * This file is part of opensearch.
+ * Copyright (c) 2012, Dansk Bibliotekscenter a/s,
+ * Tempovej 7-11, DK-2750 Ballerup, Denmark. CVR: 15149043
+ *
+ * opensearch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * opensearch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with opensearch. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dk.dbc.opensearch.fedora.search;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * PidListMapped unit tests
+ * <p>
+ * The test methods of this class uses the following naming convention:
+ *
+ *  unitOfWork_stateUnderTest_expectedBehavior
+ */
+public class PidListMappedTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final static List<String> MIXED_PIDS = Arrays.asList(
+            "obj:1", "obj:2", "obj:10", "other:5", "obj:007", "obj:name", "nocolon", "obj:3",
+            "obj:999999999999999999", "obj:1000000000000000000", "ø:æ", "obj:0" );
+
+    @Test
+    public void getNextPids_afterCommit_returnsPidsInInsertionOrder() throws Exception
+    {
+        PidListMapped instance = createList( MIXED_PIDS );
+
+        List<String> result = new ArrayList<String>();
+        result.addAll( instance.getNextPids( 5 ) );
+        result.addAll( instance.getNextPids( 100 ) );
+
+        assertEquals( MIXED_PIDS, result );
+        assertTrue( instance.getNextPids( 1 ).isEmpty() );
+    }
+
+    @Test
+    public void getNextPids_listExhausted_deletesFile() throws Exception
+    {
+        File pidFile = folder.newFile( "pids.bin" );
+        PidListMapped instance = new PidListMapped( pidFile );
+        instance.addPid( "obj:1" );
+        instance.commit();
+
+        instance.getNextPids( 1 );
+
+        assertFalse( pidFile.exists() );
+    }
+
+    @Test
+    public void seek_acrossCheckpoints_continuesFromPosition() throws Exception
+    {
+        List<String> pids = new ArrayList<String>();
+        for( int i = 0; i < PidListMapped.CHECKPOINT_INTERVAL * 3; i++ )
+        {
+            pids.add( ( i % 7 == 0 ) ? "obj:id" + i : "obj:" + ( i * 3 ) );
+        }
+        PidListMapped instance = createList( pids );
+
+        int position = PidListMapped.CHECKPOINT_INTERVAL * 2 + 5;
+        instance.seek( position );
+        assertEquals( pids.subList( position, position + 3 ), new ArrayList<String>( instance.getNextPids( 3 ) ) );
+
+        instance.seek( 1 );
+        assertEquals( pids.subList( 1, 2 ), new ArrayList<String>( instance.getNextPids( 1 ) ) );
+    }
+
+    @Test
+    public void constructor_withSourceList_copiesPids() throws Exception
+    {
+        PidListInMemory source = new PidListInMemory();
+        for( String pid : MIXED_PIDS )
+        {
+            source.addPid( pid );
+        }
+        PidListMapped instance = new PidListMapped( folder.newFile( "pids.bin" ), source );
+        instance.commit();
+
+        assertEquals( MIXED_PIDS.size(), instance.size() );
+        assertEquals( MIXED_PIDS, new ArrayList<String>( instance.getNextPids( MIXED_PIDS.size() ) ) );
+    }
+
+    @Test
+    public void dispose_whenCalled_deletesFileAndEmptiesList() throws Exception
+    {
+        File pidFile = folder.newFile( "pids.bin" );
+        PidListMapped instance = new PidListMapped( pidFile );
+        instance.addPid( "obj:1" );
+        instance.commit();
+
+        instance.dispose();
+
+        assertFalse( pidFile.exists() );
+        assertEquals( 0, instance.size() );
+    }
+
+    private PidListMapped createList( List<String> pids ) throws Exception
+    {
+        PidListMapped instance = new PidListMapped( folder.newFile( "pids.bin" ) );
+        for( String pid : pids )
+        {
+            instance.addPid( pid );
+        }
+        instance.commit();
+        return instance;
+    }
+}
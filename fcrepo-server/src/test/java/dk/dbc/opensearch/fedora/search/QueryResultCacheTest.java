@@ -0,0 +1,141 @@
+/*
+ * This file is part of opensearch.
+ * Copyright (c) 2012, Dansk Bibliotekscenter a/s,
+ * Tempovej 7-11, DK-2750 Ballerup, Denmark. CVR: 15149043
+ *
+ * opensearch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * opensearch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with opensearch. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package dk.dbc.opensearch.fedora.search;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+
+/**
+ * QueryResultCache unit tests
+ * <p>
+ * The test methods of this class uses the following naming convention:
+ *
+ *  unitOfWork_stateUnderTest_expectedBehavior
+ */
+public class QueryResultCacheTest
+{
+    private final static Query QUERY_1 = new TermQuery( new Term( "title", "foo" ) );
+    private final static Query QUERY_2 = new TermQuery( new Term( "title", "bar" ) );
+    private final static Query QUERY_3 = new TermQuery( new Term( "title", "baz" ) );
+
+    @Test
+    public void get_resultCachedInSameGeneration_returnsIndependentViews() throws Exception
+    {
+        QueryResultCache instance = new QueryResultCache( 10 );
+        instance.put( 1, QUERY_1, Arrays.asList( "pid_1", "pid_2", "pid_3" ) );
+
+        IPidList first = instance.get( 1, QUERY_1 );
+        IPidList second = instance.get( 1, QUERY_1 );
+        assertNotNull( first );
+        assertNotNull( second );
+
+        Collection<String> firstPids = first.getNextPids( 2 );
+        assertEquals( Arrays.asList( "pid_1", "pid_2" ), new ArrayList<String>( firstPids ) );
+        first.dispose();
+
+        assertEquals( 3, second.size() );
+        assertEquals( Arrays.asList( "pid_1", "pid_2", "pid_3" ), new ArrayList<String>( second.getNextPids( 3 ) ) );
+        assertEquals( 2, instance.getHits() );
+    }
+
+    @Test
+    public void get_newGeneration_dropsCachedResults()
+    {
+        QueryResultCache instance = new QueryResultCache( 10 );
+        instance.put( 1, QUERY_1, Arrays.asList( "pid_1" ) );
+
+        assertNull( instance.get( 2, QUERY_1 ) );
+        assertEquals( 0, instance.getCachedResults() );
+        assertEquals( 1, instance.getMisses() );
+    }
+
+    @Test
+    public void put_resultFromOlderGeneration_isIgnored()
+    {
+        QueryResultCache instance = new QueryResultCache( 10 );
+        instance.get( 2, QUERY_1 );
+        instance.put( 1, QUERY_1, Arrays.asList( "pid_1" ) );
+
+        assertNull( instance.get( 2, QUERY_1 ) );
+    }
+
+    @Test
+    public void put_totalPidsExceedMax_evictsLeastRecentlyUsedResult()
+    {
+        QueryResultCache instance = new QueryResultCache( 4 );
+        instance.put( 1, QUERY_1, Arrays.asList( "pid_1", "pid_2" ) );
+        instance.put( 1, QUERY_2, Arrays.asList( "pid_3", "pid_4" ) );
+        // Use the first result, so the second is the least recently used
+        assertNotNull( instance.get( 1, QUERY_1 ) );
+
+        instance.put( 1, QUERY_3, Arrays.asList( "pid_5" ) );
+
+        assertNotNull( instance.get( 1, QUERY_1 ) );
+        assertNull( instance.get( 1, QUERY_2 ) );
+        assertNotNull( instance.get( 1, QUERY_3 ) );
+        assertEquals( 3, instance.getCachedPids() );
+        assertEquals( 1, instance.getEvictions() );
+    }
+
+    @Test
+    public void put_resultLargerThanCache_isIgnored()
+    {
+        QueryResultCache instance = new QueryResultCache( 2 );
+        List<String> pids = Arrays.asList( "pid_1", "pid_2", "pid_3" );
+        instance.put( 1, QUERY_1, pids );
+
+        assertNull( instance.get( 1, QUERY_1 ) );
+        assertEquals( 0, instance.getCachedPids() );
+    }
+
+    @Test
+    public void get_equalQuery_returnsCachedResult()
+    {
+        QueryResultCache instance = new QueryResultCache( 10 );
+        instance.put( 1, QUERY_1, Arrays.asList( "pid_1" ) );
+
+        assertNotNull( instance.get( 1, new TermQuery( new Term( "title", "foo" ) ) ) );
+    }
+
+    @Test
+    public void get_differentQueryWithSameString_returnsNull()
+    {
+        Query query = new TermQuery( new Term( "title", "a:b" ) );
+        Query sameString = new TermQuery( new Term( "title:a", "b" ) );
+        assertEquals( query.toString(), sameString.toString() );
+
+        QueryResultCache instance = new QueryResultCache( 10 );
+        instance.put( 1, query, Arrays.asList( "pid_1" ) );
+
+        assertNull( instance.get( 1, sameString ) );
+    }
+}
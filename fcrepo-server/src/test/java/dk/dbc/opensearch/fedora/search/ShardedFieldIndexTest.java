@@ -0,0 +1,142 @@
+/*
+ * This file is part of opensearch.
+ * Copyright (c) 2012, Dansk Bibliotekscenter a/s,
+ * Tempovej 7-11, DK-2750 Ballerup, Denmark. CVR: 15149043
+ *
+ * opensearch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * opensearch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with opensearch. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package dk.dbc.opensearch.fedora.search;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.fcrepo.server.search.Condition;
+import org.fcrepo.server.search.FieldSearchQuery;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * ShardedFieldIndex unit tests
+ * <p>
+ * The test methods of this class uses the following naming convention:
+ *
+ *  unitOfWork_stateUnderTest_expectedBehavior
+ */
+public class ShardedFieldIndexTest
+{
+    private static final int SHARDS = 2;
+
+    private ShardedFieldIndex instance;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        List<LuceneFieldIndex> shards = new ArrayList<LuceneFieldIndex>();
+        for( int i = 0; i < SHARDS; i++ )
+        {
+            TieredMergePolicy tieredMergePolicy = new TieredMergePolicy();
+            IndexWriterConfig conf = new IndexWriterConfig( Version.LUCENE_41, new WhitespaceAnalyzer( Version.LUCENE_41 ) ).
+                    setMergePolicy( tieredMergePolicy );
+            IndexWriter writer = new IndexWriter( new RAMDirectory(), conf );
+            shards.add( new LuceneFieldIndex( writer, tieredMergePolicy, Integer.MAX_VALUE, null, false, null,
+                    0, 0, 0, 0, 0, 0, 0, false, "test-" + i ) );
+        }
+        instance = new ShardedFieldIndex( shards, false );
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        instance.closeIndex();
+    }
+
+    @Test
+    public void search_acrossShards_mergesResultsOfAllShards() throws Exception
+    {
+        // demo:1, demo:3 and demo:5 hash to shard 0, the even ids to shard 1
+        for( int i = 1; i <= 6; i++ )
+        {
+            instance.indexFields( constructIndexFields( "demo:" + i ), 0 );
+        }
+        assertEquals( 0, ShardedFieldIndex.getShard( "demo:1", SHARDS, false ) );
+        assertEquals( 1, ShardedFieldIndex.getShard( "demo:2", SHARDS, false ) );
+
+        FieldSearchQuery fsq = getFieldSearchQuery( "title", "eq", "demo" );
+        IPidList result = instance.search( fsq );
+        assertEquals( 6, result.size() );
+        List<String> pids = new ArrayList<String>( result.getNextPids( 10 ) );
+        assertEquals( 6, pids.size() );
+        assertTrue( pids.containsAll( Arrays.asList( "demo:1", "demo:2", "demo:5", "demo:6" ) ) );
+
+        assertEquals( 6, instance.count( fsq ) );
+        assertEquals( Arrays.asList( "demo:1", "demo:2", "demo:3", "demo:4" ), instance.searchAfter( fsq, null, 4 ) );
+        assertEquals( Arrays.asList( "demo:5", "demo:6" ), instance.searchAfter( fsq, "demo:4", 4 ) );
+        assertEquals( 6, instance.findHighestId( "demo" ) );
+    }
+
+    @Test
+    public void removeDocument_inOneShard_isNotFoundInAnyShard() throws Exception
+    {
+        instance.indexFields( constructIndexFields( "demo:1" ), 0 );
+        instance.indexFields( constructIndexFields( "demo:2" ), 0 );
+        assertTrue( instance.pidExists( "demo:1" ) );
+
+        instance.removeDocument( "demo:1" );
+
+        assertFalse( instance.pidExists( "demo:1" ) );
+        assertTrue( instance.pidExists( "demo:2" ) );
+        assertEquals( 1, instance.count( getFieldSearchQuery( "title", "eq", "demo" ) ) );
+    }
+
+    @Test
+    public void getShard_byNamespace_placesNamespaceInOneShard() throws Exception
+    {
+        int shard = ShardedFieldIndex.getShard( "demo:1", 8, true );
+        for( int i = 2; i <= 20; i++ )
+        {
+            assertEquals( shard, ShardedFieldIndex.getShard( "demo:" + i, 8, true ) );
+        }
+    }
+
+    private List<Pair<FedoraFieldName, String>> constructIndexFields( String pid )
+    {
+        List<Pair<FedoraFieldName, String>> fieldList = new ArrayList<Pair<FedoraFieldName, String>>();
+        fieldList.add( new Pair<FedoraFieldName, String>( FedoraFieldName.PID, pid ) );
+        fieldList.add( new Pair<FedoraFieldName, String>( FedoraFieldName.STATE, "a" ) );
+        fieldList.add( new Pair<FedoraFieldName, String>( FedoraFieldName.TITLE, "demo" ) );
+        return fieldList;
+    }
+
+    private FieldSearchQuery getFieldSearchQuery( String field, String operator, String value ) throws Exception
+    {
+        List<Condition> conditions = new ArrayList<Condition>();
+        conditions.add( new Condition( field, operator, value ) );
+        return new FieldSearchQuery( conditions );
+    }
+}
@@ -190,7 +190,7 @@ public class WriteAheadLogTest
 
         WriteAheadLog.writeDocumentData( fileAccess, pid, doc );
         fileAccess.seek( 0 );
-        DocumentData docData1 = WriteAheadLog.readDocumentData( fileAccess );
+        DocumentData docData1 = WriteAheadLog.readDocumentData( fileAccess, false );
         assertEquals( pid, docData1.pid );
         assertEquals( doc.toString(), docData1.docOrNull.toString() );
     }
@@ -232,7 +232,7 @@ public class WriteAheadLogTest
 
         WriteAheadLog.writeDocumentData( fileAccess, pid, null );
         fileAccess.seek( 0 );
-        DocumentData docData = WriteAheadLog.readDocumentData( fileAccess );
+        DocumentData docData = WriteAheadLog.readDocumentData( fileAccess, false );
         assertEquals( pid, docData.pid );
         assertNull( docData.docOrNull );
     }
@@ -265,16 +265,16 @@ public class WriteAheadLogTest
         assertTrue( objectFile + " exists", objectFile.exists() );
 
         RandomAccessFile fileAccess = new RandomAccessFile( objectFile, "r" );
-        DocumentData docData1 = WriteAheadLog.readDocumentData( fileAccess );
+        DocumentData docData1 = WriteAheadLog.readDocumentData( fileAccess, false );
 
         assertEquals( pid1, docData1.pid );
         assertEquals( doc1.toString(), docData1.docOrNull.toString() );
 
-        DocumentData docData1d = WriteAheadLog.readDocumentData( fileAccess );
+        DocumentData docData1d = WriteAheadLog.readDocumentData( fileAccess, false );
         assertEquals( pid1, docData1d.pid );
         assertNull( docData1d.docOrNull );
 
-        DocumentData docData2 = WriteAheadLog.readDocumentData( fileAccess );
+        DocumentData docData2 = WriteAheadLog.readDocumentData( fileAccess, false );
         assertEquals( pid2, docData2.pid );
         assertEquals( doc2.toString(), docData2.docOrNull.toString() );
 
@@ -326,6 +326,117 @@ public class WriteAheadLogTest
         assertEquals( 1, result.scoreDocs.length );
     }
 
+    @Test
+    public void testRecoverLogFileWithLegacyRecordsAndTornTail() throws Exception
+    {
+        File objectFile = new File( folder.getRoot(), "writeaheadlog.log");
+        RandomAccessFile fileAccess = new RandomAccessFile( objectFile, "rwd" );
+
+        String pid1 = "obj:1";
+        Document doc1 = makeLuceneDocument( pid1 );
+
+        String pid2 = "obj:2";
+        Document doc2 = makeLuceneDocument( pid2 );
+
+        String pid3 = "obj:3";
+        Document doc3 = makeLuceneDocument( pid3 );
+
+        // Given a log file written by an earlier version, continued in the current format
+        // and ending in a record cut short by a crash
+
+        WriteAheadLog.writeLegacyDocumentData( fileAccess, pid1, doc1 );
+        WriteAheadLog.writeDocumentData( fileAccess, pid2, doc2 );
+        long tornRecordStart = fileAccess.getFilePointer();
+        WriteAheadLog.writeDocumentData( fileAccess, pid3, doc3 );
+        fileAccess.setLength( fileAccess.getFilePointer() - 5 );
+
+        fileAccess.seek( 0 );
+        DocumentData docData1 = WriteAheadLog.readDocumentData( fileAccess, true );
+        assertEquals( pid1, docData1.pid );
+        assertEquals( doc1.toString(), docData1.docOrNull.toString() );
+        DocumentData docData2 = WriteAheadLog.readDocumentData( fileAccess, true );
+        assertEquals( pid2, docData2.pid );
+        assertEquals( doc2.toString(), docData2.docOrNull.toString() );
+        assertEquals( tornRecordStart, fileAccess.getFilePointer() );
+        assertNull( WriteAheadLog.readDocumentData( fileAccess, true ) );
+        fileAccess.close();
+
+        // Recover the log file
+        int recovered = WriteAheadLog.recoverUncomittedFile( objectFile, writer );
+
+        // Verify that the complete records are applied
+        assertEquals( 2, recovered );
+
+        IndexReader reader = IndexReader.open( writer, false );
+        IndexSearcher searcher = new IndexSearcher( reader );
+
+        assertEquals( 1, searcher.search( new TermQuery( WriteAheadLog.getPidTerm( pid1 ) ), 100 ).scoreDocs.length );
+        assertEquals( 1, searcher.search( new TermQuery( WriteAheadLog.getPidTerm( pid2 ) ), 100 ).scoreDocs.length );
+        assertEquals( 0, searcher.search( new TermQuery( WriteAheadLog.getPidTerm( pid3 ) ), 100 ).scoreDocs.length );
+    }
+
+    @Test
+    public void testInitializeKeepsLogFileWithCorruptRecordBeforeTheEnd() throws Exception
+    {
+        File objectFile = new File( folder.getRoot(), "writeaheadlog.log");
+        RandomAccessFile fileAccess = new RandomAccessFile( objectFile, "rwd" );
+
+        // Given a log file where a record followed by another one is damaged
+
+        WriteAheadLog.writeDocumentData( fileAccess, "obj:1", makeLuceneDocument( "obj:1" ) );
+        WriteAheadLog.writeDocumentData( fileAccess, "obj:2", makeLuceneDocument( "obj:2" ) );
+        fileAccess.seek( 12 );
+        byte damaged = (byte) ~fileAccess.readByte();
+        fileAccess.seek( 12 );
+        fileAccess.writeByte( damaged );
+        fileAccess.close();
+
+        // Recovery fails rather than dropping the records after the damaged one
+
+        WriteAheadLog wal = new WriteAheadLog( writer, folder.getRoot(), 1000, true );
+        try
+        {
+            wal.initialize();
+            fail( "Expected recovery of a corrupt log file to fail" );
+        }
+        catch ( IOException ex )
+        {
+            // expected
+        }
+        assertTrue( "Corrupt log file is kept", objectFile.exists() );
+    }
+
+    @Test
+    public void testInitializeKeepsLogFileWithDamagedMarkerBeforeTheEnd() throws Exception
+    {
+        File objectFile = new File( folder.getRoot(), "writeaheadlog.log");
+        RandomAccessFile fileAccess = new RandomAccessFile( objectFile, "rwd" );
+
+        // Given a log file where the marker of a record in the middle is damaged
+
+        WriteAheadLog.writeDocumentData( fileAccess, "obj:1", makeLuceneDocument( "obj:1" ) );
+        long damagedRecordStart = fileAccess.getFilePointer();
+        WriteAheadLog.writeDocumentData( fileAccess, "obj:2", makeLuceneDocument( "obj:2" ) );
+        WriteAheadLog.writeDocumentData( fileAccess, "obj:3", makeLuceneDocument( "obj:3" ) );
+        fileAccess.seek( damagedRecordStart );
+        fileAccess.writeByte( ~WriteAheadLogRecord.MARKER );
+        fileAccess.close();
+
+        // Recovery fails rather than reading the rest of the file as Kryo records
+
+        WriteAheadLog wal = new WriteAheadLog( writer, folder.getRoot(), 1000, true );
+        try
+        {
+            wal.initialize();
+            fail( "Expected recovery of a log file with a damaged marker to fail" );
+        }
+        catch ( IOException ex )
+        {
+            // expected
+        }
+        assertTrue( "Log file with a damaged marker is kept", objectFile.exists() );
+    }
+
     @Test
     public void testInitializeRecoversUncomittedFiles() throws Exception
     {
@@ -408,4 +519,113 @@ public class WriteAheadLogTest
     }
 
 
-}
\ No newline at end of file
+
+    @Test
+    public void testGroupCommitWithConcurrentUpdatesWritesAllDocuments() throws Exception
+    {
+        final int threads = 4;
+        final int updatesPerThread = 25;
+        final WriteAheadLog wal = new WriteAheadLog( writer, folder.getRoot(), 30, false, true, 2, 1024 * 1024, 2 );
+        wal.initialize();
+
+        final Exception[] failures = new Exception[threads];
+        Thread[] workers = new Thread[threads];
+        for( int t = 0; t < threads; t++ )
+        {
+            final int thread = t;
+            workers[t] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        for( int i = 0; i < updatesPerThread; i++ )
+                        {
+                            String pid = "obj:" + thread + "-" + i;
+                            wal.updateDocument( pid, makeLuceneDocument( pid ) );
+                        }
+                    }
+                    catch( Exception ex )
+                    {
+                        failures[thread] = ex;
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        for( Thread worker : workers )
+        {
+            worker.join();
+        }
+        for( Exception failure : failures )
+        {
+            assertNull( failure );
+        }
+
+        assertEquals( threads * updatesPerThread, writer.numDocs() );
+        assertTrue( wal.getNumberOfSyncs() <= threads * updatesPerThread );
+
+        wal.shutdown();
+        assertEquals( threads * updatesPerThread, writer.numDocs() );
+    }
+
+
+    @Test
+    public void testInitializeReplaysComittingFilesInRotationOrder() throws Exception
+    {
+        String pid = "obj:1";
+        Document docA = makeLuceneDocument( pid, new Pair<String,String> ( "field","valueA" ) );
+        Document docB = makeLuceneDocument( pid, new Pair<String,String> ( "field","valueB" ) );
+        Document docC = makeLuceneDocument( pid, new Pair<String,String> ( "field","valueC" ) );
+
+        // Given a legacy committing file and two numbered committing files, where
+        // sequence 10 is newer than sequence 9 although it sorts before it by name
+
+        RandomAccessFile legacyRaf = new RandomAccessFile( new File( folder.getRoot(), "writeaheadlog.committing" ), "rwd" );
+        WriteAheadLog.writeDocumentData( legacyRaf, pid, docA );
+        legacyRaf.close();
+
+        RandomAccessFile newestRaf = new RandomAccessFile( new File( folder.getRoot(), "writeaheadlog.committing.10" ), "rwd" );
+        WriteAheadLog.writeDocumentData( newestRaf, pid, docC );
+        newestRaf.close();
+
+        RandomAccessFile olderRaf = new RandomAccessFile( new File( folder.getRoot(), "writeaheadlog.committing.9" ), "rwd" );
+        WriteAheadLog.writeDocumentData( olderRaf, pid, docB );
+        olderRaf.close();
+
+        WriteAheadLog wal = new WriteAheadLog( writer, folder.getRoot(), 1000, true );
+        assertEquals( 3, wal.initialize() );
+        assertEquals( 0, WriteAheadLog.getComittingFiles( folder.getRoot() ).length );
+
+        IndexReader reader = DirectoryReader.open( writer, false );
+        IndexSearcher searcher = new IndexSearcher( reader );
+        TopDocs result = searcher.search( new TermQuery( WriteAheadLog.getPidTerm( pid ) ), 100 );
+        assertEquals( 1, result.scoreDocs.length );
+        assertEquals( "valueC", reader.document( result.scoreDocs[0].doc ).get( "field" ) );
+
+        wal.shutdown();
+    }
+
+
+    @Test
+    public void testBackgroundCommitsDeleteComittingFiles() throws Exception
+    {
+        WriteAheadLog wal = new WriteAheadLog( writer, folder.getRoot(), 2, true, false, 0, 0, 1 );
+        wal.initialize();
+
+        for( int i = 0; i < 10; i++ )
+        {
+            String pid = "obj:" + i;
+            wal.updateDocument( pid, makeLuceneDocument( pid ) );
+        }
+
+        wal.shutdown();
+
+        assertEquals( 0, WriteAheadLog.getComittingFiles( folder.getRoot() ).length );
+        assertEquals( 0, wal.getNumberOfFailedCommits() );
+        assertEquals( 0, wal.getNumberOfPendingCommits() );
+        assertEquals( 10, writer.numDocs() );
+    }
+
+}
@@ -27,7 +27,9 @@ package org.fcrepo.server.oai;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import org.fcrepo.oai.DateGranularitySupport;
 import org.fcrepo.oai.DeletedRecordSupport;
 import org.fcrepo.oai.Header;
@@ -91,6 +93,46 @@ public class FedoraOAIProviderTest
         public int findHighestID(String namespace) throws ServerException {
             throw new UnsupportedOperationException("Not supported yet.");
         }
+
+        @Override
+        public FieldSearchResult findObjectsAfter(String[] resultFields, int maxResults, FieldSearchQuery query, String afterPid) throws ServerException {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        public long countObjects(FieldSearchQuery query) throws ServerException {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        public Map<String, Map<String, Integer>> findFacets(String[] fields, int maxValues, FieldSearchQuery query) throws ServerException {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        public boolean objectExists(String pid) throws ServerException {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        public Iterator<String> listObjectPIDs() throws ServerException {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        public boolean beginBulkLoad() throws ServerException {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        public void endBulkLoad() throws ServerException {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        @Override
+        public void abortBulkLoad() throws ServerException {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
     }
 
     public static class MockFieldSearchResult implements FieldSearchResult {
@@ -22,6 +22,13 @@ public class AllUnitTests {
         suite.addTest(org.fcrepo.server.storage.translation.AllUnitTests.suite());
         suite.addTest(org.fcrepo.server.storage.lowlevel.akubra.AllUnitTests.suite());
         suite.addTest(org.fcrepo.server.storage.DefaultDOManagerTest.suite());
+        suite.addTest(org.fcrepo.server.storage.PIDLockManagerTest.suite());
+        suite.addTest(org.fcrepo.server.storage.DOReaderCacheTest.suite());
+        suite.addTest(org.fcrepo.server.storage.DigitalObjectCacheTest.suite());
+        suite.addTest(org.fcrepo.server.storage.CommitMonitorTest.suite());
+        suite.addTest(org.fcrepo.server.storage.IndexUpdateQueueTest.suite());
+        suite.addTest(org.fcrepo.server.storage.ManagedContentStagerTest.suite());
+        suite.addTest(org.fcrepo.server.storage.ChecksumAuditorTest.suite());
 
         return suite;
     }
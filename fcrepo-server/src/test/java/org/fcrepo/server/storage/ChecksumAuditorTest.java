@@ -0,0 +1,142 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import org.fcrepo.server.errors.GeneralException;
+import org.fcrepo.server.errors.ServerException;
+import org.fcrepo.server.storage.types.Datastream;
+import org.fcrepo.server.storage.types.DatastreamManagedContent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChecksumAuditorTest {
+
+    private static final String HELLO_MD5 = "5d41402abc4b2a76b9719d911017c592";
+
+    private final Map<String, List<Datastream>> m_objects =
+            new HashMap<String, List<Datastream>>();
+
+    private final Map<String, byte[]> m_content = new HashMap<String, byte[]>();
+
+    private final ChecksumAuditor.ContentSource m_source =
+            new ChecksumAuditor.ContentSource() {
+        public Iterator<String> listPIDs() {
+            return m_objects.keySet().iterator();
+        }
+
+        public List<Datastream> getManagedDatastreams(String pid) {
+            return m_objects.get(pid);
+        }
+
+        public InputStream getContent(String internalId) throws ServerException {
+            byte[] content = m_content.get(internalId);
+            if (content == null) {
+                throw new GeneralException("No content for " + internalId);
+            }
+            return new ByteArrayInputStream(content);
+        }
+    };
+
+    @Test
+    public void audit_matchingContent_findsNoMismatches() throws Exception {
+        addDatastream("obj:1", "DS", "MD5", HELLO_MD5, "hello".getBytes("UTF-8"));
+        ChecksumAuditor auditor = new ChecksumAuditor(m_source, 0, 0);
+        auditor.audit();
+
+        assertEquals(1, auditor.getPasses());
+        assertEquals(1, auditor.getAuditedObjects());
+        assertEquals(1, auditor.getAuditedDatastreams());
+        assertEquals(5, auditor.getAuditedBytes());
+        assertEquals(0, auditor.getMismatches());
+    }
+
+    @Test
+    public void audit_changedContent_countsMismatch() throws Exception {
+        addDatastream("obj:1", "DS", "MD5", HELLO_MD5, "jello".getBytes("UTF-8"));
+        ChecksumAuditor auditor = new ChecksumAuditor(m_source, 0, 0);
+        auditor.audit();
+
+        assertEquals(1, auditor.getMismatches());
+        assertEquals("obj:1/DS/DS.0", auditor.getLastMismatch());
+    }
+
+    @Test
+    public void audit_disabledChecksum_skipsDatastream() throws Exception {
+        addDatastream("obj:1", "DS", Datastream.CHECKSUMTYPE_DISABLED,
+                      Datastream.CHECKSUM_NONE, "hello".getBytes("UTF-8"));
+        ChecksumAuditor auditor = new ChecksumAuditor(m_source, 0, 0);
+        auditor.audit();
+
+        assertEquals(1, auditor.getAuditedObjects());
+        assertEquals(0, auditor.getAuditedDatastreams());
+        assertEquals(0, auditor.getAuditedBytes());
+    }
+
+    @Test
+    public void audit_missingContent_countsError() throws Exception {
+        addDatastream("obj:1", "DS", "MD5", HELLO_MD5, null);
+        ChecksumAuditor auditor = new ChecksumAuditor(m_source, 0, 0);
+        auditor.audit();
+
+        assertEquals(1, auditor.getErrors());
+        assertEquals(0, auditor.getMismatches());
+    }
+
+    @Test
+    public void audit_maxBytesPerSecond_throttlesReads() throws Exception {
+        addDatastream("obj:1", "DS", "MD5", "unknown", new byte[50000]);
+        ChecksumAuditor auditor = new ChecksumAuditor(m_source, 0, 100000);
+        long start = System.currentTimeMillis();
+        auditor.audit();
+
+        assertTrue(System.currentTimeMillis() - start >= 400);
+        assertEquals(50000, auditor.getAuditedBytes());
+    }
+
+    @Test
+    public void dueNanos_moreThanNineGigabytes_doesNotOverflow() {
+        long bytes = (1L << 33) + 3;
+        assertEquals(bytes * 1000000L, ChecksumAuditor.dueNanos(bytes, 1000));
+        assertEquals(3L * (1L << 13) * 1000000000L,
+                     ChecksumAuditor.dueNanos(3L << 33, 1L << 20));
+    }
+
+    private void addDatastream(String pid,
+                               String dsID,
+                               String checksumType,
+                               String checksum,
+                               byte[] content) {
+        DatastreamManagedContent ds = new DatastreamManagedContent();
+        ds.DatastreamID = dsID;
+        ds.DSVersionID = dsID + ".0";
+        ds.DSControlGrp = "M";
+        ds.DSChecksumType = checksumType;
+        ds.DSChecksum = checksum;
+        ds.DSLocation = pid + "+" + dsID + "+" + ds.DSVersionID;
+        if (content != null) {
+            m_content.put(ds.DSLocation, content);
+        }
+        List<Datastream> datastreams = new ArrayList<Datastream>();
+        datastreams.add(ds);
+        m_objects.put(pid, datastreams);
+    }
+
+    // Supports legacy test runners
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ChecksumAuditorTest.class);
+    }
+}
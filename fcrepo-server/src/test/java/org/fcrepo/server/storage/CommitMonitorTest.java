@@ -0,0 +1,57 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.storage;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CommitMonitorTest {
+
+    @Test
+    public void startCommit_sampled_verifiesEverySampleRateCommits() {
+        CommitMonitor monitor =
+                new CommitMonitor(CommitMonitor.Verification.SAMPLED, 3);
+        assertFalse(monitor.startCommit());
+        assertFalse(monitor.startCommit());
+        assertTrue(monitor.startCommit());
+        assertFalse(monitor.startCommit());
+        assertEquals(4, monitor.getCommits());
+        assertEquals(1, monitor.getVerifications());
+    }
+
+    @Test
+    public void startCommit_offAndAlways_neverAndAlwaysVerify() {
+        CommitMonitor off = new CommitMonitor(CommitMonitor.Verification.parse("off"), 1);
+        CommitMonitor always = new CommitMonitor(CommitMonitor.Verification.parse(" Always "), 1);
+        assertFalse(off.startCommit());
+        assertTrue(always.startCommit());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parse_unknownMode_throws() {
+        CommitMonitor.Verification.parse("sometimes");
+    }
+
+    @Test
+    public void record_phase_addsToTotalAndAverage() {
+        CommitMonitor monitor =
+                new CommitMonitor(CommitMonitor.Verification.ALWAYS, 1);
+        long now = System.nanoTime();
+        monitor.record(CommitMonitor.Phase.STORE, now - 4000000);
+        monitor.record(CommitMonitor.Phase.STORE, now - 2000000);
+
+        assertTrue(monitor.getStoreTotalMicroS() >= 6000);
+        assertTrue(monitor.getStoreAverageMicroS() >= 3000);
+        assertEquals(0, monitor.getSerializeTotalMicroS());
+    }
+
+    // Supports legacy test runners
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(CommitMonitorTest.class);
+    }
+}
@@ -0,0 +1,97 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.storage;
+
+import org.junit.Test;
+
+import org.fcrepo.server.storage.types.BasicDigitalObject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class DOReaderCacheTest {
+
+    private static DOReader reader(String pid) {
+        BasicDigitalObject obj = new BasicDigitalObject();
+        obj.setPid(pid);
+        return new MockDOReader(obj);
+    }
+
+    @Test
+    public void get_cachedAndUncached_countsHitsAndMisses() {
+        DOReaderCache cache = new DOReaderCache(10, 0, 60);
+        DOReader reader = reader("obj:1");
+        cache.put(reader);
+
+        assertSame(reader, cache.get("obj:1"));
+        assertNull(cache.get("obj:2"));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void put_moreThanMaxReaders_evictsLeastRecentlyUsed() {
+        DOReaderCache cache = new DOReaderCache(2, 0, 60);
+        cache.put(reader("obj:1"));
+        cache.put(reader("obj:2"));
+        cache.get("obj:1");
+        cache.put(reader("obj:3"));
+
+        assertNull(cache.get("obj:2"));
+        assertEquals("obj:1", pid(cache.get("obj:1")));
+        assertEquals("obj:3", pid(cache.get("obj:3")));
+        assertEquals(2, cache.getReaders());
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void put_moreThanMaxBytes_evictsLeastRecentlyUsed() {
+        long size = DOReaderCache.estimateSize(reader("obj:1"));
+        DOReaderCache cache = new DOReaderCache(10, 2 * size, 60);
+        cache.put(reader("obj:1"));
+        cache.put(reader("obj:2"));
+        cache.put(reader("obj:3"));
+
+        assertNull(cache.get("obj:1"));
+        assertEquals(2, cache.getReaders());
+        assertEquals(2 * size, cache.getEstimatedBytes());
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void get_expired_returnsNull() throws Exception {
+        DOReaderCache cache = new DOReaderCache(10, 0, 0);
+        cache.put(reader("obj:1"));
+        Thread.sleep(5);
+
+        assertNull(cache.get("obj:1"));
+        assertEquals(0, cache.getReaders());
+        assertEquals(1, cache.getExpirations());
+    }
+
+    @Test
+    public void remove_cached_removesReader() {
+        DOReaderCache cache = new DOReaderCache(10, 0, 60);
+        cache.put(reader("obj:1"));
+        cache.remove("obj:1");
+
+        assertNull(cache.get("obj:1"));
+        assertEquals(0, cache.getEstimatedBytes());
+    }
+
+    private static String pid(DOReader reader) {
+        try {
+            return reader.GetObjectPID();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Supports legacy test runners
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(DOReaderCacheTest.class);
+    }
+}
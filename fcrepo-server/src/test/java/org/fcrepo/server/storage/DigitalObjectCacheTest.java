@@ -0,0 +1,108 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.storage;
+
+import org.junit.Test;
+
+import org.fcrepo.server.storage.types.BasicDigitalObject;
+import org.fcrepo.server.storage.types.DigitalObject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class DigitalObjectCacheTest {
+
+    private static DigitalObject object(String pid) {
+        BasicDigitalObject obj = new BasicDigitalObject();
+        obj.setPid(pid);
+        return obj;
+    }
+
+    private static void put(DigitalObjectCache cache, DigitalObject obj) {
+        cache.put(obj.getPid(), obj, cache.getGeneration(obj.getPid()), 1000000);
+    }
+
+    @Test
+    public void get_cachedObject_countsSavedParseTime() {
+        DigitalObjectCache cache = new DigitalObjectCache(10, 0);
+        DigitalObject obj = object("obj:1");
+        put(cache, obj);
+
+        assertSame(obj, cache.get("obj:1"));
+        assertSame(obj, cache.get("obj:1"));
+        assertNull(cache.get("obj:2"));
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getParses());
+        assertEquals(2, cache.getSavedParseTimeMs());
+    }
+
+    @Test
+    public void invalidate_cachedObject_removesIt() {
+        DigitalObjectCache cache = new DigitalObjectCache(10, 0);
+        put(cache, object("obj:1"));
+        cache.invalidate("obj:1");
+
+        assertNull(cache.get("obj:1"));
+        assertEquals(0, cache.getObjects());
+        assertEquals(0, cache.getEstimatedBytes());
+        assertEquals(1, cache.getInvalidations());
+    }
+
+    @Test
+    public void put_committedWhileParsing_doesNotCache() {
+        DigitalObjectCache cache = new DigitalObjectCache(10, 0);
+        long generation = cache.getGeneration("obj:1");
+        cache.invalidate("obj:1");
+        cache.put("obj:1", object("obj:1"), generation, 1000);
+
+        assertNull(cache.get("obj:1"));
+        assertEquals(1, cache.getStaleParses());
+    }
+
+    @Test
+    public void put_afterCommit_caches() {
+        DigitalObjectCache cache = new DigitalObjectCache(10, 0);
+        cache.invalidate("obj:1");
+        DigitalObject obj = object("obj:1");
+        put(cache, obj);
+
+        assertSame(obj, cache.get("obj:1"));
+        assertEquals(0, cache.getStaleParses());
+    }
+
+    @Test
+    public void put_moreThanMaxObjects_evictsLeastRecentlyUsed() {
+        DigitalObjectCache cache = new DigitalObjectCache(2, 0);
+        put(cache, object("obj:1"));
+        put(cache, object("obj:2"));
+        cache.get("obj:1");
+        put(cache, object("obj:3"));
+
+        assertNull(cache.get("obj:2"));
+        assertEquals("obj:1", cache.get("obj:1").getPid());
+        assertEquals("obj:3", cache.get("obj:3").getPid());
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void put_moreThanMaxBytes_evictsLeastRecentlyUsed() {
+        long size = DOReaderCache.estimateSize(object("obj:1"));
+        DigitalObjectCache cache = new DigitalObjectCache(10, 2 * size);
+        put(cache, object("obj:1"));
+        put(cache, object("obj:2"));
+        put(cache, object("obj:3"));
+
+        assertNull(cache.get("obj:1"));
+        assertEquals(2, cache.getObjects());
+        assertEquals(2 * size, cache.getEstimatedBytes());
+    }
+
+    // Supports legacy test runners
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(DigitalObjectCacheTest.class);
+    }
+}
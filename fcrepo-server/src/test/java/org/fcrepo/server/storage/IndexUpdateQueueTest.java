@@ -0,0 +1,196 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import org.fcrepo.server.errors.GeneralException;
+import org.fcrepo.server.errors.ObjectNotInLowlevelStorageException;
+import org.fcrepo.server.errors.ServerException;
+import org.fcrepo.server.search.FieldSearch;
+import org.fcrepo.server.search.FieldSearchQuery;
+import org.fcrepo.server.search.FieldSearchResult;
+import org.fcrepo.server.storage.types.BasicDigitalObject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IndexUpdateQueueTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final IndexUpdateQueue.ReaderSource STORED =
+            new IndexUpdateQueue.ReaderSource() {
+        public DOReader getReader(String pid) {
+            return reader(pid);
+        }
+    };
+
+    private static final IndexUpdateQueue.ReaderSource NOT_STORED =
+            new IndexUpdateQueue.ReaderSource() {
+        public DOReader getReader(String pid) throws ServerException {
+            throw new ObjectNotInLowlevelStorageException(pid);
+        }
+    };
+
+    @Test
+    public void update_sameObject_appliedInOrder() throws Exception {
+        RecordingFieldSearch index = new RecordingFieldSearch(0);
+        IndexUpdateQueue queue = new IndexUpdateQueue(folder.getRoot(), 4, index, STORED);
+        queue.update("obj:1", reader("obj:1"));
+        queue.delete("obj:1");
+        queue.update("obj:1", reader("obj:1"));
+
+        assertTrue(queue.awaitUpdates(10000));
+        assertEquals(Arrays.asList("U obj:1", "D obj:1", "U obj:1"), index.operations);
+        assertEquals(3, queue.getAppliedUpdates());
+        assertEquals(0, queue.getPendingUpdates());
+        queue.close(1000);
+
+        RecordingFieldSearch reopened = new RecordingFieldSearch(0);
+        queue = new IndexUpdateQueue(folder.getRoot(), 1, reopened, STORED);
+        queue.replay();
+        assertTrue(queue.awaitUpdates(10000));
+        assertEquals(0, queue.getReplayedUpdates());
+        queue.close(1000);
+    }
+
+    @Test
+    public void replay_failedUpdate_indexesStoredObject() throws Exception {
+        RecordingFieldSearch failing = new RecordingFieldSearch(1);
+        IndexUpdateQueue queue = new IndexUpdateQueue(folder.getRoot(), 1, failing, STORED);
+        queue.update("obj:1", reader("obj:1"));
+        queue.update("obj:2", reader("obj:2"));
+        assertTrue(queue.awaitUpdates(10000));
+        assertEquals(1, queue.getFailedUpdates());
+        queue.close(1000);
+
+        RecordingFieldSearch index = new RecordingFieldSearch(0);
+        queue = new IndexUpdateQueue(folder.getRoot(), 1, index, STORED);
+        queue.replay();
+        assertTrue(queue.awaitUpdates(10000));
+        assertEquals(1, queue.getReplayedUpdates());
+        assertEquals(Collections.singletonList("U obj:1"), index.operations);
+        queue.close(1000);
+    }
+
+    @Test
+    public void replay_objectNoLongerStored_removesFromIndex() throws Exception {
+        IndexUpdateQueue queue = new IndexUpdateQueue(folder.getRoot(), 1,
+                new RecordingFieldSearch(1), STORED);
+        queue.update("obj:1", reader("obj:1"));
+        assertTrue(queue.awaitUpdates(10000));
+        queue.close(1000);
+
+        RecordingFieldSearch index = new RecordingFieldSearch(0);
+        queue = new IndexUpdateQueue(folder.getRoot(), 1, index, NOT_STORED);
+        queue.replay();
+        assertTrue(queue.awaitUpdates(10000));
+        assertEquals(Collections.singletonList("D obj:1"), index.operations);
+        queue.close(1000);
+    }
+
+    private static DOReader reader(String pid) {
+        BasicDigitalObject obj = new BasicDigitalObject();
+        obj.setPid(pid);
+        return new MockDOReader(obj);
+    }
+
+    /**
+     * Records the updates and deletes applied, failing the given number of
+     * updates first.
+     */
+    private static class RecordingFieldSearch
+            implements FieldSearch {
+
+        final List<String> operations =
+                Collections.synchronizedList(new ArrayList<String>());
+
+        private int m_failures;
+
+        RecordingFieldSearch(int failures) {
+            m_failures = failures;
+        }
+
+        public synchronized void update(DOReader reader) throws ServerException {
+            if (m_failures > 0) {
+                m_failures--;
+                throw new GeneralException("Failing update of " + reader.GetObjectPID());
+            }
+            operations.add("U " + reader.GetObjectPID());
+        }
+
+        public boolean delete(String pid) {
+            operations.add("D " + pid);
+            return true;
+        }
+
+        public FieldSearchResult findObjects(String[] resultFields,
+                                             int maxResults,
+                                             FieldSearchQuery query) {
+            throw new UnsupportedOperationException();
+        }
+
+        public FieldSearchResult resumeFindObjects(String sessionToken) {
+            throw new UnsupportedOperationException();
+        }
+
+        public FieldSearchResult findObjectsAfter(String[] resultFields,
+                                                  int maxResults,
+                                                  FieldSearchQuery query,
+                                                  String afterPid) {
+            throw new UnsupportedOperationException();
+        }
+
+        public long countObjects(FieldSearchQuery query) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Map<String, Map<String, Integer>> findFacets(String[] fields,
+                                                            int maxValues,
+                                                            FieldSearchQuery query) {
+            throw new UnsupportedOperationException();
+        }
+
+        public int findHighestID(String namespace) {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean objectExists(String pid) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Iterator<String> listObjectPIDs() {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean beginBulkLoad() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void endBulkLoad() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void abortBulkLoad() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    // Supports legacy test runners
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(IndexUpdateQueueTest.class);
+    }
+}
@@ -0,0 +1,140 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import org.fcrepo.server.errors.GeneralException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ManagedContentStagerTest {
+
+    private final AtomicInteger m_running = new AtomicInteger();
+
+    private final AtomicInteger m_maxRunning = new AtomicInteger();
+
+    private final GeneralException m_failure = new GeneralException("Staging failed");
+
+    private final List<String> m_removed =
+            Collections.synchronizedList(new ArrayList<String>());
+
+    private final ManagedContentStager.Rollback m_rollback =
+            new ManagedContentStager.Rollback() {
+        public void remove(String id) {
+            m_removed.add(id);
+        }
+    };
+
+    @Test
+    public void stage_manyTasks_stagesAtMostMaxPerObjectAtATime() throws Exception {
+        ManagedContentStager stager = new ManagedContentStager(8, 3);
+        List<ManagedContentStager.Task> tasks = new ArrayList<ManagedContentStager.Task>();
+        for (int i = 0; i < 20; i++) {
+            tasks.add(new SleepingTask("obj:1+DS" + i + "+DS" + i + ".0", false, true));
+        }
+        stager.stage("obj:1", tasks, m_rollback);
+
+        assertEquals(20, stager.getStagedDatastreams());
+        assertEquals(20 * 10, stager.getStagedBytes());
+        assertTrue(m_maxRunning.get() <= 3);
+        assertTrue(m_removed.isEmpty());
+        stager.close();
+    }
+
+    @Test
+    public void stage_failingTask_rollsBackAddedContent() throws Exception {
+        ManagedContentStager stager = new ManagedContentStager(4, 1);
+        List<ManagedContentStager.Task> tasks = new ArrayList<ManagedContentStager.Task>();
+        tasks.add(new SleepingTask("obj:1+A+A.0", false, true));
+        tasks.add(new SleepingTask("obj:1+B+B.0", false, false));
+        tasks.add(new SleepingTask("obj:1+C+C.0", true, true));
+        tasks.add(new SleepingTask("obj:1+D+D.0", false, true));
+        try {
+            stager.stage("obj:1", tasks, m_rollback);
+            fail("Expected the failure of C");
+        } catch (GeneralException e) {
+            assertSame(m_failure, e);
+        }
+
+        // B replaced existing content, so only A is removed. D is never started.
+        assertEquals(Collections.singletonList("obj:1+A+A.0"), m_removed);
+        assertEquals(2, stager.getStagedDatastreams());
+        assertEquals(1, stager.getFailedDatastreams());
+        assertEquals(1, stager.getRolledBackDatastreams());
+        stager.close();
+    }
+
+    @Test
+    public void stage_noThreads_stagesInCallingThread() throws Exception {
+        ManagedContentStager stager = new ManagedContentStager(0, 1);
+        final Thread caller = Thread.currentThread();
+        final List<Thread> threads = new ArrayList<Thread>();
+        ManagedContentStager.Task task = new SleepingTask("obj:1+A+A.0", false, true) {
+            @Override
+            public boolean stage() throws Exception {
+                threads.add(Thread.currentThread());
+                return super.stage();
+            }
+        };
+        stager.stage("obj:1", Collections.nCopies(2, task), m_rollback);
+
+        assertEquals(Collections.nCopies(2, caller), threads);
+    }
+
+    private class SleepingTask
+            implements ManagedContentStager.Task {
+
+        private final String m_id;
+
+        private final boolean m_fail;
+
+        private final boolean m_add;
+
+        SleepingTask(String id, boolean fail, boolean add) {
+            m_id = id;
+            m_fail = fail;
+            m_add = add;
+        }
+
+        public String getId() {
+            return m_id;
+        }
+
+        public long getSize() {
+            return 10;
+        }
+
+        public boolean stage() throws Exception {
+            int running = m_running.incrementAndGet();
+            try {
+                int max = m_maxRunning.get();
+                while (running > max && !m_maxRunning.compareAndSet(max, running)) {
+                    max = m_maxRunning.get();
+                }
+                Thread.sleep(m_fail ? 20 : 5);
+                if (m_fail) {
+                    throw m_failure;
+                }
+                return m_add;
+            } finally {
+                m_running.decrementAndGet();
+            }
+        }
+    }
+
+    // Supports legacy test runners
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ManagedContentStagerTest.class);
+    }
+}
@@ -0,0 +1,126 @@
+/* The contents of this file are subject to the license and copyright terms
+ * detailed in the license directory at the root of the source tree (also
+ * available online at http://fedora-commons.org/license/).
+ */
+package org.fcrepo.server.storage;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import org.fcrepo.server.errors.ObjectLockedException;
+import org.fcrepo.server.errors.StorageMaintenanceException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PIDLockManagerTest {
+
+    private static final String PID = "obj:1";
+
+    @Test
+    public void lock_reentrantAndUnlocked_removesLock() throws Exception {
+        PIDLockManager locks = new PIDLockManager(0);
+        locks.lock(PID);
+        locks.lock(PID);
+        assertEquals(1, locks.getLockedPIDs());
+
+        locks.unlock(PID);
+        assertEquals(1, locks.getLockedPIDs());
+        locks.unlock(PID);
+        assertEquals(0, locks.getLockedPIDs());
+        assertEquals(2, locks.getAcquisitions());
+        assertEquals(0, locks.getContendedAcquisitions());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void unlock_notHeld_throws() throws Exception {
+        PIDLockManager locks = new PIDLockManager(0);
+        locks.unlock(PID);
+    }
+
+    @Test(expected = ObjectLockedException.class)
+    public void lock_heldByOtherThreadWithTimeout_throwsObjectLockedException() throws Exception {
+        PIDLockManager locks = new PIDLockManager(50);
+        lockInOtherThread(locks, PID);
+        try {
+            locks.lock(PID);
+        } finally {
+            assertEquals(1, locks.getTimeouts());
+            assertEquals(1, locks.getContendedAcquisitions());
+            assertEquals(1, locks.getLockedPIDs());
+        }
+    }
+
+    @Test
+    public void lock_heldByOtherThread_waitsForRelease() throws Exception {
+        final PIDLockManager locks = new PIDLockManager(0);
+        locks.lock(PID);
+
+        final CountDownLatch locked = new CountDownLatch(1);
+        final AtomicReference<Exception> error = new AtomicReference<Exception>();
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    locks.lock(PID);
+                    locked.countDown();
+                    locks.unlock(PID);
+                } catch (Exception e) {
+                    error.set(e);
+                }
+            }
+        };
+        waiter.start();
+        assertEquals(false, locked.await(50, TimeUnit.MILLISECONDS));
+
+        locks.unlock(PID);
+        waiter.join();
+        assertNull(error.get());
+        assertEquals(0, locks.getLockedPIDs());
+        assertEquals(1, locks.getContendedAcquisitions());
+    }
+
+    @Test(expected = StorageMaintenanceException.class)
+    public void lock_writesDisabled_throws() throws Exception {
+        PIDLockManager locks = new PIDLockManager(0);
+        locks.setWritesDisabled(true);
+        locks.lock(PID);
+    }
+
+    @Test
+    public void lock_writesDisabledAndHeldByCurrentThread_succeeds() throws Exception {
+        PIDLockManager locks = new PIDLockManager(0);
+        locks.lock(PID);
+        locks.setWritesDisabled(true);
+        locks.lock(PID);
+        locks.unlock(PID);
+        locks.unlock(PID);
+        assertEquals(0, locks.getLockedPIDs());
+        assertTrue(locks.isWritesDisabled());
+    }
+
+    private static void lockInOtherThread(final PIDLockManager locks, final String pid)
+            throws InterruptedException {
+        Thread owner = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    locks.lock(pid);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        owner.start();
+        owner.join();
+    }
+
+    // Supports legacy test runners
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(PIDLockManagerTest.class);
+    }
+}